@@ -56,6 +56,8 @@ import com.android.internal.util.StateMachine;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.Iterator;
@@ -94,6 +96,8 @@ public final class Avrcp {
     private int mPlayPosChangedNT;
     private long mNextPosMs;
     private long mPrevPosMs;
+    private float mPlaybackSpeed;
+    private final AvrcpPlayPosScheduler mPlayPosScheduler = new AvrcpPlayPosScheduler();
     private long mSkipStartTime;
     private int mFeatures;
     private int mAbsoluteVolume;
@@ -189,6 +193,7 @@ public final class Avrcp {
     private String mCurrentPath;
     private String mCurrentPathUid;
     private static Uri mMediaUri;
+    private final AvrcpBrowseCache mBrowseCache;
 
     private final static int TYPE_MEDIA_PLAYER_ITEM = 0x01;
     private final static int TYPE_FOLDER_ITEM = 0x02;
@@ -234,6 +239,9 @@ public final class Avrcp {
     private static final int MEDIA_TYPE_VIDEO = 0X01;
 
     private static final int MAX_BROWSE_ITEM_TO_SEND = 0x03;
+    // Upper bound of the items sent in a GetFolderItems response sized by the
+    // maximum response size of the browsing channel
+    private static final int MAX_BROWSE_ITEMS_PER_RSP = 0x40;
     private static final int MAX_ATTRIB_COUNT = 0x07;
 
     private final static int ALBUMS_ITEM_INDEX = 0;
@@ -332,6 +340,7 @@ public final class Avrcp {
         mPlayStartTimeMs = -1L;
         mSongLengthMs = 0L;
         mPlaybackIntervalMs = 0L;
+        mPlaybackSpeed = 1.0f;
         mAddressedPlayerId = 0; //  0 signifies bad entry
         mPlayPosChangedNT = NOTIFICATION_TYPE_CHANGED;
         mFeatures = 0;
@@ -346,6 +355,7 @@ public final class Avrcp {
         mCurrentPath = PATH_INVALID;
         mCurrentPathUid = null;
         mMediaUri = Uri.EMPTY;
+        mBrowseCache = new AvrcpBrowseCache(context.getContentResolver());
 
         initNative();
 
@@ -594,6 +604,8 @@ public final class Avrcp {
         mCurrentPath = PATH_INVALID;
         mMediaUri = Uri.EMPTY;
         mCurrentPathUid = null;
+        mBrowseCache.close();
+        mPlayPosScheduler.cancel();
     }
 
     public void cleanup() {
@@ -622,7 +634,7 @@ public final class Avrcp {
             // Should never be called with the existing code, but just in case
             Handler handler = mLocalHandler.get();
             if (handler != null) {
-                handler.obtainMessage(MSG_UPDATE_STATE, 0, state,
+                handler.obtainMessage(MSG_UPDATE_STATE, Float.floatToIntBits(1.0f), state,
                         new Long(RemoteControlClient.PLAYBACK_POSITION_INVALID)).sendToTarget();
             }
         }
@@ -632,7 +644,8 @@ public final class Avrcp {
                 long currentPosMs, float speed) {
             Handler handler = mLocalHandler.get();
             if (handler != null) {
-                handler.obtainMessage(MSG_UPDATE_STATE, 0, state,
+                // The playback speed is passed as the bits of the float in arg1
+                handler.obtainMessage(MSG_UPDATE_STATE, Float.floatToIntBits(speed), state,
                         new Long(currentPosMs)).sendToTarget();
             }
         }
@@ -804,7 +817,8 @@ public final class Avrcp {
                 }
                 break;
             case MSG_UPDATE_STATE:
-                    updatePlayPauseState(msg.arg2, ((Long) msg.obj).longValue());
+                    updatePlayPauseState(msg.arg2, ((Long) msg.obj).longValue(),
+                                         Float.intBitsToFloat(msg.arg1));
                 break;
 
             case MSG_SET_METADATA:
@@ -865,18 +879,11 @@ public final class Avrcp {
 
             case MESSAGE_GET_ELEM_ATTRS:
             {
-                String[] textArray;
-                int[] attrIds;
                 byte numAttr = (byte) msg.arg1;
-                ArrayList<Integer> attrList = (ArrayList<Integer>) msg.obj;
+                int[] attrIds = (int[]) msg.obj;
                 if (DEBUG) Log.v(TAG, "MESSAGE_GET_ELEM_ATTRS:numAttr=" + numAttr);
-                attrIds = new int[numAttr];
-                textArray = new String[numAttr];
-                for (int i = 0; i < numAttr; ++i) {
-                    attrIds[i] = attrList.get(i).intValue();
-                    textArray[i] = getAttributeString(attrIds[i]);
-                }
-                getElementAttrRspNative(numAttr, attrIds, textArray);
+                ElementAttrs rsp = mMetadata.getElementAttrs(attrIds);
+                getElementAttrRspNative(numAttr, rsp.attrIds, rsp.values);
                 break;
             }
             case MESSAGE_REGISTER_NOTIFICATION:
@@ -887,8 +894,10 @@ public final class Avrcp {
 
             case MESSAGE_PLAY_INTERVAL_TIMEOUT:
                 if (DEBUG) Log.v(TAG, "MESSAGE_PLAY_INTERVAL_TIMEOUT");
-                mPlayPosChangedNT = NOTIFICATION_TYPE_CHANGED;
-                registerNotificationRspPlayPosNative(mPlayPosChangedNT, (int)getPlayPosition());
+                mPlayPosScheduler.onTimerFired();
+                if (mPlayPosChangedNT == NOTIFICATION_TYPE_INTERIM) {
+                    sendPlayPosChangedRsp(getPlayPosition());
+                }
                 break;
 
             case MESSAGE_SET_ADDR_PLAYER_REQ_TIMEOUT:
@@ -1098,8 +1107,12 @@ public final class Avrcp {
     }
 
     private void updatePlayPauseState(int state, long currentPosMs) {
-        if (DEBUG) Log.v(TAG,
-                "updatePlayPauseState, old=" + mCurrentPlayState + ", state=" + state);
+        updatePlayPauseState(state, currentPosMs, mPlaybackSpeed);
+    }
+
+    private void updatePlayPauseState(int state, long currentPosMs, float speed) {
+        if (DEBUG) Log.v(TAG, "updatePlayPauseState, old=" + mCurrentPlayState + ", state=" +
+                                                                state + ", speed=" + speed);
         boolean oldPosValid = (mCurrentPosMs !=
                                RemoteControlClient.PLAYBACK_POSITION_ALWAYS_UNKNOWN);
         if (state == RemoteControlClient.PLAYSTATE_PLAYING) { // may be change in player
@@ -1120,9 +1133,11 @@ public final class Avrcp {
         int newPlayStatus = convertPlayStateToPlayStatus(state);
 
         if ((mCurrentPlayState == RemoteControlClient.PLAYSTATE_PLAYING) &&
-            (mCurrentPlayState != state) && oldPosValid) {
+            ((mCurrentPlayState != state) || (mPlaybackSpeed != speed)) && oldPosValid) {
             mCurrentPosMs = getPlayPosition();
+            mPlayStartTimeMs = SystemClock.elapsedRealtime();
         }
+        mPlaybackSpeed = speed;
 
         if ((state == RemoteControlClient.PLAYSTATE_PLAYING) && (mCurrentPlayState != state)) {
             mPlayStartTimeMs = SystemClock.elapsedRealtime();
@@ -1166,19 +1181,20 @@ public final class Avrcp {
         boolean newPosValid = (mCurrentPosMs !=
                                RemoteControlClient.PLAYBACK_POSITION_ALWAYS_UNKNOWN);
         long playPosition = getPlayPosition();
-        mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
         /* need send play position changed notification when play status is changed */
-        if ((mPlayPosChangedNT == NOTIFICATION_TYPE_INTERIM) &&
-            ((oldPlayStatus != newPlayStatus) || (oldPosValid != newPosValid) ||
-             (newPosValid && ((playPosition >= mNextPosMs) || (playPosition <= mPrevPosMs))))) {
-            mPlayPosChangedNT = NOTIFICATION_TYPE_CHANGED;
-            registerNotificationRspPlayPosNative(mPlayPosChangedNT, (int)playPosition);
-        }
-        if ((mPlayPosChangedNT == NOTIFICATION_TYPE_INTERIM) && newPosValid &&
-            (state == RemoteControlClient.PLAYSTATE_PLAYING)) {
-            Message msg = mHandler.obtainMessage(MESSAGE_PLAY_INTERVAL_TIMEOUT);
-            mHandler.sendMessageDelayed(msg, mNextPosMs - playPosition);
+        if (mPlayPosChangedNT == NOTIFICATION_TYPE_INTERIM) {
+            if ((oldPlayStatus != newPlayStatus) || (oldPosValid != newPosValid)) {
+                if (mPlayPosScheduler.isArmed()) {
+                    mPlayPosScheduler.onCoalesced();
+                }
+                sendPlayPosChangedRsp(playPosition);
+            } else if (newPosValid && ((playPosition >= mNextPosMs) ||
+                                       (playPosition <= mPrevPosMs)) &&
+                       mPlayPosScheduler.shouldReport(playPosition)) {
+                sendPlayPosChangedRsp(playPosition);
+            }
         }
+        schedulePlayPosTimer(playPosition);
 
         if ((mPlayStatusChangedNT == NOTIFICATION_TYPE_INTERIM) && (oldPlayStatus != newPlayStatus)) {
             mPlayStatusChangedNT = NOTIFICATION_TYPE_CHANGED;
@@ -1227,7 +1243,9 @@ public final class Avrcp {
             if (DEBUG) Log.v(TAG, "send Play Position reject to stack");
             mPlayPosChangedNT = NOTIFICATION_TYPE_REJECT;
             registerNotificationRspPlayPosNative(mPlayPosChangedNT, -1);
-            mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
+            if (mPlayPosScheduler.cancel()) {
+                mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
+            }
         }
         if (mTrackChangedNT == NOTIFICATION_TYPE_INTERIM) {
             if (DEBUG) Log.v(TAG, "send Track Changed reject to stack");
@@ -1282,7 +1300,6 @@ public final class Avrcp {
         int numItems = 0;
         long reqItems = (mCachedRequest.mEnd - mCachedRequest.mStart) + 1;
         long availableItems = 0;
-        Cursor cursor = null;
         int[] itemType = new int[MAX_BROWSE_ITEM_TO_SEND];
         long[] uid = new long[MAX_BROWSE_ITEM_TO_SEND];
         int[] type = new int[MAX_BROWSE_ITEM_TO_SEND];
@@ -1327,41 +1344,40 @@ public final class Avrcp {
             reqItems = availableItems;
         Log.i(TAG, "reqItems: " + reqItems);
 
-        for (index = 0; index < reqItems; index++) {
-            try {
-                cursor = mContext.getContentResolver().query(
-                     mMediaUri, mCursorCols,
-                     MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" +
-                         playList[index + (int)mCachedRequest.mStart], null, null);
-                if (cursor != null) {
-                    int validAttrib = 0;
-                    cursor.moveToFirst();
-                    itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
-                    uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
-                    type[index] = MEDIA_TYPE_AUDIO;
-                    playable[index] = 0;
-                    displayName[index] = cursor.getString(cursor.getColumnIndexOrThrow(
-                                                            MediaStore.Audio.Media.TITLE));
-                    for (int attIndex = 0; attIndex < mCachedRequest.mAttrCnt; attIndex++) {
-                        int attr = mCachedRequest.mAttrList.get(attIndex).intValue();
-                        if ((attr <= MEDIA_ATTR_MAX) && (attr >= MEDIA_ATTR_MIN)) {
-                            attValues[(7 * index) + attIndex] =
-                                getAttributeStringFromCursor(cursor, attr);
-                            attIds[(7 * index) + attIndex] = attr;
-                            validAttrib ++;
-                        }
-                    }
-                    numAtt[index] = (byte)validAttrib;
-                }
-            } catch(Exception e) {
-                Log.i(TAG, "Exception "+ e);
-                getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                            uid, type, playable, displayName, numAtt, attValues, attIds);
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
-            }
+        String[][] items = mBrowseCache.getItemAttributes(mMediaUri, playList,
+                                            (int)mCachedRequest.mStart, (int)reqItems);
+        if (items == null) {
+            getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
+                        uid, type, playable, displayName, numAtt, attValues, attIds);
+            return;
+        }
+        index = 0;
+        for (int item = 0; item < reqItems; item++) {
+            String[] values = items[item];
+            if (values == null) {
+                Log.i(TAG, "No such track: " + playList[item + (int)mCachedRequest.mStart]);
+                continue;
+            }
+            int validAttrib = 0;
+            itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
+            uid[index] = playList[item + (int)mCachedRequest.mStart];
+            type[index] = MEDIA_TYPE_AUDIO;
+            playable[index] = 0;
+            displayName[index] = (values[AvrcpBrowseCache.ATTR_TITLE] == null) ? "" :
+                                                    values[AvrcpBrowseCache.ATTR_TITLE];
+            for (int attIndex = 0; attIndex < mCachedRequest.mAttrCnt; attIndex++) {
+                int attr = mCachedRequest.mAttrList.get(attIndex).intValue();
+                if ((attr <= MEDIA_ATTR_MAX) && (attr >= MEDIA_ATTR_MIN) &&
+                        (validAttrib < MAX_ATTRIB_COUNT)) {
+                    // Values are packed, the stack reads numAtt entries from index*7
+                    attValues[(7 * index) + validAttrib] =
+                        getBrowseAttributeString(values, uid[index], 1, attr);
+                    attIds[(7 * index) + validAttrib] = attr;
+                    validAttrib ++;
+                }
+            }
+            numAtt[index] = (byte)validAttrib;
+            index++;
         }
         numItems = index;
         getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, numItems, itemType, uid,
@@ -1406,24 +1422,157 @@ public final class Avrcp {
         }
     }
 
-    class Metadata {
-        private String artist;
-        private String trackTitle;
-        private String albumTitle;
-        private String genre;
-        private long tracknum;
+    /**
+     * Immutable snapshot of the metadata of the current track. A new version
+     * is only created when a field changes, so the GetElementAttributes
+     * responses prepared for a snapshot are reused until the track changes.
+     */
+    static final class Metadata {
+        /* Number of attribute lists kept for GetElementAttributes */
+        private static final int MAX_ELEMENT_ATTRS = 8;
+
+        final String artist;
+        final String trackTitle;
+        final String albumTitle;
+        final String genre;
+        final long tracknum;
+        final long numTracks;
+        final long durationMs;
+        final int version;
+
+        /* Prepared responses, by mask of the requested attribute ids */
+        private final HashMap<Integer, ElementAttrs> mElementAttrs =
+                new HashMap<Integer, ElementAttrs>();
 
         public Metadata() {
-            artist = null;
-            trackTitle = null;
-            albumTitle = null;
-            genre = null;
-            tracknum = -1L;
+            this(null, null, null, null, -1L, -1L, 0L, 0);
+        }
+
+        private Metadata(String artist, String trackTitle, String albumTitle, String genre,
+                long tracknum, long numTracks, long durationMs, int version) {
+            this.artist = artist;
+            this.trackTitle = trackTitle;
+            this.albumTitle = albumTitle;
+            this.genre = genre;
+            this.tracknum = tracknum;
+            this.numTracks = numTracks;
+            this.durationMs = durationMs;
+            this.version = version;
+        }
+
+        /**
+         * @return a snapshot holding the given fields, this one if none changed
+         */
+        Metadata update(String artist, String trackTitle, String albumTitle, String genre,
+                long tracknum, long numTracks, long durationMs) {
+            if (equals(this.artist, artist) && equals(this.trackTitle, trackTitle) &&
+                    equals(this.albumTitle, albumTitle) && equals(this.genre, genre) &&
+                    (this.tracknum == tracknum) && (this.numTracks == numTracks) &&
+                    (this.durationMs == durationMs)) {
+                return this;
+            }
+            return new Metadata(artist, trackTitle, albumTitle, genre, tracknum, numTracks,
+                    durationMs, version + 1);
+        }
+
+        /**
+         * @return true if other identifies the same track, the fields which
+         *         do not identify a track, e.g. the genre, are ignored
+         */
+        boolean isSameTrack(Metadata other) {
+            return equals(artist, other.artist) && equals(trackTitle, other.trackTitle) &&
+                    equals(albumTitle, other.albumTitle) && (tracknum == other.tracknum);
+        }
+
+        String getAttributeString(int attrId) {
+            String attrStr = null;
+            switch (attrId) {
+                case MEDIA_ATTR_TITLE:
+                    attrStr = trackTitle;
+                    break;
+                case MEDIA_ATTR_ARTIST:
+                    attrStr = artist;
+                    break;
+                case MEDIA_ATTR_ALBUM:
+                    attrStr = albumTitle;
+                    break;
+                case MEDIA_ATTR_PLAYING_TIME:
+                    if (durationMs != 0L) {
+                        attrStr = Long.toString(durationMs);
+                    }
+                    break;
+                case MEDIA_ATTR_TRACK_NUM:
+                    attrStr = Long.toString(tracknum);
+                    break;
+                case MEDIA_ATTR_NUM_TRACKS:
+                    attrStr = Long.toString(numTracks);
+                    break;
+                case MEDIA_ATTR_GENRE:
+                    attrStr = genre;
+                    break;
+            }
+            if (attrStr == null) {
+                attrStr = new String();
+            }
+            return attrStr;
+        }
+
+        /**
+         * Get the response to GetElementAttributes for the given attribute
+         * ids. The response is built once per list of attributes.
+         */
+        synchronized ElementAttrs getElementAttrs(int[] attrIds) {
+            int mask = 0;
+            for (int attrId : attrIds) {
+                if ((attrId < MEDIA_ATTR_MIN) || (attrId > MEDIA_ATTR_MAX) ||
+                        ((mask & (1 << attrId)) != 0)) {
+                    mask = -1; // not cached
+                    break;
+                }
+                mask |= (1 << attrId);
+            }
+            ElementAttrs attrs = (mask > 0) ? mElementAttrs.get(mask) : null;
+            if ((attrs != null) && Arrays.equals(attrs.attrIds, attrIds)) {
+                return attrs;
+            }
+
+            String[] values = new String[attrIds.length];
+            for (int i = 0; i < attrIds.length; i++) {
+                values[i] = getAttributeString(attrIds[i]);
+            }
+            attrs = new ElementAttrs(attrIds, values);
+            if (mask > 0) {
+                if (mElementAttrs.size() >= MAX_ELEMENT_ATTRS) {
+                    mElementAttrs.clear();
+                }
+                mElementAttrs.put(mask, attrs);
+            }
+            return attrs;
+        }
+
+        private static boolean equals(String a, String b) {
+            return (a == null) ? (b == null) : a.equals(b);
         }
 
         public String toString() {
             return "Metadata[artist=" + artist + " trackTitle=" + trackTitle + " albumTitle=" +
-                   albumTitle + " genre=" + genre + " tracknum=" + Long.toString(tracknum) + "]";
+                   albumTitle + " genre=" + genre + " tracknum=" + Long.toString(tracknum) +
+                   " numTracks=" + numTracks + " duration=" + durationMs +
+                   " version=" + version + "]";
+        }
+    }
+
+    /**
+     * The attribute ids and values of a GetElementAttributes response, passed
+     * as is to the JNI layer which does not modify them.
+     */
+    static final class ElementAttrs {
+        final int[] attrIds;
+        final String[] values;
+
+        ElementAttrs(int[] attrIds, String[] values) {
+            this.attrIds = attrIds;
+            this.values = values;
         }
     }
 
@@ -1449,26 +1598,31 @@ public final class Avrcp {
                 final MediaPlayerInfo di = rccIterator.next();
                 if (di.GetPlayerFocus()) {
                     if (DEBUG) Log.v(TAG, "resetting current MetaData");
-                    mMetadata.artist = di.GetMetadata().artist;
-                    mMetadata.trackTitle = di.GetMetadata().trackTitle;
-                    mMetadata.albumTitle = di.GetMetadata().albumTitle;
-                    mMetadata.genre = di.GetMetadata().genre;
-                    mMetadata.tracknum = di.GetMetadata().tracknum;
+                    mMetadata = di.GetMetadata();
                     break;
                 }
             }
         }
 
-        String oldMetadata = mMetadata.toString();
-        mMetadata.artist = data.getString(MediaMetadataRetriever.METADATA_KEY_ARTIST, null);
-        mMetadata.trackTitle = data.getString(MediaMetadataRetriever.METADATA_KEY_TITLE, null);
-        mMetadata.albumTitle = data.getString(MediaMetadataRetriever.METADATA_KEY_ALBUM, null);
-        mMetadata.genre = data.getString(MediaMetadataRetriever.METADATA_KEY_GENRE, null);
-        mTrackNumber = data.getLong(MediaMetadataRetriever.METADATA_KEY_NUM_TRACKS, -1L);
-        mMetadata.tracknum = data.getLong(MediaMetadataRetriever.METADATA_KEY_CD_TRACK_NUMBER, -1L);
+        Metadata oldMetadata = mMetadata;
+        mMetadata = mMetadata.update(
+                data.getString(MediaMetadataRetriever.METADATA_KEY_ARTIST, null),
+                data.getString(MediaMetadataRetriever.METADATA_KEY_TITLE, null),
+                data.getString(MediaMetadataRetriever.METADATA_KEY_ALBUM, null),
+                data.getString(MediaMetadataRetriever.METADATA_KEY_GENRE, null),
+                data.getLong(MediaMetadataRetriever.METADATA_KEY_CD_TRACK_NUMBER, -1L),
+                data.getLong(MediaMetadataRetriever.METADATA_KEY_NUM_TRACKS, -1L),
+                data.getLong(MediaMetadataRetriever.METADATA_KEY_DURATION,
+                        RemoteControlClient.PLAYBACK_POSITION_INVALID));
+        mTrackNumber = mMetadata.numTracks;
+        mSongLengthMs = mMetadata.durationMs;
+        if (mMetadata == oldMetadata) {
+            if (DEBUG) Log.v(TAG, "Metadata unchanged, version " + mMetadata.version);
+            return;
+        }
 
         Log.v(TAG,"old Metadata = " + oldMetadata);
-        Log.v(TAG,"new MetaData " + mMetadata.toString());
+        Log.v(TAG,"new MetaData " + mMetadata);
 
         if (mMediaPlayers.size() > 0) {
             final Iterator<MediaPlayerInfo> rccIterator = mMediaPlayers.iterator();
@@ -1482,10 +1636,11 @@ public final class Avrcp {
             }
         }
 
-        if (!oldMetadata.equals(mMetadata.toString())) {
-            updateTrackNumber();
-            Log.v(TAG,"new mMetadata, mTrackNumber update to " + mTrackNumber);
+        updateTrackNumber();
+        Log.v(TAG,"new mMetadata, mTrackNumber update to " + mTrackNumber);
 
+        /* a genre or track count update alone does not change the track */
+        if (!mMetadata.isSameTrack(oldMetadata)) {
             if (mTrackChangedNT == NOTIFICATION_TYPE_INTERIM) {
                 mTrackChangedNT = NOTIFICATION_TYPE_CHANGED;
                 sendTrackChangedRsp();
@@ -1498,18 +1653,15 @@ public final class Avrcp {
                 }
             }
             /* need send play position changed notification when track is changed */
+            mPlayPosScheduler.resetReported();
             if (mPlayPosChangedNT == NOTIFICATION_TYPE_INTERIM) {
-                mPlayPosChangedNT = NOTIFICATION_TYPE_CHANGED;
-                registerNotificationRspPlayPosNative(mPlayPosChangedNT,
-                                                     (int)getPlayPosition());
-                mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
+                if (mPlayPosScheduler.isArmed()) {
+                    mPlayPosScheduler.onCoalesced();
+                }
+                sendPlayPosChangedRsp(getPlayPosition());
             }
         }
         if (DEBUG) Log.v(TAG, "mMetadata=" + mMetadata.toString());
-
-        mSongLengthMs = data.getLong(MediaMetadataRetriever.METADATA_KEY_DURATION,
-                RemoteControlClient.PLAYBACK_POSITION_INVALID);
-        if (DEBUG) Log.v(TAG, "duration=" + mSongLengthMs);
     }
 
     private void getRcFeatures(byte[] address, int features) {
@@ -1524,12 +1676,8 @@ public final class Avrcp {
     }
 
     private void getElementAttr(byte numAttr, int[] attrs) {
-        int i;
-        ArrayList<Integer> attrList = new ArrayList<Integer>();
-        for (i = 0; i < numAttr; ++i) {
-            attrList.add(attrs[i]);
-        }
-        Message msg = mHandler.obtainMessage(MESSAGE_GET_ELEM_ATTRS, (int)numAttr, 0, attrList);
+        // The array is created by the JNI layer for this request only
+        Message msg = mHandler.obtainMessage(MESSAGE_GET_ELEM_ATTRS, (int)numAttr, 0, attrs);
         mHandler.sendMessage(msg);
     }
 
@@ -1621,16 +1769,13 @@ public final class Avrcp {
                 case FOLDER_DOWN:
                     if (folderUid == UID_TITLES) {
                         mCurrentPath = PATH_TITLES;
-                        numberOfItems = getNumItems(PATH_TITLES,
-                            MediaStore.Audio.Media.TITLE);
+                        numberOfItems = getNumItems(PATH_TITLES);
                     } else if (folderUid == UID_ALBUM) {
                         mCurrentPath = PATH_ALBUMS;
-                        numberOfItems = getNumItems(PATH_ALBUMS,
-                            MediaStore.Audio.Media.ALBUM_ID);
+                        numberOfItems = getNumItems(PATH_ALBUMS);
                     } else if (folderUid == UID_ARTIST) {
                         mCurrentPath = PATH_ARTISTS;
-                        numberOfItems = getNumItems(PATH_ARTISTS,
-                            MediaStore.Audio.Media.ARTIST_ID);
+                        numberOfItems = getNumItems(PATH_ARTISTS);
                     } else if (folderUid == UID_PLAYLIST) {
                         mCurrentPath = PATH_PLAYLISTS;
                         numberOfItems = getNumPlaylistItems();
@@ -1682,8 +1827,7 @@ public final class Avrcp {
                     } else { // Path @ individual album id
                         mCurrentPath = PATH_ALBUMS;
                         mCurrentPathUid = null;
-                        numberOfItems = getNumItems(PATH_ALBUMS,
-                            MediaStore.Audio.Media.ALBUM_ID);
+                        numberOfItems = getNumItems(PATH_ALBUMS);
                     }
                     break;
                 case FOLDER_DOWN:
@@ -1747,8 +1891,7 @@ public final class Avrcp {
                     } else {
                         mCurrentPath = PATH_ARTISTS;
                         mCurrentPathUid = null;
-                        numberOfItems = getNumItems(PATH_ARTISTS,
-                            MediaStore.Audio.Media.ARTIST_ID);
+                        numberOfItems = getNumItems(PATH_ARTISTS);
                     }
                     break;
                 case FOLDER_DOWN:
@@ -1864,75 +2007,24 @@ public final class Avrcp {
     }
 
     private long getNumPlaylistItems() {
-        Cursor cursor = null;
-        String[] cols = new String[] {
-                MediaStore.Audio.Playlists._ID,
-                MediaStore.Audio.Playlists.NAME
-        };
-        try {
-            cursor = mContext.getContentResolver().query(
-                MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
-                cols, MediaStore.Audio.Playlists.NAME + " != ''", null,
-                MediaStore.Audio.Playlists.NAME);
-
-            if ((cursor == null) || (cursor.getCount() == 0)) {
-                return 0;
-            } else {
-                long count = cursor.getCount();
-                return count;
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Exception " + e);
-            return 0;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-    }
-
-    private long getNumItems(String path, String element) {
-        if (path == null || element == null)
+        AvrcpBrowseCache.Folder folder = mBrowseCache.getFolder(mMediaUri,
+                AvrcpBrowseCache.FOLDER_PLAYLISTS, 0);
+        return folder == null ? 0 : folder.size();
+    }
+
+    private long getNumItems(String path) {
+        int kind;
+        if (PATH_TITLES.equals(path)) {
+            kind = AvrcpBrowseCache.FOLDER_TITLES;
+        } else if (PATH_ALBUMS.equals(path)) {
+            kind = AvrcpBrowseCache.FOLDER_ALBUMS;
+        } else if (PATH_ARTISTS.equals(path)) {
+            kind = AvrcpBrowseCache.FOLDER_ARTISTS;
+        } else {
             return 0;
-        Cursor cursor = null;
-        try {
-            cursor = mContext.getContentResolver().query(
-                mMediaUri,
-                new String[] {element},
-                MediaStore.Audio.Media.IS_MUSIC + "=1", null,
-                element);
-            if ((cursor == null) || (cursor.getCount() == 0)) {
-                return 0;
-            } else if (path.equals(PATH_TITLES)) {
-                long count = cursor.getCount();
-                return count;
-            } else if (path.equals(PATH_ALBUMS) || path.equals(PATH_ARTISTS)){
-                long elemCount = 0;
-                cursor.moveToFirst();
-                long count = cursor.getCount();
-                long prevElem = 0;
-                long curElem = 0;
-                while (count > 0) {
-                    curElem = cursor.getLong(cursor.getColumnIndexOrThrow(element));
-                    Log.i(TAG, "curElem "+ curElem + "preElem " + prevElem);
-                    if (curElem != prevElem) {
-                        elemCount++;
-                    }
-                    prevElem = curElem;
-                    cursor.moveToNext();
-                    count--;
-                }
-                Log.i(TAG, "element Count is "+ elemCount);
-                return elemCount;
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Exception " + e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
         }
-        return 0;
+        AvrcpBrowseCache.Folder folder = mBrowseCache.getFolder(mMediaUri, kind, 0);
+        return folder == null ? 0 : folder.size();
     }
 
     private void playItem(byte scope, long uid) {
@@ -1964,125 +2056,27 @@ public final class Avrcp {
         if (scope == SCOPE_VIRTUAL_FILE_SYS) {
             if (mCurrentPath.equals(PATH_ROOT)) {
                 playItemRspNative(UID_A_DIRECTORY);
-            } else if (mCurrentPath.equals(PATH_TITLES)) {
-                Cursor cursor = null;
+            } else if (isCurrentPathValid()) {
+                // The item must be in the current folder, which is cached from browsing it
+                AvrcpBrowseCache.Folder folder = null;
                 try {
-                    cursor = mContext.getContentResolver().query(
-                        mMediaUri,
-                        new String[] {MediaStore.Audio.Media.TITLE},
-                        MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" + uid,
-                        null, null);
-                    if ((cursor == null) || (cursor.getCount() == 0)) {
-                        Log.e(TAG, "No such track");
-                        playItemRspNative(DOES_NOT_EXIST);
-                    } else {
-                        Log.i(TAG, "Play uid:" + uid);
-                        mRemoteController.setRemoteControlClientPlayItem(uid, scope);
-                    }
-                } catch (Exception e) {
+                    long folderUid = (mCurrentPathUid == null) ? 0 :
+                                                            Long.valueOf(mCurrentPathUid);
+                    folder = mBrowseCache.getFolder(mMediaUri, getBrowseFolderKind(),
+                                                                                folderUid);
+                } catch (NumberFormatException e) {
                     Log.e(TAG, "Exception " + e);
-                    playItemRspNative(INTERNAL_ERROR);
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
                 }
-            } else if (mCurrentPath.equals(PATH_ALBUMS)) {
-                if (mCurrentPathUid == null) {
-                    playItemRspNative(UID_A_DIRECTORY);
-                } else {
-                    Cursor cursor = null;
-                    try {
-                        cursor = mContext.getContentResolver().query(
-                            mMediaUri,
-                            new String[] {MediaStore.Audio.Media.TITLE},
-                            MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" + uid + " AND " +
-                            MediaStore.Audio.Media.ALBUM_ID + "=" + mCurrentPathUid,
-                            null, null);
-                        if ((cursor == null) || (cursor.getCount() == 0)) {
-                            Log.i(TAG, "No such track");
-                            playItemRspNative(DOES_NOT_EXIST);
-                        } else {
-                            Log.i(TAG, "Play uid:" + uid);
-                            mRemoteController.setRemoteControlClientPlayItem(uid, scope);
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Exception " + e);
-                        playItemRspNative(INTERNAL_ERROR);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                }
-            } else if (mCurrentPath.equals(PATH_ARTISTS)) {
-                if (mCurrentPathUid == null) {
-                    playItemRspNative(UID_A_DIRECTORY);
-                } else {
-                    Cursor cursor = null;
-                    try {
-                        cursor = mContext.getContentResolver().query(
-                            mMediaUri,
-                            new String[] {MediaStore.Audio.Media.TITLE},
-                            MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" + uid + " AND " +
-                            MediaStore.Audio.Media.ARTIST_ID + "=" + mCurrentPathUid,
-                            null, null);
-                        if ((cursor == null) || (cursor.getCount() == 0)) {
-                            Log.i(TAG, "No such track");
-                            playItemRspNative(DOES_NOT_EXIST);
-                        } else {
-                            Log.i(TAG, "Play uid:" + uid);
-                            mRemoteController.setRemoteControlClientPlayItem(uid, scope);
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Exception " + e);
-                        playItemRspNative(INTERNAL_ERROR);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                }
-            } else if (mCurrentPath.equals(PATH_PLAYLISTS)) {
-                if (mCurrentPathUid == null) {
+                if (folder == null) {
+                    playItemRspNative(INTERNAL_ERROR);
+                } else if (folder.isFolderList()) {
                     playItemRspNative(UID_A_DIRECTORY);
+                } else if (folder.indexOf(uid) < 0) {
+                    Log.i(TAG, "No such track");
+                    playItemRspNative(DOES_NOT_EXIST);
                 } else {
-                    Cursor cursor = null;
-                    try {
-                        String[] playlistMemberCols = new String[] {
-                                MediaStore.Audio.Playlists.Members._ID,
-                                MediaStore.Audio.Media.TITLE,
-                                MediaStore.Audio.Media.DATA,
-                                MediaStore.Audio.Media.ALBUM,
-                                MediaStore.Audio.Media.ARTIST,
-                                MediaStore.Audio.Media.DURATION,
-                                MediaStore.Audio.Playlists.Members.PLAY_ORDER,
-                                MediaStore.Audio.Playlists.Members.AUDIO_ID,
-                                MediaStore.Audio.Media.IS_MUSIC
-                        };
-                        Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external",
-                                                                Long.parseLong(mCurrentPathUid));
-                        StringBuilder where = new StringBuilder();
-                        where.append(MediaStore.Audio.Playlists.Members.AUDIO_ID + "=" + uid);
-                        cursor = mContext.getContentResolver().query(uri, playlistMemberCols,
-                                    where.toString(), null, MediaStore.Audio.Playlists.Members.
-                                                                            DEFAULT_SORT_ORDER);
-
-                        if ((cursor == null) || (cursor.getCount() == 0)) {
-                            Log.i(TAG, "No such track");
-                            playItemRspNative(DOES_NOT_EXIST);
-                        } else {
-                            Log.i(TAG, "Play uid:" + uid);
-                            mRemoteController.setRemoteControlClientPlayItem(uid, scope);
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Exception " + e);
-                        playItemRspNative(INTERNAL_ERROR);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
+                    Log.i(TAG, "Play uid:" + uid);
+                    mRemoteController.setRemoteControlClientPlayItem(uid, scope);
                 }
             } else {
                 playItemRspNative(DOES_NOT_EXIST);
@@ -2110,57 +2104,30 @@ public final class Avrcp {
         mHandler.sendMessage(msg);
     }
 
-    private String[] mCursorCols = new String[] {
-                    "audio._id AS _id",
-                    MediaStore.Audio.Media.ARTIST,
-                    MediaStore.Audio.Media.ALBUM,
-                    MediaStore.Audio.Media.TITLE,
-                    MediaStore.Audio.Media.DURATION,
-                    MediaStore.Audio.Media.DATA,
-                    MediaStore.Audio.Media.MIME_TYPE,
-                    MediaStore.Audio.Media.ALBUM_ID,
-                    MediaStore.Audio.Media.ARTIST_ID,
-                    MediaStore.Audio.Media.IS_PODCAST,
-                    MediaStore.Audio.Media.BOOKMARK
-    };
-
     private void processGetItemAttr(byte scope, long uid, byte numAttr, int[] attrs) {
         if (DEBUG) Log.v(TAG, "processGetItemAttr: scope: " + scope + " uid:" + uid +
                                                                     " numAttr:" + numAttr);
         String[] textArray;
         textArray = new String[numAttr];
         if ((scope == SCOPE_VIRTUAL_FILE_SYS) || (scope == SCOPE_NOW_PLAYING)) {
-            Cursor cursor = null;
-            try {
-                if ((mMediaUri == Uri.EMPTY) || (mCurrentPath.equals(PATH_INVALID))) {
-                    Log.e(TAG, "Browsed player not set, getItemAttr can not be processed");
-                    getItemAttrRspNative((byte)0, attrs, textArray);
-                    return;
-                }
-                cursor = mContext.getContentResolver().query(
-                     mMediaUri, mCursorCols,
-                     MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id=" + uid, null, null);
-                if ((cursor == null) || (cursor.getCount() == 0)) {
-                    Log.i(TAG, "Invalid track UID");
-                    getItemAttrRspNative((byte)0, attrs, textArray);
-                } else {
-                    int validAttrib = 0;
-                    cursor.moveToFirst();
-                    for (int i = 0; i < numAttr; ++i) {
-                        if ((attrs[i] <= MEDIA_ATTR_MAX) && (attrs[i] >= MEDIA_ATTR_MIN)) {
-                            textArray[i] = getAttributeStringFromCursor(cursor, attrs[i]);
-                            validAttrib ++;
-                        }
-                    }
-                    getItemAttrRspNative((byte)validAttrib, attrs, textArray);
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Exception " + e);
+            if ((mMediaUri == Uri.EMPTY) || (mCurrentPath.equals(PATH_INVALID))) {
+                Log.e(TAG, "Browsed player not set, getItemAttr can not be processed");
+                getItemAttrRspNative((byte)0, attrs, textArray);
+                return;
+            }
+            String[][] items = mBrowseCache.getItemAttributes(mMediaUri, new long[] {uid}, 0, 1);
+            if ((items == null) || (items[0] == null)) {
+                Log.i(TAG, "Invalid track UID");
                 getItemAttrRspNative((byte)0, attrs, textArray);
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
+            } else {
+                int validAttrib = 0;
+                for (int i = 0; i < numAttr; ++i) {
+                    if ((attrs[i] <= MEDIA_ATTR_MAX) && (attrs[i] >= MEDIA_ATTR_MIN)) {
+                        textArray[i] = getBrowseAttributeString(items[0], uid, 1, attrs[i]);
+                        validAttrib ++;
+                    }
                 }
+                getItemAttrRspNative((byte)validAttrib, attrs, textArray);
             }
         } else {
             Log.i(TAG, "Invalid scope");
@@ -2291,6 +2258,171 @@ public final class Avrcp {
         return false;
     }
 
+    private int getBrowseFolderKind() {
+        boolean inFolder = (mCurrentPathUid != null);
+        if (mCurrentPath.equals(PATH_TITLES)) {
+            return AvrcpBrowseCache.FOLDER_TITLES;
+        } else if (mCurrentPath.equals(PATH_ALBUMS)) {
+            return inFolder ? AvrcpBrowseCache.FOLDER_ALBUM : AvrcpBrowseCache.FOLDER_ALBUMS;
+        } else if (mCurrentPath.equals(PATH_ARTISTS)) {
+            return inFolder ? AvrcpBrowseCache.FOLDER_ARTIST : AvrcpBrowseCache.FOLDER_ARTISTS;
+        } else if (mCurrentPath.equals(PATH_PLAYLISTS)) {
+            return inFolder ? AvrcpBrowseCache.FOLDER_PLAYLIST
+                    : AvrcpBrowseCache.FOLDER_PLAYLISTS;
+        }
+        return -1;
+    }
+
+    private static int getBrowseFolderType(int kind) {
+        switch (kind) {
+            case AvrcpBrowseCache.FOLDER_ALBUMS:
+                return FOLDER_TYPE_ALBUMS;
+            case AvrcpBrowseCache.FOLDER_ARTISTS:
+                return FOLDER_TYPE_ARTISTS;
+            case AvrcpBrowseCache.FOLDER_PLAYLISTS:
+                return FOLDER_TYPE_PLAYLISTS;
+            default:
+                return FOLDER_TYPE_MIXED;
+        }
+    }
+
+    /*
+     * Answer GetFolderItems for a folder below the root of the virtual file
+     * system from the browse cache. As many items of the requested window are
+     * sent as fit in the maximum response size given by the stack.
+     */
+    private void processGetBrowseFolderItems(long start, long end, long size,
+                                                        byte numAttr, int[] attrs) {
+        AvrcpBrowseCache.Folder folder = null;
+        try {
+            long folderUid = (mCurrentPathUid == null) ? 0 : Long.valueOf(mCurrentPathUid);
+            folder = mBrowseCache.getFolder(mMediaUri, getBrowseFolderKind(), folderUid);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Exception " + e);
+        }
+        if (folder == null) {
+            Log.i(TAG, "Error: could not fetch the elements");
+            sendFolderItemsErrorRsp(INTERNAL_ERROR);
+            return;
+        }
+
+        long availableItems = folder.size();
+        if (start >= availableItems) {
+            Log.i(TAG, "startIteam exceeds the available item index");
+            sendFolderItemsErrorRsp(RANGE_OUT_OF_BOUNDS);
+            return;
+        }
+        long reqItems = Math.min((end - start) + 1, availableItems - start);
+        int maxItems = (size > 0) ? MAX_BROWSE_ITEMS_PER_RSP : MAX_BROWSE_ITEM_TO_SEND;
+        int count = (int)Math.min(reqItems, maxItems);
+        if (DEBUG) Log.v(TAG, "availableItems: " + availableItems + " reqItems: " + reqItems +
+                                                                " count: " + count);
+
+        int[] itemType = new int[count];
+        long[] uid = new long[count];
+        int[] type = new int[count];
+        byte[] playable = new byte[count];
+        String[] displayName = new String[count];
+        byte[] numAtt = new byte[count];
+        // Item specific attribute's entry starts from index*7
+        String[] attValues = new String[count * MAX_ATTRIB_COUNT];
+        int[] attIds = new int[count * MAX_ATTRIB_COUNT];
+
+        long budget = size - AvrcpBrowseCache.RSP_HEADER_SIZE;
+        int index;
+        for (index = 0; index < count; index++) {
+            int position = (int)start + index;
+            int itemSize;
+            uid[index] = folder.mUids[position];
+            playable[index] = 0;
+            if (folder.isFolderList()) {
+                itemType[index] = TYPE_FOLDER_ITEM;
+                type[index] = getBrowseFolderType(folder.mKind);
+                displayName[index] = (folder.mNames[position] == null) ? "" :
+                                                                folder.mNames[position];
+                numAtt[index] = 0;
+                itemSize = AvrcpBrowseCache.getFolderItemSize(displayName[index]);
+            } else {
+                String[] values = folder.getAttributes(position);
+                if (values == null) {
+                    sendFolderItemsErrorRsp(INTERNAL_ERROR);
+                    return;
+                }
+                itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
+                type[index] = MEDIA_TYPE_AUDIO;
+                displayName[index] = (values[AvrcpBrowseCache.ATTR_TITLE] == null) ? "" :
+                                                        values[AvrcpBrowseCache.ATTR_TITLE];
+                int validAttrib = 0;
+                for (int attIndex = 0; attIndex < numAttr; attIndex++) {
+                    if ((attrs[attIndex] <= MEDIA_ATTR_MAX) &&
+                            (attrs[attIndex] >= MEDIA_ATTR_MIN) &&
+                            (validAttrib < MAX_ATTRIB_COUNT)) {
+                        // Values are packed, the stack reads numAtt entries from index*7
+                        attValues[(MAX_ATTRIB_COUNT * index) + validAttrib] =
+                            getBrowseAttributeString(values, folder.getTrackId(position),
+                                                            folder.size(), attrs[attIndex]);
+                        attIds[(MAX_ATTRIB_COUNT * index) + validAttrib] = attrs[attIndex];
+                        validAttrib ++;
+                    }
+                }
+                numAtt[index] = (byte)validAttrib;
+                itemSize = AvrcpBrowseCache.getMediaItemSize(displayName[index], attValues,
+                                                    MAX_ATTRIB_COUNT * index, validAttrib);
+            }
+            if (size > 0) {
+                // Always send at least one item, the stack fragments it if needed
+                if ((index > 0) && (itemSize > budget)) {
+                    break;
+                }
+                budget -= itemSize;
+            }
+        }
+        if (DEBUG) Log.v(TAG, "sending " + index + " items");
+        getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, index, itemType, uid, type,
+                                            playable, displayName, numAtt, attValues, attIds);
+    }
+
+    private void sendFolderItemsErrorRsp(int status) {
+        getFolderItemsRspNative((byte)status, 0, new int[0], new long[0], new int[0],
+                        new byte[0], new String[0], new byte[0], new String[0], new int[0]);
+    }
+
+    private String getBrowseAttributeString(String[] values, long trackId, long numTracks,
+                                                                                int attrId) {
+        String attrStr = "<unknown>";
+        switch (attrId) {
+            case MEDIA_ATTR_TITLE:
+                attrStr = values[AvrcpBrowseCache.ATTR_TITLE];
+                break;
+            case MEDIA_ATTR_ARTIST:
+                attrStr = values[AvrcpBrowseCache.ATTR_ARTIST];
+                break;
+            case MEDIA_ATTR_ALBUM:
+                attrStr = values[AvrcpBrowseCache.ATTR_ALBUM];
+                break;
+            case MEDIA_ATTR_PLAYING_TIME:
+                attrStr = values[AvrcpBrowseCache.ATTR_DURATION];
+                break;
+            case MEDIA_ATTR_TRACK_NUM:
+                attrStr = String.valueOf(trackId);
+                break;
+            case MEDIA_ATTR_NUM_TRACKS:
+                attrStr = String.valueOf(numTracks);
+                break;
+            case MEDIA_ATTR_GENRE:
+                attrStr = "<unknown>"; // GENRE is not supported
+                break;
+            default:
+                if (DEBUG) Log.v(TAG, "getBrowseAttributeString: wrong attribute: attrId = "
+                        + attrId);
+                break;
+        }
+        if (attrStr == null) {
+            attrStr = new String();
+        }
+        return attrStr;
+    }
+
     private void processGetFolderItemsInternal(byte scope, long start, long end, long size,
                                                                     byte numAttr, int[] attrs) {
 
@@ -2403,570 +2535,9 @@ public final class Avrcp {
                 }
                 getFolderItemsRspNative((byte)status, numItems, itemType, uid, type,
                                     playable, displayName, numAtt, attValues, attIds);
-            } else if (mCurrentPath.equals(PATH_TITLES)) {
-                long availableItems = 0;
-                Cursor cursor = null;
-                try {
-                    cursor = mContext.getContentResolver().query(
-                            mMediaUri,
-                            mCursorCols, MediaStore.Audio.Media.IS_MUSIC + "=1", null,
-                            MediaStore.Audio.Media.DEFAULT_SORT_ORDER);
-                    if (cursor != null) {
-                        availableItems = cursor.getCount();
-                        if (start >= availableItems) {
-                            Log.i(TAG, "startIteam exceeds the available item index");
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems,
-                            itemType, uid, type, playable, displayName, numAtt, attValues,
-                                                                                    attIds);
-                            return;
-                        }
-                        cursor.moveToFirst();
-                        for (int i = 0; i < start; i++) {
-                            cursor.moveToNext();
-                        }
-                    } else {
-                        Log.i(TAG, "Error: could not fetch the elements");
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                                uid, type, playable, displayName, numAtt, attValues, attIds);
-                        return;
-                    }
-                    if (DEBUG) Log.v(TAG, "availableItems: " + availableItems);
-                    if (DEBUG) Log.v(TAG, "reqItems: " + reqItems);
-                    availableItems = availableItems - start;
-                    if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                        availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                    if (reqItems > availableItems)
-                        reqItems = availableItems;
-                    if (DEBUG) Log.v(TAG, "revised reqItems: " + reqItems);
-
-                    int attIndex;
-                    int index;
-                    for (index = 0; index < reqItems; index++) {
-                        itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
-                        uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
-                        type[index] = MEDIA_TYPE_AUDIO;
-                        playable[index] = 0;
-                        displayName[index] =
-                            cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.
-                                                                    Audio.Media.TITLE));
-                        int validAttrib = 0;
-                        for (attIndex = 0; attIndex < numAttr; attIndex++) {
-                            if ((attrs[attIndex] <= MEDIA_ATTR_MAX) &&
-                                        (attrs[attIndex] >= MEDIA_ATTR_MIN)) {
-                                attValues[(7 * index) + attIndex] =
-                                    getAttributeStringFromCursor(cursor, attrs[attIndex]);
-                                attIds[(7 * index) + attIndex] = attrs[attIndex];
-                                validAttrib ++;
-                            }
-                        }
-                        numAtt[index] = (byte)validAttrib;
-                        cursor.moveToNext();
-                    }
-                    numItems = index;
-                    getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, numItems, itemType, uid,
-                                        type, playable, displayName, numAtt, attValues, attIds);
-                } catch(Exception e) {
-                    Log.i(TAG, "Exception e" + e);
-                    getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType, uid, type,
-                                            playable, displayName, numAtt, attValues, attIds);
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
-                }
-            } else if (mCurrentPath.equals(PATH_ALBUMS)) {
-                if (mCurrentPathUid == null) {
-                    long availableItems = 0;
-                    Cursor cursor = null;
-                    try {
-                        availableItems = getNumItems(PATH_ALBUMS, MediaStore.Audio.Media.ALBUM_ID);
-                        if (start >= availableItems) {
-                            Log.i(TAG, "startIteam exceeds the available item index");
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems, itemType,
-                                    uid, type, playable, displayName, numAtt, attValues, attIds);
-                            return;
-                        }
-                        if (DEBUG) Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG) Log.v(TAG, "reqItems: " + reqItems);
-
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = (int)availableItems;
-                        Log.i(TAG, "revised reqItems: " + reqItems);
-
-                        cursor = mContext.getContentResolver().query(
-                                            mMediaUri, mCursorCols,
-                                            MediaStore.Audio.Media.IS_MUSIC + "=1", null,
-                                            MediaStore.Audio.Albums.DEFAULT_SORT_ORDER);
-
-                        int count = 0;
-                        if (cursor != null) {
-                            count = cursor.getCount();
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                                uid, type, playable, displayName, numAtt, attValues, attIds);
-                            return;
-                        }
-                        if (count < reqItems) {
-                            reqItems = count;
-                        }
-                        cursor.moveToFirst();
-                        int index = 0;
-                        long prevElem = -1;
-                        long curElem = -1;
-                        while ((reqItems > 0) && (count > 0)) {
-                            curElem = cursor.getLong(cursor.getColumnIndexOrThrow(
-                                                    MediaStore.Audio.Media.ALBUM_ID));
-                            if (curElem != prevElem) {
-                                if (start > 0) {
-                                    --start;
-                                } else {
-                                    itemType[index] = TYPE_FOLDER_ITEM;
-                                    uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow(
-                                                        MediaStore.Audio.Media.ALBUM_ID));
-                                    type[index] = FOLDER_TYPE_ALBUMS;
-                                    playable[index] = 0;
-                                    displayName[index] = cursor.getString(
-                                                cursor.getColumnIndexOrThrow(
-                                                MediaStore.Audio.Media.ALBUM));
-                                    numAtt[index] = 0;
-                                    index++;
-                                    reqItems--;
-                                }
-                            }
-                            prevElem = curElem;
-                            cursor.moveToNext();
-                            count--;
-                        }
-                        if (index > 0) {
-                            numItems = index;
-                            getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, numItems,
-                                itemType, uid, type, playable, displayName, numAtt, attValues,
-                                attIds);
-                        } else {
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems,
-                                itemType, uid, type, playable, displayName, numAtt, attValues,
-                                attIds);
-                        }
-                    } catch(Exception e) {
-                        Log.i(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType, uid, type,
-                                        playable, displayName, numAtt, attValues, attIds);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                } else {
-                    long folderUid = Long.valueOf(mCurrentPathUid);
-                    long availableItems = 0;
-                    Cursor cursor = null;
-                    try {
-                        cursor = mContext.getContentResolver().query(
-                            mMediaUri,
-                            mCursorCols, MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
-                            MediaStore.Audio.Media.ALBUM_ID + "=" + folderUid, null,
-                                            MediaStore.Audio.Albums.DEFAULT_SORT_ORDER);
-
-                        if (cursor != null) {
-                            availableItems = cursor.getCount();
-                            if (start >= availableItems) {
-                                Log.i(TAG, "startIteam exceeds the available item index");
-                                getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems,
-                                    itemType, uid, type, playable, displayName, numAtt,
-                                    attValues, attIds);
-                                return;
-                            }
-                            cursor.moveToFirst();
-                            for (int i = 0; i < start; i++) {
-                                cursor.moveToNext();
-                            }
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems,
-                                itemType, uid, type, playable, displayName, numAtt,
-                                attValues, attIds);
-                            return;
-                        }
-
-                        if (DEBUG) Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG) Log.v(TAG, "reqItems: " + reqItems);
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = availableItems;
-                        if (DEBUG) Log.v(TAG, "revised reqItems: " + reqItems);
-
-                        int attIndex;
-                        int index;
-                        for (index = 0; index < reqItems; index++) {
-                            itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
-                            uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
-                            type[index] = MEDIA_TYPE_AUDIO;
-                            playable[index] = 0;
-                            displayName[index] =
-                                cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.
-                                                                        Audio.Media.TITLE));                            
-                            int validAttrib = 0;
-                            for (attIndex = 0; attIndex < numAttr; attIndex++) {
-                                if ((attrs[attIndex] <= MEDIA_ATTR_MAX) &&
-                                            (attrs[attIndex] >= MEDIA_ATTR_MIN)) {
-                                    attValues[(7 * index) + attIndex] =
-                                        getAttributeStringFromCursor(cursor, attrs[attIndex]);
-                                    attIds[(7 * index) + attIndex] = attrs[attIndex];
-                                    validAttrib ++;
-                                }
-                            }
-                            numAtt[index] = (byte)validAttrib;
-                            cursor.moveToNext();
-                        }
-                        numItems = index;
-                        getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, numItems, itemType, uid,
-                                            type, playable, displayName, numAtt, attValues, attIds);
-                    } catch(Exception e) {
-                        Log.i(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType, uid, type,
-                                        playable, displayName, numAtt, attValues, attIds);
-                    } finally {
-                        if (cursor != null) {
-                        cursor.close();
-                        }
-                    }
-                }
-            } else if (mCurrentPath.equals(PATH_ARTISTS)) {
-                if (mCurrentPathUid == null) {
-                    long availableItems = 0;
-                    Cursor cursor = null;
-                    try {
-                        availableItems = getNumItems(PATH_ARTISTS,
-                                    MediaStore.Audio.Media.ARTIST_ID);
-                        if (start >= availableItems) {
-                            Log.i(TAG, "startIteam exceeds the available item index");
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems, itemType,
-                                    uid, type, playable, displayName, numAtt, attValues, attIds);
-                            return;
-                        }
-
-                        if (DEBUG) Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG) Log.v(TAG, "reqItems: " + reqItems);
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = (int)availableItems;
-                        if (DEBUG) Log.v(TAG, "revised reqItems: " + reqItems);
-
-                        cursor = mContext.getContentResolver().query(
-                            mMediaUri, mCursorCols,
-                            MediaStore.Audio.Media.IS_MUSIC + "=1", null,
-                            MediaStore.Audio.Artists.DEFAULT_SORT_ORDER);
-
-                        int count = 0;
-                        if (cursor != null) {
-                            count = cursor.getCount();
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                                    uid, type, playable, displayName, numAtt, attValues, attIds);
-                            return;
-                        }
-                        if (count < reqItems) {
-                            reqItems = count;
-                        }
-                        cursor.moveToFirst();
-                        int index = 0;
-                        long prevElem = -1;
-                        long curElem = -1;
-                        while ((reqItems > 0) && (count > 0)) {
-                            curElem = cursor.getLong(cursor.getColumnIndexOrThrow(
-                                                    MediaStore.Audio.Media.ARTIST_ID));
-                            if (curElem != prevElem) {
-                                if (start > 0) {
-                                    --start;
-                                } else {
-                                    itemType[index] = TYPE_FOLDER_ITEM;
-                                    uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow(
-                                                        MediaStore.Audio.Media.ARTIST_ID));
-                                    type[index] = FOLDER_TYPE_ARTISTS;
-                                    playable[index] = 0;
-                                    displayName[index] = cursor.getString(
-                                        cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST));
-                                    numAtt[index] = 0;
-                                    index++;
-                                    reqItems--;
-                                }
-                            }
-                            prevElem = curElem;
-                            cursor.moveToNext();
-                            count--;
-                        }
-                        if (index > 0) {
-                            numItems = index;
-                            getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, numItems, itemType,
-                                uid, type, playable, displayName, numAtt, attValues, attIds);
-                        } else {
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems, itemType,
-                                uid, type, playable, displayName, numAtt, attValues, attIds);
-                        }
-                    } catch(Exception e) {
-                        Log.i(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType, uid, type,
-                                        playable, displayName, numAtt, attValues, attIds);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                } else {
-                    long folderUid = Long.valueOf(mCurrentPathUid);
-                    long availableItems = 0;
-                    Cursor cursor = null;
-                    try {
-                        cursor = mContext.getContentResolver().query(
-                            mMediaUri,
-                            mCursorCols, MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
-                            MediaStore.Audio.Media.ARTIST_ID + "=" + folderUid, null,
-                            MediaStore.Audio.Artists.DEFAULT_SORT_ORDER);
-
-                        if (cursor != null) {
-                            availableItems = cursor.getCount();
-                            if (start >= availableItems) {
-                                Log.i(TAG, "startIteam exceeds the available item index");
-                                getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems,
-                                itemType, uid, type, playable, displayName, numAtt, attValues,
-                                                                                        attIds);
-                                return;
-                            }
-                            cursor.moveToFirst();
-                            for (int i = 0; i < start; i++) {
-                                cursor.moveToNext();
-                            }
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                                    uid, type, playable, displayName, numAtt, attValues, attIds);
-                            return;
-                        }
-
-                        if (DEBUG) Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG) Log.v(TAG, "reqItems: " + reqItems);
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = availableItems;
-                        if (DEBUG) Log.v(TAG, "revised reqItems: " + reqItems);
-
-                        int attIndex;
-                        int index;
-                        for (index = 0; index < reqItems; index++) {
-                            itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
-                            uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
-                            type[index] = MEDIA_TYPE_AUDIO;
-                            playable[index] = 0;
-                            displayName[index] =
-                                cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.
-                                                                        Audio.Media.TITLE));
-                            int validAttrib = 0;
-                            for (attIndex = 0; attIndex < numAttr; attIndex++) {
-                                if ((attrs[attIndex] <= MEDIA_ATTR_MAX) &&
-                                            (attrs[attIndex] >= MEDIA_ATTR_MIN)) {
-                                    attValues[(7 * index) + attIndex] =
-                                        getAttributeStringFromCursor(cursor, attrs[attIndex]);
-                                    attIds[(7 * index) + attIndex] = attrs[attIndex];
-                                    validAttrib ++;
-                                }
-                            }
-                            numAtt[index] = (byte)validAttrib;
-                            cursor.moveToNext();
-                        }
-                        numItems = index;
-                        getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, numItems, itemType,
-                            uid, type, playable, displayName, numAtt, attValues, attIds);
-                    } catch(Exception e) {
-                        Log.i(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType, uid,
-                                        type, playable, displayName, numAtt, attValues, attIds);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                }
-            } else if (mCurrentPath.equals(PATH_PLAYLISTS)) {
-                if (mCurrentPathUid == null) {
-                    long availableItems = 0;
-                    Cursor cursor = null;
-                    try {
-                        availableItems = getNumPlaylistItems();
-                        if (start >= availableItems) {
-                            Log.i(TAG, "startIteam exceeds the available item index");
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems, itemType,
-                                    uid, type, playable, displayName, numAtt, attValues, attIds);
-                            return;
-                        }
-
-                        if (DEBUG) Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG) Log.v(TAG, "reqItems: " + reqItems);
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = (int)availableItems;
-                        if (DEBUG) Log.v(TAG, "revised reqItems: " + reqItems);
-
-                        String[] cols = new String[] {
-                                MediaStore.Audio.Playlists._ID,
-                                MediaStore.Audio.Playlists.NAME
-                        };
-
-                        cursor = mContext.getContentResolver().query(
-                            MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
-                            cols, MediaStore.Audio.Playlists.NAME + " != ''", null,
-                            MediaStore.Audio.Playlists.DEFAULT_SORT_ORDER);
-
-                        int count = 0;
-                        if (cursor != null) {
-                            count = cursor.getCount();
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                                uid, type, playable, displayName, numAtt, attValues, attIds);
-                            return;
-                        }
-                        if (count < reqItems) {
-                            reqItems = count;
-                        }
-                        cursor.moveToFirst();
-                        int index = 0;
-                        for (index = 0; index < reqItems; index++) {
-                            itemType[index] = TYPE_FOLDER_ITEM;
-                            uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow(
-                                                        MediaStore.Audio.Playlists._ID));
-                            type[index] = FOLDER_TYPE_PLAYLISTS;
-                            playable[index] = 0;
-                            displayName[index] =
-                                cursor.getString(cursor.getColumnIndexOrThrow(
-                                                MediaStore.Audio.Playlists.NAME));
-                            cursor.moveToNext();
-                        }
-                        numItems = index;
-
-                        if (index > 0) {
-                            numItems = index;
-                            getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, numItems,
-                                itemType, uid, type, playable, displayName, numAtt,
-                                attValues, attIds);
-                        } else {
-                            getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems,
-                                itemType, uid, type, playable, displayName, numAtt,
-                                attValues, attIds);
-                        }
-                    } catch(Exception e) {
-                        Log.i(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                            uid, type, playable, displayName, numAtt, attValues, attIds);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                } else {
-                    long folderUid = Long.valueOf(mCurrentPathUid);
-                    long availableItems = 0;
-                    Cursor cursor = null;
-
-                    String[] playlistMemberCols = new String[] {
-                            MediaStore.Audio.Playlists.Members._ID,
-                            MediaStore.Audio.Media.TITLE,
-                            MediaStore.Audio.Media.DATA,
-                            MediaStore.Audio.Media.ALBUM,
-                            MediaStore.Audio.Media.ARTIST,
-                            MediaStore.Audio.Media.DURATION,
-                            MediaStore.Audio.Playlists.Members.PLAY_ORDER,
-                            MediaStore.Audio.Playlists.Members.AUDIO_ID,
-                            MediaStore.Audio.Media.IS_MUSIC
-                    };
-
-                    try {
-                        Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external",
-                                                                                    folderUid);
-                        StringBuilder where = new StringBuilder();
-                        where.append(MediaStore.Audio.Media.TITLE + " != ''");
-                        cursor = mContext.getContentResolver().query(uri, playlistMemberCols,
-                                        where.toString(), null,
-                                        MediaStore.Audio.Playlists.Members.DEFAULT_SORT_ORDER);
-
-                        if (cursor != null) {
-                            availableItems = cursor.getCount();
-                            if (start >= availableItems) {
-                                Log.i(TAG, "startIteam exceeds the available item index");
-                                getFolderItemsRspNative((byte)RANGE_OUT_OF_BOUNDS, numItems,
-                                    itemType, uid, type, playable, displayName, numAtt,
-                                    attValues, attIds);
-                                return;
-                            }
-                            cursor.moveToFirst();
-                            for (int i = 0; i < start; i++) {
-                                cursor.moveToNext();
-                            }
-                        } else {
-                            Log.i(TAG, "Error: could not fetch the elements");
-                            getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType,
-                                    uid, type, playable, displayName, numAtt, attValues, attIds);
-                            return;
-                        }
-
-                        if (DEBUG) Log.v(TAG, "availableItems: " + availableItems);
-                        if (DEBUG) Log.v(TAG, "reqItems: " + reqItems);
-                        availableItems = availableItems - start;
-                        if (availableItems > MAX_BROWSE_ITEM_TO_SEND)
-                            availableItems = MAX_BROWSE_ITEM_TO_SEND;
-                        if (reqItems > availableItems)
-                            reqItems = availableItems;
-                        if (DEBUG) Log.v(TAG, "revised reqItems: " + reqItems);
-
-                        int attIndex;
-                        int index;
-                        for (index = 0; index < reqItems; index++) {
-                            itemType[index] = TYPE_MEDIA_ELEMENT_ITEM;
-                            uid[index] = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.
-                                                                Audio.Playlists.Members.AUDIO_ID));
-                            type[index] = MEDIA_TYPE_AUDIO;
-                            playable[index] = 0;
-                            displayName[index] =
-                                cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.
-                                                                        Audio.Media.TITLE));
-                            int validAttrib = 0;
-                            for (attIndex = 0; attIndex < numAttr; attIndex++) {
-                                if ((attrs[attIndex] <= MEDIA_ATTR_MAX) &&
-                                            (attrs[attIndex] >= MEDIA_ATTR_MIN)) {
-                                    attValues[(7 * index) + attIndex] =
-                                        getAttributeStringFromCursor(cursor, attrs[attIndex]);
-                                    attIds[(7 * index) + attIndex] = attrs[attIndex];
-                                    validAttrib ++;
-                                }
-                            }
-                            numAtt[index] = (byte)validAttrib;
-                            cursor.moveToNext();
-                        }
-                        numItems = index;
-                        getFolderItemsRspNative((byte)OPERATION_SUCCESSFUL, numItems, itemType, uid,
-                                            type, playable, displayName, numAtt, attValues, attIds);
-                    } catch(Exception e) {
-                        Log.e(TAG, "Exception e" + e);
-                        getFolderItemsRspNative((byte)INTERNAL_ERROR, numItems, itemType, uid, type,
-                                        playable, displayName, numAtt, attValues, attIds);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
-                    }
-                }
+            } else if (mCurrentPath.equals(PATH_TITLES) || mCurrentPath.equals(PATH_ALBUMS) ||
+                    mCurrentPath.equals(PATH_ARTISTS) || mCurrentPath.equals(PATH_PLAYLISTS)) {
+                processGetBrowseFolderItems(start, end, size, numAttr, attrs);
             } else {
                 getFolderItemsRspNative((byte)DOES_NOT_EXIST, numItems, itemType, uid, type,
                                 playable, displayName, numAtt, attValues, attIds);
@@ -3090,12 +2661,11 @@ public final class Avrcp {
                 if (mCurrentPosMs != RemoteControlClient.PLAYBACK_POSITION_ALWAYS_UNKNOWN) {
                     mNextPosMs = songPosition + mPlaybackIntervalMs;
                     mPrevPosMs = songPosition - mPlaybackIntervalMs;
-                    if (mCurrentPlayState == RemoteControlClient.PLAYSTATE_PLAYING) {
-                        Message msg = mHandler.obtainMessage(MESSAGE_PLAY_INTERVAL_TIMEOUT);
-                        mHandler.sendMessageDelayed(msg, mPlaybackIntervalMs);
-                    }
                 }
                 registerNotificationRspPlayPosNative(mPlayPosChangedNT, (int)songPosition);
+                if (!schedulePlayPosTimer(songPosition)) {
+                    mPlayPosScheduler.onIdle();
+                }
                 break;
 
 
@@ -3178,12 +2748,48 @@ public final class Avrcp {
         registerNotificationPlayerAppRspNative(rsptype, i, retVal);
     }
 
+    private void sendPlayPosChangedRsp(long playPosition) {
+        mPlayPosChangedNT = NOTIFICATION_TYPE_CHANGED;
+        registerNotificationRspPlayPosNative(mPlayPosChangedNT, (int)playPosition);
+        mPlayPosScheduler.onReported(playPosition);
+        if (mPlayPosScheduler.cancel()) {
+            mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
+        }
+    }
+
+    /*
+     * Arm the play position timer for when the position leaves the interval
+     * registered by the remote, if it moves at all.
+     * Returns true if a timer is armed.
+     */
+    private boolean schedulePlayPosTimer(long playPosition) {
+        long delayMs = -1;
+        if ((mPlayPosChangedNT == NOTIFICATION_TYPE_INTERIM) &&
+            (mCurrentPosMs != RemoteControlClient.PLAYBACK_POSITION_ALWAYS_UNKNOWN) &&
+            (mCurrentPlayState == RemoteControlClient.PLAYSTATE_PLAYING)) {
+            delayMs = AvrcpPlayPosScheduler.getDelayMs(playPosition, mNextPosMs,
+                                                                    mPlaybackSpeed);
+        }
+        if (delayMs < 0) {
+            if (mPlayPosScheduler.cancel()) {
+                mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
+            }
+            return false;
+        }
+        if (mPlayPosScheduler.schedule(SystemClock.elapsedRealtime(), delayMs)) {
+            mHandler.removeMessages(MESSAGE_PLAY_INTERVAL_TIMEOUT);
+            Message msg = mHandler.obtainMessage(MESSAGE_PLAY_INTERVAL_TIMEOUT);
+            mHandler.sendMessageDelayed(msg, delayMs);
+        }
+        return true;
+    }
+
     private long getPlayPosition() {
         long songPosition = -1L;
         if (mCurrentPosMs != RemoteControlClient.PLAYBACK_POSITION_ALWAYS_UNKNOWN) {
             if (mCurrentPlayState == RemoteControlClient.PLAYSTATE_PLAYING) {
-                songPosition = SystemClock.elapsedRealtime() -
-                               mPlayStartTimeMs + mCurrentPosMs;
+                songPosition = (long)((SystemClock.elapsedRealtime() - mPlayStartTimeMs) *
+                               mPlaybackSpeed) + mCurrentPosMs;
             } else {
                 songPosition = mCurrentPosMs;
             }
@@ -3192,94 +2798,6 @@ public final class Avrcp {
         return songPosition;
     }
 
-    private String getAttributeStringFromCursor(Cursor cursor, int attrId) {
-        String attrStr = "<unknown>";
-        switch (attrId) {
-            case MEDIA_ATTR_TITLE:
-                attrStr = cursor.getString(cursor.getColumnIndexOrThrow(
-                                        MediaStore.Audio.Media.TITLE));
-                break;
-            case MEDIA_ATTR_ARTIST:
-                attrStr = cursor.getString(cursor.getColumnIndexOrThrow(
-                                        MediaStore.Audio.Media.ARTIST));
-                break;
-            case MEDIA_ATTR_ALBUM:
-                attrStr = cursor.getString(cursor.getColumnIndexOrThrow(
-                                        MediaStore.Audio.Media.ALBUM));
-                break;
-            case MEDIA_ATTR_PLAYING_TIME:
-                attrStr = cursor.getString(cursor.getColumnIndexOrThrow(
-                                        MediaStore.Audio.Media.DURATION));
-                break;
-            case MEDIA_ATTR_TRACK_NUM:
-                if (mCurrentPath.equals(PATH_PLAYLISTS)) {
-                    attrStr = cursor.getString(cursor.getColumnIndexOrThrow(
-                                    MediaStore.Audio.Playlists.Members._ID));
-                } else {
-                    attrStr = String.valueOf(cursor.getLong(
-                                cursor.getColumnIndexOrThrow("_id")));
-                }
-                break;
-            case MEDIA_ATTR_NUM_TRACKS:
-                attrStr = String.valueOf(cursor.getCount());
-                break;
-            case MEDIA_ATTR_GENRE:
-                attrStr = "<unknown>"; // GENRE is not supported
-                break;
-            default:
-                Log.v(TAG, "getAttributeStringFromCursor: wrong attribute: attrId = "
-                                                                            + attrId);
-                break;
-        }
-        if (attrStr == null) {
-            attrStr = new String();
-        }
-        if (DEBUG) Log.v(TAG, "getAttributeStringFromCursor: attrId = "
-                                            + attrId + " str = " + attrStr);
-        return attrStr;
-    }
-
-
-    private String getAttributeString(int attrId) {
-        String attrStr = null;
-        switch (attrId) {
-            case MEDIA_ATTR_TITLE:
-                attrStr = mMetadata.trackTitle;
-                break;
-
-            case MEDIA_ATTR_ARTIST:
-                attrStr = mMetadata.artist;
-                break;
-
-            case MEDIA_ATTR_ALBUM:
-                attrStr = mMetadata.albumTitle;
-                break;
-
-            case MEDIA_ATTR_PLAYING_TIME:
-                if (mSongLengthMs != 0L) {
-                    attrStr = Long.toString(mSongLengthMs);
-                }
-                break;
-
-            case MEDIA_ATTR_TRACK_NUM:
-                attrStr = Long.toString(mMetadata.tracknum);
-                break;
-
-            case MEDIA_ATTR_NUM_TRACKS:
-                attrStr = Long.toString(mTrackNumber);
-                break;
-
-             case MEDIA_ATTR_GENRE:
-                attrStr = mMetadata.genre;
-                break;
-        }
-        if (attrStr == null) {
-            attrStr = new String();
-        }
-        if (DEBUG) Log.v(TAG, "getAttributeString:attrId=" + attrId + " str=" + attrStr);
-        return attrStr;
-    }
-
     private int convertPlayStateToPlayStatus(int playState) {
         int playStatus = PLAYSTATUS_ERROR;
         switch (playState) {
@@ -3580,6 +3098,8 @@ public final class Avrcp {
         ProfileService.println(sb, "mPlayPosChangedNT: " + mPlayPosChangedNT);
         ProfileService.println(sb, "mNextPosMs: " + mNextPosMs);
         ProfileService.println(sb, "mPrevPosMs: " + mPrevPosMs);
+        ProfileService.println(sb, "mPlaybackSpeed: " + mPlaybackSpeed);
+        ProfileService.println(sb, "mPlayPosScheduler: " + mPlayPosScheduler);
         ProfileService.println(sb, "mSkipStartTime: " + mSkipStartTime);
         ProfileService.println(sb, "mFeatures: " + mFeatures);
         ProfileService.println(sb, "mAbsoluteVolume: " + mAbsoluteVolume);
@@ -4058,11 +3578,7 @@ public final class Avrcp {
         }
 
         public void SetMetadata(Metadata metaData) {
-            mMetadata.albumTitle = metaData.albumTitle;
-            mMetadata.artist = metaData.artist;
-            mMetadata.trackTitle = metaData.trackTitle;
-            mMetadata.genre = metaData.genre;
-            mMetadata.tracknum = metaData.tracknum;
+            mMetadata = metaData;
         }
         public byte GetPlayState() {
             return mPlayState;
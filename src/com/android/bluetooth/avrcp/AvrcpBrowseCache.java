@@ -0,0 +1,584 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.avrcp;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the content of the virtual media folders browsed over AVRCP
+ * (Titles, Albums, Artists, Playlists and their sub folders).
+ * A folder is loaded once as a snapshot of its item ids, while the attributes
+ * of the media items are fetched lazily one page at a time, so a remote
+ * walking through a folder in small windows does not re-query and skip
+ * through the whole folder for every GetFolderItems request.
+ * The attributes of the media items requested by id, for the now playing
+ * list and GetItemAttributes, are fetched in a single query and the most
+ * recently used ones are kept.
+ * All cached content is dropped when the media store reports a change or the
+ * browsed player changes its media uri.
+ */
+class AvrcpBrowseCache {
+    private static final String TAG = "AvrcpBrowseCache";
+    private static final boolean DEBUG = false;
+
+    /* Kinds of folders, a folder is identified by its kind and uid */
+    static final int FOLDER_TITLES = 0;
+    static final int FOLDER_ALBUMS = 1;
+    static final int FOLDER_ALBUM = 2;
+    static final int FOLDER_ARTISTS = 3;
+    static final int FOLDER_ARTIST = 4;
+    static final int FOLDER_PLAYLISTS = 5;
+    static final int FOLDER_PLAYLIST = 6;
+
+    /* Number of media items whose attributes are fetched in one query */
+    static final int ATTR_PAGE_SIZE = 32;
+
+    /* Number of folders kept in the cache */
+    private static final int MAX_FOLDERS = 8;
+
+    /* Number of attribute pages kept per folder */
+    private static final int MAX_PAGES = 16;
+
+    /* Number of media items requested by id kept in the cache */
+    private static final int MAX_ITEMS = 64;
+
+    /* Indexes of the attributes held in a page entry */
+    static final int ATTR_TITLE = 0;
+    static final int ATTR_ARTIST = 1;
+    static final int ATTR_ALBUM = 2;
+    static final int ATTR_DURATION = 3;
+    private static final int ATTR_COUNT = 4;
+
+    /* The media uri of a player may be a join on the audio table */
+    private static final String ID_COL = "audio._id AS _id";
+
+    private static final String[] ATTR_COLS = new String[] {
+            ID_COL,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.DURATION
+    };
+
+    /* Size of the GetFolderItems response header: pdu id, parameter length,
+     * status, uid counter and number of items */
+    static final int RSP_HEADER_SIZE = 8;
+    /* Folder item: item type, item length, uid, folder type, playable,
+     * charset and name length */
+    static final int FOLDER_ITEM_SIZE = 17;
+    /* Media element item: item type, item length, uid, media type, charset,
+     * name length and number of attributes */
+    static final int MEDIA_ITEM_SIZE = 17;
+    /* Attribute entry: attribute id, charset and value length */
+    static final int ATTR_ENTRY_SIZE = 8;
+
+    /**
+     * A snapshot of a browsable folder.
+     */
+    class Folder {
+        final int mKind;
+        /* The uid reported for each item */
+        final long[] mUids;
+        /* Names of the sub folders, null for a folder of media items */
+        final String[] mNames;
+        /* Track numbers reported for the media items, null when the uid is used */
+        final long[] mTrackIds;
+        private final HashMap<Integer, String[][]> mPages = new HashMap<Integer, String[][]>();
+
+        Folder(int kind, long[] uids, String[] names, long[] trackIds) {
+            mKind = kind;
+            mUids = uids;
+            mNames = names;
+            mTrackIds = trackIds;
+        }
+
+        int size() {
+            return mUids.length;
+        }
+
+        int indexOf(long uid) {
+            for (int i = 0; i < mUids.length; i++) {
+                if (mUids[i] == uid) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        boolean isFolderList() {
+            return mNames != null;
+        }
+
+        long getTrackId(int position) {
+            return mTrackIds != null ? mTrackIds[position] : mUids[position];
+        }
+
+        /**
+         * Get the title, artist, album and duration of a media item, indexed
+         * by ATTR_*. The page holding the item is fetched if not cached yet.
+         * @return the attributes, or null if they could not be fetched
+         */
+        String[] getAttributes(int position) {
+            synchronized (AvrcpBrowseCache.this) {
+                Integer page = position / ATTR_PAGE_SIZE;
+                String[][] attrs = mPages.get(page);
+                if (attrs == null) {
+                    attrs = loadPage(page);
+                    if (attrs == null) {
+                        return null;
+                    }
+                    if (mPages.size() >= MAX_PAGES) {
+                        mPages.clear();
+                    }
+                    mPages.put(page, attrs);
+                }
+                return attrs[position % ATTR_PAGE_SIZE];
+            }
+        }
+
+        private String[][] loadPage(int page) {
+            int first = page * ATTR_PAGE_SIZE;
+            int count = Math.min(ATTR_PAGE_SIZE, mUids.length - first);
+            if (count <= 0) {
+                return null;
+            }
+            StringBuilder where = new StringBuilder("_id IN (");
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    where.append(',');
+                }
+                where.append(mUids[first + i]);
+            }
+            where.append(')');
+
+            HashMap<Long, String[]> byId = new HashMap<Long, String[]>(count * 2);
+            if (!queryAttributes(where.toString(), byId)) {
+                return null;
+            }
+
+            String[][] attrs = new String[ATTR_PAGE_SIZE][];
+            for (int i = 0; i < count; i++) {
+                attrs[i] = byId.get(mUids[first + i]);
+                if (attrs[i] == null) {
+                    // The item was removed after the folder snapshot was taken
+                    attrs[i] = new String[ATTR_COUNT];
+                }
+            }
+            if (DEBUG) Log.v(TAG, "loadPage: kind " + mKind + " page " + page + " count "
+                    + count);
+            return attrs;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final LinkedHashMap<String, Folder> mFolders =
+            new LinkedHashMap<String, Folder>(MAX_FOLDERS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Folder> eldest) {
+            return size() > MAX_FOLDERS;
+        }
+    };
+    private final LinkedHashMap<Long, String[]> mItems =
+            new LinkedHashMap<Long, String[]>(MAX_ITEMS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String[]> eldest) {
+            return size() > MAX_ITEMS;
+        }
+    };
+    /* Column indexes of ATTR_COLS, resolved on the first query of a media uri */
+    private int[] mAttrCols;
+    private Uri mMediaUri = Uri.EMPTY;
+    private final ArrayList<Uri> mObservedUris = new ArrayList<Uri>();
+    private volatile int mGeneration;
+    private int mCachedGeneration;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mGeneration++;
+        }
+    };
+
+    AvrcpBrowseCache(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Get a folder of the media library, loading it if not cached.
+     * @param mediaUri the media uri of the browsed player
+     * @param kind one of FOLDER_*
+     * @param uid the uid of the album, artist or playlist, ignored for the
+     *            other kinds of folder
+     * @return the folder, or null if it could not be loaded
+     */
+    synchronized Folder getFolder(Uri mediaUri, int kind, long uid) {
+        checkValid(mediaUri);
+        String key = getKey(kind, uid);
+        Folder folder = mFolders.get(key);
+        if (folder == null) {
+            folder = loadFolder(kind, uid);
+            if (folder != null) {
+                mFolders.put(key, folder);
+            }
+        }
+        return folder;
+    }
+
+    /**
+     * Get the attributes of media items by id. The items not cached are
+     * fetched in a single query.
+     * @param mediaUri the media uri of the browsed player
+     * @param ids the ids of the items, starting at offset
+     * @return the title, artist, album and duration of each item, indexed by
+     *         ATTR_*, with a null entry for an item which does not exist, or
+     *         null if the attributes could not be fetched
+     */
+    synchronized String[][] getItemAttributes(Uri mediaUri, long[] ids, int offset, int count) {
+        checkValid(mediaUri);
+        String[][] attrs = new String[count][];
+        StringBuilder where = null;
+        for (int i = 0; i < count; i++) {
+            attrs[i] = mItems.get(ids[offset + i]);
+            if (attrs[i] == null) {
+                if (where == null) {
+                    where = new StringBuilder(MediaStore.Audio.Media.IS_MUSIC + "=1 AND _id IN (");
+                } else {
+                    where.append(',');
+                }
+                where.append(ids[offset + i]);
+            }
+        }
+        if (where == null) {
+            if (DEBUG) Log.v(TAG, "getItemAttributes: " + count + " items cached");
+            return attrs;
+        }
+        where.append(')');
+
+        HashMap<Long, String[]> byId = new HashMap<Long, String[]>(count * 2);
+        if (!queryAttributes(where.toString(), byId)) {
+            return null;
+        }
+        for (int i = 0; i < count; i++) {
+            if (attrs[i] == null) {
+                attrs[i] = byId.get(ids[offset + i]);
+                if (attrs[i] != null) {
+                    mItems.put(ids[offset + i], attrs[i]);
+                }
+            }
+        }
+        if (DEBUG) Log.v(TAG, "getItemAttributes: fetched " + byId.size() + " of " + count
+                + " items");
+        return attrs;
+    }
+
+    /**
+     * Drop all cached content and stop observing the media store.
+     */
+    synchronized void close() {
+        stopObserving();
+        mFolders.clear();
+        mItems.clear();
+        mAttrCols = null;
+        mMediaUri = Uri.EMPTY;
+    }
+
+    private void checkValid(Uri mediaUri) {
+        if (!mediaUri.equals(mMediaUri)) {
+            if (DEBUG) Log.v(TAG, "media uri changed to " + mediaUri);
+            stopObserving();
+            mFolders.clear();
+            mItems.clear();
+            mAttrCols = null;
+            mMediaUri = mediaUri;
+            startObserving();
+        }
+        int generation = mGeneration;
+        if (generation != mCachedGeneration) {
+            if (DEBUG) Log.v(TAG, "media store changed, dropping " + mFolders.size()
+                    + " folders and " + mItems.size() + " items");
+            mFolders.clear();
+            mItems.clear();
+            mCachedGeneration = generation;
+        }
+    }
+
+    /**
+     * Query the attributes of the media items selected by where.
+     * @param byId receives the attributes of each item found, by id
+     * @return false if the query failed
+     */
+    private boolean queryAttributes(String where, HashMap<Long, String[]> byId) {
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(mMediaUri, ATTR_COLS, where, null, null);
+            if (cursor == null) {
+                Log.e(TAG, "Error: could not fetch the attributes");
+                return false;
+            }
+            if (mAttrCols == null) {
+                int[] cols = new int[ATTR_COLS.length];
+                for (int i = 0; i < ATTR_COLS.length; i++) {
+                    cols[i] = cursor.getColumnIndexOrThrow((i == 0) ? "_id" : ATTR_COLS[i]);
+                }
+                mAttrCols = cols;
+            }
+            while (cursor.moveToNext()) {
+                String[] values = new String[ATTR_COUNT];
+                for (int i = 0; i < ATTR_COUNT; i++) {
+                    values[i] = cursor.getString(mAttrCols[i + 1]);
+                }
+                byId.put(cursor.getLong(mAttrCols[0]), values);
+            }
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Exception " + e);
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    static String getKey(int kind, long uid) {
+        switch (kind) {
+            case FOLDER_ALBUM:
+            case FOLDER_ARTIST:
+            case FOLDER_PLAYLIST:
+                return kind + ":" + uid;
+            default:
+                return String.valueOf(kind);
+        }
+    }
+
+    private void startObserving() {
+        if (Uri.EMPTY.equals(mMediaUri)) {
+            return;
+        }
+        mObservedUris.add(mMediaUri);
+        if (!mMediaUri.equals(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI)) {
+            mObservedUris.add(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI);
+        }
+        mObservedUris.add(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI);
+        Iterator<Uri> it = mObservedUris.iterator();
+        while (it.hasNext()) {
+            Uri uri = it.next();
+            try {
+                mResolver.registerContentObserver(uri, true, mObserver);
+            } catch (SecurityException e) {
+                Log.e(TAG, "Unable to observe " + uri, e);
+                it.remove();
+            }
+        }
+    }
+
+    private void stopObserving() {
+        if (!mObservedUris.isEmpty()) {
+            mResolver.unregisterContentObserver(mObserver);
+            mObservedUris.clear();
+        }
+    }
+
+    private Folder loadFolder(int kind, long uid) {
+        Cursor cursor = null;
+        try {
+            switch (kind) {
+                case FOLDER_TITLES:
+                    cursor = mResolver.query(mMediaUri, new String[] {ID_COL},
+                            MediaStore.Audio.Media.IS_MUSIC + "=1", null,
+                            MediaStore.Audio.Media.DEFAULT_SORT_ORDER);
+                    return cursor == null ? null : readItems(kind, cursor, "_id", null);
+                case FOLDER_ALBUM:
+                    cursor = mResolver.query(mMediaUri, new String[] {ID_COL},
+                            MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
+                            MediaStore.Audio.Media.ALBUM_ID + "=" + uid, null,
+                            MediaStore.Audio.Albums.DEFAULT_SORT_ORDER);
+                    return cursor == null ? null : readItems(kind, cursor, "_id", null);
+                case FOLDER_ARTIST:
+                    cursor = mResolver.query(mMediaUri, new String[] {ID_COL},
+                            MediaStore.Audio.Media.IS_MUSIC + "=1 AND " +
+                            MediaStore.Audio.Media.ARTIST_ID + "=" + uid, null,
+                            MediaStore.Audio.Artists.DEFAULT_SORT_ORDER);
+                    return cursor == null ? null : readItems(kind, cursor, "_id", null);
+                case FOLDER_PLAYLIST:
+                    cursor = mResolver.query(
+                            MediaStore.Audio.Playlists.Members.getContentUri("external", uid),
+                            new String[] {
+                                MediaStore.Audio.Playlists.Members._ID,
+                                MediaStore.Audio.Playlists.Members.AUDIO_ID
+                            },
+                            MediaStore.Audio.Media.TITLE + " != ''", null,
+                            MediaStore.Audio.Playlists.Members.DEFAULT_SORT_ORDER);
+                    return cursor == null ? null : readItems(kind, cursor,
+                            MediaStore.Audio.Playlists.Members.AUDIO_ID,
+                            MediaStore.Audio.Playlists.Members._ID);
+                case FOLDER_ALBUMS:
+                    cursor = mResolver.query(mMediaUri, new String[] {
+                                MediaStore.Audio.Media.ALBUM_ID, MediaStore.Audio.Media.ALBUM
+                            },
+                            MediaStore.Audio.Media.IS_MUSIC + "=1", null,
+                            MediaStore.Audio.Albums.DEFAULT_SORT_ORDER);
+                    return cursor == null ? null : readFolders(kind, cursor,
+                            MediaStore.Audio.Media.ALBUM_ID, MediaStore.Audio.Media.ALBUM, true);
+                case FOLDER_ARTISTS:
+                    cursor = mResolver.query(mMediaUri, new String[] {
+                                MediaStore.Audio.Media.ARTIST_ID, MediaStore.Audio.Media.ARTIST
+                            },
+                            MediaStore.Audio.Media.IS_MUSIC + "=1", null,
+                            MediaStore.Audio.Artists.DEFAULT_SORT_ORDER);
+                    return cursor == null ? null : readFolders(kind, cursor,
+                            MediaStore.Audio.Media.ARTIST_ID, MediaStore.Audio.Media.ARTIST, true);
+                case FOLDER_PLAYLISTS:
+                    cursor = mResolver.query(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
+                            new String[] {
+                                MediaStore.Audio.Playlists._ID, MediaStore.Audio.Playlists.NAME
+                            },
+                            MediaStore.Audio.Playlists.NAME + " != ''", null,
+                            MediaStore.Audio.Playlists.DEFAULT_SORT_ORDER);
+                    return cursor == null ? null : readFolders(kind, cursor,
+                            MediaStore.Audio.Playlists._ID, MediaStore.Audio.Playlists.NAME,
+                            false);
+                default:
+                    Log.e(TAG, "Unknown folder kind " + kind);
+                    return null;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Exception " + e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private Folder readItems(int kind, Cursor cursor, String uidCol, String trackCol) {
+        int count = cursor.getCount();
+        long[] uids = new long[count];
+        long[] trackIds = trackCol != null ? new long[count] : null;
+        int uidIndex = cursor.getColumnIndexOrThrow(uidCol);
+        int trackIndex = trackCol != null ? cursor.getColumnIndexOrThrow(trackCol) : -1;
+        int i = 0;
+        while (i < count && cursor.moveToNext()) {
+            uids[i] = cursor.getLong(uidIndex);
+            if (trackIds != null) {
+                trackIds[i] = cursor.getLong(trackIndex);
+            }
+            i++;
+        }
+        if (DEBUG) Log.v(TAG, "readItems: kind " + kind + " count " + count);
+        return new Folder(kind, uids, null, trackIds);
+    }
+
+    /**
+     * Read a list of sub folders. The albums and artists are read from the
+     * media table, where consecutive rows of the same folder are collapsed.
+     */
+    private Folder readFolders(int kind, Cursor cursor, String uidCol, String nameCol,
+            boolean collapse) {
+        int uidIndex = cursor.getColumnIndexOrThrow(uidCol);
+        int nameIndex = cursor.getColumnIndexOrThrow(nameCol);
+        long[] uids = new long[cursor.getCount()];
+        String[] names = new String[uids.length];
+        int count = 0;
+        long prevUid = -1;
+        while (count < uids.length && cursor.moveToNext()) {
+            long uid = cursor.getLong(uidIndex);
+            if (collapse && count > 0 && uid == prevUid) {
+                continue;
+            }
+            uids[count] = uid;
+            names[count] = cursor.getString(nameIndex);
+            prevUid = uid;
+            count++;
+        }
+        if (count < uids.length) {
+            long[] u = new long[count];
+            String[] n = new String[count];
+            System.arraycopy(uids, 0, u, 0, count);
+            System.arraycopy(names, 0, n, 0, count);
+            uids = u;
+            names = n;
+        }
+        if (DEBUG) Log.v(TAG, "readFolders: kind " + kind + " count " + count);
+        return new Folder(kind, uids, names, null);
+    }
+
+    /**
+     * @return the number of bytes a string takes in a response, strings are
+     * passed to the stack in the modified UTF-8 of JNI
+     */
+    static int utf8Length(String str) {
+        if (str == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if ((c != 0) && (c < 0x80)) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return the size of a folder item in a GetFolderItems response
+     */
+    static int getFolderItemSize(String name) {
+        return FOLDER_ITEM_SIZE + utf8Length(name);
+    }
+
+    /**
+     * @return the size of a media element item in a GetFolderItems response
+     * @param values the attribute values of the item, starting at offset
+     */
+    static int getMediaItemSize(String name, String[] values, int offset, int count) {
+        int size = MEDIA_ITEM_SIZE + utf8Length(name);
+        for (int i = 0; i < count; i++) {
+            size += ATTR_ENTRY_SIZE + utf8Length(values[offset + i]);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.avrcp;
+
+/**
+ * Decides when the play position changed notification registered by the
+ * remote is due, and keeps count of the timer wakeups avoided and of the
+ * notifications sent or dropped for other reasons.
+ * The due time is derived from the position at registration, the interval
+ * asked by the remote and the playback speed, so a timer is only armed while
+ * the position actually moves. A timer already armed for about the same time
+ * is left alone instead of being re-posted on each player state update.
+ * Used from the Avrcp handler thread only.
+ */
+class AvrcpPlayPosScheduler {
+
+    /* An armed timer due within this of a new due time is kept */
+    static final long RESCHEDULE_TOLERANCE_MS = 100;
+
+    /* Elapsed realtime the armed timer is due at, or -1 */
+    private long mDueAtMs = -1;
+    /* Last position reported in a changed notification, or -1 */
+    private long mLastReportedPosMs = -1;
+
+    private int mTimersArmed;
+    private int mTimersFired;
+    private int mReschedulesSkipped;
+    private int mIdleSkipped;
+    private int mCoalesced;
+    private int mRedundantSuppressed;
+
+    /**
+     * @param positionMs the current play position
+     * @param targetMs the position at which the notification is due
+     * @param speed the playback speed, 1.0 for normal playback
+     * @return the delay until the notification is due, 0 if it is due now,
+     *         or -1 if the position does not move forward
+     */
+    static long getDelayMs(long positionMs, long targetMs, float speed) {
+        if (!(speed > 0.0f)) {
+            return -1;
+        }
+        if (positionMs >= targetMs) {
+            return 0;
+        }
+        return (long)Math.ceil((targetMs - positionMs) / (double)speed);
+    }
+
+    /**
+     * Arm the timer for the given delay.
+     * @return true if the timer must be (re)posted, false if the timer
+     *         already armed is due at about the same time
+     */
+    boolean schedule(long nowMs, long delayMs) {
+        long dueAtMs = nowMs + delayMs;
+        if ((mDueAtMs >= 0) && (Math.abs(dueAtMs - mDueAtMs) <= RESCHEDULE_TOLERANCE_MS)) {
+            mReschedulesSkipped++;
+            return false;
+        }
+        mDueAtMs = dueAtMs;
+        mTimersArmed++;
+        return true;
+    }
+
+    /**
+     * Note that no timer is needed, as playback is paused or the position is
+     * unknown.
+     * @return true if an armed timer must be removed
+     */
+    boolean cancel() {
+        if (mDueAtMs < 0) {
+            return false;
+        }
+        mDueAtMs = -1;
+        return true;
+    }
+
+    /**
+     * Note that the remote registered while the position does not move, so
+     * no timer is armed.
+     */
+    void onIdle() {
+        mIdleSkipped++;
+    }
+
+    void onTimerFired() {
+        mDueAtMs = -1;
+        mTimersFired++;
+    }
+
+    boolean isArmed() {
+        return mDueAtMs >= 0;
+    }
+
+    /**
+     * Note a changed notification sent along with a track or play status
+     * change, which replaces the armed timer.
+     */
+    void onCoalesced() {
+        mCoalesced++;
+    }
+
+    /**
+     * @return false if a changed notification for this position would only
+     *         repeat the last one reported
+     */
+    boolean shouldReport(long positionMs) {
+        if (positionMs == mLastReportedPosMs) {
+            mRedundantSuppressed++;
+            return false;
+        }
+        return true;
+    }
+
+    void onReported(long positionMs) {
+        mLastReportedPosMs = positionMs;
+    }
+
+    /**
+     * Reset the last reported position, e.g. when a new track starts.
+     */
+    void resetReported() {
+        mLastReportedPosMs = -1;
+    }
+
+    /**
+     * @return the number of timer wakeups avoided, by keeping an armed timer
+     *         instead of posting it again. No timer was armed while paused, and a
+     *         track or status change was reported at once, before this scheduler
+     *         too, so those are counted separately.
+     */
+    int getWakeupsSaved() {
+        return mReschedulesSkipped;
+    }
+
+    int getIdleSkipped() {
+        return mIdleSkipped;
+    }
+
+    int getCoalesced() {
+        return mCoalesced;
+    }
+
+    int getRedundantSuppressed() {
+        return mRedundantSuppressed;
+    }
+
+    @Override
+    public String toString() {
+        return "armed=" + mTimersArmed + " fired=" + mTimersFired
+                + " wakeupsSaved=" + getWakeupsSaved() + " idleSkipped=" + mIdleSkipped
+                + " coalesced=" + mCoalesced + " redundantSuppressed=" + mRedundantSuppressed;
+    }
+}
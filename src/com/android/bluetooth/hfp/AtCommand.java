@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.hfp;
+
+import java.util.Arrays;
+
+/**
+ * An AT command line, split into the command name, the command type and the
+ * comma separated arguments in one pass.
+ * As done by the stack for the commands it parses itself, spaces are dropped and the
+ * line is converted to upper case, except in quoted sections. An unmatched quote is
+ * closed at the end of the line.
+ * The arguments are kept as offsets in the line, integer arguments are parsed without
+ * substrings or boxing. The instance is reused from line to line, and is not thread
+ * safe.
+ */
+final class AtCommand {
+    /* The command types, with the values used by AtPhonebook */
+    static final int TYPE_UNKNOWN = -1;
+    static final int TYPE_READ = 0;
+    static final int TYPE_SET = 1;
+    static final int TYPE_TEST = 2;
+
+    private final StringBuilder mLine = new StringBuilder(64);
+    private int mNameEnd;
+    private int mType;
+    private int mArgCount;
+    private int[] mArgStart = new int[8];
+    private int[] mArgEnd = new int[8];
+    private int[] mIntArgs = new int[8];
+    private boolean[] mIsInt = new boolean[8];
+
+    /**
+     * Parse an AT command line, such as "+XEVENT=\"BATTERY\",3,5", without the "AT"
+     * prefix.
+     */
+    void parse(String atString) {
+        normalize(atString);
+        mNameEnd = 0;
+        mArgCount = 0;
+        int length = mLine.length();
+        while (mNameEnd < length) {
+            char c = mLine.charAt(mNameEnd);
+            if (c == '=' || c == '?') {
+                break;
+            }
+            mNameEnd++;
+        }
+        if (mNameEnd == length) {
+            mType = TYPE_UNKNOWN;
+        } else if (mLine.charAt(mNameEnd) == '?') {
+            mType = TYPE_READ;
+        } else if (mNameEnd + 1 < length && mLine.charAt(mNameEnd + 1) == '?') {
+            mType = TYPE_TEST;
+        } else {
+            mType = TYPE_SET;
+            tokenize(mNameEnd + 1);
+        }
+    }
+
+    private void normalize(String atString) {
+        mLine.setLength(0);
+        int length = atString.length();
+        for (int i = 0; i < length; i++) {
+            char c = atString.charAt(i);
+            if (c == '"') {
+                int j = atString.indexOf('"', i + 1);  // search for closing "
+                if (j == -1) {  // unmatched ", insert one.
+                    mLine.append(atString, i, length).append('"');
+                    break;
+                }
+                mLine.append(atString, i, j + 1);
+                i = j;
+            } else if (c != ' ') {
+                mLine.append(Character.toUpperCase(c));
+            }
+        }
+    }
+
+    /* Split the arguments at the commas outside quoted sections */
+    private void tokenize(int start) {
+        int length = mLine.length();
+        int argStart = start;
+        boolean quoted = false;
+        for (int i = start; i <= length; i++) {
+            char c = (i < length) ? mLine.charAt(i) : ',';
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && (!quoted || i == length)) {
+                addArg(argStart, i);
+                argStart = i + 1;
+            }
+        }
+    }
+
+    private void addArg(int start, int end) {
+        if (mArgCount == mArgStart.length) {
+            int size = mArgCount * 2;
+            mArgStart = Arrays.copyOf(mArgStart, size);
+            mArgEnd = Arrays.copyOf(mArgEnd, size);
+            mIntArgs = Arrays.copyOf(mIntArgs, size);
+            mIsInt = Arrays.copyOf(mIsInt, size);
+        }
+        mArgStart[mArgCount] = start;
+        mArgEnd[mArgCount] = end;
+        mIsInt[mArgCount] = parseInt(start, end, mArgCount);
+        mArgCount++;
+    }
+
+    /* Parse a decimal int with an optional sign, as Integer.parseInt does for ASCII */
+    private boolean parseInt(int start, int end, int arg) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (mLine.charAt(i) == '-' || mLine.charAt(i) == '+')) {
+            negative = mLine.charAt(i) == '-';
+            i++;
+        }
+        if (i == end) {
+            return false;
+        }
+        long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+        long value = 0;
+        for (; i < end; i++) {
+            char c = mLine.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            value = value * 10 + (c - '0');
+            if (value > limit) {
+                return false;
+            }
+        }
+        mIntArgs[arg] = (int) (negative ? -value : value);
+        return true;
+    }
+
+    int getType() {
+        return mType;
+    }
+
+    int getNameLength() {
+        return mNameEnd;
+    }
+
+    char getNameChar(int index) {
+        return mLine.charAt(index);
+    }
+
+    String getName() {
+        return mLine.substring(0, mNameEnd);
+    }
+
+    /**
+     * @return the line after the command name, such as "=1,10" or "?"
+     */
+    String getParameters() {
+        return mLine.substring(mNameEnd);
+    }
+
+    /**
+     * @return the number of arguments of a set command, 0 for other types
+     */
+    int getArgCount() {
+        return mArgCount;
+    }
+
+    boolean isIntArg(int index) {
+        return mIsInt[index];
+    }
+
+    int getIntArg(int index) {
+        return mIntArgs[index];
+    }
+
+    String getStringArg(int index) {
+        return mLine.substring(mArgStart[index], mArgEnd[index]);
+    }
+
+    /**
+     * @return the arguments of a set command, as Integer objects for the integer
+     *         arguments and String objects otherwise
+     */
+    Object[] getArgs() {
+        Object[] args = new Object[mArgCount];
+        for (int i = 0; i < mArgCount; i++) {
+            args[i] = mIsInt[i] ? (Object) Integer.valueOf(mIntArgs[i]) : getStringArg(i);
+        }
+        return args;
+    }
+
+    @Override
+    public String toString() {
+        return mLine.toString();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.hfp;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Dispatches the AT commands that the stack passes up unparsed to the handler
+ * registered for the command name. The names are kept in a trie built at
+ * registration, so a command is looked up with one walk over its name instead of a
+ * comparison per supported command.
+ * Commands are dispatched from the state machine thread, the parsed command is reused
+ * from one dispatch to the next.
+ */
+class AtCommandDispatcher {
+    interface Handler {
+        /**
+         * Handle a command, the command is only valid for the duration of the call.
+         * @return false if the command is not valid, an error is then sent for it
+         */
+        boolean handle(AtCommand command, BluetoothDevice device);
+    }
+
+    private static final class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        Handler handler;
+
+        Node getChild(char key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(char key) {
+            Node child = getChild(key);
+            if (child == null) {
+                int count = keys.length;
+                char[] newKeys = new char[count + 1];
+                Node[] newChildren = new Node[count + 1];
+                System.arraycopy(keys, 0, newKeys, 0, count);
+                System.arraycopy(children, 0, newChildren, 0, count);
+                child = new Node();
+                newKeys[count] = key;
+                newChildren[count] = child;
+                keys = newKeys;
+                children = newChildren;
+            }
+            return child;
+        }
+    }
+
+    private final Node mRoot = new Node();
+    private final AtCommand mCommand = new AtCommand();
+    private int mDispatchedCount = 0;
+    private int mUnsupportedCount = 0;
+
+    /**
+     * Register the handler of a command name, such as "+CPBR", replacing the previous
+     * handler of the name.
+     */
+    void register(String name, Handler handler) {
+        Node node = mRoot;
+        for (int i = 0; i < name.length(); i++) {
+            node = node.addChild(Character.toUpperCase(name.charAt(i)));
+        }
+        node.handler = handler;
+    }
+
+    /**
+     * @return the handler registered for the name of a parsed command, or null
+     */
+    Handler getHandler(AtCommand command) {
+        Node node = mRoot;
+        int length = command.getNameLength();
+        for (int i = 0; i < length && node != null; i++) {
+            node = node.getChild(command.getNameChar(i));
+        }
+        return (node != null) ? node.handler : null;
+    }
+
+    /**
+     * Parse an AT command line and pass it to the handler of the command.
+     * @return false if no handler is registered for the command, or the handler
+     *         rejected it
+     */
+    boolean dispatch(String atString, BluetoothDevice device) {
+        mCommand.parse(atString);
+        Handler handler = getHandler(mCommand);
+        if (handler == null) {
+            mUnsupportedCount++;
+            return false;
+        }
+        mDispatchedCount++;
+        return handler.handle(mCommand, device);
+    }
+
+    @Override
+    public String toString() {
+        return "AtCommandDispatcher[dispatched=" + mDispatchedCount
+                + ", unsupported=" + mUnsupportedCount + "]";
+    }
+}
@@ -24,14 +24,15 @@ import android.bluetooth.BluetoothDevice;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
-import android.net.Uri;
 import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 import com.android.bluetooth.Utils;
+import com.android.bluetooth.util.ContactNumberIndex;
 
 
 import java.util.HashMap;
@@ -76,15 +77,46 @@ public class AtPhonebook {
         public int     nameColumn;
     };
 
+    /* The number and caller name of a call log entry, shared by the entries of a number */
+    private static class CallerEntry {
+        public final String number;
+        public final int    regionType;
+        public final String name;
+
+        CallerEntry(String number, int regionType, String name) {
+            this.number = number;
+            this.regionType = regionType;
+            this.name = name;
+        }
+    }
+
     private Context mContext;
     private ContentResolver mContentResolver;
     private HeadsetStateMachine mStateMachine;
     private String mCurrentPhonebook;
     private String mCharacterSet = "UTF-8";
 
+    private ContactNumberIndex mNumberIndex;
     private int mCpbrIndex1, mCpbrIndex2;
     private boolean mCheckingAccessPermission;
 
+    /* The phonebook cursors are kept open across CPBR windows, until the contacts or
+     * the call log change */
+    private volatile boolean mPhonebookChanged = false;
+    private boolean mObserverRegistered = false;
+    /* Call log entries by the number as stored, valid as long as the cursors */
+    private final HashMap<String, CallerEntry> mCallerEntries =
+            new HashMap<String, CallerEntry>();
+    private final CpbrResponseBuilder mCpbrResponse = new CpbrResponseBuilder();
+
+    private final ContentObserver mPhonebookObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (DBG) log("phonebook changed, dropping cursors");
+            mPhonebookChanged = true;
+        }
+    };
+
     // package and class name to which we send intent to check phone book access permission
     private static final String ACCESS_AUTHORITY_PACKAGE = "com.android.settings";
     private static final String ACCESS_AUTHORITY_CLASS =
@@ -117,8 +149,17 @@ public class AtPhonebook {
         mCheckingAccessPermission = false;
     }
 
-    public void cleanup() {
+    public synchronized void cleanup() {
+        closePhonebooks();
+        if (mObserverRegistered) {
+            mContentResolver.unregisterContentObserver(mPhonebookObserver);
+            mObserverRegistered = false;
+        }
         mPhonebooks.clear();
+        if (mNumberIndex != null) {
+            mNumberIndex.release();
+            mNumberIndex = null;
+        }
     }
 
     /** Returns the last dialled number, or null if no numbers have been called */
@@ -223,15 +264,13 @@ public class AtPhonebook {
                          atCommandErrorCode, getByteAddress(device));
                     return;
                 }
-                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true);
+                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, false);
                 if (pbr == null) {
                     atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_SUPPORTED;
                     break;
                 }
                 int size = pbr.cursor.getCount();
                 atCommandResponse = "+CPBS: \"" + mCurrentPhonebook + "\"," + size + "," + getMaxPhoneBookSize(size);
-                pbr.cursor.close();
-                pbr.cursor = null;
                 atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                 break;
             case TYPE_TEST: // Test
@@ -286,7 +325,7 @@ public class AtPhonebook {
                 if ("SM".equals(mCurrentPhonebook)) {
                     size = 0;
                 } else {
-                    PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
+                    PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, false);
                     if (pbr == null) {
                         atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
                         mStateMachine.atResponseCodeNative(atCommandResult,
@@ -295,8 +334,6 @@ public class AtPhonebook {
                     }
                     size = pbr.cursor.getCount();
                     log("handleCpbrCommand - size = "+size);
-                    pbr.cursor.close();
-                    pbr.cursor = null;
                 }
                 if (size == 0) {
                     /* Sending "+CPBR: (1-0)" can confused some carkits, send "1-1" * instead */
@@ -385,13 +422,24 @@ public class AtPhonebook {
 
     /** Get the most recent result for the given phone book,
      *  with the cursor ready to go.
-     *  If force then re-query that phonebook
+     *  If force, or the phonebooks changed since the last query, then re-query
+     *  that phonebook
      *  Returns null if the cursor is not ready
      */
     private synchronized PhonebookResult getPhonebookResult(String pb, boolean force) {
         if (pb == null) {
             return null;
         }
+        if (!mObserverRegistered) {
+            mContentResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                    mPhonebookObserver);
+            mContentResolver.registerContentObserver(Calls.CONTENT_URI, true,
+                    mPhonebookObserver);
+            mObserverRegistered = true;
+        } else if (mPhonebookChanged) {
+            closePhonebooks();
+        }
+        mPhonebookChanged = false;
         PhonebookResult pbr = mPhonebooks.get(pb);
         if (pbr == null) {
             pbr = new PhonebookResult();
@@ -452,10 +500,21 @@ public class AtPhonebook {
         return true;
     }
 
+    private synchronized void closePhonebooks() {
+        for (PhonebookResult pbr : mPhonebooks.values()) {
+            if (pbr.cursor != null) {
+                pbr.cursor.close();
+                pbr.cursor = null;
+            }
+        }
+        mCallerEntries.clear();
+    }
+
     synchronized void resetAtState() {
         mCharacterSet = "UTF-8";
         mCpbrIndex1 = mCpbrIndex2 = -1;
         mCheckingAccessPermission = false;
+        closePhonebooks();
     }
 
     private synchronized int getMaxPhoneBookSize(int currSize) {
@@ -486,9 +545,6 @@ public class AtPhonebook {
         log("processCpbrCommand");
         int atCommandResult = HeadsetHalConstants.AT_RESPONSE_ERROR;
         int atCommandErrorCode = -1;
-        String atCommandResponse = null;
-        StringBuilder response = new StringBuilder();
-        String record;
 
         // Shortcut SM phonebook
         if ("SM".equals(mCurrentPhonebook)) {
@@ -496,8 +552,8 @@ public class AtPhonebook {
             return atCommandResult;
         }
 
-        // Check phonebook
-        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
+        // Check phonebook, the cursor of the previous window is reused
+        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, false);
         if (pbr == null) {
             atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
             return atCommandResult;
@@ -515,50 +571,38 @@ public class AtPhonebook {
 
         // Process
         atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
-        int errorDetected = -1; // no error
-        pbr.cursor.moveToPosition(mCpbrIndex1 - 1);
+        byte[] address = getByteAddress(device);
+        String unknownNumber = mContext.getString(R.string.unknownNumber);
+        boolean gsm = mCharacterSet.equals("GSM");
+        mCpbrResponse.reset();
+        if (!pbr.cursor.moveToPosition(mCpbrIndex1 - 1)) {
+            return atCommandResult;
+        }
         log("mCpbrIndex1 = "+mCpbrIndex1+ " and mCpbrIndex2 = "+mCpbrIndex2);
         for (int index = mCpbrIndex1; index <= mCpbrIndex2; index++) {
             String number = pbr.cursor.getString(pbr.numberColumn);
-            String name = null;
-            int type = -1;
-            if (pbr.nameColumn == -1 && number != null && number.length() > 0) {
-                // try caller id lookup
-                // TODO: This code is horribly inefficient. I saw it
-                // take 7 seconds to process 100 missed calls.
-                Cursor c = mContentResolver.
-                    query(Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, number),
-                          new String[] {PhoneLookup.DISPLAY_NAME, PhoneLookup.TYPE},
-                          null, null, null);
-                if (c != null) {
-                    if (c.moveToFirst()) {
-                        name = c.getString(0);
-                        type = c.getInt(1);
-                    }
-                    c.close();
-                }
-                if (name == null) log("Caller ID lookup failed for " + number);
-
-            } else if (pbr.nameColumn != -1) {
-                name = pbr.cursor.getString(pbr.nameColumn);
+            String name;
+            int regionType;
+            if (pbr.nameColumn == -1) {
+                // call log entry, the caller name is looked up once per number
+                CallerEntry entry = getCallerEntry(number);
+                number = entry.number;
+                regionType = entry.regionType;
+                name = entry.name;
             } else {
-                log("processCpbrCommand: empty name and number");
+                name = pbr.cursor.getString(pbr.nameColumn);
+                if (name == null) name = "";
+                name = name.trim();
+                if (name.length() > 28) name = name.substring(0, 28);
+                if (number == null) number = "";
+                regionType = PhoneNumberUtils.toaFromString(number);
+                number = formatNumber(number);
             }
-            if (name == null) name = "";
-            name = name.trim();
-            if (name.length() > 28) name = name.substring(0, 28);
 
             if (pbr.typeColumn != -1) {
-                type = pbr.cursor.getInt(pbr.typeColumn);
-                name = name + "/" + getPhoneType(type);
+                name = name + "/" + getPhoneType(pbr.cursor.getInt(pbr.typeColumn));
             }
 
-            if (number == null) number = "";
-            int regionType = PhoneNumberUtils.toaFromString(number);
-
-            number = number.trim();
-            number = PhoneNumberUtils.stripSeparators(number);
-            if (number.length() > 30) number = number.substring(0, 30);
             int numberPresentation = Calls.PRESENTATION_ALLOWED;
             if (pbr.numberPresentationColumn != -1) {
                 numberPresentation = pbr.cursor.getInt(pbr.numberPresentationColumn);
@@ -567,36 +611,76 @@ public class AtPhonebook {
                 number = "";
                 // TODO: there are 3 types of numbers should have resource
                 // strings for: unknown, private, and payphone
-                name = mContext.getString(R.string.unknownNumber);
+                name = unknownNumber;
             }
 
             // TODO(): Handle IRA commands. It's basically
             // a 7 bit ASCII character set.
-            if (!name.equals("") && mCharacterSet.equals("GSM")) {
+            if (gsm && !name.equals("")) {
                 byte[] nameByte = GsmAlphabet.stringToGsm8BitPacked(name);
                 if (nameByte == null) {
-                    name = mContext.getString(R.string.unknownNumber);
+                    name = unknownNumber;
                 } else {
                     name = new String(nameByte);
                 }
             }
 
-            record = "+CPBR: " + index + ",\"" + number + "\"," + regionType + ",\"" + name + "\"";
-            record = record + "\r\n\r\n";
-            atCommandResponse = record;
-            log("processCpbrCommand - atCommandResponse = "+atCommandResponse);
-            mStateMachine.atResponseStringNative(atCommandResponse, getByteAddress(device));
+            String response = mCpbrResponse.add(index, number, regionType, name);
+            if (response != null) {
+                if (DBG) log("processCpbrCommand - atCommandResponse = " + response);
+                mStateMachine.atResponseStringNative(response, address);
+            }
             if (!pbr.cursor.moveToNext()) {
                 break;
             }
         }
-        if(pbr != null && pbr.cursor != null) {
-            pbr.cursor.close();
-            pbr.cursor = null;
+        String response = mCpbrResponse.flush();
+        if (response != null) {
+            if (DBG) log("processCpbrCommand - atCommandResponse = " + response);
+            mStateMachine.atResponseStringNative(response, address);
         }
+        log("processCpbrCommand - sent " + mCpbrResponse.getRecordCount() + " entries in "
+                + mCpbrResponse.getResponseCount() + " responses so far");
         return atCommandResult;
     }
 
+    /* The number and caller name of a call log entry, from the shared number index */
+    private synchronized CallerEntry getCallerEntry(String number) {
+        if (number == null) number = "";
+        CallerEntry entry = mCallerEntries.get(number);
+        if (entry != null) {
+            return entry;
+        }
+        String name = null;
+        if (number.length() > 0) {
+            // try caller id lookup, in the shared number index rather than
+            // with a PhoneLookup query per entry
+            if (mNumberIndex == null) {
+                mNumberIndex = ContactNumberIndex.acquire(mContext);
+            }
+            ContactNumberIndex.Match match = mNumberIndex.lookupFirst(number);
+            if (match != null) {
+                name = match.name;
+            }
+            if (name == null) log("Caller ID lookup failed for " + number);
+        } else {
+            log("processCpbrCommand: empty name and number");
+        }
+        if (name == null) name = "";
+        name = name.trim();
+        if (name.length() > 28) name = name.substring(0, 28);
+        entry = new CallerEntry(formatNumber(number), PhoneNumberUtils.toaFromString(number),
+                name);
+        mCallerEntries.put(number, entry);
+        return entry;
+    }
+
+    private static String formatNumber(String number) {
+        number = PhoneNumberUtils.stripSeparators(number.trim());
+        if (number.length() > 30) number = number.substring(0, 30);
+        return number;
+    }
+
     /**
      * Checks if the remote device has premission to read our phone book.
      * If the return value is {@link BluetoothDevice#ACCESS_UNKNOWN}, it means this method has sent
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.hfp;
+
+/**
+ * Formats +CPBR records into one reusable buffer, and groups consecutive records into
+ * responses of at most a given number of bytes, so a phonebook read is sent with a
+ * few AT responses instead of one per entry.
+ * Records of a response are separated by CR LF CR LF, the stack frames the response
+ * itself with CR LF, so the remote device sees the same lines as when the records
+ * are sent one by one.
+ */
+class CpbrResponseBuilder {
+    /* The stack copies a formatted AT response into a 256 byte buffer and frames it with
+     * CR LF on both sides, keep the framed response within one RFCOMM frame of the
+     * default 256 byte AG MTU */
+    static final int MAX_RSP_BYTES = 252;
+
+    private static final String RECORD_SEPARATOR = "\r\n\r\n";
+
+    private final int mMaxBytes;
+    private final StringBuilder mBuffer = new StringBuilder(MAX_RSP_BYTES);
+    /* Encoded size of the pending records, separators included */
+    private int mPendingBytes = 0;
+    private int mRecords = 0;
+    private int mResponses = 0;
+
+    CpbrResponseBuilder() {
+        this(MAX_RSP_BYTES);
+    }
+
+    CpbrResponseBuilder(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Append a +CPBR record.
+     * @return the pending records to send before this one if it does not fit in the
+     *         current response, or null
+     */
+    String add(int index, String number, int type, String name) {
+        int mark = mBuffer.length();
+        if (mark > 0) {
+            mBuffer.append(RECORD_SEPARATOR);
+        }
+        mBuffer.append("+CPBR: ").append(index).append(",\"").append(number).append("\",")
+                .append(type).append(",\"").append(name).append('"');
+        int bytes = getEncodedLength(mBuffer, mark, mBuffer.length());
+        mRecords++;
+        if (mark == 0 || mPendingBytes + bytes <= mMaxBytes) {
+            mPendingBytes += bytes;
+            return null;
+        }
+        // A record larger than a response is sent on its own
+        String response = mBuffer.substring(0, mark);
+        mBuffer.delete(0, mark + RECORD_SEPARATOR.length());
+        mPendingBytes = bytes - RECORD_SEPARATOR.length();
+        mResponses++;
+        return response;
+    }
+
+    /**
+     * @return the pending records, or null if there are none
+     */
+    String flush() {
+        if (mBuffer.length() == 0) {
+            return null;
+        }
+        String response = mBuffer.toString();
+        mBuffer.setLength(0);
+        mPendingBytes = 0;
+        mResponses++;
+        return response;
+    }
+
+    /** Drop the pending records */
+    void reset() {
+        mBuffer.setLength(0);
+        mPendingBytes = 0;
+    }
+
+    int getRecordCount() {
+        return mRecords;
+    }
+
+    int getResponseCount() {
+        return mResponses;
+    }
+
+    /**
+     * The length of the chars in modified UTF-8, as the response is handed to the stack
+     * by GetStringUTFChars.
+     */
+    static int getEncodedLength(CharSequence s, int start, int end) {
+        int bytes = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c != 0 && c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.hfp;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * The state HeadsetStateMachine keeps for one remote device.
+ * Contexts are indexed by the 48 bit device address, so the JNI callbacks, which
+ * identify the device by its address bytes, get the device and its state with one
+ * lookup, instead of formatting the address and asking the adapter for the device.
+ * The address bytes are kept too, for the native calls made for the device.
+ * Contexts are only accessed from the state machine thread, except for the
+ * device and address, which do not change.
+ * The audio parameters set on each SCO connection are built once per connection
+ * and kept until the negotiated codec or NREC change. The SCO setup latency,
+ * from the connection request to audio on, is kept across connections.
+ */
+final class HeadsetDeviceContext {
+    /* No BRSF received from the device, it is not connected */
+    static final int BRSF_UNKNOWN = -1;
+
+    final BluetoothDevice mDevice;
+    final byte[] mAddress;
+
+    /* Outgoing connection attempts since the last connection or failure */
+    int mRetryConnect = 0;
+    /* Features supported by the device, from its AT+BRSF */
+    int mBrsf = BRSF_UNKNOWN;
+    /* Audio parameters of the device, valid while mAudioConfigured is set */
+    boolean mAudioConfigured = false;
+    boolean mNrec;
+    int mCodec;
+    /* AudioManager parameters for the above, ending with the name key, null until built */
+    String mAudioParameters = null;
+    /* Network and battery indicators last sent to the device, null until its AT+CIND */
+    int[] mSentIndicators = null;
+
+    /* Time of the pending SCO connection request, -1 if none */
+    private long mScoConnectStartMs = -1;
+    private int mScoConnectCount = 0;
+    private long mScoConnectLastMs = 0;
+    private long mScoConnectMaxMs = 0;
+    private long mScoConnectTotalMs = 0;
+
+    HeadsetDeviceContext(BluetoothDevice device, byte[] address) {
+        mDevice = device;
+        mAddress = address;
+    }
+
+    /** Forget the state negotiated over the service level connection */
+    void clearConnectionState() {
+        mBrsf = BRSF_UNKNOWN;
+        mAudioConfigured = false;
+        mAudioParameters = null;
+        mSentIndicators = null;
+        mScoConnectStartMs = -1;
+    }
+
+    /** SCO connection requested by us or the device, an earlier request is kept */
+    void onScoConnectStarted(long now) {
+        if (mScoConnectStartMs < 0) {
+            mScoConnectStartMs = now;
+        }
+    }
+
+    /**
+     * @return the time since the SCO connection was requested, or -1 if it was not
+     */
+    long onScoConnected(long now) {
+        if (mScoConnectStartMs < 0) {
+            return -1;
+        }
+        long latency = now - mScoConnectStartMs;
+        mScoConnectStartMs = -1;
+        mScoConnectCount++;
+        mScoConnectLastMs = latency;
+        mScoConnectTotalMs += latency;
+        if (latency > mScoConnectMaxMs) {
+            mScoConnectMaxMs = latency;
+        }
+        return latency;
+    }
+
+    void cancelScoConnect() {
+        mScoConnectStartMs = -1;
+    }
+
+    int getScoConnectCount() {
+        return mScoConnectCount;
+    }
+
+    long getScoConnectLastMs() {
+        return mScoConnectLastMs;
+    }
+
+    long getScoConnectMaxMs() {
+        return mScoConnectMaxMs;
+    }
+
+    long getScoConnectAverageMs() {
+        return mScoConnectCount == 0 ? 0 : mScoConnectTotalMs / mScoConnectCount;
+    }
+
+    /**
+     * @return the index key of an address in bytes, or -1 if it is not 6 bytes long
+     */
+    static long getKey(byte[] address) {
+        if (address == null || address.length != 6) {
+            return -1;
+        }
+        long key = 0;
+        for (int i = 0; i < 6; i++) {
+            key = (key << 8) | (address[i] & 0xff);
+        }
+        return key;
+    }
+
+    /**
+     * @return the index key of an address in the "00:11:22:AA:BB:CC" form, or -1 if it
+     *         is not valid
+     */
+    static long getKey(String address) {
+        if (address == null || address.length() != 17) {
+            return -1;
+        }
+        long key = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return -1;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return -1;
+            }
+            key = (key << 4) | digit;
+        }
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return mDevice + "[retry=" + mRetryConnect + ", brsf=" + mBrsf
+                + (mAudioConfigured ? ", nrec=" + mNrec + ", codec=" + mCodec : "")
+                + (mScoConnectCount > 0 ? ", sco=" + mScoConnectCount
+                        + " last/avg/max=" + mScoConnectLastMs + "/" + getScoConnectAverageMs()
+                        + "/" + mScoConnectMaxMs + "ms" : "") + "]";
+    }
+}
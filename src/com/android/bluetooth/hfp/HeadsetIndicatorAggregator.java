@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.hfp;
+
+import java.util.Arrays;
+
+/**
+ * Aggregates the network and battery indicators reported to the connected devices.
+ * The phone state is compared with the values last sent to each device, so only an
+ * actual change of the quantized indicators is sent. Each indicator can be held back
+ * for a minimum interval after it was last sent, so that a signal level flapping
+ * between two bars in weak coverage is sent once per interval instead of on every
+ * telephony callback. Changes of the several indicators are sent together.
+ * Devices are tracked by the values they were last sent, as kept by their context.
+ */
+class HeadsetIndicatorAggregator {
+    static final int INDICATOR_SERVICE = 0;
+    static final int INDICATOR_ROAM = 1;
+    static final int INDICATOR_SIGNAL = 2;
+    static final int INDICATOR_BATTERY = 3;
+    static final int INDICATOR_COUNT = 4;
+
+    /* Minimum time between two changes of each indicator. The service and roaming
+     * changes are sent at once, the signal and battery levels are held back. */
+    static final long[] MIN_INTERVAL_MS = new long[] { 0, 0, 2000, 5000 };
+
+    private final long[] mMinIntervalMs;
+    private final int[] mValues = new int[INDICATOR_COUNT];
+    private final long[] mLastSentMs = new long[INDICATOR_COUNT];
+    private boolean mValid = false;
+    private int mUpdateCount = 0;
+    private int mSentCount = 0;
+
+    HeadsetIndicatorAggregator() {
+        this(MIN_INTERVAL_MS);
+    }
+
+    HeadsetIndicatorAggregator(long[] minIntervalMs) {
+        mMinIntervalMs = minIntervalMs;
+        Arrays.fill(mLastSentMs, Long.MIN_VALUE / 2);
+    }
+
+    /** Set the current, already quantized, indicators */
+    void setState(int service, int roam, int signal, int batteryCharge) {
+        mValues[INDICATOR_SERVICE] = service;
+        mValues[INDICATOR_ROAM] = roam;
+        mValues[INDICATOR_SIGNAL] = signal;
+        mValues[INDICATOR_BATTERY] = batteryCharge;
+        mValid = true;
+        mUpdateCount++;
+    }
+
+    int get(int indicator) {
+        return mValues[indicator];
+    }
+
+    /**
+     * @return the values of the indicators, for a device they were just sent to
+     */
+    static int[] getSent(int service, int roam, int signal, int batteryCharge) {
+        return new int[] { service, roam, signal, batteryCharge };
+    }
+
+    /**
+     * @param sent the values last sent to a device, or null if it was not sent any yet
+     * @return the delay in ms before the changed indicators can be sent to the device,
+     *         0 if they can be sent now, or -1 if nothing changed
+     */
+    long getSendDelay(int[] sent, long now) {
+        if (!mValid || sent == null) {
+            return -1;
+        }
+        long delay = -1;
+        for (int i = 0; i < INDICATOR_COUNT; i++) {
+            if (mValues[i] == sent[i]) {
+                continue;
+            }
+            long indicatorDelay = Math.max(0, mLastSentMs[i] + mMinIntervalMs[i] - now);
+            if (delay < 0 || indicatorDelay < delay) {
+                delay = indicatorDelay;
+            }
+        }
+        return delay;
+    }
+
+    /**
+     * Record that the indicators were sent to a device.
+     * @param sent the values last sent to the device, updated with the current ones
+     */
+    void onSent(int[] sent, long now) {
+        if (sent == null) {
+            return;
+        }
+        for (int i = 0; i < INDICATOR_COUNT; i++) {
+            if (mValues[i] != sent[i]) {
+                mLastSentMs[i] = now;
+                sent[i] = mValues[i];
+            }
+        }
+    }
+
+    /** Count a native indicator update */
+    void onNotified() {
+        mSentCount++;
+    }
+
+    @Override
+    public String toString() {
+        return "HeadsetIndicatorAggregator[values=" + Arrays.toString(mValues)
+                + ", updates=" + mUpdateCount + ", sent=" + mSentCount + "]";
+    }
+}
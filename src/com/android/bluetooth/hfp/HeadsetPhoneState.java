@@ -259,12 +259,18 @@ class HeadsetPhoneState {
             public void onServiceStateChanged(ServiceState serviceState) {
 
                 mServiceState = serviceState;
+                int prevService = mService;
+                int prevRoam = mRoam;
                 mService = (serviceState.getState() == ServiceState.STATE_IN_SERVICE) ?
                     HeadsetHalConstants.NETWORK_STATE_AVAILABLE :
                     HeadsetHalConstants.NETWORK_STATE_NOT_AVAILABLE;
                 setRoam(serviceState.getRoaming() ? HeadsetHalConstants.SERVICE_TYPE_ROAMING
                                                   : HeadsetHalConstants.SERVICE_TYPE_HOME);
 
+                // setRoam only sends the change of the roaming indicator
+                if (prevService != mService && prevRoam == mRoam)
+                    sendDeviceStateChanged();
+
             }
 
             @Override
@@ -56,11 +56,13 @@ import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.PowerManager;
 import android.os.UserHandle;
 import android.os.PowerManager.WakeLock;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
+import android.util.LongSparseArray;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.ProfileService;
@@ -69,6 +71,7 @@ import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -122,6 +125,7 @@ final class HeadsetStateMachine extends StateMachine {
     private static final int DIALING_OUT_TIMEOUT = 102;
     private static final int START_VR_TIMEOUT = 103;
     private static final int CLCC_RSP_TIMEOUT = 104;
+    private static final int SEND_DEVICE_STATE = 105;
 
     private static final int CONNECT_TIMEOUT = 201;
 
@@ -138,15 +142,20 @@ final class HeadsetStateMachine extends StateMachine {
 
     // Keys are AT commands, and values are the company IDs.
     private static final Map<String, Integer> VENDOR_SPECIFIC_AT_COMMAND_COMPANY_ID;
-    // Hash for storing the Audio Parameters like NREC for connected headsets
-    private HashMap<BluetoothDevice, HashMap> mHeadsetAudioParam =
-                                          new HashMap<BluetoothDevice, HashMap>();
-    // Hash for storing the Remotedevice BRSF
-    private HashMap<BluetoothDevice, Integer> mHeadsetBrsf =
-                                          new HashMap<BluetoothDevice, Integer>();
-    // Hash for storing the connection retry attempts from application
-    private HashMap<BluetoothDevice, Integer> mRetryConnect =
-                                            new HashMap<BluetoothDevice, Integer>();
+    // Per device state, like the connection retry attempts, the BRSF and the audio
+    // parameters, by device address
+    private final LongSparseArray<HeadsetDeviceContext> mDeviceContexts =
+                                            new LongSparseArray<HeadsetDeviceContext>();
+    // The devices waiting for a reply guarded by a timeout. The timeout message carries
+    // the same device, so the reply is routed without looking for the timeout message
+    // of each connected device.
+    private BluetoothDevice mDialingOutDevice = null;
+    private BluetoothDevice mVrRequestDevice = null;
+    // The phone answers the AT+CLCC of the devices in turn, each list ending with index 0
+    private final LinkedList<BluetoothDevice> mClccRequestDevices =
+            new LinkedList<BluetoothDevice>();
+    // Network and battery indicators, sent to the devices when they change
+    private final HeadsetIndicatorAggregator mIndicators = new HeadsetIndicatorAggregator();
 
     /* Constants from Bluetooth Specification Hands-Free profile version 1.6 */
     private static final int BRSF_AG_THREE_WAY_CALLING = 1 << 0;
@@ -193,6 +202,8 @@ final class HeadsetStateMachine extends StateMachine {
     private boolean mDialingOut = false;
     private AudioManager mAudioManager;
     private AtPhonebook mPhonebook;
+    // Handlers of the AT commands not parsed by the stack, by command name
+    private final AtCommandDispatcher mAtDispatcher = new AtCommandDispatcher();
 
     private static Intent sVoiceCommandIntent;
 
@@ -270,6 +281,7 @@ final class HeadsetStateMachine extends StateMachine {
         mDialingOut = false;
         mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
         mPhonebook = new AtPhonebook(mService, this);
+        registerAtCommandHandlers();
         mPhoneState = new HeadsetPhoneState(context, this);
         mAudioState = BluetoothHeadset.STATE_AUDIO_DISCONNECTED;
         mAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -357,11 +369,8 @@ final class HeadsetStateMachine extends StateMachine {
         if (mPhonebook != null) {
             mPhonebook.cleanup();
         }
-        if (mHeadsetAudioParam != null) {
-            mHeadsetAudioParam.clear();
-        }
-        if (mHeadsetBrsf != null) {
-            mHeadsetBrsf.clear();
+        synchronized (mDeviceContexts) {
+            mDeviceContexts.clear();
         }
         if (mConnectedDevicesList != null) {
             mConnectedDevicesList.clear();
@@ -383,7 +392,14 @@ final class HeadsetStateMachine extends StateMachine {
         ProfileService.println(sb, "mWaitingForVoiceRecognition: " + mWaitingForVoiceRecognition);
         ProfileService.println(sb, "StateMachine: " + this.toString());
         ProfileService.println(sb, "mPhoneState: " + mPhoneState);
+        ProfileService.println(sb, "mAtDispatcher: " + mAtDispatcher);
+        ProfileService.println(sb, "mIndicators: " + mIndicators);
         ProfileService.println(sb, "mAudioState: " + mAudioState);
+        synchronized (mDeviceContexts) {
+            for (int i = 0; i < mDeviceContexts.size(); i++) {
+                ProfileService.println(sb, "  " + mDeviceContexts.valueAt(i));
+            }
+        }
     }
 
     private class Disconnected extends State {
@@ -393,6 +409,9 @@ final class HeadsetStateMachine extends StateMachine {
                                 ", size: " + mConnectedDevicesList.size());
             mPhonebook.resetAtState();
             mPhoneState.listenForPhoneState(false);
+            removeMessages(SEND_DEVICE_STATE);
+            removeMessages(CLCC_RSP_TIMEOUT);
+            mClccRequestDevices.clear();
             mVoiceRecognitionStarted = false;
             mWaitingForVoiceRecognition = false;
         }
@@ -412,11 +431,7 @@ final class HeadsetStateMachine extends StateMachine {
             switch(message.what) {
                 case CONNECT:
                     BluetoothDevice device = (BluetoothDevice) message.obj;
-                    if (!mRetryConnect.containsKey(device)) {
-                        Log.d(TAG, "Make conn retry entry for device " + device);
-                        mRetryConnect.put(device, 0);
-                    }
-                    int RetryConn = mRetryConnect.get(device);
+                    int RetryConn = getDeviceContext(device).mRetryConnect;
                     Log.d(TAG, "RetryConn = " + RetryConn);
 
                     if (RetryConn < 2) {
@@ -430,7 +445,7 @@ final class HeadsetStateMachine extends StateMachine {
                             break;
                         }
                         RetryConn = RetryConn + 1;
-                        mRetryConnect.put(device, RetryConn);
+                        getDeviceContext(device).mRetryConnect = RetryConn;
                         if (mPhoneProxy != null) {
                             try {
                                 log("Query the phonestates");
@@ -449,10 +464,10 @@ final class HeadsetStateMachine extends StateMachine {
                         m.obj = device;
                         sendMessageDelayed(m, 30000);
                     } else {
-                        if (mRetryConnect.containsKey(device)) {
+                        if (getDeviceContext(device).mRetryConnect != 0) {
                             Log.d(TAG, "Removing device " + device +
                                   " conn retry entry since RetryConn = " + RetryConn);
-                            mRetryConnect.remove(device);
+                            getDeviceContext(device).mRetryConnect = 0;
                         }
                     }
                     break;
@@ -627,7 +642,7 @@ final class HeadsetStateMachine extends StateMachine {
                     Log.d(TAG, "event type: " + event.type);
                     switch (event.type) {
                         case EVENT_TYPE_CONNECTION_STATE_CHANGED:
-                            BluetoothDevice device1 = getDeviceForMessage(CONNECT_TIMEOUT);
+                            BluetoothDevice device1 = mTargetDevice;
                             if (device1 != null && device1.equals(event.device)) {
                                 Log.d(TAG, "remove connect timeout for device = " + device1);
                                 removeMessages(CONNECT_TIMEOUT);
@@ -656,8 +671,7 @@ final class HeadsetStateMachine extends StateMachine {
                         synchronized (HeadsetStateMachine.this) {
                             processWBSEvent(0, device); /* disable WBS audio parameters */
                             mConnectedDevicesList.remove(device);
-                            mHeadsetAudioParam.remove(device);
-                            mHeadsetBrsf.remove(device);
+                            getDeviceContext(device).clearConnectionState();
                             Log.d(TAG, "device " + device.getAddress() +
                                              " is removed in Pending state");
                         }
@@ -692,9 +706,9 @@ final class HeadsetStateMachine extends StateMachine {
                         }
                     } else if (mTargetDevice != null && mTargetDevice.equals(device)) {
                         // outgoing connection failed
-                        if (mRetryConnect.containsKey(mTargetDevice)) {
+                        if (getDeviceContext(mTargetDevice).mRetryConnect != 0) {
                             Log.d(TAG, "Removing conn retry entry for device = " + mTargetDevice);
-                            mRetryConnect.remove(mTargetDevice);
+                            getDeviceContext(mTargetDevice).mRetryConnect = 0;
                         }
                         broadcastConnectionState(mTargetDevice, BluetoothProfile.STATE_DISCONNECTED,
                                                  BluetoothProfile.STATE_CONNECTING);
@@ -887,12 +901,7 @@ final class HeadsetStateMachine extends StateMachine {
                         break;
                     }
 
-                    if (!mRetryConnect.containsKey(device)) {
-                        Log.d(TAG, "Make conn retry entry for device " + device);
-                        mRetryConnect.put(device, 0);
-                    }
-
-                    int RetryConn = mRetryConnect.get(device);
+                    int RetryConn = getDeviceContext(device).mRetryConnect;
                     Log.d(TAG, "RetryConn = " + RetryConn);
                     if (RetryConn < 2) {
                         if (mConnectedDevicesList.size() >= max_hf_connections) {
@@ -942,15 +951,15 @@ final class HeadsetStateMachine extends StateMachine {
                             }
                         }
                         RetryConn = RetryConn + 1;
-                        mRetryConnect.put(device, RetryConn);
+                        getDeviceContext(device).mRetryConnect = RetryConn;
                         Message m = obtainMessage(CONNECT_TIMEOUT);
                         m.obj = device;
                         sendMessageDelayed(m, 30000);
                     } else {
-                        if (mRetryConnect.containsKey(device)) {
+                        if (getDeviceContext(device).mRetryConnect != 0) {
                             Log.d(TAG, "Removing device " + device +
                                   " conn retry entry since RetryConn = " + RetryConn);
-                            mRetryConnect.remove(device);
+                            getDeviceContext(device).mRetryConnect = 0;
                         }
                     }
                 }
@@ -987,7 +996,7 @@ final class HeadsetStateMachine extends StateMachine {
                         device = mActiveScoDevice;
                     }
                     log("connectAudioNative in Connected for device = " + device);
-                    connectAudioNative(getByteAddress(device));
+                    connectAudio(device);
                 }
                     break;
                 case VOICE_RECOGNITION_START:
@@ -1005,13 +1014,16 @@ final class HeadsetStateMachine extends StateMachine {
                 case DEVICE_STATE_CHANGED:
                     processDeviceStateChanged((HeadsetDeviceState) message.obj);
                     break;
+                case SEND_DEVICE_STATE:
+                    processSendDeviceState();
+                    break;
                 case SEND_CCLC_RESPONSE:
                     processSendClccResponse((HeadsetClccResponse) message.obj);
                     break;
                 case CLCC_RSP_TIMEOUT:
                 {
                     BluetoothDevice device = (BluetoothDevice) message.obj;
-                    clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
+                    processClccRspTimeout(device);
                 }
                     break;
                 case SEND_VENDOR_SPECIFIC_RESULT_CODE:
@@ -1153,8 +1165,7 @@ final class HeadsetStateMachine extends StateMachine {
                         processWBSEvent(0, device); /* disable WBS audio parameters */
                         synchronized (HeadsetStateMachine.this) {
                             mConnectedDevicesList.remove(device);
-                            mHeadsetAudioParam.remove(device);
-                            mHeadsetBrsf.remove(device);
+                            getDeviceContext(device).clearConnectionState();
                             Log.d(TAG, "device " + device.getAddress() +
                                          " is removed in Connected state");
 
@@ -1175,11 +1186,11 @@ final class HeadsetStateMachine extends StateMachine {
                 case HeadsetHalConstants.CONNECTION_STATE_SLC_CONNECTED:
                     int RemoteBrsf = getRemoteFeaturesNative(getByteAddress(device));
                     Log.d(TAG, "Remote Brsf: " + RemoteBrsf + " for device: " + device);
-                    mHeadsetBrsf.put(device, RemoteBrsf);
-                    if (mRetryConnect.containsKey(device)) {
+                    getDeviceContext(device).mBrsf = RemoteBrsf;
+                    if (getDeviceContext(device).mRetryConnect != 0) {
                         Log.d(TAG, "Removing device " + device +
                                    " conn retry entry since we got SLC");
-                        mRetryConnect.remove(device);
+                        getDeviceContext(device).mRetryConnect = 0;
                     }
                     processSlcConnected();
                     break;
@@ -1236,6 +1247,7 @@ final class HeadsetStateMachine extends StateMachine {
                 case HeadsetHalConstants.AUDIO_STATE_CONNECTED:
                     if (!isScoAcceptable()) {
                         Log.e(TAG,"Audio Connected without any listener");
+                        getDeviceContext(device).cancelScoConnect();
                         disconnectAudioNative(getByteAddress(device));
                         break;
                     }
@@ -1243,6 +1255,7 @@ final class HeadsetStateMachine extends StateMachine {
                     // TODO(BT) should I save the state for next broadcast as the prevState?
                     mAudioState = BluetoothHeadset.STATE_AUDIO_CONNECTED;
                     setAudioParameters(device); /*Set proper Audio Paramters.*/
+                    processScoConnected(device);
                     mAudioManager.setBluetoothScoOn(true);
                     broadcastAudioState(device, BluetoothHeadset.STATE_AUDIO_CONNECTED,
                                         BluetoothHeadset.STATE_AUDIO_CONNECTING);
@@ -1250,10 +1263,16 @@ final class HeadsetStateMachine extends StateMachine {
                     transitionTo(mAudioOn);
                     break;
                 case HeadsetHalConstants.AUDIO_STATE_CONNECTING:
+                    getDeviceContext(device).onScoConnectStarted(SystemClock.elapsedRealtime());
                     mAudioState = BluetoothHeadset.STATE_AUDIO_CONNECTING;
                     broadcastAudioState(device, BluetoothHeadset.STATE_AUDIO_CONNECTING,
                                         BluetoothHeadset.STATE_AUDIO_DISCONNECTED);
                     break;
+                case HeadsetHalConstants.AUDIO_STATE_DISCONNECTED:
+                    // SCO setup failed
+                    log("Audio disconnected in Connected for device: " + device);
+                    getDeviceContext(device).cancelScoConnect();
+                    break;
                     // TODO(BT) process other states
                 default:
                     Log.e(TAG, "Audio State Device: " + device + " bad state: " + state);
@@ -1349,12 +1368,7 @@ final class HeadsetStateMachine extends StateMachine {
                         break;
                     }
 
-                    if (!mRetryConnect.containsKey(device)) {
-                        Log.d(TAG, "Make conn retry entry for device " + device);
-                        mRetryConnect.put(device, 0);
-                    }
-
-                    int RetryConn = mRetryConnect.get(device);
+                    int RetryConn = getDeviceContext(device).mRetryConnect;
                     Log.d(TAG, "RetryConn = " + RetryConn);
                     if (RetryConn < 2) {
                         if (mConnectedDevicesList.size() >= max_hf_connections) {
@@ -1404,15 +1418,15 @@ final class HeadsetStateMachine extends StateMachine {
                             }
                         }
                         RetryConn = RetryConn + 1;
-                        mRetryConnect.put(device, RetryConn);
+                        getDeviceContext(device).mRetryConnect = RetryConn;
                         Message m = obtainMessage(CONNECT_TIMEOUT);
                         m.obj = device;
                         sendMessageDelayed(m, 30000);
                     } else {
-                        if (mRetryConnect.containsKey(device)) {
+                        if (getDeviceContext(device).mRetryConnect != 0) {
                             Log.d(TAG, "Removing device " + device +
                                   " conn retry entry since RetryConn = " + RetryConn);
-                            mRetryConnect.remove(device);
+                            getDeviceContext(device).mRetryConnect = 0;
                         }
                     }
                 }
@@ -1493,13 +1507,16 @@ final class HeadsetStateMachine extends StateMachine {
                 case DEVICE_STATE_CHANGED:
                     processDeviceStateChanged((HeadsetDeviceState) message.obj);
                     break;
+                case SEND_DEVICE_STATE:
+                    processSendDeviceState();
+                    break;
                 case SEND_CCLC_RESPONSE:
                     processSendClccResponse((HeadsetClccResponse) message.obj);
                     break;
                 case CLCC_RSP_TIMEOUT:
                 {
                     BluetoothDevice device = (BluetoothDevice) message.obj;
-                    clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
+                    processClccRspTimeout(device);
                 }
                     break;
                 case SEND_VENDOR_SPECIFIC_RESULT_CODE:
@@ -1558,7 +1575,7 @@ final class HeadsetStateMachine extends StateMachine {
                     Log.d(TAG, "event type: " + event.type);
                     switch (event.type) {
                         case EVENT_TYPE_CONNECTION_STATE_CHANGED:
-                            BluetoothDevice device1 = getDeviceForMessage(CONNECT_TIMEOUT);
+                            BluetoothDevice device1 = mTargetDevice;
                             if (device1 != null && device1.equals(event.device)) {
                                 Log.d(TAG, "remove connect timeout for device = " + device1);
                                 removeMessages(CONNECT_TIMEOUT);
@@ -1643,8 +1660,7 @@ final class HeadsetStateMachine extends StateMachine {
                         synchronized (HeadsetStateMachine.this) {
                             processWBSEvent(0, device); /* disable WBS audio parameters */
                             mConnectedDevicesList.remove(device);
-                            mHeadsetAudioParam.remove(device);
-                            mHeadsetBrsf.remove(device);
+                            getDeviceContext(device).clearConnectionState();
                             Log.d(TAG, "device " + device.getAddress() +
                                            " is removed in AudioOn state");
                             broadcastConnectionState(device, BluetoothProfile.STATE_DISCONNECTED,
@@ -1663,11 +1679,11 @@ final class HeadsetStateMachine extends StateMachine {
                case HeadsetHalConstants.CONNECTION_STATE_SLC_CONNECTED:
                     int RemoteBrsf = getRemoteFeaturesNative(getByteAddress(device));
                     Log.d(TAG, "Remote Brsf: " + RemoteBrsf + " for device: " + device);
-                    mHeadsetBrsf.put(device, RemoteBrsf);
-                    if (mRetryConnect.containsKey(device)) {
+                    getDeviceContext(device).mBrsf = RemoteBrsf;
+                    if (getDeviceContext(device).mRetryConnect != 0) {
                         Log.d(TAG, "Removing device " + device +
                                    " conn retry entry since we got SLC");
-                        mRetryConnect.remove(device);
+                        getDeviceContext(device).mRetryConnect = 0;
                     }
                     processSlcConnected();
                     break;
@@ -1721,6 +1737,7 @@ final class HeadsetStateMachine extends StateMachine {
 
             switch (state) {
                 case HeadsetHalConstants.AUDIO_STATE_DISCONNECTED:
+                    getDeviceContext(device).cancelScoConnect();
                     if (mAudioState != BluetoothHeadset.STATE_AUDIO_DISCONNECTED) {
                         mAudioState = BluetoothHeadset.STATE_AUDIO_DISCONNECTED;
                         if (mAudioManager.isSpeakerphoneOn()) {
@@ -1817,7 +1834,7 @@ final class HeadsetStateMachine extends StateMachine {
 
                 case CONNECT_AUDIO:
                     if (mCurrentDevice != null) {
-                        connectAudioNative(getByteAddress(mCurrentDevice));
+                        connectAudio(mCurrentDevice);
                     }
                     break;
                 case CONNECT_TIMEOUT:
@@ -1878,13 +1895,16 @@ final class HeadsetStateMachine extends StateMachine {
                 case DEVICE_STATE_CHANGED:
                     processDeviceStateChanged((HeadsetDeviceState) message.obj);
                     break;
+                case SEND_DEVICE_STATE:
+                    processSendDeviceState();
+                    break;
                 case SEND_CCLC_RESPONSE:
                     processSendClccResponse((HeadsetClccResponse) message.obj);
                     break;
                 case CLCC_RSP_TIMEOUT:
                 {
                     device = (BluetoothDevice) message.obj;
-                    clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
+                    processClccRspTimeout(device);
                 }
                     break;
                 case UPDATE_A2DP_PLAY_STATE:
@@ -1948,7 +1968,7 @@ final class HeadsetStateMachine extends StateMachine {
                     Log.d(TAG, "event type: " + event.type);
                     switch (event.type) {
                         case EVENT_TYPE_CONNECTION_STATE_CHANGED:
-                            BluetoothDevice device1 = getDeviceForMessage(CONNECT_TIMEOUT);
+                            BluetoothDevice device1 = mTargetDevice;
                             if (device1 != null && device1.equals(event.device)) {
                                 Log.d(TAG, "remove connect timeout for device = " + device1);
                                 removeMessages(CONNECT_TIMEOUT);
@@ -2027,8 +2047,7 @@ final class HeadsetStateMachine extends StateMachine {
 
                           synchronized (HeadsetStateMachine.this) {
                               mConnectedDevicesList.remove(device);
-                              mHeadsetAudioParam.remove(device);
-                              mHeadsetBrsf.remove(device);
+                              getDeviceContext(device).clearConnectionState();
                               Log.d(TAG, "device " + device.getAddress() +
                                       " is removed in MultiHFPending state");
                               broadcastConnectionState(device,
@@ -2070,8 +2089,7 @@ final class HeadsetStateMachine extends StateMachine {
                             /* Another HF disconnected when one HF is connecting */
                             synchronized (HeadsetStateMachine.this) {
                               mConnectedDevicesList.remove(device);
-                              mHeadsetAudioParam.remove(device);
-                              mHeadsetBrsf.remove(device);
+                              getDeviceContext(device).clearConnectionState();
                               Log.d(TAG, "device " + device.getAddress() +
                                            " is removed in MultiHFPending state");
                             }
@@ -2080,9 +2098,9 @@ final class HeadsetStateMachine extends StateMachine {
                                 BluetoothProfile.STATE_CONNECTED);
                         }
                     } else if (mTargetDevice != null && mTargetDevice.equals(device)) {
-                        if (mRetryConnect.containsKey(mTargetDevice)) {
+                        if (getDeviceContext(mTargetDevice).mRetryConnect != 0) {
                             Log.d(TAG, "Removing conn retry entry for device = " + mTargetDevice);
-                            mRetryConnect.remove(mTargetDevice);
+                            getDeviceContext(mTargetDevice).mRetryConnect = 0;
                         }
                         broadcastConnectionState(mTargetDevice, BluetoothProfile.STATE_DISCONNECTED,
                                                  BluetoothProfile.STATE_CONNECTING);
@@ -2169,11 +2187,11 @@ final class HeadsetStateMachine extends StateMachine {
             case HeadsetHalConstants.CONNECTION_STATE_SLC_CONNECTED:
                 int RemoteBrsf = getRemoteFeaturesNative(getByteAddress(device));
                 Log.d(TAG, "Remote Brsf: " + RemoteBrsf + " for device: " + device);
-                mHeadsetBrsf.put(device, RemoteBrsf);
-                if (mRetryConnect.containsKey(device)) {
+                getDeviceContext(device).mBrsf = RemoteBrsf;
+                if (getDeviceContext(device).mRetryConnect != 0) {
                     Log.d(TAG, "Removing device " + device +
                                " conn retry entry since we got SLC");
-                    mRetryConnect.remove(device);
+                    getDeviceContext(device).mRetryConnect = 0;
                 }
                 processSlcConnected();
                 break;
@@ -2215,11 +2233,13 @@ final class HeadsetStateMachine extends StateMachine {
                 case HeadsetHalConstants.AUDIO_STATE_CONNECTED:
                     if (!isScoAcceptable()) {
                         Log.e(TAG,"Audio Connected without any listener");
+                        getDeviceContext(device).cancelScoConnect();
                         disconnectAudioNative(getByteAddress(device));
                         break;
                     }
                     mAudioState = BluetoothHeadset.STATE_AUDIO_CONNECTED;
                     setAudioParameters(device); /* Set proper Audio Parameters. */
+                    processScoConnected(device);
                     mAudioManager.setBluetoothScoOn(true);
                     mActiveScoDevice = device;
                     broadcastAudioState(device, BluetoothHeadset.STATE_AUDIO_CONNECTED,
@@ -2229,11 +2249,13 @@ final class HeadsetStateMachine extends StateMachine {
                        disconnecting */
                     break;
                 case HeadsetHalConstants.AUDIO_STATE_CONNECTING:
+                    getDeviceContext(device).onScoConnectStarted(SystemClock.elapsedRealtime());
                     mAudioState = BluetoothHeadset.STATE_AUDIO_CONNECTING;
                     broadcastAudioState(device, BluetoothHeadset.STATE_AUDIO_CONNECTING,
                                         BluetoothHeadset.STATE_AUDIO_DISCONNECTED);
                     break;
                 case HeadsetHalConstants.AUDIO_STATE_DISCONNECTED:
+                    getDeviceContext(device).cancelScoConnect();
                     if (mAudioState != BluetoothHeadset.STATE_AUDIO_DISCONNECTED) {
                         mAudioState = BluetoothHeadset.STATE_AUDIO_DISCONNECTED;
                     if (mAudioManager.isSpeakerphoneOn()) {
@@ -2434,10 +2456,8 @@ final class HeadsetStateMachine extends StateMachine {
     }
 
     public boolean isBluetoothVoiceDialingEnabled( BluetoothDevice device) {
-        int remoteBrsf = 0;
-        if (mHeadsetBrsf != null && !mHeadsetBrsf.isEmpty()) {
-            remoteBrsf = mHeadsetBrsf.get(device);
-        } else {
+        int remoteBrsf = getDeviceContext(device).mBrsf;
+        if (remoteBrsf == HeadsetDeviceContext.BRSF_UNKNOWN) {
             Log.e(TAG,"remote device supported features not found");
             return false;
         }
@@ -2515,9 +2535,10 @@ final class HeadsetStateMachine extends StateMachine {
 
             if (mWaitingForVoiceRecognition)
             {
-                device = getDeviceForMessage(START_VR_TIMEOUT);
+                device = mVrRequestDevice;
                 if (device == null)
                     return;
+                mVrRequestDevice = null;
 
                 Log.d(TAG, "Voice recognition started successfully");
                 mWaitingForVoiceRecognition = false;
@@ -2546,7 +2567,7 @@ final class HeadsetStateMachine extends StateMachine {
                 // in MODE_NORMAL and hence the need to explicitly suspend the A2DP stream
                 mAudioManager.setParameters("A2dpSuspended=true");
                 if (device != null) {
-                    connectAudioNative(getByteAddress(device));
+                    connectAudio(device);
                 } else {
                     Log.e(TAG, "device not found for VR");
                 }
@@ -2579,7 +2600,8 @@ final class HeadsetStateMachine extends StateMachine {
     private synchronized void expectVoiceRecognition(BluetoothDevice device) {
         mWaitingForVoiceRecognition = true;
         Message m = obtainMessage(START_VR_TIMEOUT);
-        m.obj = getMatchingDevice(device);
+        m.obj = device;
+        mVrRequestDevice = device;
         sendMessageDelayed(m, START_VR_TIMEOUT_VALUE);
 
         if (!mStartVoiceRecognitionWakeLock.isHeld()) {
@@ -2608,40 +2630,6 @@ final class HeadsetStateMachine extends StateMachine {
         return deviceList;
     }
 
-    private BluetoothDevice getDeviceForMessage(int what)
-    {
-        if (what == CONNECT_TIMEOUT) {
-            log("getDeviceForMessage: returning mTargetDevice for what=" + what);
-            return mTargetDevice;
-        }
-        if (mConnectedDevicesList.size() == 0) {
-            log("getDeviceForMessage: No connected device. what=" + what);
-            return null;
-        }
-        for (BluetoothDevice device : mConnectedDevicesList)
-        {
-            if (getHandler().hasMessages(what, device))
-            {
-                log("getDeviceForMessage: returning " + device);
-                return device;
-            }
-        }
-        log("getDeviceForMessage: No matching device for " + what + ". Returning null");
-        return null;
-    }
-
-    private BluetoothDevice getMatchingDevice(BluetoothDevice device)
-    {
-        for (BluetoothDevice matchingDevice : mConnectedDevicesList)
-        {
-            if (matchingDevice.equals(device))
-            {
-                return matchingDevice;
-            }
-        }
-        return null;
-    }
-
     // This method does not check for error conditon (newState == prevState)
     private void broadcastConnectionState(BluetoothDevice device, int newState, int prevState) {
         Log.d(TAG, "Connection state " + device + ": " + prevState + "->" + newState);
@@ -2705,88 +2693,64 @@ final class HeadsetStateMachine extends StateMachine {
     private void configAudioParameters(BluetoothDevice device)
     {
         // Reset NREC on connect event. Headset will override later
-        HashMap<String, Integer> AudioParamConfig = new HashMap<String, Integer>();
-        AudioParamConfig.put("NREC", 1);
-        AudioParamConfig.put("codec", NBS_CODEC);
-        mHeadsetAudioParam.put(device, AudioParamConfig);
+        HeadsetDeviceContext deviceContext = getDeviceContext(device);
+        deviceContext.mNrec = true;
+        deviceContext.mCodec = NBS_CODEC;
+        deviceContext.mAudioConfigured = true;
+        prepareAudioParameters(deviceContext);
         mAudioManager.setParameters(HEADSET_NAME + "=" + getCurrentDeviceName(device) + ";" +
                                     HEADSET_NREC + "=on");
         Log.d(TAG, "configAudioParameters for device:" + device + " are: nrec = " +
-                      AudioParamConfig.get("NREC"));
+                      deviceContext.mNrec);
+    }
+
+    // The parameters set on each SCO connection are built when the negotiated
+    // codec or NREC change, so connecting audio sets them with a single call.
+    // The name is added on each connection, it may be resolved after connecting.
+    private void prepareAudioParameters(HeadsetDeviceContext deviceContext)
+    {
+        boolean wbs = false;
+        boolean nrec = false;
+        if (deviceContext.mAudioConfigured) {
+            wbs = deviceContext.mCodec == WBS_CODEC;
+            nrec = deviceContext.mNrec;
+        }
+        deviceContext.mAudioParameters = HEADSET_WBS + (wbs ? "=on;" : "=off;") +
+                HEADSET_NREC + (nrec ? "=on;" : "=off;") + HEADSET_NAME + "=";
     }
 
     private void setAudioParameters(BluetoothDevice device)
     {
-        // 1. update nrec value
-        // 2. update headset name
-        int mCodec = 0;
-        int mNrec = 0;
-        HashMap<String, Integer> AudioParam = mHeadsetAudioParam.get(device);
-        if (AudioParam != null && !AudioParam.isEmpty()) {
-            mCodec = AudioParam.get("codec");
-            mNrec = AudioParam.get("NREC");
-        } else {
+        // wbs, nrec and headset name in one go
+        HeadsetDeviceContext deviceContext = getDeviceContext(device);
+        if (!deviceContext.mAudioConfigured) {
             Log.e(TAG,"setAudioParameters: AudioParam not found");
         }
-        if (mCodec != WBS_CODEC) {
-            Log.d(TAG, "Use NBS PCM samples:" + device);
-            mAudioManager.setParameters(HEADSET_WBS + "=off");
-        } else {
-            Log.d(TAG, "Use WBS PCM samples:" + device);
-            mAudioManager.setParameters(HEADSET_WBS + "=on");
+        if (deviceContext.mAudioParameters == null) {
+            prepareAudioParameters(deviceContext);
         }
-        if (mNrec == 1) {
-            log("Set NREC: 1 for device:" + device);
-            mAudioManager.setParameters(HEADSET_NREC + "=on");
-        } else {
-            log("Set NREC: 0 for device:" + device);
-            mAudioManager.setParameters(HEADSET_NREC + "=off");
-        }
-        mAudioManager.setParameters(HEADSET_NAME + "=" + getCurrentDeviceName(device));
+        String parameters = deviceContext.mAudioParameters + getCurrentDeviceName(device);
+        log("setAudioParameters for device:" + device + ": " + parameters);
+        mAudioManager.setParameters(parameters);
     }
 
-    private String parseUnknownAt(String atString)
+    private boolean connectAudio(BluetoothDevice device)
     {
-        StringBuilder atCommand = new StringBuilder(atString.length());
-        String result = null;
-
-        for (int i = 0; i < atString.length(); i++) {
-            char c = atString.charAt(i);
-            if (c == '"') {
-                int j = atString.indexOf('"', i + 1 );  // search for closing "
-                if (j == -1) {  // unmatched ", insert one.
-                    atCommand.append(atString.substring(i, atString.length()));
-                    atCommand.append('"');
-                    break;
-                }
-                atCommand.append(atString.substring(i, j + 1));
-                i = j;
-            } else if (c != ' ') {
-                atCommand.append(Character.toUpperCase(c));
-            }
+        HeadsetDeviceContext deviceContext = getDeviceContext(device);
+        deviceContext.onScoConnectStarted(SystemClock.elapsedRealtime());
+        if (!connectAudioNative(deviceContext.mAddress)) {
+            deviceContext.cancelScoConnect();
+            return false;
         }
-        result = atCommand.toString();
-        return result;
+        return true;
     }
 
-    private int getAtCommandType(String atCommand)
+    private void processScoConnected(BluetoothDevice device)
     {
-        int commandType = mPhonebook.TYPE_UNKNOWN;
-        String atString = null;
-        atCommand = atCommand.trim();
-        if (atCommand.length() > 5)
-        {
-            atString = atCommand.substring(5);
-            if (atString.startsWith("?"))     // Read
-                commandType = mPhonebook.TYPE_READ;
-            else if (atString.startsWith("=?"))   // Test
-                commandType = mPhonebook.TYPE_TEST;
-            else if (atString.startsWith("="))   // Set
-                commandType = mPhonebook.TYPE_SET;
-            else
-                commandType = mPhonebook.TYPE_UNKNOWN;
+        long latency = getDeviceContext(device).onScoConnected(SystemClock.elapsedRealtime());
+        if (latency >= 0) {
+            log("SCO connected for device:" + device + " in " + latency + " ms");
         }
-        return commandType;
     }
 
     /* Method to check if Virtual Call in Progress */
@@ -3015,7 +2979,8 @@ final class HeadsetStateMachine extends StateMachine {
         //          Get call started indication from bluetooth phone
         mDialingOut = true;
         Message m = obtainMessage(DIALING_OUT_TIMEOUT);
-        m.obj = getMatchingDevice(device);
+        m.obj = device;
+        mDialingOutDevice = device;
         sendMessageDelayed(m, DIALING_OUT_TIMEOUT_VALUE);
     }
 
@@ -3066,10 +3031,11 @@ final class HeadsetStateMachine extends StateMachine {
         mPhoneState.setType(callState.mType);
         if (mDialingOut && callState.mCallState ==
                 HeadsetHalConstants.CALL_STATE_DIALING) {
-                BluetoothDevice device = getDeviceForMessage(DIALING_OUT_TIMEOUT);
+                BluetoothDevice device = mDialingOutDevice;
                 if (device == null) {
                     return;
                 }
+                mDialingOutDevice = null;
                 atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK,
                                                        0, getByteAddress(device));
                 removeMessages(DIALING_OUT_TIMEOUT);
@@ -3143,14 +3109,13 @@ final class HeadsetStateMachine extends StateMachine {
     // 1 enable noice reduction
     // 0 disable noice reduction
     private void processNoiceReductionEvent(int enable, BluetoothDevice device) {
-        HashMap<String, Integer> AudioParamNrec = mHeadsetAudioParam.get(device);
-        if (AudioParamNrec != null && !AudioParamNrec.isEmpty()) {
-            if (enable == 1)
-                AudioParamNrec.put("NREC", 1);
-            else
-                AudioParamNrec.put("NREC", 0);
-            log("NREC value for device :" + device + " is: " +
-                    AudioParamNrec.get("NREC"));
+        HeadsetDeviceContext deviceContext = getDeviceContext(device);
+        if (deviceContext.mAudioConfigured) {
+            if (deviceContext.mNrec != (enable == 1)) {
+                deviceContext.mNrec = (enable == 1);
+                prepareAudioParameters(deviceContext);
+            }
+            log("NREC value for device :" + device + " is: " + deviceContext.mNrec);
         } else {
             Log.e(TAG,"processNoiceReductionEvent: AudioParamNrec is null ");
         }
@@ -3159,19 +3124,20 @@ final class HeadsetStateMachine extends StateMachine {
     // 2 - WBS on
     // 1 - NBS on
     private void processWBSEvent(int enable, BluetoothDevice device) {
-        HashMap<String, Integer> AudioParamCodec = mHeadsetAudioParam.get(device);
-        if (AudioParamCodec != null && !AudioParamCodec.isEmpty()) {
-            AudioParamCodec.put("codec", enable);
+        HeadsetDeviceContext deviceContext = getDeviceContext(device);
+        if (deviceContext.mAudioConfigured) {
+            if (deviceContext.mCodec != enable) {
+                deviceContext.mCodec = enable;
+                prepareAudioParameters(deviceContext);
+            }
         } else {
             Log.e(TAG,"processWBSEvent: AudioParamNrec is null ");
         }
         if (enable == 2) {
-            Log.d(TAG, "AudioManager.setParameters bt_wbs=on for " +
-                        device.getName() + " - " + device.getAddress());
+            Log.d(TAG, "AudioManager.setParameters bt_wbs=on for " + device);
             mAudioManager.setParameters(HEADSET_WBS + "=on");
         } else {
-            Log.d(TAG, "AudioManager.setParameters bt_wbs=off for " +
-                        device.getName() + " - " + device.getAddress());
+            Log.d(TAG, "AudioManager.setParameters bt_wbs=off for " + device);
             mAudioManager.setParameters(HEADSET_WBS + "=off");
         }
     }
@@ -3257,6 +3223,10 @@ final class HeadsetStateMachine extends StateMachine {
                            call_setup, mPhoneState.getCallState(),
                            mPhoneState.getSignal(), mPhoneState.getRoam(),
                            mPhoneState.getBatteryCharge(), getByteAddress(device));
+        // later indicator updates are sent to the device when they differ from these
+        getDeviceContext(device).mSentIndicators = HeadsetIndicatorAggregator.getSent(
+                mPhoneState.getService(), mPhoneState.getRoam(), mPhoneState.getSignal(),
+                mPhoneState.getBatteryCharge());
     }
 
     private void processAtCops(BluetoothDevice device) {
@@ -3314,7 +3284,8 @@ final class HeadsetStateMachine extends StateMachine {
                     Log.d(TAG, "Starting CLCC response timeout for device: "
                                                                      + device);
                     Message m = obtainMessage(CLCC_RSP_TIMEOUT);
-                    m.obj = getMatchingDevice(device);
+                    m.obj = device;
+                    mClccRequestDevices.addLast(device);
                     sendMessageDelayed(m, CLCC_RSP_TIMEOUT_VALUE);
                 }
             } catch (RemoteException e) {
@@ -3360,82 +3331,55 @@ final class HeadsetStateMachine extends StateMachine {
         }
     }
 
-    /**
-     * Find a character ch, ignoring quoted sections.
-     * Return input.length() if not found.
-     */
-    static private int findChar(char ch, String input, int fromIndex) {
-        for (int i = fromIndex; i < input.length(); i++) {
-            char c = input.charAt(i);
-            if (c == '"') {
-                i = input.indexOf('"', i + 1);
-                if (i == -1) {
-                    return input.length();
-                }
-            } else if (c == ch) {
-                return i;
+    private void registerAtCommandHandlers() {
+        mAtDispatcher.register("+CSCS", new AtCommandDispatcher.Handler() {
+            public boolean handle(AtCommand command, BluetoothDevice device) {
+                processAtCscs(command.getParameters(), command.getType(), device);
+                return true;
             }
-        }
-        return input.length();
-    }
-
-    /**
-     * Break an argument string into individual arguments (comma delimited).
-     * Integer arguments are turned into Integer objects. Otherwise a String
-     * object is used.
-     */
-    static private Object[] generateArgs(String input) {
-        int i = 0;
-        int j;
-        ArrayList<Object> out = new ArrayList<Object>();
-        while (i <= input.length()) {
-            j = findChar(',', input, i);
-
-            String arg = input.substring(i, j);
-            try {
-                out.add(new Integer(arg));
-            } catch (NumberFormatException e) {
-                out.add(arg);
+        });
+        mAtDispatcher.register("+CPBS", new AtCommandDispatcher.Handler() {
+            public boolean handle(AtCommand command, BluetoothDevice device) {
+                processAtCpbs(command.getParameters(), command.getType(), device);
+                return true;
             }
-
-            i = j + 1; // move past comma
+        });
+        mAtDispatcher.register("+CPBR", new AtCommandDispatcher.Handler() {
+            public boolean handle(AtCommand command, BluetoothDevice device) {
+                processAtCpbr(command.getParameters(), command.getType(), device);
+                return true;
+            }
+        });
+        for (Map.Entry<String, Integer> entry :
+                VENDOR_SPECIFIC_AT_COMMAND_COMPANY_ID.entrySet()) {
+            final int companyId = entry.getValue();
+            mAtDispatcher.register(entry.getKey(), new AtCommandDispatcher.Handler() {
+                public boolean handle(AtCommand command, BluetoothDevice device) {
+                    return processVendorSpecificAt(command, companyId, device);
+                }
+            });
         }
-        return out.toArray();
     }
 
     /**
-     * @return {@code true} if the given string is a valid vendor-specific AT command.
+     * @return {@code true} if the given command is a valid vendor-specific AT command.
      */
-    private boolean processVendorSpecificAt(String atString) {
-        log("processVendorSpecificAt - atString = " + atString);
+    private boolean processVendorSpecificAt(AtCommand command, int companyId,
+                                            BluetoothDevice device) {
+        log("processVendorSpecificAt - atString = " + command);
 
         // Currently we accept only SET type commands.
-        int indexOfEqual = atString.indexOf("=");
-        if (indexOfEqual == -1) {
-            Log.e(TAG, "processVendorSpecificAt: command type error in " + atString);
+        if (command.getType() != AtCommand.TYPE_SET) {
+            Log.e(TAG, "processVendorSpecificAt: command type error in " + command);
             return false;
         }
 
-        String command = atString.substring(0, indexOfEqual);
-        Integer companyId = VENDOR_SPECIFIC_AT_COMMAND_COMPANY_ID.get(command);
-        if (companyId == null) {
-            Log.e(TAG, "processVendorSpecificAt: unsupported command: " + atString);
-            return false;
-        }
-
-        String arg = atString.substring(indexOfEqual + 1);
-        if (arg.startsWith("?")) {
-            Log.e(TAG, "processVendorSpecificAt: command type error in " + atString);
-            return false;
-        }
-
-        Object[] args = generateArgs(arg);
-        broadcastVendorSpecificEventIntent(command,
+        broadcastVendorSpecificEventIntent(command.getName(),
                                            companyId,
                                            BluetoothHeadset.AT_CMD_TYPE_SET,
-                                           args,
-                                           mCurrentDevice);
-        atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK, 0, getByteAddress(mCurrentDevice));
+                                           command.getArgs(),
+                                           device);
+        atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_OK, 0, getByteAddress(device));
         return true;
     }
 
@@ -3445,18 +3389,11 @@ final class HeadsetStateMachine extends StateMachine {
             return;
         }
 
-        // TODO (BT)
         log("processUnknownAt - atString = "+ atString);
-        String atCommand = parseUnknownAt(atString);
-        int commandType = getAtCommandType(atCommand);
-        if (atCommand.startsWith("+CSCS"))
-            processAtCscs(atCommand.substring(5), commandType, device);
-        else if (atCommand.startsWith("+CPBS"))
-            processAtCpbs(atCommand.substring(5), commandType, device);
-        else if (atCommand.startsWith("+CPBR"))
-            processAtCpbr(atCommand.substring(5), commandType, device);
-        else if (!processVendorSpecificAt(atCommand))
+        if (!mAtDispatcher.dispatch(atString, device)) {
+            Log.e(TAG, "processUnknownAt: unsupported or invalid command: " + atString);
             atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0, getByteAddress(device));
+        }
     }
 
     private void processKeyPressed(BluetoothDevice device) {
@@ -3478,7 +3415,7 @@ final class HeadsetStateMachine extends StateMachine {
         } else if (mPhoneState.getNumActiveCall() > 0) {
             if (!isAudioOn())
             {
-                connectAudioNative(getByteAddress(mCurrentDevice));
+                connectAudio(mCurrentDevice);
             }
             else
             {
@@ -3630,22 +3567,65 @@ final class HeadsetStateMachine extends StateMachine {
     }
 
     private void processDeviceStateChanged(HeadsetDeviceState deviceState) {
-        notifyDeviceStatusNative(deviceState.mService, deviceState.mRoam, deviceState.mSignal,
-                                 deviceState.mBatteryCharge);
+        mIndicators.setState(deviceState.mService, deviceState.mRoam, deviceState.mSignal,
+                             deviceState.mBatteryCharge);
+        processSendDeviceState();
+    }
+
+    // Send the indicators once to all devices when one of them has not been sent a
+    // change yet, or schedule the send when the changes are held back.
+    private void processSendDeviceState() {
+        long now = SystemClock.elapsedRealtime();
+        long delay = -1;
+        for (BluetoothDevice device : mConnectedDevicesList) {
+            long deviceDelay = mIndicators.getSendDelay(
+                    getDeviceContext(device).mSentIndicators, now);
+            if (deviceDelay >= 0 && (delay < 0 || deviceDelay < delay)) {
+                delay = deviceDelay;
+            }
+        }
+        removeMessages(SEND_DEVICE_STATE);
+        if (delay > 0) {
+            sendMessageDelayed(SEND_DEVICE_STATE, delay);
+            return;
+        } else if (delay < 0) {
+            return;
+        }
+        notifyDeviceStatusNative(mIndicators.get(HeadsetIndicatorAggregator.INDICATOR_SERVICE),
+                mIndicators.get(HeadsetIndicatorAggregator.INDICATOR_ROAM),
+                mIndicators.get(HeadsetIndicatorAggregator.INDICATOR_SIGNAL),
+                mIndicators.get(HeadsetIndicatorAggregator.INDICATOR_BATTERY));
+        mIndicators.onNotified();
+        for (BluetoothDevice device : mConnectedDevicesList) {
+            mIndicators.onSent(getDeviceContext(device).mSentIndicators, now);
+        }
     }
 
     private void processSendClccResponse(HeadsetClccResponse clcc) {
-        BluetoothDevice device = getDeviceForMessage(CLCC_RSP_TIMEOUT);
+        BluetoothDevice device = mClccRequestDevices.peekFirst();
         if (device == null) {
             return;
         }
         if (clcc.mIndex == 0) {
-            removeMessages(CLCC_RSP_TIMEOUT);
+            mClccRequestDevices.removeFirst();
+            getHandler().removeMessages(CLCC_RSP_TIMEOUT, device);
+            // the timeouts of the device are removed together, keep one for a
+            // request it still has queued
+            if (mClccRequestDevices.contains(device)) {
+                Message m = obtainMessage(CLCC_RSP_TIMEOUT);
+                m.obj = device;
+                sendMessageDelayed(m, CLCC_RSP_TIMEOUT_VALUE);
+            }
         }
         clccResponseNative(clcc.mIndex, clcc.mDirection, clcc.mStatus, clcc.mMode, clcc.mMpty,
                            clcc.mNumber, clcc.mType, getByteAddress(device));
     }
 
+    private void processClccRspTimeout(BluetoothDevice device) {
+        mClccRequestDevices.remove(device);
+        clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
+    }
+
     private void processSendVendorSpecificResultCode(HeadsetVendorSpecificResultCode resultCode) {
         String stringToSend = resultCode.mCommand + ": ";
         if (resultCode.mArg != null) {
@@ -3669,11 +3649,38 @@ final class HeadsetStateMachine extends StateMachine {
     }
 
     private byte[] getByteAddress(BluetoothDevice device) {
-        return Utils.getBytesFromAddress(device.getAddress());
+        return getDeviceContext(device).mAddress;
     }
 
     private BluetoothDevice getDevice(byte[] address) {
-        return mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
+        return getDeviceContext(address).mDevice;
+    }
+
+    private HeadsetDeviceContext getDeviceContext(BluetoothDevice device) {
+        long key = HeadsetDeviceContext.getKey(device.getAddress());
+        synchronized (mDeviceContexts) {
+            HeadsetDeviceContext deviceContext = mDeviceContexts.get(key);
+            if (deviceContext == null) {
+                deviceContext = new HeadsetDeviceContext(device,
+                        Utils.getBytesFromAddress(device.getAddress()));
+                mDeviceContexts.put(key, deviceContext);
+            }
+            return deviceContext;
+        }
+    }
+
+    private HeadsetDeviceContext getDeviceContext(byte[] address) {
+        long key = HeadsetDeviceContext.getKey(address);
+        synchronized (mDeviceContexts) {
+            HeadsetDeviceContext deviceContext = mDeviceContexts.get(key);
+            if (deviceContext == null) {
+                deviceContext = new HeadsetDeviceContext(
+                        mAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address)),
+                        address.clone());
+                mDeviceContexts.put(key, deviceContext);
+            }
+            return deviceContext;
+        }
     }
 
     private boolean isInCall() {
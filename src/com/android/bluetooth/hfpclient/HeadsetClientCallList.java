@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.hfpclient;
+
+import android.bluetooth.BluetoothHeadsetClientCall;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Calls known to the HF, keyed by the call index used by the AG. The list is only
+ * modified from the state machine thread, so it is kept in a plain map; a copy of the
+ * calls is published on each change for readers on binder threads.
+ * Calls are added and changed as the +CIEV, +CLIP and +CCWA events arrive. A +CLCC
+ * list is merged in a single pass when the calls have to be reconciled with the AG,
+ * reporting only the calls that were added, changed or removed.
+ */
+final class HeadsetClientCallList {
+    private final HashMap<Integer, BluetoothHeadsetClientCall> mCalls =
+            new HashMap<Integer, BluetoothHeadsetClientCall>();
+    private HashMap<Integer, BluetoothHeadsetClientCall> mUpdate;
+    private volatile List<BluetoothHeadsetClientCall> mSnapshot = Collections.emptyList();
+    /* false when a call was added while others were present, as its index is then
+     * only a guess until the AG reported the list */
+    private boolean mIdsConfirmed = true;
+
+    BluetoothHeadsetClientCall get(int id) {
+        return mCalls.get(id);
+    }
+
+    int size() {
+        return mCalls.size();
+    }
+
+    Collection<BluetoothHeadsetClientCall> values() {
+        return mCalls.values();
+    }
+
+    /** Add a call with the lowest free index, starting with 1 */
+    BluetoothHeadsetClientCall add(int state, String number, boolean outgoing) {
+        int id = 1;
+        while (mCalls.containsKey(id)) {
+            id++;
+        }
+
+        BluetoothHeadsetClientCall c = new BluetoothHeadsetClientCall(id, state, number, false,
+                outgoing);
+        mCalls.put(id, c);
+        if (mCalls.size() > 1) {
+            mIdsConfirmed = false;
+        }
+        publish();
+        return c;
+    }
+
+    BluetoothHeadsetClientCall remove(int id) {
+        BluetoothHeadsetClientCall c = mCalls.remove(id);
+        if (c != null) {
+            publish();
+        }
+        return c;
+    }
+
+    void clear() {
+        mCalls.clear();
+        mUpdate = null;
+        mIdsConfirmed = true;
+        publish();
+    }
+
+    BluetoothHeadsetClientCall getFirst(int... states) {
+        for (BluetoothHeadsetClientCall c : mCalls.values()) {
+            for (int s : states) {
+                if (c.getState() == s) {
+                    return c;
+                }
+            }
+        }
+        return null;
+    }
+
+    int countInState(int state) {
+        int i = 0;
+        for (BluetoothHeadsetClientCall c : mCalls.values()) {
+            if (c.getState() == state) {
+                i++;
+            }
+        }
+        return i;
+    }
+
+    /** Copy of the calls as of the last change, safe to call from any thread */
+    List<BluetoothHeadsetClientCall> getSnapshot() {
+        return new ArrayList<BluetoothHeadsetClientCall>(mSnapshot);
+    }
+
+    boolean isUpdating() {
+        return mUpdate != null;
+    }
+
+    /** Start collecting a +CLCC list */
+    void startUpdate() {
+        mUpdate = new HashMap<Integer, BluetoothHeadsetClientCall>();
+    }
+
+    void cancelUpdate() {
+        mUpdate = null;
+    }
+
+    void addUpdate(int id, int state, String number, boolean multiParty, boolean outgoing) {
+        // should not happen
+        if (mUpdate == null) {
+            return;
+        }
+        mUpdate.put(id, new BluetoothHeadsetClientCall(id, state, number, multiParty,
+                outgoing));
+    }
+
+    /**
+     * Merge the collected +CLCC list into the calls. Calls still present keep their
+     * object and are updated in place, so references held by pending actions stay
+     * valid. A call held by response and hold is not listed by all AGs and is kept.
+     *
+     * @param changed receives the calls that were added or changed
+     * @param removed receives the calls missing from the list, already dropped
+     *        but with their state untouched
+     */
+    void finishUpdate(List<BluetoothHeadsetClientCall> changed,
+            List<BluetoothHeadsetClientCall> removed) {
+        if (mUpdate == null) {
+            return;
+        }
+
+        Iterator<BluetoothHeadsetClientCall> it = mCalls.values().iterator();
+        while (it.hasNext()) {
+            BluetoothHeadsetClientCall c = it.next();
+            BluetoothHeadsetClientCall u = mUpdate.remove(c.getId());
+
+            if (u == null) {
+                if (c.getState() !=
+                        BluetoothHeadsetClientCall.CALL_STATE_HELD_BY_RESPONSE_AND_HOLD) {
+                    it.remove();
+                    removed.add(c);
+                }
+                continue;
+            }
+
+            // avoid losing number if was not present in clcc
+            String number = u.getNumber();
+            if (number == null || number.isEmpty()) {
+                number = c.getNumber();
+            }
+
+            if (c.isOutgoing() != u.isOutgoing()) {
+                u.setNumber(number);
+                mUpdate.put(c.getId(), u);
+                it.remove();
+                continue;
+            }
+
+            boolean same = c.getState() == u.getState()
+                    && c.isMultiParty() == u.isMultiParty()
+                    && (number == null ? c.getNumber() == null : number.equals(c.getNumber()));
+            if (!same) {
+                c.setState(u.getState());
+                c.setMultiParty(u.isMultiParty());
+                c.setNumber(number);
+                changed.add(c);
+            }
+        }
+
+        // whatever is left was not known before
+        for (BluetoothHeadsetClientCall u : mUpdate.values()) {
+            mCalls.put(u.getId(), u);
+            changed.add(u);
+        }
+
+        mUpdate = null;
+        mIdsConfirmed = true;
+        publish();
+    }
+
+    /**
+     * Whether the calls do not match the call indicators reported by the AG, or their
+     * indices were assigned without the AG confirming them. Returns false until all
+     * the indicators are known.
+     */
+    boolean needsReconcile(int call, int callSetup, int callHeld) {
+        if (call == -1 || callSetup == -1 || callHeld == -1) {
+            return false;
+        }
+
+        if (!mIdsConfirmed) {
+            return true;
+        }
+
+        int active = 0;
+        int held = 0;
+        int setup = 0;
+        for (BluetoothHeadsetClientCall c : mCalls.values()) {
+            switch (c.getState()) {
+                case BluetoothHeadsetClientCall.CALL_STATE_ACTIVE:
+                case BluetoothHeadsetClientCall.CALL_STATE_HELD_BY_RESPONSE_AND_HOLD:
+                    active++;
+                    break;
+                case BluetoothHeadsetClientCall.CALL_STATE_HELD:
+                    held++;
+                    break;
+                case BluetoothHeadsetClientCall.CALL_STATE_DIALING:
+                case BluetoothHeadsetClientCall.CALL_STATE_ALERTING:
+                case BluetoothHeadsetClientCall.CALL_STATE_INCOMING:
+                case BluetoothHeadsetClientCall.CALL_STATE_WAITING:
+                    setup++;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if ((call == HeadsetClientHalConstants.CALL_CALLS_IN_PROGRESS) !=
+                (active + held > 0)) {
+            return true;
+        }
+
+        if ((callSetup != HeadsetClientHalConstants.CALLSETUP_NONE) != (setup > 0)) {
+            return true;
+        }
+
+        switch (callHeld) {
+            case HeadsetClientHalConstants.CALLHELD_NONE:
+                return held > 0;
+            case HeadsetClientHalConstants.CALLHELD_HOLD_AND_ACTIVE:
+                return held == 0 || active == 0;
+            case HeadsetClientHalConstants.CALLHELD_HOLD:
+                return held == 0 || active > 0;
+            default:
+                return false;
+        }
+    }
+
+    private void publish() {
+        mSnapshot = new ArrayList<BluetoothHeadsetClientCall>(mCalls.values());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("calls=").append(mCalls.values());
+        if (mUpdate != null) {
+            sb.append(" update=").append(mUpdate.values());
+        }
+        sb.append(" idsConfirmed=").append(mIdsConfirmed);
+        return sb.toString();
+    }
+}
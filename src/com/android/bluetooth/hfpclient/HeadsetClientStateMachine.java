@@ -61,8 +61,6 @@ import com.android.bluetooth.btservice.ProfileService;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -103,6 +101,12 @@ final class HeadsetClientStateMachine extends StateMachine {
     static final int TERMINATE_SPECIFIC_CALL = 53;
 
     private static final int STACK_EVENT = 100;
+    private static final int RECONCILE_CALLS = 101;
+
+    // quiet time after a call event before the calls are checked against the indicators
+    private static final int RECONCILE_DELAY_MS = 500;
+    private static final int QUERY_CALLS_RETRY_MS = 1523;
+    private static final int MAX_RECONCILE_ATTEMPTS = 3;
 
     private final Disconnected mDisconnected;
     private final Connecting mConnecting;
@@ -111,9 +115,12 @@ final class HeadsetClientStateMachine extends StateMachine {
 
     private final HeadsetClientService mService;
 
-    private Hashtable<Integer, BluetoothHeadsetClientCall> mCalls;
-    private Hashtable<Integer, BluetoothHeadsetClientCall> mCallsUpdate;
+    // only accessed from the state machine thread, see getCurrentCalls()
+    private final HeadsetClientCallList mCalls;
     private boolean mQueryCallsSupported;
+    // +CLCC queries since the last call event
+    private int mReconcileAttempts;
+    private boolean mCallEventDuringQuery;
 
     private int mIndicatorNetworkState;
     private int mIndicatorNetworkType;
@@ -178,13 +185,10 @@ final class HeadsetClientStateMachine extends StateMachine {
         ProfileService.println(sb, "mVoiceRecognitionActive: " + mVoiceRecognitionActive);
         ProfileService.println(sb, "mInBandRingtone: " + mInBandRingtone);
         ProfileService.println(sb, "mCalls:");
-        for (BluetoothHeadsetClientCall call : mCalls.values()) {
-            ProfileService.println(sb, "  " + call);
-        }
-        ProfileService.println(sb, "mCallsUpdate:");
-        for (BluetoothHeadsetClientCall call : mCallsUpdate.values()) {
+        for (BluetoothHeadsetClientCall call : mCalls.getSnapshot()) {
             ProfileService.println(sb, "  " + call);
         }
+        ProfileService.println(sb, "mReconcileAttempts: " + mReconcileAttempts);
     }
 
     private void clearPendingAction() {
@@ -210,14 +214,7 @@ final class HeadsetClientStateMachine extends StateMachine {
                state == BluetoothHeadsetClientCall.CALL_STATE_ALERTING;
 
         // new call always takes lowest possible id, starting with 1
-        Integer id = 1;
-        while (mCalls.containsKey(id)) {
-            id++;
-        }
-
-        BluetoothHeadsetClientCall c = new BluetoothHeadsetClientCall(id, state, number, false,
-                outgoing);
-        mCalls.put(id, c);
+        BluetoothHeadsetClientCall c = mCalls.add(state, number, outgoing);
 
         sendCallChangedIntent(c);
     }
@@ -225,20 +222,20 @@ final class HeadsetClientStateMachine extends StateMachine {
     private void removeCalls(int... states) {
         Log.d(TAG, "removeFromCalls states:" + Arrays.toString(states));
 
-        Iterator<Hashtable.Entry<Integer, BluetoothHeadsetClientCall>> it;
-
-        it = mCalls.entrySet().iterator();
-        while (it.hasNext()) {
-            BluetoothHeadsetClientCall c = it.next().getValue();
-
+        List<BluetoothHeadsetClientCall> removed = new ArrayList<BluetoothHeadsetClientCall>();
+        for (BluetoothHeadsetClientCall c : mCalls.values()) {
             for (int s : states) {
                 if (c.getState() == s) {
-                    it.remove();
-                    setCallState(c, BluetoothHeadsetClientCall.CALL_STATE_TERMINATED);
+                    removed.add(c);
                     break;
                 }
             }
         }
+
+        for (BluetoothHeadsetClientCall c : removed) {
+            mCalls.remove(c.getId());
+            setCallState(c, BluetoothHeadsetClientCall.CALL_STATE_TERMINATED);
+        }
     }
 
     private void changeCallsState(int old_state, int new_state) {
@@ -253,26 +250,11 @@ final class HeadsetClientStateMachine extends StateMachine {
 
     private BluetoothHeadsetClientCall getCall(int... states) {
         Log.d(TAG, "getFromCallsWithStates states:" + Arrays.toString(states));
-        for (BluetoothHeadsetClientCall c : mCalls.values()) {
-            for (int s : states) {
-                if (c.getState() == s) {
-                    return c;
-                }
-            }
-        }
-
-        return null;
+        return mCalls.getFirst(states);
     }
 
     private int callsInState(int state) {
-        int i = 0;
-        for (BluetoothHeadsetClientCall c : mCalls.values()) {
-            if (c.getState() == state) {
-                i++;
-            }
-        }
-
-        return i;
+        return mCalls.countInState(state);
     }
 
     private void updateCallsMultiParty() {
@@ -392,11 +374,6 @@ final class HeadsetClientStateMachine extends StateMachine {
             return;
         }
 
-        if (mQueryCallsSupported) {
-            sendMessage(QUERY_CURRENT_CALLS);
-            return;
-        }
-
         BluetoothHeadsetClientCall c = null;
 
         switch (call) {
@@ -440,6 +417,7 @@ final class HeadsetClientStateMachine extends StateMachine {
         }
 
         mIndicatorCall = call;
+        scheduleCallsReconcile();
     }
 
     private void updateCallSetupIndicator(int callsetup) {
@@ -454,11 +432,6 @@ final class HeadsetClientStateMachine extends StateMachine {
             return;
         }
 
-        if (mQueryCallsSupported) {
-            sendMessage(QUERY_CURRENT_CALLS);
-            return;
-        }
-
         switch (callsetup) {
             case HeadsetClientHalConstants.CALLSETUP_NONE:
                 switch (mPendingAction.first) {
@@ -572,6 +545,7 @@ final class HeadsetClientStateMachine extends StateMachine {
         updateCallsMultiParty();
 
         mIndicatorCallSetup = callsetup;
+        scheduleCallsReconcile();
     }
 
     private void updateCallHeldIndicator(int callheld) {
@@ -581,11 +555,6 @@ final class HeadsetClientStateMachine extends StateMachine {
             return;
         }
 
-        if (mQueryCallsSupported) {
-            sendMessage(QUERY_CURRENT_CALLS);
-            return;
-        }
-
         switch (callheld) {
             case HeadsetClientHalConstants.CALLHELD_NONE:
                 switch (mPendingAction.first) {
@@ -725,15 +694,12 @@ final class HeadsetClientStateMachine extends StateMachine {
         updateCallsMultiParty();
 
         mIndicatorCallHeld = callheld;
+        scheduleCallsReconcile();
     }
 
     private void updateRespAndHold(int resp_and_hold) {
         Log.d(TAG, "updatRespAndHold " + resp_and_hold);
 
-        if (mQueryCallsSupported) {
-            sendMessage(QUERY_CURRENT_CALLS);
-        }
-
         BluetoothHeadsetClientCall c = null;
 
         switch (resp_and_hold) {
@@ -765,6 +731,8 @@ final class HeadsetClientStateMachine extends StateMachine {
             default:
                 break;
         }
+
+        scheduleCallsReconcile();
     }
 
     private void updateClip(String number) {
@@ -786,6 +754,8 @@ final class HeadsetClientStateMachine extends StateMachine {
             c.setNumber(number);
             sendCallChangedIntent(c);
         }
+
+        scheduleCallsReconcile();
     }
 
     private void addCallWaiting(String number) {
@@ -794,6 +764,8 @@ final class HeadsetClientStateMachine extends StateMachine {
         if (getCall(BluetoothHeadsetClientCall.CALL_STATE_WAITING) == null) {
             addCall(BluetoothHeadsetClientCall.CALL_STATE_WAITING, number);
         }
+
+        scheduleCallsReconcile();
     }
 
     // use ECS
@@ -805,75 +777,54 @@ final class HeadsetClientStateMachine extends StateMachine {
             return false;
         }
 
-        clearPendingAction();
-
         // already started
-        if (mCallsUpdate != null) {
+        if (mCalls.isUpdating()) {
             return true;
         }
 
         if (queryCurrentCallsNative()) {
-            mCallsUpdate = new Hashtable<Integer, BluetoothHeadsetClientCall>();
+            mCalls.startUpdate();
+            mCallEventDuringQuery = false;
             addQueuedAction(QUERY_CURRENT_CALLS, 0);
             return true;
         }
 
         Log.i(TAG, "updateCallsStart queryCurrentCallsNative failed");
         mQueryCallsSupported = false;
-        mCallsUpdate = null;
+        mCalls.cancelUpdate();
         return false;
     }
 
-    private void queryCallsDone() {
-        Log.d(TAG, "queryCallsDone");
-        Iterator<Hashtable.Entry<Integer, BluetoothHeadsetClientCall>> it;
+    private void queryCallsDone(boolean success) {
+        Log.d(TAG, "queryCallsDone success:" + success + " event:" + mCallEventDuringQuery);
 
-        // check if any call was removed
-        it = mCalls.entrySet().iterator();
-        while (it.hasNext()) {
-            Hashtable.Entry<Integer, BluetoothHeadsetClientCall> entry = it.next();
+        if (!success || mCallEventDuringQuery) {
+            // incomplete or already outdated by the events, keep the calls as they are
+            mCalls.cancelUpdate();
+            sendReconcileCalls(RECONCILE_DELAY_MS);
+            return;
+        }
 
-            if (mCallsUpdate.containsKey(entry.getKey()) ||
-                    entry.getValue().getState() ==
-                    BluetoothHeadsetClientCall.CALL_STATE_HELD_BY_RESPONSE_AND_HOLD) {
-                continue;
-            }
+        List<BluetoothHeadsetClientCall> changed = new ArrayList<BluetoothHeadsetClientCall>();
+        List<BluetoothHeadsetClientCall> removed = new ArrayList<BluetoothHeadsetClientCall>();
+        mCalls.finishUpdate(changed, removed);
 
-            Log.d(TAG, "updateCallsDone call removed id:" + entry.getValue().getId());
-            BluetoothHeadsetClientCall c = entry.getValue();
+        // the list reported by AG supersedes an action still waiting for indicators
+        clearPendingAction();
 
+        for (BluetoothHeadsetClientCall c : removed) {
+            Log.d(TAG, "updateCallsDone call removed id:" + c.getId());
             setCallState(c, BluetoothHeadsetClientCall.CALL_STATE_TERMINATED);
         }
 
-        /* check if any calls changed or new call is present */
-        it = mCallsUpdate.entrySet().iterator();
-        while (it.hasNext()) {
-            Hashtable.Entry<Integer, BluetoothHeadsetClientCall> entry = it.next();
-
-            if (mCalls.containsKey(entry.getKey())) {
-                // avoid losing number if was not present in clcc
-                if (entry.getValue().getNumber().equals("")) {
-                    entry.getValue().setNumber(mCalls.get(entry.getKey()).getNumber());
-                }
-
-                if (mCalls.get(entry.getKey()).equals(entry.getValue())) {
-                    continue;
-                }
-
-                Log.d(TAG, "updateCallsDone call changed id:" + entry.getValue().getId());
-                sendCallChangedIntent(entry.getValue());
-            } else {
-                Log.d(TAG, "updateCallsDone new call id:" + entry.getValue().getId());
-                sendCallChangedIntent(entry.getValue());
-            }
+        for (BluetoothHeadsetClientCall c : changed) {
+            Log.d(TAG, "updateCallsDone call changed id:" + c.getId());
+            sendCallChangedIntent(c);
         }
 
-        mCalls = mCallsUpdate;
-        mCallsUpdate = null;
-
-        if (loopQueryCalls()) {
-            Log.d(TAG, "queryCallsDone ambigious calls, starting call query loop");
-            sendMessageDelayed(QUERY_CURRENT_CALLS, 1523);
+        if (mCalls.needsReconcile(mIndicatorCall, mIndicatorCallSetup, mIndicatorCallHeld)) {
+            Log.d(TAG, "queryCallsDone ambigious calls, querying again");
+            sendReconcileCalls(QUERY_CALLS_RETRY_MS * (mReconcileAttempts + 1));
         }
     }
 
@@ -881,34 +832,48 @@ final class HeadsetClientStateMachine extends StateMachine {
             boolean outgoing) {
         Log.d(TAG, "queryCallsUpdate: " + id);
 
-        if (!mCalls.containsKey(id)) {
-            Log.d(TAG, "adding call " + id);
-            mCalls.put(id, new BluetoothHeadsetClientCall(id, state, number, multiParty,
-                    outgoing));
-        }
-        // should not happen
-        if (mCallsUpdate == null) {
+        mCalls.addUpdate(id, state, number, multiParty, outgoing);
+    }
+
+    // Calls are tracked from the indicator events, AG is only queried when they
+    // don't match the indicators any more. Any new event restarts the wait, so a
+    // burst of indicators is checked once it settled.
+    private void scheduleCallsReconcile() {
+        if (!mQueryCallsSupported) {
             return;
         }
 
-        mCallsUpdate.put(id, new BluetoothHeadsetClientCall(id, state, number, multiParty,
-                outgoing));
+        if (mCalls.isUpdating()) {
+            mCallEventDuringQuery = true;
+        }
+        mReconcileAttempts = 0;
+        sendReconcileCalls(RECONCILE_DELAY_MS);
     }
 
-    // helper function for determining if query calls should be looped
-    private boolean loopQueryCalls() {
-        if (callsInState(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE) > 1) {
-            return true;
+    private void sendReconcileCalls(long delay) {
+        removeMessages(RECONCILE_CALLS);
+        sendMessageDelayed(RECONCILE_CALLS, delay);
+    }
+
+    private void reconcileCalls() {
+        if (!mQueryCallsSupported || mCalls.isUpdating()) {
+            return;
         }
 
-        // Workaround for Windows Phone 7.8 not sending callsetup=0 after
-        // rejecting incoming call in 3WC use case (when no active calls present).
-        // Fixes both, AG and HF rejecting the call.
-        BluetoothHeadsetClientCall c = getCall(BluetoothHeadsetClientCall.CALL_STATE_INCOMING);
-        if (c != null && mIndicatorCallSetup == HeadsetClientHalConstants.CALLSETUP_NONE)
-            return true;
+        if (!mCalls.needsReconcile(mIndicatorCall, mIndicatorCallSetup, mIndicatorCallHeld)) {
+            return;
+        }
 
-        return false;
+        // Some AGs never settle, e.g. Windows Phone 7.8 not sending callsetup=0
+        // after rejecting incoming call in 3WC use case. Don't poll them forever.
+        if (mReconcileAttempts >= MAX_RECONCILE_ATTEMPTS) {
+            Log.w(TAG, "reconcileCalls: calls still ambiguous after " + mReconcileAttempts
+                    + " queries: " + mCalls);
+            return;
+        }
+
+        mReconcileAttempts++;
+        queryCallsStart();
     }
 
     private void acceptCall(int flag, boolean retry) {
@@ -1254,8 +1219,7 @@ final class HeadsetClientStateMachine extends StateMachine {
         mQueuedActions = new LinkedList<Pair<Integer, Object>>();
         clearPendingAction();
 
-        mCalls = new Hashtable<Integer, BluetoothHeadsetClientCall>();
-        mCallsUpdate = null;
+        mCalls = new HeadsetClientCallList();
         mQueryCallsSupported = true;
 
         initializeNative();
@@ -1319,14 +1283,16 @@ final class HeadsetClientStateMachine extends StateMachine {
             mVoiceRecognitionActive = HeadsetClientHalConstants.VR_STATE_STOPPED;
             mInBandRingtone = HeadsetClientHalConstants.IN_BAND_RING_NOT_PROVIDED;
 
-            mCalls = new Hashtable<Integer, BluetoothHeadsetClientCall>();
-            mCallsUpdate = null;
+            mCalls.clear();
             mQueryCallsSupported = true;
+            mReconcileAttempts = 0;
+            mCallEventDuringQuery = false;
 
             mPeerFeatures = 0;
             mChldFeatures = 0;
 
             removeMessages(QUERY_CURRENT_CALLS);
+            removeMessages(RECONCILE_CALLS);
         }
 
         @Override
@@ -1710,6 +1676,9 @@ final class HeadsetClientStateMachine extends StateMachine {
                 case QUERY_CURRENT_CALLS:
                     queryCallsStart();
                     break;
+                case RECONCILE_CALLS:
+                    reconcileCalls();
+                    break;
                 case STACK_EVENT:
                     Intent intent = null;
                     StackEvent event = (StackEvent) message.obj;
@@ -1893,7 +1862,8 @@ final class HeadsetClientStateMachine extends StateMachine {
                                     mService.sendBroadcast(intent, ProfileService.BLUETOOTH_PERM);
                                     break;
                                 case QUERY_CURRENT_CALLS:
-                                    queryCallsDone();
+                                    queryCallsDone(event.valueInt ==
+                                            BluetoothHeadsetClient.ACTION_RESULT_OK);
                                     break;
                                 case ACCEPT_CALL:
                                     if (event.valueInt == BluetoothHeadsetClient.ACTION_RESULT_OK) {
@@ -2742,7 +2712,8 @@ final class HeadsetClientStateMachine extends StateMachine {
             int val2, String arg);
 
     public List<BluetoothHeadsetClientCall> getCurrentCalls() {
-        return new ArrayList<BluetoothHeadsetClientCall>(mCalls.values());
+        // called from binder threads, the calls themselves belong to the state machine
+        return mCalls.getSnapshot();
     }
 
     public Bundle getCurrentAgEvents() {
@@ -201,6 +201,12 @@ public class BluetoothMapContent {
         String phoneAlphaTag = null;
     }
 
+    /* Projection used when only the number of matching messages is needed */
+    private static final String[] COUNT_PROJECTION = new String[] { BaseColumns._ID };
+
+    /* Provides the message counts per folder, if message changes are being tracked */
+    private BluetoothMapContentObserver mObserver = null;
+
     public BluetoothMapContent(final Context context) {
         mContext = context;
         mResolver = mContext.getContentResolver();
@@ -2053,8 +2059,10 @@ public class BluetoothMapContent {
      * Read out the mms parts and update the bMessage object provided i {@linkplain message}
      * @param id the content provider ID of the message
      * @param message the bMessage object to add the information to
+     * @param streamParts if true, the body file is kept open for streaming instead of being read
      */
-    private void extractEmailParts(long id, BluetoothMapbMessageMmsEmail message)
+    private void extractEmailParts(long id, BluetoothMapbMessageMmsEmail message,
+            boolean streamParts)
     {
         if (V) Log.v(TAG, "extractEmailParts with id " + id);
         String emailBody = "";
@@ -2120,6 +2128,9 @@ public class BluetoothMapContent {
                         } else {
                            Log.w(TAG, " FETCH Email BODY File HTML URI FAILED");
                         }
+                    } else if(streamParts && fd.getStatSize() >= 0) {
+                        // Leave the body in the file, it is streamed by encodeStream()
+                        emailBody = null;
                     } else {
                         emailBody = readEmailBodyForMessageFd(fd);
                     }
@@ -2140,7 +2151,11 @@ public class BluetoothMapContent {
                     part.partName = name;
 
                     try {
-                        if(emailBody != null) {
+                        if(emailBody == null && fd != null) {
+                            part.dataFd = fd;
+                            part.charsetName = "utf-8";
+                            fd = null; // Closed by releaseParts()
+                        } else if(emailBody != null) {
                             part.data = emailBody.getBytes("UTF-8");
                             part.charsetName = "utf-8";
                         }
@@ -2177,7 +2192,20 @@ public class BluetoothMapContent {
      * which is guaranteed to be supported on an android device
      */
     public byte[] getEmailMessage(long id, BluetoothMapAppParams appParams) throws UnsupportedEncodingException {
-        if (V) Log.v(TAG, "getEmailMessage with is " + id);
+        return loadEmailMessage(id, appParams, false).encodeEmail();
+    }
+
+    /**
+     * Load the e-mail message with the given id.
+     * @param id the content provider id for the message to fetch.
+     * @param appParams The application parameter object received from the client.
+     * @param streamParts if true the body is left in the provider file to be streamed
+     * using encodeStream(), instead of being read into memory.
+     * @return the bMessage object
+     */
+    private BluetoothMapbMessageMmsEmail loadEmailMessage(long id, BluetoothMapAppParams appParams,
+            boolean streamParts) {
+        if (V) Log.v(TAG, "loadEmailMessage with is " + id);
         int msgBox, threadId;
         String urlEmail = "content://com.android.email.provider/message";
         Uri uriEmail = Uri.parse(urlEmail);
@@ -2202,14 +2230,14 @@ public class BluetoothMapContent {
             message.setIncludeAttachments(appParams.getAttachment() == 0 ? false : true);
 
             // The parts
-            extractEmailParts(id, message);
+            extractEmailParts(id, message, streamParts);
 
             // The addresses
             extractEmailAddresses(id, message);
 
             c.close();
 
-            return message.encodeEmail();
+            return message;
         }
         else if(c != null) {
             c.close();
@@ -2408,11 +2436,24 @@ public class BluetoothMapContent {
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
 
+        if (isUnfiltered(ap, true)) {
+            BluetoothMapFolderCounts countsSms = mObserver.getFolderCountsSms();
+            BluetoothMapFolderCounts countsMms = mObserver.getFolderCountsMms();
+            if (countsSms != null && countsMms != null && countsSms.getTotal(folder) >= 0) {
+                if (smsSelected(fi, ap))
+                    cnt += countsSms.getTotal(folder);
+                if (mmsSelected(fi, ap))
+                    cnt += countsMms.getTotal(folder);
+                if (D) Log.d(TAG, "msgListingSize: size = " + cnt + " (from folder counts)");
+                return cnt;
+            }
+        }
+
         if (smsSelected(fi, ap)) {
             fi.msgType = FilterInfo.TYPE_SMS;
             String where = setWhereFilter(folder, fi, ap);
             Cursor c = mResolver.query(Sms.CONTENT_URI,
-                SMS_PROJECTION, where, null, "date DESC");
+                COUNT_PROJECTION, where, null, null);
 
             if (c != null) {
                cnt = c.getCount();
@@ -2425,7 +2466,7 @@ public class BluetoothMapContent {
             String where = setWhereFilter(folder, fi, ap);
             where += " AND " + INTERESTED_MESSAGE_TYPE_CLAUSE;
             Cursor c = mResolver.query(Mms.CONTENT_URI,
-                MMS_PROJECTION, where, null, "date DESC");
+                COUNT_PROJECTION, where, null, null);
 
             if (c != null) {
                 cnt += c.getCount();
@@ -2436,6 +2477,39 @@ public class BluetoothMapContent {
         if (D) Log.d(TAG, "msgListingSize: size = " + cnt);
         return cnt;
     }
+    /**
+     * Set the observer tracking the SMS and MMS messages. While it is registered, its
+     * message counts per folder are used to answer unfiltered size and unread requests.
+     * @param observer the observer or null
+     */
+    public void setContentObserver(BluetoothMapContentObserver observer) {
+        mObserver = observer;
+    }
+
+    /**
+     * Check if a size or unread request can be answered from the folder counts.
+     * @param ap application parameter object
+     * @param includeReadStatus true if the read status and priority filters apply to the request
+     * @return true if no filters apply, except for the message type filter.
+     */
+    private boolean isUnfiltered(BluetoothMapAppParams ap, boolean includeReadStatus) {
+        if (mObserver == null)
+            return false;
+        if (ap.getFilterPeriodBegin() != -1 || ap.getFilterPeriodEnd() != -1)
+            return false;
+        if (ap.getFilterOriginator() != null || ap.getFilterRecipient() != null)
+            return false;
+        if (includeReadStatus) {
+            int readStatus = ap.getFilterReadStatus();
+            if (readStatus != -1 && (readStatus & 0x03) != 0)
+                return false;
+            int priority = ap.getFilterPriority();
+            if (priority == 0x0001 || priority == 0x0002)
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Return true if there are unread messages in the requested list of messages
      * @param folder folder where the message listing should come from
@@ -2450,16 +2524,31 @@ public class BluetoothMapContent {
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
 
+        if (isUnfiltered(ap, false)) {
+            BluetoothMapFolderCounts countsSms = mObserver.getFolderCountsSms();
+            BluetoothMapFolderCounts countsMms = mObserver.getFolderCountsMms();
+            if (countsSms != null && countsMms != null && countsSms.getUnread(folder) >= 0) {
+                if (smsSelected(fi, ap))
+                    cnt += countsSms.getUnread(folder);
+                if (mmsSelected(fi, ap))
+                    cnt += countsMms.getUnread(folder);
+                if (D) Log.d(TAG, "msgListingHasUnread: numUnread = " + cnt + " (from folder counts)");
+                return (cnt>0)?true:false;
+            }
+        }
+
         if (smsSelected(fi, ap)) {
             fi.msgType = FilterInfo.TYPE_SMS;
             String where = setWhereFilterFolderType(folder, fi);
             where += " AND read=0 ";
             where += setWhereFilterPeriod(ap, fi);
             Cursor c = mResolver.query(Sms.CONTENT_URI,
-                    SMS_PROJECTION, where, null, "date DESC");
+                    COUNT_PROJECTION, where, null, null);
 
-            if (c != null) cnt += c.getCount();
-            c.close();
+            if (c != null) {
+                cnt += c.getCount();
+                c.close();
+            }
         }
 
         if (mmsSelected(fi, ap)) {
@@ -2468,7 +2557,7 @@ public class BluetoothMapContent {
             where += " AND read=0 ";
             where += setWhereFilterPeriod(ap, fi);
             Cursor c = mResolver.query(Mms.CONTENT_URI,
-                MMS_PROJECTION, where, null, "date DESC");
+                COUNT_PROJECTION, where, null, null);
 
             if (c != null) {
                cnt += c.getCount();
@@ -2538,6 +2627,37 @@ public class BluetoothMapContent {
         throw new IllegalArgumentException("Invalid message handle.");
     }
 
+    /**
+     * Get a MMS or e-mail message prepared for streaming, where attachments and bodies
+     * are read from the content provider while encoding. Use
+     * BluetoothMapbMessageMmsEmail.encodeStream() to encode the message and
+     * releaseParts() when done.
+     * @return the message object, or null if the handle refers to an SMS, in which case
+     * getMessage() shall be used.
+     */
+    public BluetoothMapbMessageMmsEmail getStreamableMessage(String handle,
+            BluetoothMapAppParams appParams) {
+        TYPE type = BluetoothMapUtils.getMsgTypeFromHandle(handle);
+        long id = BluetoothMapUtils.getCpHandle(handle);
+        if(appParams == null){
+                throw new IllegalArgumentException("Invalid No appParams Charset");
+        }
+        switch(type) {
+        case MMS:
+            if(appParams.getCharset()== MAP_MESSAGE_CHARSET_NATIVE) {
+                throw new IllegalArgumentException("Invalid Charset: Native for Message Type MMS");
+            }
+            return loadMmsMessage(id, appParams, true);
+        case EMAIL:
+            if(appParams.getCharset()== MAP_MESSAGE_CHARSET_NATIVE) {
+                throw new IllegalArgumentException("Invalid Charset: Native for Message Type Email");
+            }
+            return loadEmailMessage(id, appParams, true);
+        default:
+            return null;
+        }
+    }
+
     private void setVCardFromEmailAddress(BluetoothMapbMessage message, String emailAddr, boolean incoming) {
         if(D) Log.d(TAG, "setVCardFromEmailAddress, emailAdress is " +emailAddr);
         String contactId = null, contactName = null;
@@ -2762,12 +2882,38 @@ public class BluetoothMapContent {
         return retVal;
     }
 
+    /**
+     * Open a mms data part for streaming.
+     * @param partid the content provider id of the mms part.
+     * @return the file descriptor, or null if the part cannot be opened as a file
+     * of known size.
+     */
+    private ParcelFileDescriptor openMmsDataPartFd(long partid) {
+        Uri uriAddress = Uri.parse(String.format("content://mms/part/%d", partid));
+        ParcelFileDescriptor fd = null;
+        try {
+            fd = mResolver.openFileDescriptor(uriAddress, "r");
+        } catch (FileNotFoundException e) {
+            if(V) Log.w(TAG, e);
+        }
+        if(fd != null && fd.getStatSize() < 0) {
+            // Not a regular file - the size is needed up front, hence read the data instead
+            try {
+                fd.close();
+            } catch (IOException e) {}
+            fd = null;
+        }
+        return fd;
+    }
+
     /**
      * Read out the mms parts and update the bMessage object provided i {@linkplain message}
      * @param id the content provider ID of the message
      * @param message the bMessage object to add the information to
+     * @param streamParts if true, attachments are opened for streaming instead of being read
      */
-    private void extractMmsParts(long id, BluetoothMapbMessageMmsEmail message)
+    private void extractMmsParts(long id, BluetoothMapbMessageMmsEmail message,
+            boolean streamParts)
     {
         /* TODO: If the attachment appParam is set to "no", only add the text parts.
          * (content type contains "text" - case insensitive) */
@@ -2818,8 +2964,15 @@ public class BluetoothMapContent {
                         part.data = text.getBytes("UTF-8");
                         part.charsetName = "utf-8";
                     }
+                    else if(!message.getIncludeAttachments() && (contentType == null
+                            || !contentType.toUpperCase().contains("TEXT"))) {
+                        // Only a tag is encoded for the attachment, no need to read the data
+                    }
                     else {
-                        part.data = readMmsDataPart(partId);
+                        if(streamParts)
+                            part.dataFd = openMmsDataPartFd(partId);
+                        if(part.dataFd == null)
+                            part.data = readMmsDataPart(partId);
                         if(charset != null)
                             part.charsetName = CharacterSets.getMimeName(Integer.parseInt(charset));
                     }
@@ -2850,6 +3003,19 @@ public class BluetoothMapContent {
      * which is guaranteed to be supported on an android device
      */
     public byte[] getMmsMessage(long id, BluetoothMapAppParams appParams) throws UnsupportedEncodingException {
+        return loadMmsMessage(id, appParams, false).encode();
+    }
+
+    /**
+     * Load the MMS message with the given id.
+     * @param id the content provider id for the message to fetch.
+     * @param appParams The application parameter object received from the client.
+     * @param streamParts if true attachments are left in the provider to be streamed
+     * using encodeStream(), instead of being read into memory.
+     * @return the bMessage object
+     */
+    private BluetoothMapbMessageMmsEmail loadMmsMessage(long id, BluetoothMapAppParams appParams,
+            boolean streamParts) {
         int msgBox, threadId;
         BluetoothMapbMessageMmsEmail message = new BluetoothMapbMessageMmsEmail();
         Cursor c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION, "_ID = " + id, null, null);
@@ -2878,12 +3044,12 @@ public class BluetoothMapContent {
             message.setTextOnly(c.getInt(c.getColumnIndex(Mms.TEXT_ONLY)) == 0 ? false : true); // - TODO: Do we need this - yes, if we have only text, we should not make this a multipart message
             message.setIncludeAttachments(appParams.getAttachment() == 0 ? false : true);
 
-            extractMmsParts(id, message);
+            extractMmsParts(id, message, streamParts);
             extractMmsAddresses(id, message);
         } finally {
             close(c);
         }
 
-        return message.encode();
+        return message;
     }
 }
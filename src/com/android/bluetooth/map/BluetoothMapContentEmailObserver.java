@@ -77,12 +77,10 @@ public class BluetoothMapContentEmailObserver extends BluetoothMapContentObserve
     private static final boolean V = Log.isLoggable(BluetoothMapService.LOG_TAG, Log.VERBOSE) ? true : false;
 
     private HashMap<Long, EmailBox> mEmailBoxList = new HashMap<Long, EmailBox>();
-    private ConcurrentHashMap<Long, EmailMessage> mEmailList = new ConcurrentHashMap<Long, EmailMessage>();
-    /** List of deleted message, do not notify */
-    private ConcurrentHashMap<Long, EmailMessage> mDeletedList = new ConcurrentHashMap<Long, EmailMessage>();
-    private ConcurrentHashMap<Long, EmailMessage> mEmailAddedList = new ConcurrentHashMap<Long, EmailMessage>();
-    /** List of newly deleted message, notify */
-    private ConcurrentHashMap<Long, EmailMessage> mEmailDeletedList = new ConcurrentHashMap<Long, EmailMessage>();
+    /** The mailbox of each message of the account, as seen by the last update */
+    private BluetoothMapEmailMirror mEmailMirror = new BluetoothMapEmailMirror();
+    /** The highest syncServerTimeStamp seen by the last update */
+    private long mLastServerTimeStamp = 0;
     public static final int EMAIL_BOX_COLUMN_RECORD_ID = 0;
     public static final int EMAIL_BOX_COLUMN_DISPLAY_NAME = 1;
     public static final int EMAIL_BOX_COLUMN_ACCOUNT_KEY = 2;
@@ -95,6 +93,10 @@ public class BluetoothMapContentEmailObserver extends BluetoothMapContentObserve
     public static final int MSG_COL_RECORD_ID = 0;
     public static final int MSG_COL_MAILBOX_KEY = 1;
     public static final int MSG_COL_ACCOUNT_KEY = 2;
+    public static final int MSG_COL_SERVER_TIMESTAMP = 3;
+    private static final int CHECKSUM_COL_COUNT = 0;
+    private static final int CHECKSUM_COL_MAX_ID = 1;
+    private static final int CHECKSUM_COL_SUM = 2;
     private static final String EMAIL_TO_MAP[] = {
         "inbox",    // TYPE_INBOX = 0;
         "",         // TYPE_MAIL = 1;
@@ -133,15 +135,18 @@ public class BluetoothMapContentEmailObserver extends BluetoothMapContentObserve
     private static final String[] ACCOUNT_ID_PROJECTION = new String[] {
         RECORD_ID, EMAIL_ADDRESS, IS_DEFAULT, DISPLAY_NAME
     };
+    public static final String SERVER_TIMESTAMP = "syncServerTimeStamp";
     public static final String[] EMAIL_MESSAGE_PROJECTION = new String[] {
-        RECORD_ID, MAILBOX_KEY, ACCOUNT_KEY
+        RECORD_ID, MAILBOX_KEY, ACCOUNT_KEY, SERVER_TIMESTAMP
+    };
+    /* Aggregates matching the size, max id and checksum of BluetoothMapEmailMirror */
+    private static final String[] EMAIL_CHECKSUM_PROJECTION = new String[] {
+        "count(" + RECORD_ID + ")", "max(" + RECORD_ID + ")",
+        "sum(" + RECORD_ID + " * " + MAILBOX_KEY + ")"
     };
     public static final String[] EMAIL_BOX_PROJECTION = new String[] {
         RECORD_ID, DISPLAY_NAME, ACCOUNT_KEY, EMAILTYPE
     };
-    public long id;
-    public String folderName;
-
     public BluetoothMapContentEmailObserver(final Context context, Handler callback ) {
         super(context);
         mCallback =callback;
@@ -190,9 +195,10 @@ public class BluetoothMapContentEmailObserver extends BluetoothMapContentObserve
                     case UPDATE:
                         new Thread(new Runnable() {
                             public void run() {
-                                updateEmailBox();
-                                update(false);
-                                sendEvents();
+                                synchronized (BluetoothMapContentEmailObserver.this) {
+                                    updateEmailBox();
+                                    update(false);
+                                }
                             }
                         }, "Email Content Observer Thread").start();
                         break;
@@ -229,34 +235,16 @@ public class BluetoothMapContentEmailObserver extends BluetoothMapContentObserve
          }
     }
 
-    static class EmailMessage {
-         long mId;
-         long mAccountKey;
-         String mFolderName;
-         int mType;
-
-         public EmailMessage(long id, long accountKey, String folderName, int type) {
-                mId = id;
-                mAccountKey = accountKey;
-                mFolderName = folderName;
-                mType = type;
-         }
-
-         @Override
-         public String toString() {
-                return "[id:" + mId + ", folder name:" + mFolderName + ", account key:" + mAccountKey +
-                                      ", type:" + mType + "]";
-         }
-    }
-
     @Override
     public void registerObserver(BluetoothMnsObexClient mns, int masId) {
         if (D) Log.d(TAG, "registerObserver");
         mAccountKey = BluetoothMapUtils.getEmailAccountId(mContext);
         mMasId = masId;
         mMnsClient = mns;
-        updateEmailBox();
-        update(true);
+        synchronized (this) {
+            updateEmailBox();
+            update(true);
+        }
         try {
             mResolver.registerContentObserver(EMAIL_URI, true, mObserver);
         } catch (SQLiteException e) {
@@ -291,146 +279,233 @@ public class BluetoothMapContentEmailObserver extends BluetoothMapContentObserve
          }
     }
 
-    private void clear() {
-        mEmailList.clear();
-        mDeletedList.clear();
-        mEmailAddedList.clear();
-        mEmailDeletedList.clear();
-    }
-
+    /**
+     * Bring the email mirror up to date with the email provider, and send the events
+     * for the new, moved and deleted messages.
+     * Unless the mirror is (re)built, the changes are found in steps, stopping as soon
+     * as the mirror matches the message count, max id and checksum of the provider:
+     * first only the checksum is read, then the messages with a higher id than known,
+     * then the messages with a newer syncServerTimeStamp. Only if the mirror still does
+     * not match, the id and mailbox of all messages are read.
+     */
     void update(boolean init) {
         if (V) Log.d(TAG, "update");
         if (init) {
-            clear();
+            mEmailMirror.clear();
+            mLastServerTimeStamp = 0;
+            reloadMirror(true);
+            return;
+        }
+        long[] checksum = queryChecksum();
+        if (checksum != null) {
+            if (isMirrorMatching(checksum)) {
+                if (V) Log.v(TAG, "update: no messages added, moved or deleted");
+                return;
+            }
+            final long maxId = mEmailMirror.getMaxId();
+            if (checksum[CHECKSUM_COL_MAX_ID] > maxId) {
+                queryChanges(RECORD_ID + " > " + maxId);
+                if (isMirrorMatching(checksum)) {
+                    return;
+                }
+            }
+            queryChanges(RECORD_ID + " <= " + maxId + " AND "
+                    + SERVER_TIMESTAMP + " > " + mLastServerTimeStamp);
+            if (isMirrorMatching(checksum)) {
+                return;
+            }
         }
-        mEmailAddedList.clear();
-        mEmailDeletedList.clear();
+        if (D) Log.d(TAG, "update: reading all messages");
+        reloadMirror(false);
+    }
 
-        final ContentResolver resolver = mContext.getContentResolver();
-        Cursor crEmail;
+    private boolean isMirrorMatching(long[] checksum) {
+        return checksum[CHECKSUM_COL_COUNT] == mEmailMirror.size()
+                && checksum[CHECKSUM_COL_MAX_ID] == mEmailMirror.getMaxId()
+                && checksum[CHECKSUM_COL_SUM] == mEmailMirror.getChecksum();
+    }
+
+    /**
+     * @return the message count, max id and checksum of the account messages in the
+     *         email provider, or null if they could not be read.
+     */
+    private long[] queryChecksum() {
+        Cursor c = null;
         try {
-        crEmail = resolver.query(EMAIL_MESSAGE_URI, EMAIL_MESSAGE_PROJECTION,
-                null, null, null);
-        if (crEmail != null) {
-            if (crEmail.moveToFirst()) {
-                final HashMap<Long, EmailBox> boxList = mEmailBoxList;
-                ConcurrentHashMap<Long, EmailMessage> oldEmailList = mEmailList;
-                ConcurrentHashMap<Long, EmailMessage> emailList = new ConcurrentHashMap<Long, EmailMessage>();
-                do {
-                    final long accountKey = crEmail.getLong(MSG_COL_ACCOUNT_KEY);
-                    if (accountKey != mAccountKey) {
-                        continue;
-                    }
-                    id = crEmail.getLong(MSG_COL_RECORD_ID);
-                    final long mailboxKey = crEmail.getLong(MSG_COL_MAILBOX_KEY);
-                    if (boxList.containsKey(mailboxKey)) {
-                        final EmailBox box = boxList.get(mailboxKey);
-                        if (box == null) {
-                            continue;
-                        }
-                        folderName = isMapFolder(box.mType)
-                                   ? EMAIL_TO_MAP[box.mType] : box.mDisplayName;
-                        final EmailMessage msg = new EmailMessage(id, accountKey,
-                            folderName, box.mType);
-                        if (box.mType == TYPE_DELETED) {
-                            if (init) {
-                                mDeletedList.put(id, msg);
-                            } else if (!mDeletedList.containsKey(id) &&
-                                        !mEmailDeletedList.containsKey(id)) {
-                                if(V) Log.v(TAG,"Putting in deleted list id "+id);
-                                mEmailDeletedList.put(id, msg);
-                            }
-                        } else if (box.mType == TYPE_OUTBOX) {
-                                // Do nothing got outbox folder
-                        } else {
-                                emailList.put(id, msg);
-                                if (!oldEmailList.containsKey(id) && !init &&
-                                        !mEmailAddedList.containsKey(id)) {
-                                    Log.v(TAG,"Putting in added list");
-                                    mEmailAddedList.put(id, msg);
-                                } else {
-                                    if (oldEmailList.get(id) != null) {
-                                        if(!(msg.mFolderName.equalsIgnoreCase(oldEmailList.
-                                            get(id).mFolderName))) {
-                                            Log.d(TAG,"sending Message Shift Event");
-                                            Event evt;
-                                            evt = new Event("MessageShift", id, msg.mFolderName,
-                                                      oldEmailList.get(id).mFolderName, TYPE.EMAIL);
-                                            sendEvent(evt);
-                                        }
-                                    }
-                                }
-                        }
-                    } else {
-                    Log.e(TAG, "Mailbox is not updated");
-                    }
-                } while (crEmail.moveToNext());
-                mEmailList = emailList;
+            c = mResolver.query(EMAIL_MESSAGE_URI, EMAIL_CHECKSUM_PROJECTION,
+                    ACCOUNT_KEY + " = " + mAccountKey, null, null);
+            if (c != null && c.moveToFirst()) {
+                return new long[] {
+                    c.getLong(CHECKSUM_COL_COUNT),
+                    c.getLong(CHECKSUM_COL_MAX_ID),
+                    c.getLong(CHECKSUM_COL_SUM)
+                };
             }
-            crEmail.close();
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Unable to read message checksum: " + e);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Unable to read message checksum: " + e);
+        } finally {
+            if (c != null) c.close();
+        }
+        return null;
+    }
+
+    private Cursor queryMessages(String where) {
+        String selection = ACCOUNT_KEY + " = " + mAccountKey;
+        if (where != null) {
+            selection += " AND " + where;
         }
+        try {
+            return mResolver.query(EMAIL_MESSAGE_URI, EMAIL_MESSAGE_PROJECTION,
+                    selection, null, RECORD_ID + " ASC");
         } catch (SQLiteException e) {
-            crEmail = null;
             Log.e(TAG, "SQLite exception: " + e);
         }
+        return null;
     }
 
-    private void sendEvents() {
-       if (mEmailAddedList.size() > 0) {
-           Event evt;
-           Collection<EmailMessage> values = mEmailAddedList.values();
-           if(values != null) {
-           for (EmailMessage email : values) {
-                if (email.mFolderName.equalsIgnoreCase("sent")) {
-                    if(D) Log.d(TAG,"sending SendingSuccess mns event");
-                    if(D) Log.d(TAG,"email.mId is "+email.mId);
-                    if(D) Log.d(TAG,"email.mType is "+email.mType);
-                    if(D) Log.d(TAG,"folder name is "+email.mFolderName);
-                    evt = new Event("SendingSuccess", email.mId, email.mFolderName,
-                                              null, TYPE.EMAIL);
-                    sendEvent(evt);
-                } else if (email.mFolderName.equalsIgnoreCase("trash")) {
-                    evt = new Event("MessageDeleted", email.mId, "trash",null, TYPE.EMAIL);
-                    sendEvent(evt);
-                } else if (email.mFolderName.equalsIgnoreCase("delete") ||
-                           email.mFolderName.equalsIgnoreCase("deleted")) {
-                    evt = new Event("MessageDeleted", email.mId, "deleted",null, TYPE.EMAIL);
-                    sendEvent(evt);
-                } else {
-                    if (mDeletedList.containsKey(email.mId)){
-                        Log.d(TAG,"mDeletedList removing id "+email.mId);
-                        mDeletedList.remove(email.mId);
-                        Log.d(TAG,"sending Message Shift Event");
-                        evt = new Event("MessageShift", email.mId, email.mFolderName,
-                                        "deleted", TYPE.EMAIL);
-                        sendEvent(evt);
-                    }  else if (email.mFolderName.equalsIgnoreCase("inbox")) {
-                        evt = new Event("NewMessage", email.mId, folderName,
-                                         null, TYPE.EMAIL);
-                        sendEvent(evt);
-
-                    }
+    /**
+     * Update the mirror with the messages matching a selection, and send the events
+     * for the messages changed.
+     */
+    private void queryChanges(String where) {
+        Cursor c = queryMessages(where);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                final long id = c.getLong(MSG_COL_RECORD_ID);
+                final long state = getMessageState(c.getLong(MSG_COL_MAILBOX_KEY));
+                mLastServerTimeStamp = Math.max(mLastServerTimeStamp,
+                        c.getLong(MSG_COL_SERVER_TIMESTAMP));
+                final long oldState = mEmailMirror.put(id, state);
+                if (oldState != state) {
+                    onMessageChanged(id, oldState, state);
                 }
-              }
-           }
-          mEmailAddedList.clear();
-       }
-
-       if (mEmailDeletedList.size() > 0) {
-           mDeletedList.putAll(mEmailDeletedList);
-           Collection<EmailMessage> values = mEmailDeletedList.values();
-            for (EmailMessage email : values) {
-                 if(D) Log.d(TAG,"sending MessageDeleted mns event");
-                        if(D) Log.d(TAG,"email.mId is "+email.mId);
-                        if(D) Log.d(TAG,"email.mType is "+email.mType);
-                        if(D) Log.d(TAG,"folder name is "+email.mFolderName);
-
-            Event evt = new Event("MessageDeleted", email.mId, "deleted",
-                null, TYPE.EMAIL);
-                        sendEvent(evt);
             }
-            mEmailDeletedList.clear();
-       }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Rebuild the mirror from all messages of the account. Messages no longer in the
+     * email provider are dropped silently, as before.
+     * @param init true to only build the mirror, without sending events
+     */
+    private void reloadMirror(boolean init) {
+        Cursor c = queryMessages(null);
+        if (c == null) {
+            return;
+        }
+        try {
+            final BluetoothMapEmailMirror oldMirror = mEmailMirror;
+            final BluetoothMapEmailMirror mirror = new BluetoothMapEmailMirror(c.getCount());
+            final int oldSize = oldMirror.size();
+            int oldIndex = 0;
+            while (c.moveToNext()) {
+                final long id = c.getLong(MSG_COL_RECORD_ID);
+                final long state = getMessageState(c.getLong(MSG_COL_MAILBOX_KEY));
+                mLastServerTimeStamp = Math.max(mLastServerTimeStamp,
+                        c.getLong(MSG_COL_SERVER_TIMESTAMP));
+                mirror.put(id, state);
+                if (init) {
+                    continue;
+                }
+                /* Both are ordered by id, so the old state is found by merging */
+                while (oldIndex < oldSize && oldMirror.getIdAt(oldIndex) < id) {
+                    oldIndex++;
+                }
+                long oldState = BluetoothMapEmailMirror.NO_STATE;
+                if (oldIndex < oldSize && oldMirror.getIdAt(oldIndex) == id) {
+                    oldState = oldMirror.getStateAt(oldIndex);
+                }
+                if (oldState != state) {
+                    onMessageChanged(id, oldState, state);
+                }
+            }
+            mEmailMirror = mirror;
+        } finally {
+            c.close();
+        }
+    }
+
+    private long getMessageState(long mailboxKey) {
+        final EmailBox box = mEmailBoxList.get(mailboxKey);
+        return BluetoothMapEmailMirror.pack(mailboxKey,
+                (box != null) ? box.mType : BluetoothMapEmailMirror.TYPE_UNKNOWN);
+    }
+
+    /**
+     * @return the MAP folder name of the mailbox of a message, or null if the
+     *         mailbox is unknown
+     */
+    private String getFolderName(long state) {
+        final EmailBox box = mEmailBoxList.get(BluetoothMapEmailMirror.getMailboxKey(state));
+        if (box == null) {
+            return null;
+        }
+        return isMapFolder(box.mType) ? EMAIL_TO_MAP[box.mType] : box.mDisplayName;
+    }
+
+    /**
+     * Send the event for a message added to or moved between mailboxes.
+     * Messages in the outbox are not reported, and are reported as added once
+     * they are moved to another mailbox.
+     */
+    private void onMessageChanged(long id, long oldState, long newState) {
+        final int oldType = (oldState == BluetoothMapEmailMirror.NO_STATE)
+                ? BluetoothMapEmailMirror.TYPE_UNKNOWN : BluetoothMapEmailMirror.getType(oldState);
+        final int newType = BluetoothMapEmailMirror.getType(newState);
+        Event evt;
+        if (newType == BluetoothMapEmailMirror.TYPE_UNKNOWN) {
+            Log.e(TAG, "Mailbox is not updated");
+            return;
+        }
+        if (newType == TYPE_DELETED) {
+            if (oldType != TYPE_DELETED) {
+                if (D) Log.d(TAG, "sending MessageDeleted mns event, id " + id);
+                evt = new Event("MessageDeleted", id, "deleted", null, TYPE.EMAIL);
+                sendEvent(evt);
+            }
+            return;
+        }
+        if (newType == TYPE_OUTBOX) {
+            // Do nothing for outbox folder
+            return;
+        }
+        final String folderName = getFolderName(newState);
+        if (oldType != BluetoothMapEmailMirror.TYPE_UNKNOWN && oldType != TYPE_DELETED
+                && oldType != TYPE_OUTBOX) {
+            final String oldFolderName = getFolderName(oldState);
+            if (oldFolderName != null && !folderName.equalsIgnoreCase(oldFolderName)) {
+                if (D) Log.d(TAG, "sending Message Shift Event, id " + id);
+                evt = new Event("MessageShift", id, folderName, oldFolderName, TYPE.EMAIL);
+                sendEvent(evt);
+            }
+            return;
+        }
+        if (folderName.equalsIgnoreCase("sent")) {
+            if (D) Log.d(TAG, "sending SendingSuccess mns event, id " + id);
+            evt = new Event("SendingSuccess", id, folderName, null, TYPE.EMAIL);
+            sendEvent(evt);
+        } else if (folderName.equalsIgnoreCase("trash")) {
+            evt = new Event("MessageDeleted", id, "trash", null, TYPE.EMAIL);
+            sendEvent(evt);
+        } else if (folderName.equalsIgnoreCase("delete") ||
+                   folderName.equalsIgnoreCase("deleted")) {
+            evt = new Event("MessageDeleted", id, "deleted", null, TYPE.EMAIL);
+            sendEvent(evt);
+        } else if (oldType == TYPE_DELETED) {
+            if (D) Log.d(TAG, "sending Message Shift Event, id " + id);
+            evt = new Event("MessageShift", id, folderName, "deleted", TYPE.EMAIL);
+            sendEvent(evt);
+        } else if (folderName.equalsIgnoreCase("inbox")) {
+            evt = new Event("NewMessage", id, folderName, null, TYPE.EMAIL);
+            sendEvent(evt);
+        }
     }
 
     public void onConnect() {
@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.map;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs the content provider operations of the MAS instances on a small shared
+ * pool of worker threads.
+ * Pending operations are queued per MAS instance, and the workers take them from
+ * the instances in turn, so a slow operation on one instance does not hold up the
+ * operations of the other instances. Pending and running operations of an instance
+ * can be cancelled, e.g. when the client aborts the OBEX operation.
+ * The time each operation has been waiting for a worker and the time spent
+ * executing it is accumulated per MAS instance.
+ */
+public class BluetoothMapContentExecutor {
+    private static final String TAG = "BluetoothMapContentExecutor";
+
+    private static final boolean D = BluetoothMapService.DEBUG;
+    private static final boolean V = Log.isLoggable(BluetoothMapService.LOG_TAG, Log.VERBOSE) ? true : false;
+
+    /* The number of content operations executed in parallel */
+    public static final int DEFAULT_WORKER_COUNT = 2;
+
+    /* The number of operations a MAS instance can have waiting for a worker */
+    public static final int MAX_PENDING_PER_MAS = 4;
+
+    private final Object mLock = new Object();
+    private final HashMap<Integer, MasQueue> mQueues = new HashMap<Integer, MasQueue>();
+    /* The MAS instances in the order they are served */
+    private final ArrayList<Integer> mMasOrder = new ArrayList<Integer>();
+    private int mNextMas = 0;
+    private final int mMaxRunningPerMas;
+    private final Thread[] mWorkers;
+    private boolean mShutdown = false;
+
+    private static class MasQueue {
+        final LinkedList<ContentTask<?>> mPending = new LinkedList<ContentTask<?>>();
+        final ArrayList<ContentTask<?>> mRunning = new ArrayList<ContentTask<?>>();
+        long mCompleted = 0;
+        long mCancelled = 0;
+        long mQueueTimeTotal = 0; // nanoseconds
+        long mQueueTimeMax = 0;   // nanoseconds
+        long mExecTimeTotal = 0;  // nanoseconds
+    }
+
+    /**
+     * Releases the resources held by the result of an operation, when the result is
+     * not returned to the caller because the operation was cancelled.
+     */
+    public interface ResultDisposer<T> {
+        void dispose(T result);
+    }
+
+    private static class ContentTask<T> extends FutureTask<T> {
+        final int mMasId;
+        final long mQueuedAt;
+        final ResultDisposer<T> mDisposer;
+        long mStartedAt;
+
+        ContentTask(int masId, Callable<T> operation, ResultDisposer<T> disposer) {
+            super(operation);
+            mMasId = masId;
+            mQueuedAt = System.nanoTime();
+            mDisposer = disposer;
+        }
+
+        @Override
+        protected void set(T result) {
+            super.set(result);
+            // The result is dropped if the operation was cancelled while running
+            if (isCancelled()) {
+                dispose(result);
+            }
+        }
+
+        void dispose(T result) {
+            if (mDisposer != null && result != null) {
+                mDisposer.dispose(result);
+            }
+        }
+    }
+
+    public BluetoothMapContentExecutor() {
+        this(DEFAULT_WORKER_COUNT);
+    }
+
+    /**
+     * @param workerCount the number of worker threads, at least 1
+     */
+    public BluetoothMapContentExecutor(int workerCount) {
+        if (workerCount < 1)
+            throw new IllegalArgumentException("Invalid worker count: " + workerCount);
+        /* Leave a worker for the other instances, if there is more than one */
+        mMaxRunningPerMas = (workerCount > 1) ? workerCount - 1 : 1;
+        mWorkers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            mWorkers[i] = new Thread(new Worker(), "BluetoothMapContentWorker " + i);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Execute a content operation for a MAS instance, and block until it completes.
+     * @param masId the MAS instance the operation belongs to
+     * @param operation the operation to execute
+     * @return the result of the operation
+     * @throws IOException if the operation fails with an IOException, if the operation
+     *         is cancelled or if the instance has too many pending operations.
+     *         RuntimeExceptions thrown by the operation are rethrown as is.
+     */
+    public <T> T execute(int masId, Callable<T> operation) throws IOException {
+        return execute(masId, operation, null);
+    }
+
+    /**
+     * Execute a content operation for a MAS instance, and block until it completes.
+     * @param disposer called with the result if the operation completes, but the
+     *        result is not returned as the operation was cancelled meanwhile
+     * @see #execute(int, Callable)
+     */
+    public <T> T execute(int masId, Callable<T> operation, ResultDisposer<T> disposer)
+            throws IOException {
+        ContentTask<T> task = new ContentTask<T>(masId, operation, disposer);
+        synchronized (mLock) {
+            if (mShutdown)
+                throw new IOException("Content executor is shut down");
+            MasQueue queue = getQueueLocked(masId);
+            if (queue.mPending.size() >= MAX_PENDING_PER_MAS)
+                throw new IOException("Too many pending content operations for MAS " + masId);
+            queue.mPending.addLast(task);
+            mLock.notifyAll();
+        }
+        try {
+            return task.get();
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("Content operation cancelled for MAS " + masId);
+        } catch (InterruptedException e) {
+            if (!task.cancel(true)) {
+                // Completed before it could be cancelled, the result is not returned
+                try {
+                    task.dispose(task.get());
+                } catch (Exception ex) {
+                    // No result to dispose
+                }
+            }
+            throw new InterruptedIOException("Interrupted while waiting for content operation");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Cancel the pending and running operations of a MAS instance. Threads waiting
+     * in {@link #execute(int, Callable)} for these operations are released.
+     * @param masId the MAS instance
+     */
+    public void cancel(int masId) {
+        synchronized (mLock) {
+            MasQueue queue = mQueues.get(masId);
+            if (queue == null)
+                return;
+            for (ContentTask<?> task : queue.mPending) {
+                task.cancel(false);
+                queue.mCancelled++;
+            }
+            queue.mPending.clear();
+            for (ContentTask<?> task : queue.mRunning) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Cancel all operations and stop the worker threads.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            if (mShutdown)
+                return;
+            mShutdown = true;
+            for (Integer masId : mMasOrder) {
+                cancel(masId);
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Log the accumulated queueing and execution times of a MAS instance.
+     * @param masId the MAS instance
+     */
+    public void logMetrics(int masId) {
+        synchronized (mLock) {
+            MasQueue queue = mQueues.get(masId);
+            if (queue == null)
+                return;
+            long completed = Math.max(queue.mCompleted, 1);
+            Log.d(TAG, "MAS " + masId + ": completed " + queue.mCompleted
+                    + ", cancelled " + queue.mCancelled
+                    + ", queued avg " + queue.mQueueTimeTotal / completed / 1000000 + " ms"
+                    + " (max " + queue.mQueueTimeMax / 1000000 + " ms)"
+                    + ", executing avg " + queue.mExecTimeTotal / completed / 1000000 + " ms");
+        }
+    }
+
+    /**
+     * @return the number of completed operations of a MAS instance
+     */
+    public long getCompletedCount(int masId) {
+        synchronized (mLock) {
+            MasQueue queue = mQueues.get(masId);
+            return (queue != null) ? queue.mCompleted : 0;
+        }
+    }
+
+    /**
+     * @return the number of cancelled operations of a MAS instance
+     */
+    public long getCancelledCount(int masId) {
+        synchronized (mLock) {
+            MasQueue queue = mQueues.get(masId);
+            return (queue != null) ? queue.mCancelled : 0;
+        }
+    }
+
+    /**
+     * @return the total time in ms the completed operations of a MAS instance
+     *         have been waiting for a worker
+     */
+    public long getQueueTimeMs(int masId) {
+        synchronized (mLock) {
+            MasQueue queue = mQueues.get(masId);
+            return (queue != null) ? queue.mQueueTimeTotal / 1000000 : 0;
+        }
+    }
+
+    /**
+     * @return the total time in ms spent executing the completed operations of
+     *         a MAS instance
+     */
+    public long getExecutionTimeMs(int masId) {
+        synchronized (mLock) {
+            MasQueue queue = mQueues.get(masId);
+            return (queue != null) ? queue.mExecTimeTotal / 1000000 : 0;
+        }
+    }
+
+    private MasQueue getQueueLocked(int masId) {
+        MasQueue queue = mQueues.get(masId);
+        if (queue == null) {
+            queue = new MasQueue();
+            mQueues.put(masId, queue);
+            mMasOrder.add(masId);
+        }
+        return queue;
+    }
+
+    /**
+     * Take the next operation, serving the MAS instances in turn.
+     * @return the operation, or null if the executor is shut down
+     */
+    private ContentTask<?> takeNextTask() {
+        synchronized (mLock) {
+            while (!mShutdown) {
+                int count = mMasOrder.size();
+                for (int i = 0; i < count; i++) {
+                    int index = (mNextMas + i) % count;
+                    MasQueue queue = mQueues.get(mMasOrder.get(index));
+                    if (!queue.mPending.isEmpty() && queue.mRunning.size() < mMaxRunningPerMas) {
+                        mNextMas = (index + 1) % count;
+                        ContentTask<?> task = queue.mPending.removeFirst();
+                        task.mStartedAt = System.nanoTime();
+                        queue.mRunning.add(task);
+                        return task;
+                    }
+                }
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    // A cancelled operation may leave the interrupt behind, just continue
+                }
+            }
+            return null;
+        }
+    }
+
+    private void taskDone(ContentTask<?> task) {
+        long now = System.nanoTime();
+        synchronized (mLock) {
+            MasQueue queue = mQueues.get(task.mMasId);
+            queue.mRunning.remove(task);
+            if (task.isCancelled()) {
+                queue.mCancelled++;
+            } else {
+                long queueTime = task.mStartedAt - task.mQueuedAt;
+                queue.mCompleted++;
+                queue.mQueueTimeTotal += queueTime;
+                queue.mQueueTimeMax = Math.max(queue.mQueueTimeMax, queueTime);
+                queue.mExecTimeTotal += now - task.mStartedAt;
+            }
+            mLock.notifyAll();
+        }
+        if (V) Log.v(TAG, "MAS " + task.mMasId + " operation queued "
+                + (task.mStartedAt - task.mQueuedAt) / 1000000 + " ms, executed "
+                + (now - task.mStartedAt) / 1000000 + " ms"
+                + (task.isCancelled() ? " (cancelled)" : ""));
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            ContentTask<?> task;
+            while ((task = takeNextTask()) != null) {
+                task.run();
+                taskDone(task);
+                // Clear an interrupt caused by cancelling the operation
+                Thread.interrupted();
+            }
+            if (D) Log.d(TAG, Thread.currentThread().getName() + " exiting");
+        }
+    }
+}
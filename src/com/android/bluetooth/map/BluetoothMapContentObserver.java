@@ -257,6 +257,11 @@ public class BluetoothMapContentObserver {
     private Map<Long, Msg> mMsgListMms =
         Collections.synchronizedMap(new HashMap<Long, Msg>());
 
+    /* Message counts per folder, rebuilt on each pass over the messages. Only valid
+     * while the observer is registered, as changes are not tracked otherwise. */
+    private volatile BluetoothMapFolderCounts mFolderCountsSms = null;
+    private volatile BluetoothMapFolderCounts mFolderCountsMms = null;
+
     /*
      * Class to hold message handle for MCE Initiated operation
      */
@@ -338,6 +343,22 @@ public class BluetoothMapContentObserver {
         if (V) Log.d(TAG, "unregisterObserver");
         mResolver.unregisterContentObserver(mObserver);
         mMnsClient = null;
+        mFolderCountsSms = null;
+        mFolderCountsMms = null;
+    }
+
+    /**
+     * @return the SMS message counts per folder, or null if messages are not being tracked
+     */
+    public BluetoothMapFolderCounts getFolderCountsSms() {
+        return mFolderCountsSms;
+    }
+
+    /**
+     * @return the MMS message counts per folder, or null if messages are not being tracked
+     */
+    public BluetoothMapFolderCounts getFolderCountsMms() {
+        return mFolderCountsMms;
     }
 
     public void sendEvent(Event evt) {
@@ -374,6 +395,7 @@ public class BluetoothMapContentObserver {
 
 
         HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+        BluetoothMapFolderCounts countsSms = new BluetoothMapFolderCounts();
 
         Cursor c = mResolver.query(Sms.CONTENT_URI,
             SMS_PROJECTION, null, null, null);
@@ -386,6 +408,8 @@ public class BluetoothMapContentObserver {
 
                     Msg msg = new Msg(id, type);
                     msgListSms.put(id, msg);
+                    countsSms.addSms(type, c.getLong(c.getColumnIndex(Sms.THREAD_ID)),
+                            c.getInt(c.getColumnIndex(Sms.READ)) != 0);
                 }
             } finally {
                 close(c);
@@ -394,12 +418,14 @@ public class BluetoothMapContentObserver {
             synchronized(mMsgListSms) {
                 mMsgListSms.clear();
                 mMsgListSms = msgListSms;
+                mFolderCountsSms = (c != null) ? countsSms : null;
             }
 
 
 
 
         HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+        BluetoothMapFolderCounts countsMms = new BluetoothMapFolderCounts();
 
         c = mResolver.query(Mms.CONTENT_URI,
             MMS_PROJECTION, null, null, null);
@@ -410,6 +436,9 @@ public class BluetoothMapContentObserver {
 
                     Msg msg = new Msg(id, type );
                     msgListMms.put(id, msg);
+                    countsMms.addMms(type, c.getLong(c.getColumnIndex(Mms.THREAD_ID)),
+                            c.getInt(c.getColumnIndex(Mms.READ)) != 0,
+                            c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE)));
                 }
         } finally {
                 close(c);
@@ -418,6 +447,7 @@ public class BluetoothMapContentObserver {
         synchronized(mMsgListMms) {
             mMsgListMms.clear();
             mMsgListMms = msgListMms;
+            mFolderCountsMms = (c != null) ? countsMms : null;
         }
     }
 
@@ -425,15 +455,22 @@ public class BluetoothMapContentObserver {
         if (V) Log.d(TAG, "handleMsgListChangesSms");
 
         HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+        BluetoothMapFolderCounts countsSms = new BluetoothMapFolderCounts();
 
         Cursor c = mResolver.query(Sms.CONTENT_URI,
             SMS_PROJECTION, null, null, null);
 
         synchronized(mMsgListSms) {
             if (c != null && c.moveToFirst()) {
+                final int idIndex = c.getColumnIndex(BaseColumns._ID);
+                final int typeIndex = c.getColumnIndex(Sms.TYPE);
+                final int threadIdIndex = c.getColumnIndex(Sms.THREAD_ID);
+                final int readIndex = c.getColumnIndex(Sms.READ);
                 do {
-                    long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                    int type = c.getInt(c.getColumnIndex(Sms.TYPE));
+                    long id = c.getLong(idIndex);
+                    int type = c.getInt(typeIndex);
+
+                    countsSms.addSms(type, c.getLong(threadIdIndex), c.getInt(readIndex) != 0);
 
                     Msg msg = mMsgListSms.remove(id);
 
@@ -469,6 +506,7 @@ public class BluetoothMapContentObserver {
             }
 
             mMsgListSms = msgListSms;
+            mFolderCountsSms = (mMnsClient != null && c != null) ? countsSms : null;
         }
     }
 
@@ -476,16 +514,25 @@ public class BluetoothMapContentObserver {
         if (V) Log.d(TAG, "handleMsgListChangesMms");
 
         HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+        BluetoothMapFolderCounts countsMms = new BluetoothMapFolderCounts();
 
         Cursor c = mResolver.query(Mms.CONTENT_URI,
             MMS_PROJECTION, null, null, null);
 
         synchronized(mMsgListMms) {
             if (c != null && c.moveToFirst()) {
+                final int idIndex = c.getColumnIndex(BaseColumns._ID);
+                final int msgBoxIndex = c.getColumnIndex(Mms.MESSAGE_BOX);
+                final int msgTypeIndex = c.getColumnIndex(Mms.MESSAGE_TYPE);
+                final int threadIdIndex = c.getColumnIndex(Mms.THREAD_ID);
+                final int readIndex = c.getColumnIndex(Mms.READ);
                 do {
-                    long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                    int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
-                    int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
+                    long id = c.getLong(idIndex);
+                    int type = c.getInt(msgBoxIndex);
+                    int mtype = c.getInt(msgTypeIndex);
+
+                    countsMms.addMms(type, c.getLong(threadIdIndex), c.getInt(readIndex) != 0,
+                            mtype);
 
                     Msg msg = mMsgListMms.remove(id);
 
@@ -535,6 +582,7 @@ public class BluetoothMapContentObserver {
             }
 
             mMsgListMms = msgListMms;
+            mFolderCountsMms = (mMnsClient != null && c != null) ? countsMms : null;
         }
     }
 
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.map;
+
+import java.util.Arrays;
+
+/**
+ * A compact copy of the message id to mailbox mapping of an email account, used by
+ * BluetoothMapContentEmailObserver to detect new, moved and deleted messages.
+ * The message ids are kept in ascending order in a primitive array, with the
+ * mailbox key and mailbox type of each message packed in a parallel array. A
+ * checksum over the ids and mailbox keys is maintained, which can be compared with
+ * the same aggregate computed by the email provider to detect changes without
+ * reading all the messages.
+ */
+class BluetoothMapEmailMirror {
+
+    /* Returned when the message is not in the mirror */
+    public static final long NO_STATE = Long.MIN_VALUE;
+
+    /* The type of messages in a mailbox not (yet) known */
+    public static final int TYPE_UNKNOWN = 0xff;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] mIds;
+    private long[] mStates;
+    private int mSize = 0;
+    private long mChecksum = 0;
+
+    public BluetoothMapEmailMirror() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public BluetoothMapEmailMirror(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mIds = new long[capacity];
+        mStates = new long[capacity];
+    }
+
+    public static long pack(long mailboxKey, int type) {
+        return (mailboxKey << 8) | (type & 0xff);
+    }
+
+    public static long getMailboxKey(long state) {
+        return state >> 8;
+    }
+
+    public static int getType(long state) {
+        return (int)(state & 0xff);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the highest message id, or 0 if the mirror is empty
+     */
+    public long getMaxId() {
+        return (mSize > 0) ? mIds[mSize - 1] : 0;
+    }
+
+    /**
+     * @return the sum of the message id multiplied by the mailbox key over all messages
+     */
+    public long getChecksum() {
+        return mChecksum;
+    }
+
+    public long getState(long id) {
+        int index = Arrays.binarySearch(mIds, 0, mSize, id);
+        return (index >= 0) ? mStates[index] : NO_STATE;
+    }
+
+    /**
+     * Add a message or update the state of a message.
+     * @return the previous state of the message, or NO_STATE if it was not in the mirror
+     */
+    public long put(long id, long state) {
+        int index;
+        if (mSize == 0 || id > mIds[mSize - 1]) {
+            /* New messages get increasing ids, so this is the common case */
+            index = -(mSize + 1);
+        } else {
+            index = Arrays.binarySearch(mIds, 0, mSize, id);
+        }
+        if (index >= 0) {
+            long oldState = mStates[index];
+            mStates[index] = state;
+            mChecksum += id * (getMailboxKey(state) - getMailboxKey(oldState));
+            return oldState;
+        }
+        index = -(index + 1);
+        if (mSize == mIds.length) {
+            int capacity = mIds.length * 2;
+            mIds = Arrays.copyOf(mIds, capacity);
+            mStates = Arrays.copyOf(mStates, capacity);
+        }
+        System.arraycopy(mIds, index, mIds, index + 1, mSize - index);
+        System.arraycopy(mStates, index, mStates, index + 1, mSize - index);
+        mIds[index] = id;
+        mStates[index] = state;
+        mSize++;
+        mChecksum += id * getMailboxKey(state);
+        return NO_STATE;
+    }
+
+    public long getIdAt(int index) {
+        return mIds[index];
+    }
+
+    public long getStateAt(int index) {
+        return mStates[index];
+    }
+
+    public void clear() {
+        mSize = 0;
+        mChecksum = 0;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.map;
+
+/**
+ * Holds the number of messages and unread messages in each of the SMS or MMS
+ * folders. The counts are built by BluetoothMapContentObserver while tracking
+ * message changes, and used to answer message listing size requests without
+ * querying the content providers.
+ * The folder mapping must match the where clauses used in BluetoothMapContent.
+ */
+public class BluetoothMapFolderCounts {
+
+    private static final String[] FOLDERS = {
+        "inbox",
+        "sent",
+        "draft",
+        "outbox",
+        "deleted",
+    };
+    private static final int INBOX = 0;
+    private static final int SENT = 1;
+    private static final int DRAFT = 2;
+    private static final int OUTBOX = 3;
+    private static final int DELETED = 4;
+
+    /* The MMS message types included in a message listing */
+    private static final int MMS_TYPE_SEND_REQ = 128;
+    private static final int MMS_TYPE_NOTIFICATION_IND = 130;
+    private static final int MMS_TYPE_RETRIEVE_CONF = 132;
+
+    private final int[] mTotal = new int[FOLDERS.length];
+    private final int[] mUnread = new int[FOLDERS.length];
+
+    private static int getFolderIndex(String folder) {
+        for (int i = 0; i < FOLDERS.length; i++) {
+            if (FOLDERS[i].equalsIgnoreCase(folder))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Count an SMS message.
+     * @param type the Sms.TYPE of the message
+     * @param threadId the thread id of the message
+     * @param read true if the message is read
+     */
+    public void addSms(int type, long threadId, boolean read) {
+        int folder;
+        if (threadId == BluetoothMapContentObserver.DELETED_THREAD_ID) {
+            folder = DELETED;
+        } else {
+            switch (type) {
+            case 1:
+                folder = INBOX;
+                break;
+            case 2:
+                folder = SENT;
+                break;
+            case 3:
+                folder = DRAFT;
+                break;
+            case 4:
+            case 5:
+            case 6:
+                folder = OUTBOX;
+                break;
+            default:
+                return;
+            }
+        }
+        mTotal[folder]++;
+        if (!read)
+            mUnread[folder]++;
+    }
+
+    /**
+     * Count an MMS message. Only the message types included in a message listing
+     * are counted in the total, where all types are counted as unread, as done by
+     * the queries in BluetoothMapContent.
+     * @param msgBox the Mms.MESSAGE_BOX of the message
+     * @param threadId the thread id of the message
+     * @param read true if the message is read
+     * @param msgType the Mms.MESSAGE_TYPE of the message
+     */
+    public void addMms(int msgBox, long threadId, boolean read, int msgType) {
+        int folder;
+        if (threadId == BluetoothMapContentObserver.DELETED_THREAD_ID) {
+            folder = DELETED;
+        } else if (msgBox >= 1 && msgBox <= 4) {
+            folder = msgBox - 1; // INBOX, SENT, DRAFT and OUTBOX
+        } else {
+            return;
+        }
+        if (msgType == MMS_TYPE_SEND_REQ || msgType == MMS_TYPE_NOTIFICATION_IND
+                || msgType == MMS_TYPE_RETRIEVE_CONF)
+            mTotal[folder]++;
+        if (!read)
+            mUnread[folder]++;
+    }
+
+    /**
+     * @param folder the folder name, e.g. "inbox"
+     * @return the number of messages in the folder, or -1 if the folder is unknown
+     */
+    public int getTotal(String folder) {
+        int index = getFolderIndex(folder);
+        return index < 0 ? -1 : mTotal[index];
+    }
+
+    /**
+     * @param folder the folder name, e.g. "inbox"
+     * @return the number of unread messages in the folder, or -1 if the folder is unknown
+     */
+    public int getUnread(String folder) {
+        int index = getFolderIndex(folder);
+        return index < 0 ? -1 : mUnread[index];
+    }
+}
@@ -14,11 +14,15 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.concurrent.Callable;
 
 import javax.btobex.HeaderSet;
 import javax.btobex.Operation;
@@ -97,17 +101,22 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     private static final String[] SPECIAL_MAILBOX_MAP_NAME
             = {INBOX, DRAFT, OUTBOX, SENT, DELETED};
 
-    public static boolean sIsAborted = false;
+    private volatile boolean mIsAborted = false;
 
     BluetoothMapContent mOutContent;
 
+    /* Executes the content provider operations, shared with the other MAS instances */
+    private final BluetoothMapContentExecutor mContentExecutor;
+
     public BluetoothMapObexServer(Handler callback, Context context,
-                                  BluetoothMnsObexClient mns, int masId) {
+                                  BluetoothMnsObexClient mns, int masId,
+                                  BluetoothMapContentExecutor contentExecutor) {
         super();
         mCallback = callback;
         mContext = context;
         mMasId = masId;
         mMnsClient = mns;
+        mContentExecutor = contentExecutor;
         mOutContent = new BluetoothMapContent(mContext);
         if(mMasId == 0) {
            buildFolderStructure();
@@ -221,7 +230,9 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     public int onAbort(HeaderSet request, HeaderSet reply) {
         if (D) Log.d(TAG, "onAbort(): enter.");
         notifyUpdateWakeLock();
-        sIsAborted = true;
+        mIsAborted = true;
+        /* Release the OBEX thread if it is waiting for a content operation */
+        mContentExecutor.cancel(mMasId);
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
@@ -458,7 +469,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     public int onGet(Operation op) {
         if (V) Log.v(TAG, "BluetoothMapObexServer: onGet");
         notifyUpdateWakeLock();
-        sIsAborted = false;
+        mIsAborted = false;
         HeaderSet request;
         String type;
         String name;
@@ -566,6 +577,8 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             appParams.setMaxListCount(1024);
             appParams.setStartOffset(0);
         }
+        final String listFolderName = folderName;
+        final BluetoothMapAppParams listAppParams = appParams;
 
         // Check to see if we only need to send the size - hence no need to encode.
         try {
@@ -579,10 +592,15 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                 appParams.setStartOffset(0);
 
             if(appParams.getMaxListCount() != 0) {
-               if(mMasId == 0)
-                outList = mOutContent.msgListing(folderName, appParams);
-               else
-                  outList = mOutContent.msgListingEmail(folderName, appParams);
+                outList = mContentExecutor.execute(mMasId,
+                        new Callable<BluetoothMapMessageListing>() {
+                    public BluetoothMapMessageListing call() {
+                        if(mMasId == 0)
+                            return mOutContent.msgListing(listFolderName, listAppParams);
+                        else
+                            return mOutContent.msgListingEmail(listFolderName, listAppParams);
+                    }
+                });
                 // Generate the byte stream
                 outAppParams.setMessageListingSize(outList.getCount());
                 outBytes = outList.encode();
@@ -590,12 +608,27 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             }
             else {
                if(mMasId == 0){
-                listSize = mOutContent.msgListingSize(folderName, appParams);
-                hasUnread = mOutContent.msgListingHasUnread(folderName, appParams);
-               } else {
-                  listSize = mOutContent.msgListingSizeEmail(folderName, appParams);
-                  hasUnread = mOutContent.msgListingHasUnreadEmail(folderName, appParams);
-                }
+                /* Let unfiltered requests be answered from the message counts of the observer */
+                mOutContent.setContentObserver(
+                        mMnsClient != null ? mMnsClient.getContentObserver(mMasId) : null);
+               }
+                listSize = mContentExecutor.execute(mMasId, new Callable<Integer>() {
+                    public Integer call() {
+                        if(mMasId == 0)
+                            return mOutContent.msgListingSize(listFolderName, listAppParams);
+                        else
+                            return mOutContent.msgListingSizeEmail(listFolderName, listAppParams);
+                    }
+                });
+                hasUnread = mContentExecutor.execute(mMasId, new Callable<Boolean>() {
+                    public Boolean call() {
+                        if(mMasId == 0)
+                            return mOutContent.msgListingHasUnread(listFolderName, listAppParams);
+                        else
+                            return mOutContent.msgListingHasUnreadEmail(listFolderName,
+                                    listAppParams);
+                    }
+                });
                 outAppParams.setMessageListingSize(listSize);
                 Log.d(TAG, "not setting body and end of body header");
                 op.noBodyHeader();
@@ -627,7 +660,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
         if(outBytes != null) {
             try {
-                while (bytesWritten < outBytes.length && sIsAborted == false) {
+                while (bytesWritten < outBytes.length && mIsAborted == false) {
                     bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
                     outStream.write(outBytes, bytesWritten, bytesToWrite);
                     bytesWritten += bytesToWrite;
@@ -700,8 +733,13 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                 maxListCount = 1024;
                 Log.v(TAG,"mMasId is " + mMasId);
                 if(mMasId == 1) {
-                   long id = BluetoothMapUtils.getEmailAccountId(mContext);
-                   list = mOutContent.getEmailFolderListAtPath(mContext,id,mCurrentFolder.getName());
+                   final long id = BluetoothMapUtils.getEmailAccountId(mContext);
+                   final String path = mCurrentFolder.getName();
+                   list = mContentExecutor.execute(mMasId, new Callable<List<String>>() {
+                       public List<String> call() {
+                           return mOutContent.getEmailFolderListAtPath(mContext, id, path);
+                       }
+                   });
                    if(mCurrentFolder.getName().equals("telecom") || mCurrentFolder.getName().equals("msg")) {
                       if(V) Log.v(TAG, "Doing no processing");
                       for (String str : list) {
@@ -776,7 +814,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
 
         if(outBytes != null) {
             try {
-                while (bytesWritten < outBytes.length && sIsAborted == false) {
+                while (bytesWritten < outBytes.length && mIsAborted == false) {
                     bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
                     outStream.write(outBytes, bytesWritten, bytesToWrite);
                     bytesWritten += bytesToWrite;
@@ -816,54 +854,133 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
      * @return {@link ResponseCodes.OBEX_HTTP_OK} on success or
      *         {@link ResponseCodes.OBEX_HTTP_BAD_REQUEST} on error.
      */
-    private int sendGetMessageRsp(Operation op, String handle, BluetoothMapAppParams appParams){
+    private int sendGetMessageRsp(Operation op, final String handle,
+            final BluetoothMapAppParams appParams){
         OutputStream outStream ;
-        byte[] outBytes;
+        byte[] outBytes = null;
+        BluetoothMapbMessageMmsEmail streamMsg = null;
         int maxChunkSize, bytesToWrite, bytesWritten = 0;
         long msgHandle;
         if (V) Log.v(TAG, "sendGetMessageRsp for handle " + handle);
 
+        // Attachments opened for the message are released on every exit path
         try {
-            outBytes = mOutContent.getMessage(handle, appParams);
-            outStream = op.openOutputStream();
-
-        } catch (IOException e) {
-            Log.w(TAG,"sendGetMessageRsp: IOException - sending OBEX_HTTP_BAD_REQUEST", e);
-            return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
-        } catch (IllegalArgumentException e) {
-            Log.w(TAG,
-                     "sendGetMessageRsp: IllegalArgumentException (e.g. invalid handle or charset) - sending OBEX_HTTP_BAD_REQUEST"
-                         , e);
-            return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
-        }
-
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-
-        if(outBytes != null) {
             try {
-                while (bytesWritten < outBytes.length && sIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
+                streamMsg = mContentExecutor.execute(mMasId,
+                        new Callable<BluetoothMapbMessageMmsEmail>() {
+                    public BluetoothMapbMessageMmsEmail call() {
+                        return mOutContent.getStreamableMessage(handle, appParams);
+                    }
+                }, new BluetoothMapContentExecutor.ResultDisposer<BluetoothMapbMessageMmsEmail>() {
+                    public void dispose(BluetoothMapbMessageMmsEmail msg) {
+                        // aborted after the attachments were opened
+                        msg.releaseParts();
+                    }
+                });
+                if(streamMsg == null) {
+                    outBytes = mContentExecutor.execute(mMasId, new Callable<byte[]>() {
+                        public byte[] call() throws UnsupportedEncodingException {
+                            return mOutContent.getMessage(handle, appParams);
+                        }
+                    });
                 }
+                outStream = op.openOutputStream();
+
             } catch (IOException e) {
-                // We were probably aborted or disconnected
-            } finally {
-                if(outStream != null) {
+                Log.w(TAG,"sendGetMessageRsp: IOException - sending OBEX_HTTP_BAD_REQUEST", e);
+                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG,
+                         "sendGetMessageRsp: IllegalArgumentException (e.g. invalid handle or charset) - sending OBEX_HTTP_BAD_REQUEST"
+                             , e);
+                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+            }
+
+            maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
+
+            if(streamMsg != null) {
+                /* Encode MMS and e-mail messages directly into the OBEX stream, to avoid
+                 * holding the complete message including attachments in memory. */
+                boolean completed = false;
+                try {
+                    streamMsg.encodeStream(new BufferedOutputStream(
+                            new AbortableOutputStream(outStream, maxChunkSize), maxChunkSize));
+                    completed = true;
+                } catch (IOException e) {
+                    // We were probably aborted or disconnected
+                    Log.w(TAG, "sendGetMessageRsp: streaming failed", e);
+                } finally {
                     try {
                         outStream.close();
                     } catch (IOException e) {
                         // If an error occurs during close, there is no more cleanup to do
                     }
                 }
+                return completed ? ResponseCodes.OBEX_HTTP_OK
+                        : ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+            }
+
+            if(outBytes != null) {
+                try {
+                    while (bytesWritten < outBytes.length && mIsAborted == false) {
+                        bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
+                        outStream.write(outBytes, bytesWritten, bytesToWrite);
+                        bytesWritten += bytesToWrite;
+                    }
+                } catch (IOException e) {
+                    // We were probably aborted or disconnected
+                } finally {
+                    if(outStream != null) {
+                        try {
+                            outStream.close();
+                        } catch (IOException e) {
+                            // If an error occurs during close, there is no more cleanup to do
+                        }
+                    }
+                }
+                if(bytesWritten == outBytes.length)
+                    return ResponseCodes.OBEX_HTTP_OK;
+                else
+                    return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+            }
+
+            return ResponseCodes.OBEX_HTTP_OK;
+        } finally {
+            if (streamMsg != null) {
+                streamMsg.releaseParts();
             }
-            if(bytesWritten == outBytes.length)
-                return ResponseCodes.OBEX_HTTP_OK;
-            else
-                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
+    }
 
-        return ResponseCodes.OBEX_HTTP_OK;
+    /**
+     * Writes to the OBEX output stream in chunks of at most the OBEX packet size, and
+     * fails the write if the operation have been aborted by the client.
+     */
+    private class AbortableOutputStream extends FilterOutputStream {
+        private final int mMaxChunkSize;
+
+        public AbortableOutputStream(OutputStream out, int maxChunkSize) {
+            super(out);
+            mMaxChunkSize = maxChunkSize;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (mIsAborted)
+                    throw new IOException("Operation aborted");
+                int bytesToWrite = Math.min(mMaxChunkSize, length);
+                out.write(buffer, offset, bytesToWrite);
+                offset += bytesToWrite;
+                length -= bytesToWrite;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The OBEX output stream is closed by the owner of the operation
+            flush();
+        }
     }
 
     private void notifyUpdateWakeLock() {
@@ -134,6 +134,9 @@ public class BluetoothMapService extends ProfileService {
 
     private BluetoothMnsObexClient mBluetoothMnsObexClient = null;
 
+    /* Runs the content operations of all MAS instances */
+    private BluetoothMapContentExecutor mContentExecutor = null;
+
     private BluetoothSocket mConnSocket = null;
 
     private static BluetoothDevice mRemoteDevice = null;
@@ -428,6 +431,7 @@ public class BluetoothMapService extends ProfileService {
         } catch (Exception e) {
             Log.w(TAG,"Unable to register map receiver",e);
         }
+        mContentExecutor = new BluetoothMapContentExecutor();
         mConnectionManager.init();
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         // start RFCOMM listener
@@ -459,6 +463,10 @@ public class BluetoothMapService extends ProfileService {
 
         setState(BluetoothMap.STATE_DISCONNECTED, BluetoothMap.RESULT_CANCELED);
         closeService();
+        if (mContentExecutor != null) {
+            mContentExecutor.shutdown();
+            mContentExecutor = null;
+        }
         try {
             if (DEBUG) Log.d(TAG,"Unregistering Email account observer");
             getContentResolver().unregisterContentObserver(mEmailAccountObserver);
@@ -848,8 +856,10 @@ public class BluetoothMapService extends ProfileService {
             if(mBluetoothMnsObexClient == null)
                 mBluetoothMnsObexClient = new BluetoothMnsObexClient(context, mRemoteDevice);
             mBluetoothMnsObexClient.initObserver(mSessionStatusHandler, mMasId);
+            if (mContentExecutor == null)
+                throw new IOException("MAP service is not started");
             mMapServer = new BluetoothMapObexServer(mSessionStatusHandler, context,
-            mBluetoothMnsObexClient, mMasId);
+            mBluetoothMnsObexClient, mMasId, mContentExecutor);
             synchronized (this) {
                // We need to get authentication now that obex server is up
                mAuth = new BluetoothMapAuthenticator(mSessionStatusHandler);
@@ -883,6 +893,12 @@ public class BluetoothMapService extends ProfileService {
                 }
             }
 
+            if (mContentExecutor != null) {
+                // Release the OBEX thread if it is waiting for a content operation
+                mContentExecutor.cancel(mMasId);
+                if (DEBUG) mContentExecutor.logMetrics(mMasId);
+            }
+
             if (mServerSession != null) {
                 mServerSession.close();
                 mServerSession = null;
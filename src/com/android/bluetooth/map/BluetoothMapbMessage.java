@@ -244,115 +244,132 @@ public abstract class BluetoothMapbMessage {
     };
 
     private static class BMsgReader {
+        /* Initial size of the read window. The window grows if a single line does not fit. */
+        private static final int BUFFER_SIZE = 8 * 1024;
+
         InputStream mInStream;
+        private byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mPos = 0;   /* Index of the first unconsumed byte in mBuffer */
+        private int mLimit = 0; /* Index after the last valid byte in mBuffer */
+        private boolean mEof = false;
+        /* Set by scanLine() - the line is located at mBuffer[mLineStart, mLineStart+length) */
+        private int mLineStart = 0;
+
         public BMsgReader(InputStream is)
         {
             this.mInStream = is;
         }
 
-        private byte[] getLineTerminatorAsBytes() {
-            int readByte;
-
-            /* Donot skip Empty Line.
-             */
-
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
+        /**
+         * Read more data from the stream into the window. Already consumed bytes are
+         * discarded, and the window is expanded if it is full.
+         * @return false if no more data could be read
+         */
+        private boolean fill() {
+            if (mEof)
+                return false;
+            if (mPos > 0) {
+                System.arraycopy(mBuffer, mPos, mBuffer, 0, mLimit - mPos);
+                mLimit -= mPos;
+                mLineStart -= mPos;
+                mPos = 0;
+            }
+            if (mLimit == mBuffer.length) {
+                byte[] newBuffer = new byte[mBuffer.length * 2];
+                System.arraycopy(mBuffer, 0, newBuffer, 0, mLimit);
+                mBuffer = newBuffer;
+            }
             try {
-                while ((readByte = mInStream.read()) != -1) {
-                    if (readByte == '\r') {
-                        if ((readByte = mInStream.read()) != -1 && readByte == '\n') {
-                            if(output.size() == 0){
-                               Log.v(TAG,"outputsize 0");
-                               output.write('\r');
-                               output.write('\n');
-                            }
-                            break;
-                        } else {
-                            output.write('\r');
-                        }
-                    }
-                    output.write(readByte);
+                int read = mInStream.read(mBuffer, mLimit, mBuffer.length - mLimit);
+                if (read == -1) {
+                    mEof = true;
+                    return false;
                 }
+                mLimit += read;
             } catch (IOException e) {
                 Log.w(TAG, e);
-                return null;
+                mEof = true;
+                return false;
             }
-            return output.toByteArray();
+            return true;
         }
 
-        private byte[] getLineAsBytes() {
-            int readByte;
-
-            /* TODO: Actually the vCard spec. allows to break lines by using a newLine
-             * followed by a white space character(space or tab). Not sure this is a good idea to implement
-             * as the Bluetooth MAP spec. illustrates vCards using tab alignment, hence actually
-             * showing an invalid vCard format...
-             * If we read such a folded line, the folded part will be skipped in the parser
-             */
-
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            try {
-                while ((readByte = mInStream.read()) != -1) {
-                    if (readByte == '\r') {
-                        if ((readByte = mInStream.read()) != -1 && readByte == '\n') {
-                            if(output.size() == 0)
-                                continue; /* Skip empty lines */
-                            else
-                                break;
-                        } else {
-                            output.write('\r');
-                        }
-                    } else if (readByte == '\n' && output.size() == 0) {
-                        /* Empty line - skip */
-                        continue;
+        /**
+         * Locate the next line in the window, and consume it including the CRLF terminator.
+         * The line content starts at mLineStart.
+         * @return the length of the line excluding the terminator, or -1 if the end of the
+         * stream is reached before any data is read.
+         */
+        private int scanLine() {
+            int scanned = 0; /* Number of bytes already examined relative to mPos */
+            mLineStart = mPos;
+            while (true) {
+                for (int i = mPos + scanned, n = mLimit - 1; i < n; i++) {
+                    if (mBuffer[i] == '\r' && mBuffer[i + 1] == '\n') {
+                        int length = i - mPos;
+                        mPos = i + 2;
+                        return length;
                     }
-
-                    output.write(readByte);
                 }
-            } catch (IOException e) {
+                scanned = Math.max(0, mLimit - mPos - 1);
+                if (!fill()) {
+                    /* EOF - return the remaining data as the last line */
+                    int length = mLimit - mPos;
+                    mPos = mLimit;
+                    return length == 0 ? -1 : length;
+                }
+            }
+        }
+
+        private String decodeLine(int length) {
+            try {
+                return new String(mBuffer, mLineStart, length, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
                 Log.w(TAG, e);
                 return null;
             }
-            return output.toByteArray();
         }
 
         /**
          * Read a line of text from the BMessage including empty lines.
+         * An empty line is returned as "\r\n".
          * @return the next line of text, or null at end of file, or if UTF-8 is not supported.
          */
         public String getLineTerminator() {
-            try {
-                byte[] line = getLineTerminatorAsBytes();
-                if (line == null) {
-                    return null;
-                } else if (line.length == 0){
-                    return null;
-                } else {
-                    return new String(line, "UTF-8");
-                }
-            } catch (UnsupportedEncodingException e) {
-                Log.w(TAG, e);
+            int length = scanLine();
+            if (length == -1) {
                 return null;
+            } else if (length == 0) {
+                if(V) Log.v(TAG,"outputsize 0");
+                return "\r\n";
             }
+            return decodeLine(length);
         }
+
         /**
          * Read a line of text from the BMessage.
+         * Empty lines are skipped.
          * @return the next line of text, or null at end of file, or if UTF-8 is not supported.
          */
         public String getLine() {
-            try {
-                byte[] line = getLineAsBytes();
-                if (line == null) {
-                   return null;
-                } else if (line.length == 0) {
-                   return null;
-                } else {
-                   return new String(line, "UTF-8");
+            /* TODO: Actually the vCard spec. allows to break lines by using a newLine
+             * followed by a white space character(space or tab). Not sure this is a good idea to implement
+             * as the Bluetooth MAP spec. illustrates vCards using tab alignment, hence actually
+             * showing an invalid vCard format...
+             * If we read such a folded line, the folded part will be skipped in the parser
+             */
+            int length;
+            do {
+                length = scanLine();
+                /* Skip leading LFs - e.g. from a "\n\r\n" sequence */
+                while (length > 0 && mBuffer[mLineStart] == '\n') {
+                    mLineStart++;
+                    length--;
                 }
-            } catch (UnsupportedEncodingException e) {
-                Log.w(TAG, e);
+            } while (length == 0);
+            if (length == -1)
                 return null;
-            }
+            return decodeLine(length);
         }
 
         /**
@@ -413,10 +430,14 @@ public abstract class BluetoothMapbMessage {
          */
         public byte[] getDataBytes(int length) {
             byte[] data = new byte[length];
+            /* First drain what is already in the window */
+            int offset = Math.min(length, mLimit - mPos);
+            System.arraycopy(mBuffer, mPos, data, 0, offset);
+            mPos += offset;
             try {
                 int bytesRead;
-                int offset=0;
-                while ((bytesRead = mInStream.read(data, offset, length-offset)) != (length - offset)) {
+                while (offset < length) {
+                    bytesRead = mInStream.read(data, offset, length - offset);
                     if(bytesRead == -1)
                         return null;
                     offset += bytesRead;
@@ -428,17 +449,41 @@ public abstract class BluetoothMapbMessage {
             return data;
         }
 
+        /**
+         * Read lines until a line matching the terminator is found. The lines are compared
+         * as raw bytes in the window, hence only the content is decoded.
+         * @param terminator the line ending the data - this line is consumed, but not returned
+         * @return the lines read, each terminated by CRLF
+         */
         public String getStringTerminator(String terminator) {
-            StringBuilder dataStr= new StringBuilder();
-            String lineCur = getLineTerminator();
-           while( lineCur != null && (!lineCur.equals(terminator))) {
-                dataStr.append(lineCur);
-                if(! lineCur.equals("\r\n")) {
-                   dataStr.append("\r\n");
+            StringBuilder dataStr = new StringBuilder(mLimit - mPos);
+            byte[] term;
+            try {
+                term = terminator.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                Log.w(TAG, e);
+                return null;
+            }
+            int length;
+            while ((length = scanLine()) != -1) {
+                if (length == 0) {
+                    dataStr.append("\r\n");
+                    continue;
                 }
-                lineCur = getLineTerminator();
-           }
-           return dataStr.toString();
+                if (length == term.length && matches(term)) {
+                    break;
+                }
+                dataStr.append(decodeLine(length)).append("\r\n");
+            }
+            return dataStr.toString();
+        }
+
+        private boolean matches(byte[] term) {
+            for (int i = 0; i < term.length; i++) {
+                if (mBuffer[mLineStart + i] != term[i])
+                    return false;
+            }
+            return true;
         }
     };
 
@@ -881,10 +926,15 @@ public abstract class BluetoothMapbMessage {
         return out;
     }
 
-    public byte[] encodeGeneric(ArrayList<byte[]> bodyFragments) throws UnsupportedEncodingException
+    /**
+     * Encode the bMessage properties, the vCards and the bBody properties up to and
+     * including the LENGTH property.
+     * @param length the value of the LENGTH property
+     * @return the UTF-8 encoded start of the bMessage
+     */
+    protected byte[] encodeEnvelopeStart(int length) throws UnsupportedEncodingException
     {
         StringBuilder sb = new StringBuilder(256);
-        byte[] msgStart, msgEnd;
         sb.append("BEGIN:BMSG").append("\r\n");
         sb.append(VERSION).append("\r\n");
         sb.append("STATUS:").append(status).append("\r\n");
@@ -913,22 +963,36 @@ public abstract class BluetoothMapbMessage {
             sb.append("CHARSET:").append(charset).append("\r\n");
 
 
-        int length = 0;
-        /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
-        for (byte[] fragment : bodyFragments) {
-            length += fragment.length + 22;
-        }
         sb.append("LENGTH:").append(length).append("\r\n");
 
-        // Extract the initial part of the bMessage string
-        msgStart = sb.toString().getBytes("UTF-8");
+        return sb.toString().getBytes("UTF-8");
+    }
 
-        sb = new StringBuilder(31);
+    /**
+     * @return the UTF-8 encoded end of the bMessage, following the last END:MSG
+     */
+    protected static byte[] encodeEnvelopeEnd() throws UnsupportedEncodingException
+    {
+        StringBuilder sb = new StringBuilder(31);
         sb.append("END:BBODY").append("\r\n");
         sb.append("END:BENV").append("\r\n");
         sb.append("END:BMSG").append("\r\n");
 
-        msgEnd = sb.toString().getBytes("UTF-8");
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    public byte[] encodeGeneric(ArrayList<byte[]> bodyFragments) throws UnsupportedEncodingException
+    {
+        byte[] msgStart, msgEnd;
+        int length = 0;
+        /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
+        for (byte[] fragment : bodyFragments) {
+            length += fragment.length + 22;
+        }
+
+        // Extract the initial part of the bMessage string
+        msgStart = encodeEnvelopeStart(length);
+        msgEnd = encodeEnvelopeEnd();
 
         try {
 
@@ -14,6 +14,8 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.FileInputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
@@ -23,6 +25,7 @@ import java.util.Date;
 import java.util.Locale;
 import java.util.UUID;
 
+import android.os.ParcelFileDescriptor;
 import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
 import android.util.Base64;
@@ -31,11 +34,18 @@ import java.util.Random;
 import android.util.Log;
 import java.io.IOException;
 
+import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
+
 public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
     private static final boolean D = BluetoothMapService.DEBUG;
     private static final boolean V = Log.isLoggable(BluetoothMapService.LOG_TAG, Log.VERBOSE) ? true : false;
     protected static String TAG = "BluetoothMapbMessageEmail";
     private static final String CRLF = "\r\n";
+    private static final byte[] END_MSG = {'E', 'N', 'D', ':', 'M', 'S', 'G'};
+    private static final byte[] END_MSG_ESCAPED = {'/', 'E', 'N', 'D', '\\', ':', 'M', 'S', 'G'};
+    /* The number of bytes encoded into one line of 76 characters using Base64.DEFAULT */
+    private static final int BASE64_LINE_BYTES = 57;
+    private static final int STREAM_BUFFER_SIZE = BASE64_LINE_BYTES * 128;
 
     public static class MimePart {
         public long _id = INVALID_VALUE;   /* The _id from the content provider, can be used to sort the parts if needed */
@@ -48,10 +58,15 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
                                                 holds a method for the mapping. */
         public String fileName = null;     /* Do not seem to be used */
         public byte[] data = null;        /* The raw un-encoded data e.g. the raw jpeg data or the text.getBytes("utf-8") */
-
-
+        public ParcelFileDescriptor dataFd = null; /* If set, the raw data is streamed from this file
+                                                      by encodeStream() in stead of using data */
 
         public void encode(StringBuilder sb, String boundaryTag, boolean last) throws UnsupportedEncodingException {
+            encode(sb, boundaryTag, last, null);
+        }
+
+        private void encode(StringBuilder sb, String boundaryTag, boolean last,
+                ArrayList<BodySegment> segments) throws UnsupportedEncodingException {
             sb.append("--").append(boundaryTag).append("\r\n");
             if(contentType != null)
                 sb.append("Content-Type: ").append(contentType);
@@ -64,13 +79,20 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
                 sb.append("Content-ID: ").append(contentId).append("\r\n");
             if(contentDisposition != null)
                 sb.append("Content-Disposition: ").append(contentDisposition).append("\r\n");
-            if(data != null) {
+            if(hasStreamedData(segments)) {
+                if(isText()) {
+                    sb.append("Content-Transfer-Encoding: 8BIT\r\n\r\n"); // Add the header split empty line
+                    addStreamedData(sb, segments, false);
+                } else {
+                    sb.append("Content-Transfer-Encoding: Base64\r\n\r\n"); // Add the header split empty line
+                    addStreamedData(sb, segments, true);
+                }
+                sb.append("\r\n");
+            } else if(data != null) {
                 /* TODO: If errata 4176 is adopted in the current form (it is not in either 1.1 or 1.2),
                 the below is not allowed, Base64 should be used for text. */
 
-                if(contentType != null &&
-                        (contentType.toUpperCase().contains("TEXT") ||
-                         contentType.toUpperCase().contains("SMIL") )) {
+                if(isText()) {
                     sb.append("Content-Transfer-Encoding: 8BIT\r\n\r\n"); // Add the header split empty line
                     sb.append(new String(data,"UTF-8")).append("\r\n");
                 }
@@ -85,13 +107,23 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
         }
 
         public void encodePlainText(StringBuilder sb) throws UnsupportedEncodingException {
+            encodePlainText(sb, null);
+        }
+
+        private void encodePlainText(StringBuilder sb, ArrayList<BodySegment> segments)
+                throws UnsupportedEncodingException {
             if(contentType != null && contentType.toUpperCase().contains("TEXT")) {
-                if(data != null) {
+                if(data != null || hasStreamedData(segments)) {
                    sb.append(contentType).append("\r\n");
                    sb.append("Content-Transfer-Encoding: 8bit").append("\r\n");
                    sb.append("Content-Disposition:inline").append("\r\n")
                            .append("\r\n");
-                sb.append(new String(data,"UTF-8")).append("\r\n");
+                   if(hasStreamedData(segments)) {
+                       addStreamedData(sb, segments, false);
+                       sb.append("\r\n");
+                   } else {
+                       sb.append(new String(data,"UTF-8")).append("\r\n");
+                   }
                 }
             } else if(contentType != null && contentType.toUpperCase().contains("/SMIL")) {
                 /* Skip the smil.xml, as no-one knows what it is. */
@@ -103,6 +135,150 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
                     sb.append("<").append("attachment").append(">\r\n");
             }
         }
+
+        private boolean isText() {
+            return contentType != null &&
+                    (contentType.toUpperCase().contains("TEXT") ||
+                     contentType.toUpperCase().contains("SMIL"));
+        }
+
+        private boolean hasStreamedData(ArrayList<BodySegment> segments) {
+            return segments != null && dataFd != null;
+        }
+
+        /**
+         * End the current text segment, and add a segment referring to the data of this part.
+         */
+        private void addStreamedData(StringBuilder sb, ArrayList<BodySegment> segments,
+                boolean base64) throws UnsupportedEncodingException {
+            addTextSegment(sb, segments);
+            segments.add(new BodySegment(this, base64));
+        }
+
+        /**
+         * Close the file descriptor of the part data, if any.
+         */
+        public void closeDataFd() {
+            if(dataFd != null) {
+                try {
+                    dataFd.close();
+                } catch (IOException e) {
+                    // Nothing more to do
+                }
+                dataFd = null;
+            }
+        }
+    }
+
+    /**
+     * A section of the <bmessage-body-content> used when streaming the message. Either
+     * already encoded and escaped text, or the data of a MimePart, which is read from
+     * its file descriptor while writing.
+     */
+    private static class BodySegment {
+        public final byte[] text;
+        public final MimePart part;
+        public final boolean base64;
+
+        public BodySegment(byte[] text) {
+            this.text = text;
+            this.part = null;
+            this.base64 = false;
+        }
+
+        public BodySegment(MimePart part, boolean base64) {
+            this.text = null;
+            this.part = part;
+            this.base64 = base64;
+        }
+    }
+
+    /**
+     * Replaces any occurrence of END:MSG with /END\:MSG while writing a byte stream.
+     * If no output stream is supplied, the occurrences are only counted.
+     * Occurrences spanning multiple calls to write() are handled.
+     */
+    private static class EndMsgEscaper {
+        private final OutputStream mOut;
+        private final byte[] mBuffer;
+        private int mBufferPos = 0;
+        private int mMatched = 0; /* Number of bytes of END_MSG matched so far */
+        private int mCount = 0;
+
+        public EndMsgEscaper(OutputStream out) {
+            mOut = out;
+            mBuffer = (out != null) ? new byte[STREAM_BUFFER_SIZE] : null;
+        }
+
+        public void write(byte[] data, int length) throws IOException {
+            for(int i = 0; i < length; i++) {
+                byte b = data[i];
+                if(b == END_MSG[mMatched]) {
+                    if(++mMatched == END_MSG.length) {
+                        put(END_MSG_ESCAPED, END_MSG_ESCAPED.length);
+                        mMatched = 0;
+                        mCount++;
+                    }
+                    continue;
+                }
+                if(mMatched > 0) {
+                    /* No two characters in END:MSG are equal, hence a match can only
+                     * restart at the current byte. */
+                    put(END_MSG, mMatched);
+                    mMatched = 0;
+                    if(b == END_MSG[0]) {
+                        mMatched = 1;
+                        continue;
+                    }
+                }
+                if(mOut != null) {
+                    if(mBufferPos == mBuffer.length)
+                        flush();
+                    mBuffer[mBufferPos++] = b;
+                }
+            }
+        }
+
+        public void finish() throws IOException {
+            put(END_MSG, mMatched);
+            mMatched = 0;
+            flush();
+        }
+
+        /**
+         * @return the number of occurrences of END:MSG found
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        private void put(byte[] data, int length) throws IOException {
+            if(mOut == null)
+                return;
+            if(mBufferPos + length > mBuffer.length)
+                flush();
+            System.arraycopy(data, 0, mBuffer, mBufferPos, length);
+            mBufferPos += length;
+        }
+
+        private void flush() throws IOException {
+            if(mOut != null && mBufferPos > 0) {
+                mOut.write(mBuffer, 0, mBufferPos);
+                mBufferPos = 0;
+            }
+        }
+    }
+
+    /**
+     * Move the content of the StringBuilder into a new escaped text segment, and clear it.
+     */
+    private static void addTextSegment(StringBuilder sb, ArrayList<BodySegment> segments)
+            throws UnsupportedEncodingException {
+        if(sb.length() == 0)
+            return;
+        String tmpBody = sb.toString().replaceAll("END:MSG", "/END\\:MSG"); // Replace any occurrences of END:MSG with \END:MSG
+        segments.add(new BodySegment(tmpBody.getBytes("UTF-8")));
+        sb.setLength(0);
     }
 
     private long date = INVALID_VALUE;
@@ -381,8 +557,33 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
         if (V) Log.v(TAG, "Inside encodeEmail ");
         ArrayList<byte[]> bodyFragments = new ArrayList<byte[]>();
         StringBuilder sb = new StringBuilder ();
-        int count = 0;
         String emailBody;
+
+        encodeEmailContent(sb, null);
+
+        emailBody = sb.toString();
+        if (V) Log.v(TAG, "emailBody is "+emailBody);
+
+        if(emailBody != null) {
+            String tmpBody = emailBody.replaceAll("END:MSG", "/END\\:MSG"); // Replace any occurrences of END:MSG with \END:MSG
+            bodyFragments.add(tmpBody.getBytes("UTF-8"));
+        } else {
+            bodyFragments.add(new byte[0]);
+        }
+
+        return encodeGeneric(bodyFragments);
+    }
+
+    /**
+     * Encode the <bmessage-body-content> of an EMAIL
+     * @param sb the StringBuilder to encode into
+     * @param segments if not null, parts with a dataFd are added as segments to be streamed,
+     * and the content of sb is split into segments around them.
+     */
+    private void encodeEmailContent(StringBuilder sb, ArrayList<BodySegment> segments)
+            throws UnsupportedEncodingException
+    {
+        int count = 0;
         Random randomGenerator = new Random();
         int randomInt = randomGenerator.nextInt(1000);
         String boundary = "MessageBoundary."+randomInt;
@@ -401,30 +602,18 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
         if (parts != null) {
             if(getIncludeAttachments() == false) {
                for(MimePart part : parts) {
-                   part.encodePlainText(sb); /* We call encode on all parts, to include a tag, where an attachment is missing. */
+                   part.encodePlainText(sb, segments); /* We call encode on all parts, to include a tag, where an attachment is missing. */
                    sb.append("--"+boundary+"--").append("\r\n");
                }
            } else {
                for(MimePart part : parts) {
                    count++;
-                   part.encode(sb, getBoundary(), (count == parts.size()));
+                   part.encode(sb, getBoundary(), (count == parts.size()), segments);
                }
            }
         } else {
                Log.e(TAG, " parts is null.");
         }
-
-        emailBody = sb.toString();
-        if (V) Log.v(TAG, "emailBody is "+emailBody);
-
-        if(emailBody != null) {
-            String tmpBody = emailBody.replaceAll("END:MSG", "/END\\:MSG"); // Replace any occurrences of END:MSG with \END:MSG
-            bodyFragments.add(tmpBody.getBytes("UTF-8"));
-        } else {
-            bodyFragments.add(new byte[0]);
-        }
-
-        return encodeGeneric(bodyFragments);
     }
 
     /* Notes on MMS
@@ -465,9 +654,32 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
     {
         ArrayList<byte[]> bodyFragments = new ArrayList<byte[]>();
         StringBuilder sb = new StringBuilder();
-        int count = 0;
         String mmsBody;
 
+        encodeMmsContent(sb, null);
+        mmsBody = sb.toString();
+
+        if(mmsBody != null) {
+            String tmpBody = mmsBody.replaceAll("END:MSG", "/END\\:MSG"); // Replace any occurrences of END:MSG with \END:MSG
+            bodyFragments.add(tmpBody.getBytes("UTF-8"));
+        } else {
+            bodyFragments.add(new byte[0]);
+        }
+
+        return encodeGeneric(bodyFragments);
+    }
+
+    /**
+     * Encode the <bmessage-body-content> of a MMS
+     * @param sb the StringBuilder to encode into
+     * @param segments if not null, parts with a dataFd are added as segments to be streamed,
+     * and the content of sb is split into segments around them.
+     */
+    private void encodeMmsContent(StringBuilder sb, ArrayList<BodySegment> segments)
+            throws UnsupportedEncodingException
+    {
+        int count = 0;
+
         encoding = "8BIT"; // The encoding used
 
         encodeHeaders(sb);
@@ -475,25 +687,131 @@ public class BluetoothMapbMessageMmsEmail extends BluetoothMapbMessage {
         if(parts != null) {
            if(getIncludeAttachments() == false) {
                for(MimePart part : parts) {
-                   part.encodePlainText(sb); /* We call encode on all parts, to include a tag, where an attachment is missing. */
+                   part.encodePlainText(sb, segments); /* We call encode on all parts, to include a tag, where an attachment is missing. */
                }
            } else {
                for(MimePart part : parts) {
                    count++;
-                   part.encode(sb, getBoundary(), (count == parts.size()));
+                   part.encode(sb, getBoundary(), (count == parts.size()), segments);
                }
            }
         }
-        mmsBody = sb.toString();
+    }
 
-        if(mmsBody != null) {
-            String tmpBody = mmsBody.replaceAll("END:MSG", "/END\\:MSG"); // Replace any occurrences of END:MSG with \END:MSG
-            bodyFragments.add(tmpBody.getBytes("UTF-8"));
+    /**
+     * Encode the bMessage directly into a stream. The data of parts having a dataFd is
+     * read from the file while writing, hence attachments are never held in memory as a
+     * whole. Parts without a dataFd are encoded as by encode().
+     * The caller is responsible for closing the file descriptors - see releaseParts().
+     * @param out the stream to write the bMessage to
+     * @throws IOException if reading a part or writing to the stream fails
+     */
+    public void encodeStream(OutputStream out) throws IOException
+    {
+        ArrayList<BodySegment> segments = new ArrayList<BodySegment>();
+        StringBuilder sb = new StringBuilder();
+        long length = 0;
+
+        if(type == TYPE.EMAIL)
+            encodeEmailContent(sb, segments);
+        else
+            encodeMmsContent(sb, segments);
+        addTextSegment(sb, segments);
+
+        /* The LENGTH property is written before the content, hence the length of the
+         * streamed parts must be determined up front. */
+        for(BodySegment segment : segments) {
+            length += getSegmentLength(segment);
+        }
+        /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
+        length += 22;
+        if(length > Integer.MAX_VALUE)
+            throw new IOException("Message too large: " + length);
+
+        out.write(encodeEnvelopeStart((int)length));
+        out.write("BEGIN:MSG\r\n".getBytes("UTF-8"));
+        for(BodySegment segment : segments) {
+            writeSegment(segment, out);
+        }
+        out.write("\r\nEND:MSG\r\n".getBytes("UTF-8"));
+        out.write(encodeEnvelopeEnd());
+        out.flush();
+    }
+
+    /**
+     * Close any file descriptors held by the parts of this message.
+     */
+    public void releaseParts() {
+        if(parts == null)
+            return;
+        for(MimePart part : parts) {
+            part.closeDataFd();
+        }
+    }
+
+    /* Note: The returned stream must not be closed, as that would close the file descriptor. */
+    private static FileInputStream openSegment(BodySegment segment) throws IOException {
+        FileInputStream is = new FileInputStream(segment.part.dataFd.getFileDescriptor());
+        is.getChannel().position(0); // The file may already have been read to determine the length
+        return is;
+    }
+
+    private static long getSegmentLength(BodySegment segment) throws IOException {
+        if(segment.text != null)
+            return segment.text.length;
+
+        long size = segment.part.dataFd.getStatSize();
+        if(size < 0)
+            throw new IOException("Unable to determine the size of part " + segment.part._id);
+        if(segment.base64) {
+            /* Base64.DEFAULT adds a '\n' after each line of 76 characters and after the last line */
+            return ((size + 2) / 3) * 4 + (size + BASE64_LINE_BYTES - 1) / BASE64_LINE_BYTES;
+        }
+
+        /* Count the number of END:MSG occurrences, as each will be escaped by two extra bytes */
+        EndMsgEscaper counter = new EndMsgEscaper(null);
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        FileInputStream is = openSegment(segment);
+        int len;
+        while((len = is.read(buffer)) != -1) {
+            counter.write(buffer, len);
+        }
+        counter.finish();
+        return size + (END_MSG_ESCAPED.length - END_MSG.length) * counter.getCount();
+    }
+
+    private static void writeSegment(BodySegment segment, OutputStream out) throws IOException {
+        if(segment.text != null) {
+            out.write(segment.text);
+            return;
+        }
+
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        FileInputStream is = openSegment(segment);
+        int len;
+        if(segment.base64) {
+            /* Always encode complete lines, except for the last chunk, to get the exact
+             * same line breaks as encoding the data in one go. */
+            while((len = readFully(is, buffer)) > 0) {
+                out.write(Base64.encode(buffer, 0, len, Base64.DEFAULT));
+            }
         } else {
-            bodyFragments.add(new byte[0]);
+            EndMsgEscaper escaper = new EndMsgEscaper(out);
+            while((len = is.read(buffer)) != -1) {
+                escaper.write(buffer, len);
+            }
+            escaper.finish();
         }
+    }
 
-        return encodeGeneric(bodyFragments);
+    private static int readFully(FileInputStream is, byte[] buffer) throws IOException {
+        int offset = 0;
+        int len;
+        while(offset < buffer.length
+                && (len = is.read(buffer, offset, buffer.length - offset)) != -1) {
+            offset += len;
+        }
+        return offset;
     }
 
 
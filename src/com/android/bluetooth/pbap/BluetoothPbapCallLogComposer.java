@@ -33,7 +33,8 @@ import com.android.vcard.VCardConfig;
 import com.android.vcard.VCardConstants;
 import com.android.vcard.VCardUtils;
 
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * VCard composer especially for Call Log used in Bluetooth.
@@ -74,6 +75,12 @@ public class BluetoothPbapCallLogComposer {
     private static final String VCARD_PROPERTY_CALLTYPE_INCOMING = "RECEIVED";
     private static final String VCARD_PROPERTY_CALLTYPE_OUTGOING = "DIALED";
     private static final String VCARD_PROPERTY_CALLTYPE_MISSED = "MISSED";
+    private static final List<String> CALLTYPE_INCOMING_PARAMETERS =
+            Collections.singletonList(VCARD_PROPERTY_CALLTYPE_INCOMING);
+    private static final List<String> CALLTYPE_OUTGOING_PARAMETERS =
+            Collections.singletonList(VCARD_PROPERTY_CALLTYPE_OUTGOING);
+    private static final List<String> CALLTYPE_MISSED_PARAMETERS =
+            Collections.singletonList(VCARD_PROPERTY_CALLTYPE_MISSED);
 
     private final Context mContext;
     private ContentResolver mContentResolver;
@@ -83,6 +90,10 @@ public class BluetoothPbapCallLogComposer {
 
     private String mErrorReason = NO_ERROR;
 
+    private VCardBuilder mBuilder;
+    private boolean mBuilderVer21;
+    private final Time mTime = new Time();
+
     public BluetoothPbapCallLogComposer(final Context context) {
         mContext = context;
         mContentResolver = context.getContentResolver();
@@ -91,7 +102,9 @@ public class BluetoothPbapCallLogComposer {
     public boolean init(final Uri contentUri, final String selection,
             final String[] selectionArgs, final String sortOrder) {
         final String[] projection;
-        if (CallLog.Calls.CONTENT_URI.equals(contentUri)) {
+        // The uri may have the limit and offset parameters of a window of the call log
+        if (CallLog.Calls.CONTENT_URI.getAuthority().equals(contentUri.getAuthority())
+                && CallLog.Calls.CONTENT_URI.getPath().equals(contentUri.getPath())) {
             projection = sCallLogProjection;
         } else {
             mErrorReason = FAILURE_REASON_UNSUPPORTED_URI;
@@ -133,11 +146,22 @@ public class BluetoothPbapCallLogComposer {
         }
     }
 
+    /* Reused for the entries, the builder of the vCard version last used */
+    private VCardBuilder getBuilder(boolean vcardVer21) {
+        if (mBuilder == null || mBuilderVer21 != vcardVer21) {
+            final int vcardType = (vcardVer21 ? VCardConfig.VCARD_TYPE_V21_GENERIC :
+                    VCardConfig.VCARD_TYPE_V30_GENERIC) |
+                    VCardConfig.FLAG_REFRAIN_PHONE_NUMBER_FORMATTING;
+            mBuilder = new VCardBuilder(vcardType);
+            mBuilderVer21 = vcardVer21;
+        } else {
+            mBuilder.clear();
+        }
+        return mBuilder;
+    }
+
     private String createOneCallLogEntryInternal(boolean vcardVer21) {
-        final int vcardType = (vcardVer21 ? VCardConfig.VCARD_TYPE_V21_GENERIC :
-                VCardConfig.VCARD_TYPE_V30_GENERIC) |
-                VCardConfig.FLAG_REFRAIN_PHONE_NUMBER_FORMATTING;
-        final VCardBuilder builder = new VCardBuilder(vcardType);
+        final VCardBuilder builder = getBuilder(vcardVer21);
         String name = mCursor.getString(CALLER_NAME_COLUMN_INDEX);
         String number = mCursor.getString(NUMBER_COLUMN_INDEX);
         final int numberPresentation = mCursor.getInt(NUMBER_PRESENTATION_COLUMN_INDEX);
@@ -196,9 +220,8 @@ public class BluetoothPbapCallLogComposer {
      * The format is: ("%Y%m%dT%H%M%S").
      */
     private final String toRfc2455Format(final long millSecs) {
-        Time startDate = new Time();
-        startDate.set(millSecs);
-        return startDate.format2445();
+        mTime.set(millSecs);
+        return mTime.format2445();
     }
 
     /**
@@ -215,18 +238,18 @@ public class BluetoothPbapCallLogComposer {
         //
         // e.g. "X-IRMC-CALL-DATETIME;MISSED:20050320T100000"
         final int callLogType = mCursor.getInt(CALL_TYPE_COLUMN_INDEX);
-        final String callLogTypeStr;
+        final List<String> callLogTypeStr;
         switch (callLogType) {
             case Calls.INCOMING_TYPE: {
-                callLogTypeStr = VCARD_PROPERTY_CALLTYPE_INCOMING;
+                callLogTypeStr = CALLTYPE_INCOMING_PARAMETERS;
                 break;
             }
             case Calls.OUTGOING_TYPE: {
-                callLogTypeStr = VCARD_PROPERTY_CALLTYPE_OUTGOING;
+                callLogTypeStr = CALLTYPE_OUTGOING_PARAMETERS;
                 break;
             }
             case Calls.MISSED_TYPE: {
-                callLogTypeStr = VCARD_PROPERTY_CALLTYPE_MISSED;
+                callLogTypeStr = CALLTYPE_MISSED_PARAMETERS;
                 break;
             }
             default: {
@@ -236,8 +259,8 @@ public class BluetoothPbapCallLogComposer {
         }
 
         final long dateAsLong = mCursor.getLong(DATE_COLUMN_INDEX);
-        builder.appendLine(VCARD_PROPERTY_X_TIMESTAMP,
-                Arrays.asList(callLogTypeStr), toRfc2455Format(dateAsLong));
+        builder.appendLine(VCARD_PROPERTY_X_TIMESTAMP, callLogTypeStr,
+                toRfc2455Format(dateAsLong));
     }
 
     public void terminate() {
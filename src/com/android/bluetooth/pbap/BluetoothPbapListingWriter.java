@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.btobex.Operation;
+import javax.btobex.ServerOperation;
+
+/**
+ * Writes a vCard-listing object to the OBEX output stream as the entries are found,
+ * instead of building the whole listing before sending it.
+ * The entries are XML escaped and UTF-8 encoded into a buffer of the OBEX packet
+ * size, written to the stream each time it fills up.
+ */
+class BluetoothPbapListingWriter {
+    private static final byte[] LISTING_BEGIN = ("<?xml version=\"1.0\"?>"
+            + "<!DOCTYPE vcard-listing SYSTEM \"vcard-listing.dtd\">"
+            + "<vCard-listing version=\"1.0\">").getBytes();
+    private static final byte[] LISTING_END = "</vCard-listing>".getBytes();
+    private static final byte[] CARD_BEGIN = "<card handle=\"".getBytes();
+    private static final byte[] CARD_NAME = ".vcf\" name=\"".getBytes();
+    private static final byte[] CARD_END = "\"/>".getBytes();
+    private static final byte[] LT = "&lt;".getBytes();
+    private static final byte[] GT = "&gt;".getBytes();
+    private static final byte[] QUOT = "&quot;".getBytes();
+    private static final byte[] APOS = "&#039;".getBytes();
+    private static final byte[] AMP = "&amp;".getBytes();
+
+    private static final int MIN_BUFFER_SIZE = 256;
+
+    private final Operation mOp;
+    private final AtomicBoolean mAborted;
+    private final OutputStream mOut;
+    private final byte[] mBuffer;
+    private int mCount = 0;
+    private int mEntries = 0;
+
+    /**
+     * @param op the operation, marked aborted on abort
+     * @param aborted the abort flag of the session
+     * @param out the output stream of the operation
+     * @param bufferSize the size of the writes, usually the OBEX packet size
+     */
+    BluetoothPbapListingWriter(Operation op, AtomicBoolean aborted, OutputStream out,
+            int bufferSize) {
+        mOp = op;
+        mAborted = aborted;
+        mOut = out;
+        mBuffer = new byte[Math.max(bufferSize, MIN_BUFFER_SIZE)];
+    }
+
+    void begin() throws IOException {
+        put(LISTING_BEGIN);
+    }
+
+    void writeEntry(int vcfIndex, String name) throws IOException {
+        put(CARD_BEGIN);
+        putInt(vcfIndex);
+        put(CARD_NAME);
+        if (name != null) {
+            putEscaped(name);
+        }
+        put(CARD_END);
+        mEntries++;
+    }
+
+    /**
+     * Write the end of the listing and flush the buffer.
+     */
+    void end() throws IOException {
+        put(LISTING_END);
+        flush();
+    }
+
+    int getEntryCount() {
+        return mEntries;
+    }
+
+    /**
+     * Check for an abort of the operation, to be called between entries.
+     * @return true if the operation was aborted, the operation is then marked aborted
+     */
+    boolean checkAborted() {
+        if (mAborted.compareAndSet(true, false)) {
+            ((ServerOperation)mOp).isAborted = true;
+            return true;
+        }
+        return false;
+    }
+
+    private void flush() throws IOException {
+        if (mCount > 0) {
+            mOut.write(mBuffer, 0, mCount);
+            mCount = 0;
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        if (mCount == mBuffer.length) {
+            flush();
+        }
+        mBuffer[mCount++] = b;
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        for (int i = 0; i < bytes.length; i++) {
+            put(bytes[i]);
+        }
+    }
+
+    private void putInt(int value) throws IOException {
+        if (value < 0) {
+            put((byte)'-');
+            value = -value;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            put((byte)('0' + (value / divisor) % 10));
+        }
+    }
+
+    /**
+     * XML escape the special characters of the name, and UTF-8 encode it
+     */
+    private void putEscaped(String name) throws IOException {
+        final int length = name.length();
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            switch (c) {
+                case '<':
+                    put(LT);
+                    break;
+                case '>':
+                    put(GT);
+                    break;
+                case '\"':
+                    put(QUOT);
+                    break;
+                case '\'':
+                    put(APOS);
+                    break;
+                case '&':
+                    put(AMP);
+                    break;
+                default:
+                    if (c < 0x80) {
+                        put((byte)c);
+                    } else if (c < 0x800) {
+                        put((byte)(0xc0 | (c >> 6)));
+                        put((byte)(0x80 | (c & 0x3f)));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < length
+                            && Character.isLowSurrogate(name.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, name.charAt(++i));
+                        put((byte)(0xf0 | (cp >> 18)));
+                        put((byte)(0x80 | ((cp >> 12) & 0x3f)));
+                        put((byte)(0x80 | ((cp >> 6) & 0x3f)));
+                        put((byte)(0x80 | (cp & 0x3f)));
+                    } else if (Character.isSurrogate(c)) {
+                        put((byte)'?'); // unpaired surrogate, as String.getBytes()
+                    } else {
+                        put((byte)(0xe0 | (c >> 12)));
+                        put((byte)(0x80 | ((c >> 6) & 0x3f)));
+                        put((byte)(0x80 | (c & 0x3f)));
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -43,10 +43,10 @@ import android.provider.CallLog;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.text.CharacterIterator;
-import java.text.StringCharacterIterator;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.btobex.ServerRequestHandler;
 import javax.btobex.ResponseCodes;
@@ -158,7 +158,9 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
 
     public static int ORDER_BY_ALPHABETICAL = 1;
 
-    public static boolean sIsAborted = false;
+    /* Set when the client aborts the current operation. Each session has its own
+       flag, so an abort from one client does not stop the operation of another */
+    private final AtomicBoolean mAborted = new AtomicBoolean(false);
 
     public static class ContentType {
         public static final int PHONEBOOK = 1;
@@ -178,7 +180,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         super();
         mCallback = callback;
         mContext = context;
-        mVcardManager = new BluetoothPbapVcardManager(mContext);
+        mVcardManager = new BluetoothPbapVcardManager(mContext, mAborted);
     }
 
     @Override
@@ -224,6 +226,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
 
         Message msg = Message.obtain(mCallback);
         msg.what = BluetoothPbapService.MSG_SESSION_ESTABLISHED;
+        msg.obj = this;
         msg.sendToTarget();
 
         return ResponseCodes.OBEX_HTTP_OK;
@@ -238,6 +241,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         if (mCallback != null) {
             Message msg = Message.obtain(mCallback);
             msg.what = BluetoothPbapService.MSG_SESSION_DISCONNECTED;
+            msg.obj = this;
             msg.sendToTarget();
             if (V) Log.v(TAG, "onDisconnect(): msg MSG_SESSION_DISCONNECTED sent out.");
         }
@@ -247,10 +251,14 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
     public int onAbort(HeaderSet request, HeaderSet reply) {
         if (D) Log.d(TAG, "onAbort(): enter.");
         notifyUpdateWakeLock();
-        sIsAborted = true;
+        mAborted.set(true);
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
+    boolean isAborted() {
+        return mAborted.get();
+    }
+
     @Override
     public int onPut(final Operation op) {
         if (D) Log.d(TAG, "onPut(): not support PUT request.");
@@ -311,9 +319,11 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
 
     @Override
     public void onClose() {
+        mVcardManager.close();
         if (mCallback != null) {
             Message msg = Message.obtain(mCallback);
             msg.what = BluetoothPbapService.MSG_SERVERSESSION_CLOSE;
+            msg.obj = this;
             msg.sendToTarget();
             if (D) Log.d(TAG, "onClose(): msg MSG_SERVERSESSION_CLOSE sent out.");
         }
@@ -322,7 +332,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
     @Override
     public int onGet(Operation op) {
         notifyUpdateWakeLock();
-        sIsAborted = false;
+        mAborted.set(false);
         HeaderSet request = null;
         HeaderSet reply = new HeaderSet();
         String type = "";
@@ -596,60 +606,90 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
     private final int sendVcardListingXml(final int type, Operation op,
             final int maxListCount, final int listStartOffset, final String searchValue,
             String searchAttr) {
-        StringBuilder result = new StringBuilder();
+        final boolean SIM = (type == ContentType.SIM_PHONEBOOK);
+        if ((type == ContentType.PHONEBOOK || SIM)
+                && !searchAttr.equals("0") && !searchAttr.equals("1")) {
+            return ResponseCodes.OBEX_HTTP_PRECON_FAILED;
+        }
+
         int itemsFound = 0;
-        boolean SIM = false;
-        result.append("<?xml version=\"1.0\"?>");
-        result.append("<!DOCTYPE vcard-listing SYSTEM \"vcard-listing.dtd\">");
-        result.append("<vCard-listing version=\"1.0\">");
-
-        // Phonebook listing request
-        if (type == ContentType.PHONEBOOK) {
-            if (searchAttr.equals("0")) { // search by name
-                itemsFound = createList(maxListCount, listStartOffset, searchValue, result,
-                        "name", SIM);
-            } else if (searchAttr.equals("1")) { // search by number
-                itemsFound = createList(maxListCount, listStartOffset, searchValue, result,
-                        "number", SIM);
-            } else { // end of search by number
-                return ResponseCodes.OBEX_HTTP_PRECON_FAILED;
-            }
-        } else if (type == ContentType.SIM_PHONEBOOK) { // SIM Phonebook listing Request
-            SIM = true;
-            if (searchAttr.equals("0")) { // search by name
-                itemsFound = createList(maxListCount, listStartOffset, searchValue, result,
-                        "name", SIM);
-            } else if (searchAttr.equals("1")) { // search by number
-                itemsFound = createList(maxListCount, listStartOffset, searchValue, result,
-                        "number", SIM);
-            }// end of search by number
-            else {
-                return ResponseCodes.OBEX_HTTP_PRECON_FAILED;
-            }
-        } else { // Call history listing request
-            ArrayList<String> nameList = mVcardManager.loadCallHistoryList(type);
-            int requestSize = nameList.size() >= maxListCount ? maxListCount : nameList.size();
-            int startPoint = listStartOffset;
-            int endPoint = startPoint + requestSize;
-            if (endPoint > nameList.size()) {
-                endPoint = nameList.size();
+        int pushResult = ResponseCodes.OBEX_HTTP_OK;
+        OutputStream outputStream = null;
+        try {
+            outputStream = op.openOutputStream();
+            // Entries are written as found, in packets of the OBEX packet size
+            BluetoothPbapListingWriter writer = new BluetoothPbapListingWriter(op, mAborted,
+                    outputStream, op.getMaxPacketSize());
+            writer.begin();
+
+            if (type == ContentType.PHONEBOOK || SIM) {
+                if (searchAttr.equals("0")) { // search by name
+                    itemsFound = createList(maxListCount, listStartOffset, searchValue, writer,
+                            "name", SIM);
+                } else { // search by number
+                    itemsFound = createList(maxListCount, listStartOffset, searchValue, writer,
+                            "number", SIM);
+                }
+            } else { // Call history listing request
+                // Only the requested window of the call log is read
+                ArrayList<String> nameList = mVcardManager.loadCallHistoryList(type,
+                        listStartOffset, maxListCount);
+                if (D) Log.d(TAG, "call log list, size=" + nameList.size() + " offset="
+                        + listStartOffset);
+
+                for (int j = 0; j < nameList.size() && !writer.checkAborted(); j++) {
+                    writer.writeEntry(listStartOffset + j + 1, nameList.get(j));
+                }
             }
-            if (D) Log.d(TAG, "call log list, size=" + requestSize + " offset=" + listStartOffset);
+            writer.end();
+            if (V) Log.v(TAG, "Send Data complete!");
+        } catch (IOException e) {
+            Log.e(TAG, "open/write outputstrem failed" + e.toString());
+            pushResult = ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        }
 
-            for (int j = startPoint; j < endPoint; j++) {
-                writeVCardEntry(j+1, nameList.get(j),result);
-            }
+        if (!closeStream(outputStream, op)) {
+            pushResult = ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
-        result.append("</vCard-listing>");
 
         if (V) Log.v(TAG, "itemsFound =" + itemsFound);
 
-        return pushBytes(op, result.toString());
+        return pushResult;
     }
 
     private int createList(final int maxListCount, final int listStartOffset,
-        final String searchValue, StringBuilder result, String type, boolean SIM) {
+        final String searchValue, BluetoothPbapListingWriter writer, String type, boolean SIM)
+        throws IOException {
         int itemsFound = 0, pos = 0;
+        String compareValue = "", currentValue;
+
+        if (!SIM && type.equals("name")) {
+            // Walk the names of the snapshot, without building the name list
+            final String[] names = mVcardManager.getPhonebookNames(mOrderBy);
+            final int requestSize = names.length >= maxListCount ? maxListCount : names.length;
+            if (D) Log.d(TAG, "search by name, requestSize=" + requestSize + " offset="
+                    + listStartOffset + " searchValue=" + searchValue);
+            if (searchValue == null) {
+                return 0;
+            }
+            compareValue = searchValue.trim().toLowerCase();
+            int matches = 0;
+            for (pos = 0; pos < names.length && itemsFound < requestSize; pos++) {
+                if (writer.checkAborted()) {
+                    break;
+                }
+                currentValue = names[pos];
+                if (searchValue.isEmpty() || (currentValue != null
+                        && currentValue.toLowerCase().equals(compareValue))) {
+                    if (matches++ >= listStartOffset) {
+                        itemsFound++;
+                        writer.writeEntry(pos, currentValue);
+                    }
+                }
+            }
+            return itemsFound;
+        }
+
         ArrayList<Integer> savedPosList = new ArrayList<>();
         ArrayList<String> nameList = null;
         ArrayList<String> selectedNameList = new ArrayList<String>();
@@ -661,7 +701,6 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         }
         final int requestSize = nameList.size() >= maxListCount ? maxListCount : nameList.size();
         final int listSize = nameList.size();
-        String compareValue = "", currentValue;
 
         if (D) Log.d(TAG, "search by " + type + ", requestSize=" + requestSize + " offset="
                     + listStartOffset + " searchValue=" + searchValue);
@@ -674,25 +713,39 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
             } else {
                   names = mVcardManager.getContactNamesByNumber(searchValue);
             }
+            // Map each listing entry to its positions once, instead of scanning the
+            // listing for every name found
+            HashMap<String, ArrayList<Integer>> positions =
+                    new HashMap<String, ArrayList<Integer>>(listSize * 2);
+            for (pos = 0; pos < listSize; pos++) {
+                currentValue = nameList.get(pos);
+                ArrayList<Integer> entryPositions = positions.get(currentValue);
+                if (entryPositions == null) {
+                    entryPositions = new ArrayList<Integer>(1);
+                    positions.put(currentValue, entryPositions);
+                }
+                entryPositions.add(pos);
+            }
             for (int i = 0; i < names.size(); i++) {
                 compareValue = names.get(i).trim();
                 if (D) Log.d(TAG, "compareValue=" + compareValue);
-                for (pos = 0; pos < listSize; pos++) {
-                    currentValue = nameList.get(pos);
-                    if (D) Log.d(TAG, "currentValue=" + currentValue);
-                    if (currentValue.equals(compareValue)) {
-                        if (currentValue.contains(","))
-                            currentValue = currentValue.substring(0, currentValue.lastIndexOf(','));
-                        selectedNameList.add(currentValue);
-                        savedPosList.add(pos);
-                    }
+                ArrayList<Integer> entryPositions = positions.get(compareValue);
+                if (entryPositions == null) {
+                    continue;
+                }
+                currentValue = compareValue;
+                if (currentValue.contains(","))
+                    currentValue = currentValue.substring(0, currentValue.lastIndexOf(','));
+                for (int k = 0; k < entryPositions.size(); k++) {
+                    selectedNameList.add(currentValue);
+                    savedPosList.add(entryPositions.get(k));
                 }
             }
 
             for (int j = listStartOffset; j< selectedNameList.size()&&
-                itemsFound < requestSize; j++) {
+                itemsFound < requestSize && !writer.checkAborted(); j++) {
                 itemsFound++;
-                writeVCardEntry(savedPosList.get(j), selectedNameList.get(j),result);
+                writer.writeEntry(savedPosList.get(j), selectedNameList.get(j));
             }
 
             selectedNameList.clear();
@@ -718,9 +771,9 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
             }
 
             for (int i = listStartOffset; i < selectedNameList.size()&&
-                        itemsFound < requestSize; i++) {
+                        itemsFound < requestSize && !writer.checkAborted(); i++) {
                 itemsFound++;
-                writeVCardEntry(savedPosList.get(i), selectedNameList.get(i),result);
+                writer.writeEntry(savedPosList.get(i), selectedNameList.get(i));
             }
 
             selectedNameList.clear();
@@ -1104,48 +1157,6 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         return selection;
     }
 
-    /**
-     * XML encode special characters in the name field
-     */
-    private void xmlEncode(String name, StringBuilder result) {
-        if (name == null) {
-            return;
-        }
-
-        final StringCharacterIterator iterator = new StringCharacterIterator(name);
-        char character =  iterator.current();
-        while (character != CharacterIterator.DONE ){
-            if (character == '<') {
-                result.append("&lt;");
-            }
-            else if (character == '>') {
-                result.append("&gt;");
-            }
-            else if (character == '\"') {
-                result.append("&quot;");
-            }
-            else if (character == '\'') {
-                result.append("&#039;");
-            }
-            else if (character == '&') {
-                result.append("&amp;");
-            }
-            else {
-                // The char is not a special one, add it to the result as is
-                result.append(character);
-            }
-            character = iterator.next();
-        }
-    }
-
-    private void writeVCardEntry(int vcfIndex, String name, StringBuilder result) {
-        result.append("<card handle=\"");
-        result.append(vcfIndex);
-        result.append(".vcf\" name=\"");
-        xmlEncode(name, result);
-        result.append("\"/>");
-    }
-
     private void notifyUpdateWakeLock() {
         Message msg = Message.obtain(mCallback);
         msg.what = BluetoothPbapService.MSG_ACQUIRE_WAKE_LOCK;
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.bluetooth.pbap;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Profile;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * The owner vcards (0.vcf) composed for each vcard version and filter, so each pull
+ * of the owner vcard does not compose it again from the profile contact.
+ * The vcards are also written to files, checked against a stamp of what they were
+ * composed from (the profile contact update time and the local phone name and
+ * number), so the first pull after a reboot reads the file instead of composing.
+ * The vcards in memory are dropped when the contacts change or the local phone
+ * name or number changes; the stamp is then read again to check the files.
+ * Users acquire the cache with {@link #acquire(Context)} and release it when done.
+ */
+class BluetoothPbapOwnerVcardCache {
+    private static final String TAG = "BluetoothPbapOwnerVcardCache";
+
+    private static final boolean V = Log.isLoggable(BluetoothPbapService.LOG_TAG, Log.VERBOSE) ? true : false;
+
+    private static final String CACHE_DIR = "pbap_owner";
+
+    /* Changed when the file content or the composing of the owner vcard changes */
+    private static final int STAMP_VERSION = 1;
+
+    private static final String[] PROFILE_PROJECTION = new String[] {
+        Contacts._ID, Contacts.CONTACT_LAST_UPDATED_TIMESTAMP
+    };
+
+    private static BluetoothPbapOwnerVcardCache sInstance = null;
+    private static int sRefCount = 0;
+
+    /**
+     * Composes the owner vcard on a cache miss.
+     */
+    interface OwnerVcardComposer {
+        /**
+         * @return the owner vcard, or null or an empty string if it could not be composed
+         */
+        String composeOwnerVcard(boolean vcardType21, byte[] filter);
+    }
+
+    private final ContentResolver mResolver;
+    private final File mDir;
+    private final HashMap<String, String> mVcards = new HashMap<String, String>();
+    private boolean mListening = false;
+    /* Incremented when the contacts change, so a vcard being composed is not kept */
+    private volatile int mGeneration = 0;
+    /* The generation, local name and number the vcards in memory are valid for */
+    private int mValidGeneration = -1;
+    private String mLocalName = null;
+    private String mLocalNumber = null;
+    /* The stamp of the vcards in memory, null until read */
+    private String mStamp = null;
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (V) Log.v(TAG, "Contacts changed");
+            mGeneration++;
+        }
+    };
+
+    private BluetoothPbapOwnerVcardCache(Context context) {
+        mResolver = context.getContentResolver();
+        mDir = new File(context.getCacheDir(), CACHE_DIR);
+    }
+
+    static synchronized BluetoothPbapOwnerVcardCache acquire(Context context) {
+        if (sInstance == null) {
+            sInstance = new BluetoothPbapOwnerVcardCache(context.getApplicationContext());
+        }
+        sRefCount++;
+        return sInstance;
+    }
+
+    void release() {
+        synchronized (BluetoothPbapOwnerVcardCache.class) {
+            if (sInstance != this || sRefCount == 0) {
+                return;
+            }
+            if (--sRefCount == 0) {
+                stopListening();
+                sInstance = null;
+            }
+        }
+    }
+
+    static String getKey(boolean vcardType21, byte[] filter) {
+        StringBuilder key = new StringBuilder(vcardType21 ? "v21_" : "v30_");
+        if (!BluetoothPbapUtils.hasFilter(filter)) {
+            return key.append("all").toString();
+        }
+        for (byte b : filter) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16));
+            key.append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the owner vcard for the version and filter, from memory, from its file,
+     *         or composed by the composer
+     */
+    synchronized String get(boolean vcardType21, byte[] filter, OwnerVcardComposer composer) {
+        startListening();
+        final String name = BluetoothPbapService.getLocalPhoneName();
+        final String number = BluetoothPbapService.getLocalPhoneNum();
+        final int generation = mGeneration;
+        if (generation != mValidGeneration || !TextUtils.equals(name, mLocalName)
+                || !TextUtils.equals(number, mLocalNumber)) {
+            mVcards.clear();
+            mStamp = null;
+            mValidGeneration = generation;
+            mLocalName = name;
+            mLocalNumber = number;
+        }
+
+        final String key = getKey(vcardType21, filter);
+        String vcard = mVcards.get(key);
+        if (vcard != null) {
+            return vcard;
+        }
+
+        if (mStamp == null) {
+            mStamp = readStamp(name, number);
+        }
+        final File file = new File(mDir, key + ".vcf");
+        vcard = BluetoothPbapUtils.readProfileVCardFile(file, mStamp);
+        if (vcard == null) {
+            vcard = composer.composeOwnerVcard(vcardType21, filter);
+            if (TextUtils.isEmpty(vcard)) {
+                return vcard;
+            }
+            if (generation == mGeneration && (mDir.isDirectory() || mDir.mkdirs())) {
+                BluetoothPbapUtils.createProfileVCardFile(file, mStamp, vcard);
+            }
+        } else if (V) {
+            Log.v(TAG, "Read owner vcard " + key + " from file");
+        }
+        if (generation == mGeneration) {
+            mVcards.put(key, vcard);
+        }
+        return vcard;
+    }
+
+    /**
+     * @return a stamp of what the owner vcard is composed from
+     */
+    private String readStamp(String name, String number) {
+        StringBuilder stamp = new StringBuilder();
+        stamp.append(STAMP_VERSION).append('|');
+        stamp.append(BluetoothPbapConfig.useProfileForOwnerVcard()).append('|');
+        stamp.append(BluetoothPbapConfig.includePhotosInVcard()).append('|');
+        Cursor c = null;
+        try {
+            c = mResolver.query(Profile.CONTENT_URI, PROFILE_PROJECTION, null, null, null);
+            if (c != null && c.moveToFirst()) {
+                stamp.append(c.getLong(0)).append(':').append(c.getLong(1));
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to read the profile update time", e);
+            // A stamp no file matches
+            stamp.append(System.currentTimeMillis()).append(":?");
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        stamp.append('|').append(name).append('|').append(number);
+        return stamp.toString();
+    }
+
+    private void startListening() {
+        if (mListening) {
+            return;
+        }
+        // The profile contact changes are notified as changes of the contacts
+        mResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                mContactsObserver);
+        mListening = true;
+    }
+
+    private synchronized void stopListening() {
+        if (mListening) {
+            mResolver.unregisterContentObserver(mContactsObserver);
+            mListening = false;
+        }
+        mVcards.clear();
+        mStamp = null;
+        mValidGeneration = -1;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.CursorWindowAllocationException;
+import android.provider.ContactsContract.Contacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A snapshot of the visible contacts, used to answer the phonebook size, vCard
+ * listing and offset to contact id translations of a PBAP session without querying
+ * the Contacts provider for each request.
+ * The contact ids are kept in index order, the names and the alphabetical order are
+ * read on first use. The snapshot is invalidated when the contacts change, and read
+ * again on the next request.
+ * The sessions share a snapshot, acquired with {@link #acquire(Context)} and released
+ * when done.
+ */
+public class BluetoothPbapPhonebookSnapshot {
+    private static final String TAG = "BluetoothPbapPhonebookSnapshot";
+
+    private static final boolean V = Log.isLoggable(BluetoothPbapService.LOG_TAG, Log.VERBOSE) ? true : false;
+
+    private static final String[] ID_PROJECTION = new String[] {
+            Contacts._ID,
+    };
+
+    private static final long[] EMPTY = new long[0];
+
+    private static BluetoothPbapPhonebookSnapshot sInstance = null;
+    private static int sRefCount = 0;
+
+    private final Context mContext;
+
+    private final ContentResolver mResolver;
+
+    private boolean mObserverRegistered = false;
+
+    /* Cleared by the observer when the contacts change */
+    private volatile boolean mValid = false;
+
+    /* Contact ids in index (_ID) order */
+    private long[] mIds = null;
+
+    /* Names in index order, null until needed */
+    private String[] mNames = null;
+
+    /* Contact ids in alphabetical order, null until needed */
+    private long[] mAlphabeticalIds = null;
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (V) Log.v(TAG, "contacts changed, invalidating snapshot");
+            mValid = false;
+        }
+    };
+
+    public BluetoothPbapPhonebookSnapshot(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+    }
+
+    public static synchronized BluetoothPbapPhonebookSnapshot acquire(Context context) {
+        if (sInstance == null) {
+            sInstance = new BluetoothPbapPhonebookSnapshot(context.getApplicationContext());
+        }
+        sRefCount++;
+        return sInstance;
+    }
+
+    /**
+     * Release a snapshot returned by {@link #acquire(Context)}, closing it when no
+     * session uses it anymore.
+     */
+    public void release() {
+        synchronized (BluetoothPbapPhonebookSnapshot.class) {
+            if (sInstance != this || sRefCount == 0) {
+                return;
+            }
+            if (--sRefCount == 0) {
+                close();
+                sInstance = null;
+            }
+        }
+    }
+
+    /**
+     * @return the number of visible contacts, or -1 if they could not be read
+     */
+    public synchronized int getSize() {
+        return ensureIds() ? mIds.length : -1;
+    }
+
+    /**
+     * @param position the 0 based position of the contact
+     * @param orderByWhat ORDER_BY_INDEXED or ORDER_BY_ALPHABETICAL
+     * @return the contact id, or -1 if there is no contact at the position
+     */
+    public synchronized long getContactId(int position, int orderByWhat) {
+        if (!ensureIds()) {
+            return -1;
+        }
+        long[] ids = mIds;
+        if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
+            if (!ensureAlphabeticalIds()) {
+                return -1;
+            }
+            ids = mAlphabeticalIds;
+        }
+        if (position < 0 || position >= ids.length) {
+            return -1;
+        }
+        return ids[position];
+    }
+
+    /**
+     * Add the "name,id" entries of the contacts to a name list.
+     * @param nameList the list to add the entries to
+     * @param orderByWhat ORDER_BY_INDEXED or ORDER_BY_ALPHABETICAL
+     */
+    public synchronized void addNameList(ArrayList<String> nameList, int orderByWhat) {
+        if (!ensureIds() || !ensureNames()) {
+            return;
+        }
+        if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_INDEXED) {
+            nameList.ensureCapacity(nameList.size() + mIds.length);
+            for (int i = 0; i < mIds.length; i++) {
+                nameList.add(mNames[i] + "," + mIds[i]);
+            }
+        } else if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
+            if (!ensureAlphabeticalIds()) {
+                return;
+            }
+            nameList.ensureCapacity(nameList.size() + mAlphabeticalIds.length);
+            for (long id : mAlphabeticalIds) {
+                int index = Arrays.binarySearch(mIds, id);
+                if (index >= 0) {
+                    nameList.add(mNames[index] + "," + id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the names of the contacts, without building "name,id" entries.
+     * @param first the number of entries to leave empty at the start of the array
+     * @param orderByWhat ORDER_BY_INDEXED or ORDER_BY_ALPHABETICAL
+     * @return the names, from position first in the array, or null if they could not
+     *         be read
+     */
+    public synchronized String[] getNames(int first, int orderByWhat) {
+        if (!ensureIds() || !ensureNames()) {
+            return null;
+        }
+        if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
+            if (!ensureAlphabeticalIds()) {
+                return null;
+            }
+            String[] names = new String[first + mAlphabeticalIds.length];
+            int count = first;
+            for (long id : mAlphabeticalIds) {
+                int index = Arrays.binarySearch(mIds, id);
+                if (index >= 0) {
+                    names[count++] = mNames[index];
+                }
+            }
+            return (count == names.length) ? names : Arrays.copyOf(names, count);
+        }
+        String[] names = new String[first + mNames.length];
+        System.arraycopy(mNames, 0, names, first, mNames.length);
+        return names;
+    }
+
+    /**
+     * Unregister the contacts observer and drop the snapshot.
+     */
+    public synchronized void close() {
+        if (mObserverRegistered) {
+            mResolver.unregisterContentObserver(mContactsObserver);
+            mObserverRegistered = false;
+        }
+        mValid = false;
+        mIds = null;
+        mNames = null;
+        mAlphabeticalIds = null;
+    }
+
+    private boolean ensureIds() {
+        if (mValid && mIds != null) {
+            return true;
+        }
+        if (!mObserverRegistered) {
+            mResolver.registerContentObserver(Contacts.CONTENT_URI, true, mContactsObserver);
+            mObserverRegistered = true;
+        }
+        // Set before reading, so a change while reading invalidates the result
+        mValid = true;
+        mNames = null;
+        mAlphabeticalIds = null;
+        mIds = queryIds(Contacts._ID);
+        if (mIds == null) {
+            mValid = false;
+            return false;
+        }
+        if (V) Log.v(TAG, "snapshot of " + mIds.length + " contacts");
+        return true;
+    }
+
+    private boolean ensureAlphabeticalIds() {
+        if (mAlphabeticalIds == null) {
+            mAlphabeticalIds = queryIds(Contacts.DISPLAY_NAME);
+        }
+        return mAlphabeticalIds != null;
+    }
+
+    /**
+     * Read the names, together with the ids to keep them aligned.
+     */
+    private boolean ensureNames() {
+        if (mNames != null) {
+            return true;
+        }
+        Cursor contactCursor = null;
+        try {
+            contactCursor = mResolver.query(Contacts.CONTENT_URI,
+                    BluetoothPbapVcardManager.CONTACTS_PROJECTION, null, null, Contacts._ID);
+            if (contactCursor == null) {
+                return false;
+            }
+            final int count = contactCursor.getCount();
+            final long[] ids = new long[count];
+            final String[] names = new String[count];
+            int i = 0;
+            while (contactCursor.moveToNext() && i < count) {
+                ids[i] = contactCursor.getLong(BluetoothPbapVcardManager.CONTACTS_ID_COLUMN_INDEX);
+                String name = contactCursor.getString(
+                        BluetoothPbapVcardManager.CONTACTS_NAME_COLUMN_INDEX);
+                if (TextUtils.isEmpty(name)) {
+                    name = mContext.getString(android.R.string.unknownName);
+                }
+                names[i++] = name;
+            }
+            if (!Arrays.equals(ids, mIds)) {
+                // The contacts changed since the ids were read
+                mIds = ids;
+                mAlphabeticalIds = null;
+            }
+            mNames = names;
+            return true;
+        } catch (CursorWindowAllocationException e) {
+            Log.e(TAG, "CursorWindowAllocationException while getting Phonebook names");
+        } finally {
+            if (contactCursor != null) {
+                contactCursor.close();
+            }
+        }
+        return false;
+    }
+
+    private long[] queryIds(String sortOrder) {
+        Cursor contactCursor = null;
+        try {
+            contactCursor = mResolver.query(Contacts.CONTENT_URI, ID_PROJECTION, null, null,
+                    sortOrder);
+            if (contactCursor == null) {
+                return null;
+            }
+            final int count = contactCursor.getCount();
+            if (count == 0) {
+                return EMPTY;
+            }
+            final long[] ids = new long[count];
+            int i = 0;
+            while (contactCursor.moveToNext() && i < count) {
+                ids[i++] = contactCursor.getLong(0);
+            }
+            return ids;
+        } catch (CursorWindowAllocationException e) {
+            Log.e(TAG, "CursorWindowAllocationException while getting Phonebook ids");
+        } finally {
+            if (contactCursor != null) {
+                contactCursor.close();
+            }
+        }
+        return null;
+    }
+}
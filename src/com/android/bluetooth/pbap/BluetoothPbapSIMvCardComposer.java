@@ -63,16 +63,16 @@ public class BluetoothPbapSIMvCardComposer {
 
     private final String SIM_URI = "content://icc/adn";
 
-    private static final String[] SIM_PROJECTION = new String[] {
+    static final String[] SIM_PROJECTION = new String[] {
                 Contacts.DISPLAY_NAME,
                 CommonDataKinds.Phone.NUMBER,
                 CommonDataKinds.Phone.TYPE,
                 CommonDataKinds.Phone.LABEL};
 
-    private static final int NAME_COLUMN_INDEX = 0;
-    private static final int NUMBER_COLUMN_INDEX = 1;
-    private static final int NUMBERTYPE_COLUMN_INDEX = 2;
-    private static final int NUMBERLABEL_COLUMN_INDEX = 3;
+    static final int NAME_COLUMN_INDEX = 0;
+    static final int NUMBER_COLUMN_INDEX = 1;
+    static final int NUMBERTYPE_COLUMN_INDEX = 2;
+    static final int NUMBERLABEL_COLUMN_INDEX = 3;
 
 
     private final Context mContext;
@@ -130,26 +130,32 @@ public class BluetoothPbapSIMvCardComposer {
     }
 
     private String createOnevCardEntryInternal(boolean vcardVer21) {
+        return composeVCard(mCursor.getString(NAME_COLUMN_INDEX),
+                mCursor.getString(NUMBER_COLUMN_INDEX), mCursor.getInt(NUMBERTYPE_COLUMN_INDEX),
+                mCursor.getString(NUMBERLABEL_COLUMN_INDEX), vcardVer21);
+    }
+
+    /**
+     * Compose the vCard of a SIM phonebook entry.
+     */
+    public String composeVCard(String name, String number, int type, String label,
+            boolean vcardVer21) {
         final int vcardType = (vcardVer21 ? VCardConfig.VCARD_TYPE_V21_GENERIC :
                 VCardConfig.VCARD_TYPE_V30_GENERIC) |
                 VCardConfig.FLAG_REFRAIN_PHONE_NUMBER_FORMATTING;
         final VCardBuilder builder = new VCardBuilder(vcardType);
-        String name = mCursor.getString(NAME_COLUMN_INDEX);
         if (TextUtils.isEmpty(name)) {
-            name = mCursor.getString(NUMBER_COLUMN_INDEX);
+            name = number;
         }
         final boolean needCharset = !(VCardUtils.containsOnlyPrintableAscii(name));
         builder.appendLine(VCardConstants.PROPERTY_FN, name, needCharset, false);
         builder.appendLine(VCardConstants.PROPERTY_N, name, needCharset, false);
 
-        String number = mCursor.getString(NUMBER_COLUMN_INDEX);
         if (number.equals("-1")) {
             number = mContext.getString(R.string.unknownNumber);
         }
 
         // checkpoint Figure out what are the type and label
-        final int type = mCursor.getInt(NUMBERTYPE_COLUMN_INDEX);
-        String label = mCursor.getString(NUMBERLABEL_COLUMN_INDEX);
         if (TextUtils.isEmpty(label)) {
             label = Integer.toString(type);
         }
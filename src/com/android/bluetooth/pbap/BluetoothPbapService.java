@@ -63,6 +63,7 @@ import com.android.bluetooth.R;
 import com.android.bluetooth.btservice.AdapterService;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 import javax.btobex.ServerSession;
 
@@ -136,6 +137,11 @@ public class BluetoothPbapService extends Service {
 
     private static final int AUTH_TIMEOUT = 3;
 
+    private static final int INCOMING_CONNECTION = 4;
+
+    // The number of PCE that can be connected at the same time
+    static final int MAX_SESSIONS = 4;
+
 
     private static final int USER_CONFIRM_TIMEOUT_VALUE = 30000;
 
@@ -152,17 +158,14 @@ public class BluetoothPbapService extends Service {
 
     private SocketAcceptThread mAcceptThread = null;
 
-    private BluetoothPbapAuthenticator mAuth = null;
-
-    private BluetoothPbapObexServer mPbapServer;
-
-    private ServerSession mServerSession = null;
-
     private BluetoothServerSocket mServerSocket = null;
 
-    private BluetoothSocket mConnSocket = null;
+    // The sessions by remote device
+    private final BluetoothPbapSessionMap<PbapSession> mSessions =
+            new BluetoothPbapSessionMap<PbapSession>(MAX_SESSIONS);
 
-    private BluetoothDevice mRemoteDevice = null;
+    // The session whose obex authentication challenge is shown to the user
+    private volatile PbapSession mAuthSession = null;
 
     private static String sLocalPhoneNum = null;
 
@@ -183,8 +186,6 @@ public class BluetoothPbapService extends Service {
 
     //private IBluetooth mBluetoothService;
 
-    private boolean mIsWaitingAuthorization = false;
-
     // package and class name to which we send intent to check phone book access permission
     private static final String ACCESS_AUTHORITY_PACKAGE = "com.android.settings";
     private static final String ACCESS_AUTHORITY_CLASS =
@@ -243,7 +244,6 @@ public class BluetoothPbapService extends Service {
         int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
         if (VERBOSE) Log.v(TAG, "state: " + state);
 
-        boolean removeTimeoutMsg = true;
         if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
             if (state == BluetoothAdapter.STATE_TURNING_OFF) {
                 // Send any pending timeout now, as this service will be destroyed.
@@ -255,49 +255,49 @@ public class BluetoothPbapService extends Service {
                                      BluetoothDevice.REQUEST_TYPE_PHONEBOOK_ACCESS);
                     sendBroadcast(timeoutIntent, BLUETOOTH_ADMIN_PERM);
                 }
+                mSessionStatusHandler.removeMessages(USER_TIMEOUT);
                 // Release all resources
                 closeService();
-            } else {
-                removeTimeoutMsg = false;
             }
-        } else if (action.equals(BluetoothDevice.ACTION_ACL_DISCONNECTED)
-                && mIsWaitingAuthorization) {
+        } else if (action.equals(BluetoothDevice.ACTION_ACL_DISCONNECTED)) {
             BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-
-            if (mRemoteDevice == null || device == null) {
-                Log.e(TAG, "Unexpected error!");
+            PbapSession session = getSession(device);
+            if (session == null || !session.mWaitingAuthorization) {
                 return;
             }
 
             if (DEBUG) Log.d(TAG,"ACL disconnected for "+ device);
 
-            if (mRemoteDevice.equals(device)) {
-                Intent cancelIntent = new Intent(BluetoothDevice.ACTION_CONNECTION_ACCESS_CANCEL);
-                cancelIntent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
-                cancelIntent.putExtra(BluetoothDevice.EXTRA_ACCESS_REQUEST_TYPE,
-                                      BluetoothDevice.REQUEST_TYPE_PHONEBOOK_ACCESS);
-                sendBroadcast(cancelIntent);
-                mIsWaitingAuthorization = false;
-                stopObexServerSession();
-            }
+            Intent cancelIntent = new Intent(BluetoothDevice.ACTION_CONNECTION_ACCESS_CANCEL);
+            cancelIntent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+            cancelIntent.putExtra(BluetoothDevice.EXTRA_ACCESS_REQUEST_TYPE,
+                                  BluetoothDevice.REQUEST_TYPE_PHONEBOOK_ACCESS);
+            sendBroadcast(cancelIntent);
+            session.mWaitingAuthorization = false;
+            stopObexServerSession(session);
         } else if (action.equals(BluetoothDevice.ACTION_CONNECTION_ACCESS_REPLY)) {
             int requestType = intent.getIntExtra(BluetoothDevice.EXTRA_ACCESS_REQUEST_TYPE,
                                            BluetoothDevice.REQUEST_TYPE_PHONEBOOK_ACCESS);
-
-            if ((!mIsWaitingAuthorization)
-                    || (requestType != BluetoothDevice.REQUEST_TYPE_PHONEBOOK_ACCESS)) {
+            if (requestType != BluetoothDevice.REQUEST_TYPE_PHONEBOOK_ACCESS) {
+                // this reply is not for us
+                return;
+            }
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            PbapSession session = getWaitingSession(device);
+            if (session == null) {
                 // this reply is not for us
                 return;
             }
 
-            mIsWaitingAuthorization = false;
+            session.mWaitingAuthorization = false;
+            mSessionStatusHandler.removeMessages(USER_TIMEOUT, session);
 
             if (intent.getIntExtra(BluetoothDevice.EXTRA_CONNECTION_ACCESS_RESULT,
                                    BluetoothDevice.CONNECTION_ACCESS_NO) ==
                 BluetoothDevice.CONNECTION_ACCESS_YES) {
 
                 if (intent.getBooleanExtra(BluetoothDevice.EXTRA_ALWAYS_ALLOWED, false)) {
-                    boolean result = mRemoteDevice.setPhonebookAccessPermission(
+                    boolean result = session.mDevice.setPhonebookAccessPermission(
                             PBAP_CONNECT_RECEIVED);
                     if (VERBOSE) {
                         Log.v(TAG, "setPhonebookAccessPermission(PBAP_CONNECT_RECEIVED) result="
@@ -306,36 +306,27 @@ public class BluetoothPbapService extends Service {
                 }
 
                 try {
-                    if (mConnSocket != null) {
-                        startObexServerSession();
-                    } else {
-                        stopObexServerSession();
-                    }
+                    startObexServerSession(session);
                 } catch (IOException ex) {
                     Log.e(TAG, "Caught the error: " + ex.toString());
+                    stopObexServerSession(session);
                 }
             } else {
                 if (intent.getBooleanExtra(BluetoothDevice.EXTRA_ALWAYS_ALLOWED, false)) {
-                    boolean result = mRemoteDevice.setPhonebookAccessPermission(
+                    boolean result = session.mDevice.setPhonebookAccessPermission(
                             BluetoothDevice.ACCESS_REJECTED);
                     if (VERBOSE) {
                         Log.v(TAG, "setPhonebookAccessPermission(ACCESS_REJECTED) result="
                                 + result);
                     }
                 }
-                stopObexServerSession();
+                stopObexServerSession(session);
             }
         } else if (action.equals(AUTH_RESPONSE_ACTION)) {
             String sessionkey = intent.getStringExtra(EXTRA_SESSION_KEY);
             notifyAuthKeyInput(sessionkey);
         } else if (action.equals(AUTH_CANCELLED_ACTION)) {
             notifyAuthCancelled();
-        } else {
-            removeTimeoutMsg = false;
-        }
-
-        if (removeTimeoutMsg) {
-            mSessionStatusHandler.removeMessages(USER_TIMEOUT);
         }
     }
 
@@ -344,7 +335,6 @@ public class BluetoothPbapService extends Service {
         if (VERBOSE) Log.v(TAG, "Pbap Service onDestroy");
 
         super.onDestroy();
-        setState(BluetoothPbap.STATE_DISCONNECTED, BluetoothPbap.RESULT_CANCELED);
         closeService();
         if(mSessionStatusHandler != null) {
             mSessionStatusHandler.removeCallbacksAndMessages(null);
@@ -361,7 +351,7 @@ public class BluetoothPbapService extends Service {
         VERBOSE = Log.isLoggable(LOG_TAG, Log.VERBOSE) ? true : false;
         if (VERBOSE) Log.v(TAG, "Pbap Service startRfcommSocketListener");
 
-        if (mAcceptThread == null) {
+        if (mAcceptThread == null || !mAcceptThread.isAlive()) {
             mAcceptThread = new SocketAcceptThread();
             mAcceptThread.setName("BluetoothPbapAcceptThread");
             mAcceptThread.start();
@@ -436,15 +426,53 @@ public class BluetoothPbapService extends Service {
         }
     }
 
-    private final synchronized void closeConnectionSocket() {
-        if (mConnSocket != null) {
-            try {
-                mConnSocket.close();
-                mConnSocket = null;
-            } catch (IOException e) {
-                Log.e(TAG, "Close Connection Socket error: " + e.toString());
+    private PbapSession getSession(BluetoothDevice device) {
+        return mSessions.get(device);
+    }
+
+    private ArrayList<PbapSession> getSessions() {
+        return mSessions.getAll();
+    }
+
+    /**
+     * @param device the device of the access reply, null if the reply did not say
+     * @return the session waiting for the user to allow access, null if none
+     */
+    private PbapSession getWaitingSession(BluetoothDevice device) {
+        if (device != null) {
+            PbapSession session = mSessions.get(device);
+            return (session != null && session.mWaitingAuthorization) ? session : null;
+        }
+        for (PbapSession session : mSessions.getAll()) {
+            if (session.mWaitingAuthorization) {
+                return session;
             }
         }
+        return null;
+    }
+
+    private PbapSession getSessionOf(Object serverOrAuth) {
+        for (PbapSession session : mSessions.getAll()) {
+            if (session.mPbapServer == serverOrAuth || session.mAuth == serverOrAuth) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Close the connection of a session, and report its device disconnected.
+     */
+    private void closeSession(PbapSession session, int result) {
+        mSessions.remove(session.mDevice, session);
+        mSessionStatusHandler.removeMessages(USER_TIMEOUT, session);
+        if (mAuthSession == session) {
+            // Unblock the obex thread waiting for the session key
+            notifyAuthCancelled();
+            mAuthSession = null;
+        }
+        session.close();
+        setState(session, BluetoothPbap.STATE_DISCONNECTED, result);
     }
 
     private final void closeService() {
@@ -469,13 +497,10 @@ public class BluetoothPbapService extends Service {
             mWakeLock = null;
         }
 
-        if (mServerSession != null) {
-            mServerSession.close();
-            mServerSession = null;
+        for (PbapSession session : getSessions()) {
+            closeSession(session, BluetoothPbap.RESULT_CANCELED);
         }
 
-        closeConnectionSocket();
-
         mHasStarted = false;
         if (mStartId != -1 && stopSelfResult(mStartId)) {
             if (VERBOSE) Log.v(TAG, "successfully stopped pbap service");
@@ -484,8 +509,8 @@ public class BluetoothPbapService extends Service {
         if (VERBOSE) Log.v(TAG, "Pbap Service closeService out");
     }
 
-    private final void startObexServerSession() throws IOException {
-        if (VERBOSE) Log.v(TAG, "Pbap Service startObexServerSession");
+    private final void startObexServerSession(PbapSession session) throws IOException {
+        if (VERBOSE) Log.v(TAG, "Pbap Service startObexServerSession " + session.mDevice);
 
         // acquire the wakeLock before start Obex transaction thread
         if (mWakeLock == null) {
@@ -504,15 +529,19 @@ public class BluetoothPbapService extends Service {
             }
         }
 
-        mPbapServer = new BluetoothPbapObexServer(mSessionStatusHandler, this);
-        synchronized (this) {
-            mAuth = new BluetoothPbapAuthenticator(mSessionStatusHandler);
-            mAuth.setChallenged(false);
-            mAuth.setCancelled(false);
+        // Each session has its own obex server, so its own path, abort flag and
+        // vcard manager; the phonebook snapshot and vcard caches are shared
+        session.mPbapServer = new BluetoothPbapObexServer(mSessionStatusHandler, this);
+        synchronized (session) {
+            session.mAuth = new BluetoothPbapAuthenticator(mSessionStatusHandler);
+            session.mAuth.setChallenged(false);
+            session.mAuth.setCancelled(false);
+            BluetoothPbapRfcommTransport transport =
+                    new BluetoothPbapRfcommTransport(session.mSocket);
+            session.mServerSession = new ServerSession(transport, session.mPbapServer,
+                    session.mAuth);
         }
-        BluetoothPbapRfcommTransport transport = new BluetoothPbapRfcommTransport(mConnSocket);
-        mServerSession = new ServerSession(transport, mPbapServer, mAuth);
-        setState(BluetoothPbap.STATE_CONNECTED);
+        setState(session, BluetoothPbap.STATE_CONNECTED);
 
         mSessionStatusHandler.removeMessages(MSG_RELEASE_WAKE_LOCK);
         mSessionStatusHandler.sendMessageDelayed(mSessionStatusHandler
@@ -523,56 +552,164 @@ public class BluetoothPbapService extends Service {
         }
     }
 
-    private void stopObexServerSession() {
-        if (VERBOSE) Log.v(TAG, "Pbap Service stopObexServerSession");
+    private void stopObexServerSession(PbapSession session) {
+        if (VERBOSE) Log.v(TAG, "Pbap Service stopObexServerSession " + session.mDevice);
 
-        mSessionStatusHandler.removeMessages(MSG_ACQUIRE_WAKE_LOCK);
-        mSessionStatusHandler.removeMessages(MSG_RELEASE_WAKE_LOCK);
-        // Release the wake lock if obex transaction is over
-        if (mWakeLock != null) {
-            mWakeLock.release();
-            mWakeLock = null;
+        closeSession(session, BluetoothPbap.RESULT_SUCCESS);
+
+        synchronized (this) {
+            if (mSessions.isEmpty()) {
+                mSessionStatusHandler.removeMessages(MSG_ACQUIRE_WAKE_LOCK);
+                mSessionStatusHandler.removeMessages(MSG_RELEASE_WAKE_LOCK);
+                // Release the wake lock if obex transaction is over
+                if (mWakeLock != null) {
+                    mWakeLock.release();
+                    mWakeLock = null;
+                }
+            }
         }
 
-        if (mServerSession != null) {
-            mServerSession.close();
-            mServerSession = null;
+        // Listen for incoming connection again if the accept thread stopped
+        if (mAdapter.isEnabled() && !mInterrupted) {
+            startRfcommSocketListener();
         }
+    }
 
-        mAcceptThread = null;
+    private void onIncomingConnection(PbapSession session) {
+        final BluetoothDevice device = session.mDevice;
+        PbapSession previous = getSession(device);
+        if (previous != null) {
+            // The device reconnected before its previous connection was seen closed
+            Log.w(TAG, "New connection from " + device + ", closing the previous one");
+            stopObexServerSession(previous);
+        }
+        if (!mSessions.put(device, session)) {
+            Log.w(TAG, "Rejecting connection from " + device + ", " + mSessions.size()
+                    + " sessions already connected");
+            session.close();
+            return;
+        }
+        sRemoteDeviceName = session.mName;
 
-        closeConnectionSocket();
+        int permission = device.getPhonebookAccessPermission();
+        if (VERBOSE) Log.v(TAG, "getPhonebookAccessPermission() = " + permission);
 
-        // Last obex transaction is finished, we start to listen for incoming
-        // connection again
-        if (mAdapter.isEnabled()) {
-            startRfcommSocketListener();
+        if (permission == BluetoothDevice.ACCESS_ALLOWED ||
+            permission == PBAP_CONNECT_RECEIVED) {
+            try {
+                if (VERBOSE) {
+                    Log.v(TAG, "incoming connection accepted from: " + session.mName
+                            + " automatically as already allowed device");
+                }
+                // update permission access request
+                device.setPhonebookAccessPermission(PBAP_CONNECT_RECEIVED);
+                startObexServerSession(session);
+            } catch (IOException ex) {
+                Log.e(TAG, "Caught exception starting obex server session"
+                        + ex.toString());
+                stopObexServerSession(session);
+            }
+        } else if (permission == BluetoothDevice.ACCESS_REJECTED) {
+            if (VERBOSE) {
+                Log.v(TAG, "incoming connection rejected from: " + session.mName
+                        + " automatically as already rejected device");
+            }
+            stopObexServerSession(session);
+        } else {  // permission == BluetoothDevice.ACCESS_UNKNOWN
+            // Send an Intent to Settings app to ask user preference.
+            Intent intent =
+                    new Intent(BluetoothDevice.ACTION_CONNECTION_ACCESS_REQUEST);
+            intent.setClassName(ACCESS_AUTHORITY_PACKAGE, ACCESS_AUTHORITY_CLASS);
+            intent.putExtra(BluetoothDevice.EXTRA_ACCESS_REQUEST_TYPE,
+                            BluetoothDevice.REQUEST_TYPE_PHONEBOOK_ACCESS);
+            intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+            intent.putExtra(BluetoothDevice.EXTRA_PACKAGE_NAME, getPackageName());
+            intent.putExtra(BluetoothDevice.EXTRA_CLASS_NAME,
+                            BluetoothPbapReceiver.class.getName());
+
+            session.mWaitingAuthorization = true;
+            sendOrderedBroadcast(intent, BLUETOOTH_ADMIN_PERM);
+
+            if (VERBOSE) Log.v(TAG, "waiting for authorization for connection from: "
+                    + session.mName);
+
+            // In case car kit time out and try to use HFP for phonebook
+            // access, while UI still there waiting for user to confirm
+            mSessionStatusHandler.sendMessageDelayed(mSessionStatusHandler
+                    .obtainMessage(USER_TIMEOUT, session), USER_CONFIRM_TIMEOUT_VALUE);
+            // We will continue the process when we receive
+            // BluetoothDevice.ACTION_CONNECTION_ACCESS_REPLY from Settings app.
         }
-        setState(BluetoothPbap.STATE_DISCONNECTED);
     }
 
     private void notifyAuthKeyInput(final String key) {
-        synchronized (mAuth) {
+        PbapSession session = mAuthSession;
+        if (session == null || session.mAuth == null) {
+            return;
+        }
+        synchronized (session.mAuth) {
             if (key != null) {
-                mAuth.setSessionKey(key);
+                session.mAuth.setSessionKey(key);
             }
-            mAuth.setChallenged(true);
-            mAuth.notify();
+            session.mAuth.setChallenged(true);
+            session.mAuth.notify();
         }
     }
 
     private void notifyAuthCancelled() {
-        synchronized (mAuth) {
-            mAuth.setCancelled(true);
-            mAuth.notify();
+        PbapSession session = mAuthSession;
+        if (session == null || session.mAuth == null) {
+            return;
+        }
+        synchronized (session.mAuth) {
+            session.mAuth.setCancelled(true);
+            session.mAuth.notify();
+        }
+    }
+
+    /**
+     * The connection of a PCE. Once access is allowed, the session has its own obex
+     * server session, so several PCE can use the phonebook at the same time.
+     */
+    private class PbapSession {
+        final BluetoothSocket mSocket;
+        final BluetoothDevice mDevice;
+        final String mName;
+        BluetoothPbapObexServer mPbapServer = null;
+        BluetoothPbapAuthenticator mAuth = null;
+        ServerSession mServerSession = null;
+        boolean mWaitingAuthorization = false;
+        int mState = BluetoothPbap.STATE_DISCONNECTED;
+
+        PbapSession(BluetoothSocket socket, BluetoothDevice device) {
+            mSocket = socket;
+            mDevice = device;
+            String name = device.getName();
+            // In case getRemoteName failed and return null
+            if (TextUtils.isEmpty(name)) {
+                name = getString(R.string.defaultname);
+            }
+            mName = name;
+        }
+
+        synchronized void close() {
+            if (mServerSession != null) {
+                mServerSession.close();
+                mServerSession = null;
+            }
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Close Connection Socket error: " + e.toString());
+            }
         }
     }
 
     /**
      * A thread that runs in the background waiting for remote rfcomm
-     * connect.Once a remote socket connected, this thread shall be
-     * shutdown.When the remote disconnect,this thread shall run again waiting
-     * for next request.
+     * connect. Each connected socket is handed to the handler as a new
+     * session, and the thread waits for the next connection, so several
+     * PCE can be connected at the same time.
      */
     private class SocketAcceptThread extends Thread {
 
@@ -595,83 +732,27 @@ public class BluetoothPbapService extends Service {
                         Log.w(TAG, "mServerSocket is null");
                         break;
                     }
-                    mConnSocket = serverSocket.accept();
+                    BluetoothSocket connSocket = serverSocket.accept();
                     if (VERBOSE) Log.v(TAG, "Accepted socket connection...");
 
-                    synchronized (BluetoothPbapService.this) {
-                        if (mConnSocket == null) {
-                            Log.w(TAG, "mConnSocket is null");
-                            break;
-                        }
-                        mRemoteDevice = mConnSocket.getRemoteDevice();
-                    }
-                    if (mRemoteDevice == null) {
-                        Log.i(TAG, "getRemoteDevice() = null");
+                    if (connSocket == null) {
+                        Log.w(TAG, "connSocket is null");
                         break;
                     }
-                    sRemoteDeviceName = mRemoteDevice.getName();
-                    // In case getRemoteName failed and return null
-                    if (TextUtils.isEmpty(sRemoteDeviceName)) {
-                        sRemoteDeviceName = getString(R.string.defaultname);
-                    }
-                    int permission = mRemoteDevice.getPhonebookAccessPermission();
-                    if (VERBOSE) Log.v(TAG, "getPhonebookAccessPermission() = " + permission);
-
-                    if (permission == BluetoothDevice.ACCESS_ALLOWED ||
-                        permission == PBAP_CONNECT_RECEIVED) {
+                    BluetoothDevice device = connSocket.getRemoteDevice();
+                    if (device == null) {
+                        Log.i(TAG, "getRemoteDevice() = null");
                         try {
-                            if (VERBOSE) {
-                                Log.v(TAG, "incoming connection accepted from: " + sRemoteDeviceName
-                                        + " automatically as already allowed device");
-                            }
-                            // update permission access request
-                            mRemoteDevice.setPhonebookAccessPermission(PBAP_CONNECT_RECEIVED);
-                            startObexServerSession();
-                        } catch (IOException ex) {
-                            Log.e(TAG, "Caught exception starting obex server session"
-                                    + ex.toString());
-                        }
-                    } else if (permission == BluetoothDevice.ACCESS_REJECTED) {
-                        if (VERBOSE) {
-                            Log.v(TAG, "incoming connection rejected from: " + sRemoteDeviceName
-                                    + " automatically as already rejected device");
+                            connSocket.close();
+                        } catch (IOException e) {
+                            Log.e(TAG, "Close Connection Socket error: " + e.toString());
                         }
-                        stopObexServerSession();
-                    } else {  // permission == BluetoothDevice.ACCESS_UNKNOWN
-                        // Send an Intent to Settings app to ask user preference.
-                        Intent intent =
-                                new Intent(BluetoothDevice.ACTION_CONNECTION_ACCESS_REQUEST);
-                        intent.setClassName(ACCESS_AUTHORITY_PACKAGE, ACCESS_AUTHORITY_CLASS);
-                        intent.putExtra(BluetoothDevice.EXTRA_ACCESS_REQUEST_TYPE,
-                                        BluetoothDevice.REQUEST_TYPE_PHONEBOOK_ACCESS);
-                        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, mRemoteDevice);
-                        intent.putExtra(BluetoothDevice.EXTRA_PACKAGE_NAME, getPackageName());
-                        intent.putExtra(BluetoothDevice.EXTRA_CLASS_NAME,
-                                        BluetoothPbapReceiver.class.getName());
-
-                        mIsWaitingAuthorization = true;
-                        sendOrderedBroadcast(intent, BLUETOOTH_ADMIN_PERM);
-
-                        if (VERBOSE) Log.v(TAG, "waiting for authorization for connection from: "
-                                + sRemoteDeviceName);
-
-                        // In case car kit time out and try to use HFP for
-                        // phonebook
-                        // access, while UI still there waiting for user to
-                        // confirm
-                        mSessionStatusHandler.sendMessageDelayed(mSessionStatusHandler
-                                .obtainMessage(USER_TIMEOUT), USER_CONFIRM_TIMEOUT_VALUE);
-                        // We will continue the process when we receive
-                        // BluetoothDevice.ACTION_CONNECTION_ACCESS_REPLY from Settings app.
+                        continue;
                     }
-                    stopped = true; // job done ,close this thread;
+                    mSessionStatusHandler.obtainMessage(INCOMING_CONNECTION,
+                            new PbapSession(connSocket, device)).sendToTarget();
                 } catch (IOException ex) {
                     stopped=true;
-                    /*
-                    if (stopped) {
-                        break;
-                    }
-                    */
                     if (VERBOSE) Log.v(TAG, "Accept exception: " + ex.toString());
                 }
             }
@@ -696,34 +777,56 @@ public class BluetoothPbapService extends Service {
                         closeService();// release all resources
                     }
                     break;
-                case USER_TIMEOUT:
+                case INCOMING_CONNECTION:
+                    onIncomingConnection((PbapSession)msg.obj);
+                    break;
+                case USER_TIMEOUT: {
+                    PbapSession session = (PbapSession)msg.obj;
                     Intent intent = new Intent(BluetoothDevice.ACTION_CONNECTION_ACCESS_CANCEL);
-                    intent.putExtra(BluetoothDevice.EXTRA_DEVICE, mRemoteDevice);
+                    intent.putExtra(BluetoothDevice.EXTRA_DEVICE, session.mDevice);
                     intent.putExtra(BluetoothDevice.EXTRA_ACCESS_REQUEST_TYPE,
                                     BluetoothDevice.REQUEST_TYPE_PHONEBOOK_ACCESS);
                     sendBroadcast(intent);
-                    mIsWaitingAuthorization = false;
-                    stopObexServerSession();
+                    session.mWaitingAuthorization = false;
+                    stopObexServerSession(session);
                     break;
+                }
                 case AUTH_TIMEOUT:
                     Intent i = new Intent(USER_CONFIRM_TIMEOUT_ACTION);
                     sendBroadcast(i);
                     removePbapNotification(NOTIFICATION_ID_AUTH);
                     notifyAuthCancelled();
                     break;
-                case MSG_SERVERSESSION_CLOSE:
-                    stopObexServerSession();
+                case MSG_SERVERSESSION_CLOSE: {
+                    // Also sent when a session is closed here, it is then already gone
+                    PbapSession session = getSessionOf(msg.obj);
+                    if (session != null) {
+                        stopObexServerSession(session);
+                    }
                     break;
+                }
                 case MSG_SESSION_ESTABLISHED:
                     break;
                 case MSG_SESSION_DISCONNECTED:
                     // case MSG_SERVERSESSION_CLOSE will handle ,so just skip
                     break;
-                case MSG_OBEX_AUTH_CHALL:
+                case MSG_OBEX_AUTH_CHALL: {
+                    PbapSession session = getSessionOf(msg.obj);
+                    if (session == null) {
+                        break;
+                    }
+                    if (mAuthSession != null && mAuthSession != session) {
+                        // Only one challenge is shown at a time
+                        notifyAuthCancelled();
+                    }
+                    mAuthSession = session;
+                    sRemoteDeviceName = session.mName;
+                    mSessionStatusHandler.removeMessages(AUTH_TIMEOUT);
                     createPbapNotification(AUTH_CHALL_ACTION);
                     mSessionStatusHandler.sendMessageDelayed(mSessionStatusHandler
                             .obtainMessage(AUTH_TIMEOUT), USER_CONFIRM_TIMEOUT_VALUE);
                     break;
+                }
                 case MSG_ACQUIRE_WAKE_LOCK:
                     if (mWakeLock == null) {
                         PowerManager pm = (PowerManager)getSystemService(
@@ -751,26 +854,38 @@ public class BluetoothPbapService extends Service {
         }
     };
 
-    private void setState(int state) {
-        setState(state, BluetoothPbap.RESULT_SUCCESS);
+    private void setState(PbapSession session, int state) {
+        setState(session, state, BluetoothPbap.RESULT_SUCCESS);
     }
 
-    private synchronized void setState(int state, int result) {
-        if (state != mState) {
-            if (DEBUG) Log.d(TAG, "Pbap state " + mState + " -> " + state + ", result = "
-                    + result);
-            int prevState = mState;
-            mState = state;
-            Intent intent = new Intent(BluetoothPbap.PBAP_STATE_CHANGED_ACTION);
-            intent.putExtra(BluetoothProfile.EXTRA_PREVIOUS_STATE, prevState);
-            intent.putExtra(BluetoothProfile.EXTRA_STATE, mState);
-            intent.putExtra(BluetoothDevice.EXTRA_DEVICE, mRemoteDevice);
-            sendBroadcast(intent, BLUETOOTH_PERM);
-            AdapterService s = AdapterService.getAdapterService();
-            if (s != null) {
-                s.onProfileConnectionStateChanged(mRemoteDevice, BluetoothProfile.PBAP,
-                        mState, prevState);
+    private void setState(PbapSession session, int state, int result) {
+        int prevState;
+        synchronized (this) {
+            if (state == session.mState) {
+                return;
             }
+            prevState = session.mState;
+            session.mState = state;
+            // The service is connected as long as one of the sessions is
+            int serviceState = BluetoothPbap.STATE_DISCONNECTED;
+            for (PbapSession other : mSessions.getAll()) {
+                if (other.mState == BluetoothPbap.STATE_CONNECTED) {
+                    serviceState = BluetoothPbap.STATE_CONNECTED;
+                }
+            }
+            mState = serviceState;
+        }
+        if (DEBUG) Log.d(TAG, "Pbap state of " + session.mDevice + " " + prevState + " -> "
+                + state + ", result = " + result);
+        Intent intent = new Intent(BluetoothPbap.PBAP_STATE_CHANGED_ACTION);
+        intent.putExtra(BluetoothProfile.EXTRA_PREVIOUS_STATE, prevState);
+        intent.putExtra(BluetoothProfile.EXTRA_STATE, state);
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, session.mDevice);
+        sendBroadcast(intent, BLUETOOTH_PERM);
+        AdapterService s = AdapterService.getAdapterService();
+        if (s != null) {
+            s.onProfileConnectionStateChanged(session.mDevice, BluetoothProfile.PBAP,
+                    state, prevState);
         }
     }
 
@@ -846,7 +961,7 @@ public class BluetoothPbapService extends Service {
         }
 
         public BluetoothDevice getClient() {
-            if (DEBUG) Log.d(TAG, "getClient" + mRemoteDevice);
+            if (DEBUG) Log.d(TAG, "getClient");
 
             if (!Utils.checkCaller()) {
                 Log.w(TAG,"getClient(): not allowed for non-active user");
@@ -854,10 +969,13 @@ public class BluetoothPbapService extends Service {
             }
 
             enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
-            if (mState == BluetoothPbap.STATE_DISCONNECTED) {
-                return null;
+            // The first connected client, as the interface has a single one
+            for (PbapSession session : getSessions()) {
+                if (session.mState == BluetoothPbap.STATE_CONNECTED) {
+                    return session.mDevice;
+                }
             }
-            return mRemoteDevice;
+            return null;
         }
 
         public boolean isConnected(BluetoothDevice device) {
@@ -867,7 +985,8 @@ public class BluetoothPbapService extends Service {
             }
 
             enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
-            return mState == BluetoothPbap.STATE_CONNECTED && mRemoteDevice.equals(device);
+            PbapSession session = getSession(device);
+            return session != null && session.mState == BluetoothPbap.STATE_CONNECTED;
         }
 
         public boolean connect(BluetoothDevice device) {
@@ -891,20 +1010,9 @@ public class BluetoothPbapService extends Service {
 
             enforceCallingOrSelfPermission(BLUETOOTH_ADMIN_PERM,
                     "Need BLUETOOTH_ADMIN permission");
-            synchronized (BluetoothPbapService.this) {
-                switch (mState) {
-                    case BluetoothPbap.STATE_CONNECTED:
-                        if (mServerSession != null) {
-                            mServerSession.close();
-                            mServerSession = null;
-                        }
-
-                        closeConnectionSocket();
-
-                        setState(BluetoothPbap.STATE_DISCONNECTED, BluetoothPbap.RESULT_CANCELED);
-                        break;
-                    default:
-                        break;
+            for (PbapSession session : getSessions()) {
+                if (session.mState == BluetoothPbap.STATE_CONNECTED) {
+                    closeSession(session, BluetoothPbap.RESULT_CANCELED);
                 }
             }
         }
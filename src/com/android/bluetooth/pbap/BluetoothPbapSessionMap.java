@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The sessions of the connected PCE, by remote device. A device has at most one
+ * session, and at most a fixed number of devices have one at the same time.
+ */
+class BluetoothPbapSessionMap<S> {
+    private final int mMaxSessions;
+
+    private final HashMap<BluetoothDevice, S> mSessions = new HashMap<BluetoothDevice, S>();
+
+    BluetoothPbapSessionMap(int maxSessions) {
+        mMaxSessions = maxSessions;
+    }
+
+    synchronized S get(BluetoothDevice device) {
+        return (device == null) ? null : mSessions.get(device);
+    }
+
+    /**
+     * @return a copy of the sessions, which can be used without holding the map lock
+     */
+    synchronized ArrayList<S> getAll() {
+        return new ArrayList<S>(mSessions.values());
+    }
+
+    /**
+     * Add the session of a device, replacing its previous session if any.
+     * @return false if the session was not added, as the other devices already have
+     *         the maximum number of sessions
+     */
+    synchronized boolean put(BluetoothDevice device, S session) {
+        if (!mSessions.containsKey(device) && mSessions.size() >= mMaxSessions) {
+            return false;
+        }
+        mSessions.put(device, session);
+        return true;
+    }
+
+    /**
+     * Remove the session of a device, unless the device has a newer session.
+     * @return true if the session was removed
+     */
+    synchronized boolean remove(BluetoothDevice device, S session) {
+        if (mSessions.get(device) != session) {
+            return false;
+        }
+        mSessions.remove(device);
+        return true;
+    }
+
+    synchronized int size() {
+        return mSessions.size();
+    }
+
+    synchronized boolean isEmpty() {
+        return mSessions.isEmpty();
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.internal.telephony.TelephonyIntents;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The SIM phonebook (ADN) held in memory, so the size, listing, search and vCard
+ * requests of the SIM phonebook do not each read the SIM, which takes RIL round trips.
+ * The entries are read once into an immutable table in SIM (index) order. The table
+ * is dropped when the SIM state changes or the ADN records change, and read again on
+ * the next request. Users acquire the phonebook with {@link #acquire(Context)} and
+ * release it when done.
+ */
+class BluetoothPbapSimPhonebook {
+    private static final String TAG = "BluetoothPbapSimPhonebook";
+
+    private static final boolean V = Log.isLoggable(BluetoothPbapService.LOG_TAG, Log.VERBOSE) ? true : false;
+
+    static final Uri SIM_URI = Uri.parse("content://icc/adn");
+
+    private static BluetoothPbapSimPhonebook sInstance = null;
+    private static int sRefCount = 0;
+
+    /**
+     * The SIM phonebook entries, in index order.
+     */
+    static final class Table {
+        /* As read from the SIM, the name may be empty */
+        final String[] names;
+        final String[] numbers;
+        final int[] types;
+        final String[] labels;
+        /* The names, the unknown name for the empty ones */
+        final String[] displayNames;
+        /* The indexes of the entries, in alphabetical order of the display names */
+        final int[] alphabeticalOrder;
+
+        Table(String[] names, String[] numbers, int[] types, String[] labels,
+                String[] displayNames) {
+            this.names = names;
+            this.numbers = numbers;
+            this.types = types;
+            this.labels = labels;
+            this.displayNames = displayNames;
+            final Integer[] order = new Integer[names.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            // A stable sort, so equal names stay in index order
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i1, Integer i2) {
+                    return Table.this.displayNames[i1].compareToIgnoreCase(
+                            Table.this.displayNames[i2]);
+                }
+            });
+            alphabeticalOrder = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                alphabeticalOrder[i] = order[i];
+            }
+        }
+
+        int size() {
+            return names.length;
+        }
+
+        /**
+         * @param position the 0 based position of the entry in the order
+         * @param orderByWhat ORDER_BY_INDEXED or ORDER_BY_ALPHABETICAL
+         * @return the index of the entry, or -1 if there is no entry at the position
+         */
+        int getIndex(int position, int orderByWhat) {
+            if (position < 0 || position >= names.length) {
+                return -1;
+            }
+            if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
+                return alphabeticalOrder[position];
+            }
+            return position;
+        }
+    }
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private boolean mListening = false;
+    private volatile Table mTable = null;
+    /* Incremented when the table is dropped, so a table being read is not kept */
+    private volatile int mGeneration = 0;
+
+    private final BroadcastReceiver mSimStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // The sticky broadcast replayed on registration is the state the table
+            // is read in, not a change
+            if (isInitialStickyBroadcast()) {
+                return;
+            }
+            if (V) Log.v(TAG, "SIM state changed: " + intent.getExtras());
+            invalidate();
+        }
+    };
+
+    private final ContentObserver mAdnObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (V) Log.v(TAG, "ADN records changed");
+            invalidate();
+        }
+    };
+
+    private BluetoothPbapSimPhonebook(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+    }
+
+    static synchronized BluetoothPbapSimPhonebook acquire(Context context) {
+        if (sInstance == null) {
+            sInstance = new BluetoothPbapSimPhonebook(context.getApplicationContext());
+        }
+        sRefCount++;
+        return sInstance;
+    }
+
+    void release() {
+        synchronized (BluetoothPbapSimPhonebook.class) {
+            if (sInstance != this || sRefCount == 0) {
+                return;
+            }
+            if (--sRefCount == 0) {
+                stopListening();
+                sInstance = null;
+            }
+        }
+    }
+
+    private void invalidate() {
+        mGeneration++;
+        mTable = null;
+    }
+
+    /**
+     * @return the SIM phonebook, read from the SIM if needed, or null if it could not
+     *         be read
+     */
+    synchronized Table getTable() {
+        Table table = mTable;
+        if (table != null) {
+            return table;
+        }
+        startListening();
+        final int generation = mGeneration;
+        table = load();
+        if (table != null && generation == mGeneration) {
+            mTable = table;
+        }
+        return table;
+    }
+
+    private void startListening() {
+        if (mListening) {
+            return;
+        }
+        mContext.registerReceiver(mSimStateReceiver,
+                new IntentFilter(TelephonyIntents.ACTION_SIM_STATE_CHANGED));
+        mResolver.registerContentObserver(SIM_URI, true, mAdnObserver);
+        mListening = true;
+    }
+
+    private synchronized void stopListening() {
+        if (mListening) {
+            mContext.unregisterReceiver(mSimStateReceiver);
+            mResolver.unregisterContentObserver(mAdnObserver);
+            mListening = false;
+        }
+        mTable = null;
+    }
+
+    private Table load() {
+        long timestamp = 0;
+        if (V) timestamp = System.currentTimeMillis();
+        Cursor c = null;
+        try {
+            c = mResolver.query(SIM_URI, BluetoothPbapSIMvCardComposer.SIM_PROJECTION, null,
+                    null, null);
+            if (c == null) {
+                return null;
+            }
+            final int count = c.getCount();
+            final String[] names = new String[count];
+            final String[] numbers = new String[count];
+            final int[] types = new int[count];
+            final String[] labels = new String[count];
+            final String[] displayNames = new String[count];
+            final String unknownName = mContext.getString(android.R.string.unknownName);
+            int i = 0;
+            while (c.moveToNext() && i < count) {
+                names[i] = c.getString(BluetoothPbapSIMvCardComposer.NAME_COLUMN_INDEX);
+                numbers[i] = c.getString(BluetoothPbapSIMvCardComposer.NUMBER_COLUMN_INDEX);
+                types[i] = c.getInt(BluetoothPbapSIMvCardComposer.NUMBERTYPE_COLUMN_INDEX);
+                labels[i] = c.getString(BluetoothPbapSIMvCardComposer.NUMBERLABEL_COLUMN_INDEX);
+                displayNames[i] = TextUtils.isEmpty(names[i]) ? unknownName : names[i];
+                i++;
+            }
+            if (i < count) {
+                return new Table(Arrays.copyOf(names, i), Arrays.copyOf(numbers, i),
+                        Arrays.copyOf(types, i), Arrays.copyOf(labels, i),
+                        Arrays.copyOf(displayNames, i));
+            }
+            Table table = new Table(names, numbers, types, labels, displayNames);
+            if (V) Log.v(TAG, "read " + count + " SIM entries in "
+                    + (System.currentTimeMillis() - timestamp) + " ms");
+            return table;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to read the SIM phonebook", e);
+            return null;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+}
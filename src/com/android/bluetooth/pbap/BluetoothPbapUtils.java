@@ -26,9 +26,13 @@ import com.android.bluetooth.pbap.BluetoothPbapService;
 import com.android.vcard.VCardComposer;
 import com.android.vcard.VCardConfig;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
@@ -206,4 +210,66 @@ public class BluetoothPbapUtils {
         Utils.safeCloseStream(os);
         return success;
     }
+
+    /**
+     * Write an owner vcard to a file, along with a stamp describing what the vcard
+     * was composed from. The file is written aside and renamed, so a reader never
+     * sees a partial file.
+     * @param file the file to write
+     * @param stamp the stamp to check when reading the file back
+     * @param vcard the owner vcard
+     * @return true if the file was written
+     */
+    public static boolean createProfileVCardFile(File file, String stamp, String vcard) {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream os = null;
+        boolean success = true;
+        try {
+            os = new DataOutputStream(new FileOutputStream(tmpFile));
+            os.writeUTF(stamp);
+            os.write(vcard.getBytes("UTF-8"));
+            os.close();
+            os = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmpFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write owner vcard file", e);
+            success = false;
+        }
+        Utils.safeCloseStream(os);
+        if (!success) {
+            tmpFile.delete();
+        }
+        return success;
+    }
+
+    /**
+     * Read an owner vcard written by {@link #createProfileVCardFile(File, String, String)}.
+     * @param file the file to read
+     * @param stamp the stamp the file must have been written with
+     * @return the owner vcard, or null if the file does not exist, cannot be read or
+     *         has another stamp
+     */
+    public static String readProfileVCardFile(File file, String stamp) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream is = null;
+        String vcard = null;
+        try {
+            is = new DataInputStream(new FileInputStream(file));
+            if (stamp.equals(is.readUTF())) {
+                ByteArrayOutputStream os = new ByteArrayOutputStream((int) file.length());
+                Utils.copyStream(is, os, 4096);
+                vcard = os.toString("UTF-8");
+            } else if (V) {
+                Log.v(TAG, "Stale owner vcard file " + file);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read owner vcard file", e);
+        }
+        Utils.safeCloseStream(is);
+        return vcard;
+    }
 }
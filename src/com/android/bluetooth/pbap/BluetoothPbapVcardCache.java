@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * An on-disk cache of the vCards sent for the contacts, so a phonebook pulled again
+ * is read from a file rather than composed again.
+ * There is one cache per vCard variant (version, filter), each made of a data file
+ * holding the vCards as sent, and an index file holding, in contact id order, the
+ * contact last updated timestamp and the place of its vCard in the data file.
+ * An entry is valid while the contact last updated timestamp is unchanged. Entries of
+ * deleted contacts are evicted when a pull covering them finds them missing, and the
+ * data file is compacted, in contact id order, once most of it is stale. Sending the
+ * vCards of a pull again is then mostly sequential reads of the data file.
+ */
+class BluetoothPbapVcardCache {
+    private static final String TAG = "BluetoothPbapVcardCache";
+
+    private static final boolean V = Log.isLoggable(BluetoothPbapService.LOG_TAG, Log.VERBOSE) ? true : false;
+
+    private static final String CACHE_DIR = "pbap_vcards";
+    private static final String INDEX_FILE = "index";
+    private static final String DATA_FILE = "data";
+
+    private static final int INDEX_MAGIC = 0x50425643; // "PBVC"
+    private static final int INDEX_VERSION = 1;
+
+    /* Indices in the entry filled by lookup() */
+    static final int ENTRY_OFFSET = 0;
+    static final int ENTRY_LENGTH = 1;
+
+    /* Entries are not added once the data file reaches this size */
+    private static final long MAX_DATA_BYTES = 16 * 1024 * 1024;
+
+    private static final HashMap<String, BluetoothPbapVcardCache> sCaches =
+            new HashMap<String, BluetoothPbapVcardCache>();
+
+    private final File mDir;
+    private RandomAccessFile mData = null;
+    private long mDataLength = 0;
+    private long mLiveBytes = 0;
+    private boolean mDirty = false;
+    /* Incremented when the data file is compacted, invalidating the offsets read */
+    private int mGeneration = 0;
+
+    /* The entries, sorted by contact id */
+    private int mSize = 0;
+    private long[] mIds = new long[64];
+    private long[] mUpdated = new long[64];
+    private long[] mOffsets = new long[64];
+    private int[] mLengths = new int[64];
+
+    private BluetoothPbapVcardCache(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Get the cache of a vCard variant, shared by all sessions.
+     * @param variant the name of the variant, usable as a file name
+     * @return the cache, or null if the cache files cannot be opened
+     */
+    static BluetoothPbapVcardCache get(Context context, String variant) {
+        synchronized (sCaches) {
+            BluetoothPbapVcardCache cache = sCaches.get(variant);
+            if (cache == null) {
+                File dir = new File(new File(context.getCacheDir(), CACHE_DIR), variant);
+                cache = new BluetoothPbapVcardCache(dir);
+                if (!cache.open()) {
+                    return null;
+                }
+                sCaches.put(variant, cache);
+            }
+            return cache;
+        }
+    }
+
+    private synchronized boolean open() {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.e(TAG, "Unable to create " + mDir);
+            return false;
+        }
+        try {
+            mData = new RandomAccessFile(new File(mDir, DATA_FILE), "rw");
+            mDataLength = mData.length();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open the vCard data file", e);
+            return false;
+        }
+        if (!loadIndex()) {
+            // Start over, the data file is useless without its index
+            mSize = 0;
+            mDataLength = 0;
+            mLiveBytes = 0;
+        }
+        if (V) Log.v(TAG, "open " + mDir + ": " + mSize + " entries, " + mDataLength
+                + " bytes");
+        return true;
+    }
+
+    private boolean loadIndex() {
+        File file = new File(mDir, INDEX_FILE);
+        if (!file.exists()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                return false;
+            }
+            final long dataLength = in.readLong();
+            final int size = in.readInt();
+            if (dataLength > mDataLength || size < 0) {
+                return false;
+            }
+            ensureCapacity(size);
+            long liveBytes = 0;
+            for (int i = 0; i < size; i++) {
+                mIds[i] = in.readLong();
+                mUpdated[i] = in.readLong();
+                mOffsets[i] = in.readLong();
+                mLengths[i] = in.readInt();
+                if (mOffsets[i] + mLengths[i] > dataLength
+                        || (i > 0 && mIds[i] <= mIds[i - 1])) {
+                    return false;
+                }
+                liveBytes += mLengths[i];
+            }
+            mSize = size;
+            mDataLength = dataLength;
+            mLiveBytes = liveBytes;
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the vCard index: " + e);
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mIds.length) {
+            int length = Math.max(capacity, mIds.length * 2);
+            mIds = Arrays.copyOf(mIds, length);
+            mUpdated = Arrays.copyOf(mUpdated, length);
+            mOffsets = Arrays.copyOf(mOffsets, length);
+            mLengths = Arrays.copyOf(mLengths, length);
+        }
+    }
+
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Look up the entry of the contact, if it is valid for the contact last updated
+     * timestamp. The entry is read at once, as the positions of the entries change
+     * when other sessions add or evict contacts; its bytes stay in the data file
+     * until it is compacted.
+     * @param entry receives the offset of the vCard in the data file at
+     *        {@link #ENTRY_OFFSET} and its length at {@link #ENTRY_LENGTH}
+     * @return false if there is no valid entry
+     */
+    synchronized boolean lookup(long id, long updated, long[] entry) {
+        int pos = Arrays.binarySearch(mIds, 0, mSize, id);
+        if (pos < 0 || mUpdated[pos] != updated) {
+            return false;
+        }
+        entry[ENTRY_OFFSET] = mOffsets[pos];
+        entry[ENTRY_LENGTH] = mLengths[pos];
+        return true;
+    }
+
+    /**
+     * Append the bytes at offset in the data file to the buffer.
+     * @return false if the data file was compacted since generation, or cannot be read
+     */
+    synchronized boolean read(int generation, long offset, int length,
+            BluetoothPbapVcardPipeline.VcardBuffer out) {
+        if (generation != mGeneration || offset + length > mDataLength) {
+            return false;
+        }
+        try {
+            out.appendFrom(mData, offset, length);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read cached vCards", e);
+            return false;
+        }
+    }
+
+    /**
+     * Add or replace the vCard of a contact.
+     */
+    synchronized void put(long id, long updated, byte[] vcard, int offset, int length) {
+        if (mDataLength + length > MAX_DATA_BYTES) {
+            return;
+        }
+        try {
+            mData.seek(mDataLength);
+            mData.write(vcard, offset, length);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write a cached vCard", e);
+            return;
+        }
+        int pos = Arrays.binarySearch(mIds, 0, mSize, id);
+        if (pos >= 0) {
+            mLiveBytes -= mLengths[pos];
+        } else {
+            pos = -(pos + 1);
+            ensureCapacity(mSize + 1);
+            final int moved = mSize - pos;
+            System.arraycopy(mIds, pos, mIds, pos + 1, moved);
+            System.arraycopy(mUpdated, pos, mUpdated, pos + 1, moved);
+            System.arraycopy(mOffsets, pos, mOffsets, pos + 1, moved);
+            System.arraycopy(mLengths, pos, mLengths, pos + 1, moved);
+            mIds[pos] = id;
+            mSize++;
+        }
+        mUpdated[pos] = updated;
+        mOffsets[pos] = mDataLength;
+        mLengths[pos] = length;
+        mDataLength += length;
+        mLiveBytes += length;
+        mDirty = true;
+    }
+
+    /**
+     * Evict the entries of the contacts from firstId to lastId, not in ids.
+     * @param ids the ids of the contacts from firstId to lastId, in ascending order
+     */
+    synchronized void retain(long firstId, long lastId, long[] ids, int count) {
+        int pos = Arrays.binarySearch(mIds, 0, mSize, firstId);
+        if (pos < 0) {
+            pos = -(pos + 1);
+        }
+        int out = pos;
+        int next = 0;
+        for (; pos < mSize && mIds[pos] <= lastId; pos++) {
+            while (next < count && ids[next] < mIds[pos]) {
+                next++;
+            }
+            if (next < count && ids[next] == mIds[pos]) {
+                if (out != pos) {
+                    mIds[out] = mIds[pos];
+                    mUpdated[out] = mUpdated[pos];
+                    mOffsets[out] = mOffsets[pos];
+                    mLengths[out] = mLengths[pos];
+                }
+                out++;
+            } else {
+                mLiveBytes -= mLengths[pos];
+            }
+        }
+        if (out != pos) {
+            final int moved = mSize - pos;
+            System.arraycopy(mIds, pos, mIds, out, moved);
+            System.arraycopy(mUpdated, pos, mUpdated, out, moved);
+            System.arraycopy(mOffsets, pos, mOffsets, out, moved);
+            System.arraycopy(mLengths, pos, mLengths, out, moved);
+            if (V) Log.v(TAG, "evicted " + (pos - out) + " deleted contacts");
+            mSize -= pos - out;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Write the index, compacting the data file first if most of it is stale.
+     */
+    synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        if (mDataLength > 2 * mLiveBytes && mDataLength > 64 * 1024) {
+            compact();
+        }
+        File file = new File(mDir, INDEX_FILE);
+        File temp = new File(mDir, INDEX_FILE + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(mDataLength);
+            out.writeInt(mSize);
+            for (int i = 0; i < mSize; i++) {
+                out.writeLong(mIds[i]);
+                out.writeLong(mUpdated[i]);
+                out.writeLong(mOffsets[i]);
+                out.writeInt(mLengths[i]);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                Log.e(TAG, "Unable to replace the vCard index");
+                return;
+            }
+            mDirty = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the vCard index", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void compact() {
+        File temp = new File(mDir, DATA_FILE + ".tmp");
+        RandomAccessFile compacted = null;
+        try {
+            compacted = new RandomAccessFile(temp, "rw");
+            compacted.setLength(0);
+            byte[] buffer = new byte[8 * 1024];
+            long length = 0;
+            for (int i = 0; i < mSize; i++) {
+                if (mLengths[i] > buffer.length) {
+                    buffer = new byte[mLengths[i]];
+                }
+                mData.seek(mOffsets[i]);
+                mData.readFully(buffer, 0, mLengths[i]);
+                compacted.write(buffer, 0, mLengths[i]);
+                mOffsets[i] = length;
+                length += mLengths[i];
+            }
+            compacted.close();
+            compacted = null;
+            mData.close();
+            File file = new File(mDir, DATA_FILE);
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to replace the vCard data file");
+            }
+            mData = new RandomAccessFile(file, "rw");
+            if (V) Log.v(TAG, "compacted " + mDataLength + " bytes to " + length);
+            mDataLength = length;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to compact the vCard data file, clearing the cache", e);
+            clear();
+        } finally {
+            mGeneration++;
+            if (compacted != null) {
+                try {
+                    compacted.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void clear() {
+        mSize = 0;
+        mDataLength = 0;
+        mLiveBytes = 0;
+        mDirty = true;
+        try {
+            if (mData != null) {
+                mData.close();
+            }
+            mData = new RandomAccessFile(new File(mDir, DATA_FILE), "rw");
+            mData.setLength(0);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to reset the vCard data file", e);
+        }
+    }
+}
@@ -45,12 +45,9 @@ import android.provider.ContactsContract.CommonDataKinds;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
-import java.util.Collections;
-import java.util.Comparator;
 import com.android.bluetooth.R;
 import com.android.vcard.VCardComposer;
 import com.android.vcard.VCardConfig;
@@ -59,12 +56,17 @@ import com.android.vcard.VCardPhoneNumberTranslationCallback;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.btobex.ServerOperation;
 import javax.btobex.Operation;
 import javax.btobex.ResponseCodes;
 
 import com.android.bluetooth.Utils;
+import com.android.bluetooth.util.ContactNumberIndex;
 
 public class BluetoothPbapVcardManager {
     private static final String TAG = "BluetoothPbapVcardManager";
@@ -75,6 +77,35 @@ public class BluetoothPbapVcardManager {
 
     private Context mContext;
 
+    /* The visible contacts, kept until the contacts change and shared by the sessions */
+    private final BluetoothPbapPhonebookSnapshot mPhonebookSnapshot;
+
+    /* The abort flag of the session */
+    private final AtomicBoolean mAborted;
+
+    /* Phonebook pulls of more contacts than a chunk are composed on workers */
+    private static final int COMPOSE_CHUNK_SIZE = 16;
+    private static final int COMPOSE_WORKER_COUNT = 2;
+    private static final int COMPOSE_CHUNKS_IN_FLIGHT = 2 * COMPOSE_WORKER_COUNT;
+
+    /* Chunks of cached vCards are read up to this size */
+    private static final int MAX_CACHED_CHUNK_BYTES = 128 * 1024;
+
+    private static final String[] CONTACTS_VERSION_PROJECTION = new String[] {
+        Contacts._ID, Contacts.CONTACT_LAST_UPDATED_TIMESTAMP
+    };
+
+    private ExecutorService mComposeExecutor = null;
+
+    /* Acquired on the first SIM phonebook request, released on close */
+    private BluetoothPbapSimPhonebook mSimPhonebook = null;
+
+    /* Acquired on the first owner vcard request, released on close */
+    private BluetoothPbapOwnerVcardCache mOwnerVcardCache = null;
+
+    /* Acquired on the first search by number, released on close */
+    private ContactNumberIndex mNumberIndex = null;
+
     static final String[] PHONES_PROJECTION = new String[] {
             Data._ID, // 0
             CommonDataKinds.Phone.TYPE, // 1
@@ -83,16 +114,8 @@ public class BluetoothPbapVcardManager {
             Contacts.DISPLAY_NAME, // 4
     };
 
-    private final String SIM_URI = "content://icc/adn";
-
-    static final String[] SIM_PROJECTION = new String[] {
-            Contacts.DISPLAY_NAME,
-            CommonDataKinds.Phone.NUMBER,
-    };
     private static final int PHONE_NUMBER_COLUMN_INDEX = 3;
 
-    private static final int SIM_NAME_COLUMN_INDEX = 0;
-    private static final int SIM_NUMBER_COLUMN_INDEX = 1;
     static final String SORT_ORDER_PHONE_NUMBER = CommonDataKinds.Phone.NUMBER + " ASC";
 
     static final String[] CONTACTS_PROJECTION = new String[] {
@@ -113,8 +136,45 @@ public class BluetoothPbapVcardManager {
     private static final String CLAUSE_ONLY_VISIBLE = null;
 
     public BluetoothPbapVcardManager(final Context context) {
+        this(context, new AtomicBoolean(false));
+    }
+
+    /**
+     * @param aborted the abort flag of the session, set when the client aborts the
+     *        current operation and cleared by the operation when it stops
+     */
+    public BluetoothPbapVcardManager(final Context context, final AtomicBoolean aborted) {
         mContext = context;
         mResolver = mContext.getContentResolver();
+        mAborted = aborted;
+        mPhonebookSnapshot = BluetoothPbapPhonebookSnapshot.acquire(mContext);
+    }
+
+    /**
+     * Release the resources of the session
+     */
+    public void close() {
+        mPhonebookSnapshot.release();
+        if (mNumberIndex != null) {
+            mNumberIndex.release();
+            mNumberIndex = null;
+        }
+        if (mSimPhonebook != null) {
+            mSimPhonebook.release();
+            mSimPhonebook = null;
+        }
+        synchronized (this) {
+            if (mOwnerVcardCache != null) {
+                mOwnerVcardCache.release();
+                mOwnerVcardCache = null;
+            }
+        }
+        synchronized (this) {
+            if (mComposeExecutor != null) {
+                mComposeExecutor.shutdownNow();
+                mComposeExecutor = null;
+            }
+        }
     }
 
     /**
@@ -139,6 +199,26 @@ public class BluetoothPbapVcardManager {
     }
 
     public final String getOwnerPhoneNumberVcard(final boolean vcardType21, final byte[] filter) {
+        final BluetoothPbapOwnerVcardCache cache;
+        synchronized (this) {
+            if (mOwnerVcardCache == null) {
+                mOwnerVcardCache = BluetoothPbapOwnerVcardCache.acquire(mContext);
+            }
+            cache = mOwnerVcardCache;
+        }
+        return cache.get(vcardType21, filter, mOwnerVcardComposer);
+    }
+
+    private final BluetoothPbapOwnerVcardCache.OwnerVcardComposer mOwnerVcardComposer =
+            new BluetoothPbapOwnerVcardCache.OwnerVcardComposer() {
+        @Override
+        public String composeOwnerVcard(boolean vcardType21, byte[] filter) {
+            return composeOwnerPhoneNumberVcard(vcardType21, filter);
+        }
+    };
+
+    private final String composeOwnerPhoneNumberVcard(final boolean vcardType21,
+            final byte[] filter) {
         //Owner vCard enhancement: Use "ME" profile if configured
         if (BluetoothPbapConfig.useProfileForOwnerVcard()) {
             String vcard = getOwnerPhoneNumberVcardFromProfile(vcardType21, filter);
@@ -174,40 +254,20 @@ public class BluetoothPbapVcardManager {
     }
 
     public final int getContactsSize() {
-        final Uri myUri = Contacts.CONTENT_URI;
-        int size = 0;
-        Cursor contactCursor = null;
-        try {
-            contactCursor = mResolver.query(myUri, null, CLAUSE_ONLY_VISIBLE, null, null);
-            if (contactCursor != null) {
-                size = contactCursor.getCount() + 1; // always has the 0.vcf
-            }
-        } catch (CursorWindowAllocationException e) {
-            Log.e(TAG, "CursorWindowAllocationException while getting Contacts size");
-        } finally {
-            if (contactCursor != null) {
-                contactCursor.close();
-                contactCursor = null;
-            }
-        }
-        return size;
+        int size = mPhonebookSnapshot.getSize();
+        return (size < 0) ? 0 : size + 1; // always has the 0.vcf
     }
 
     public final int getSIMContactsSize() {
-        final Uri myUri = Uri.parse(SIM_URI);
-        int size = 0;
-        Cursor contactCursor = null;
-        try {
-            contactCursor = mResolver.query(myUri, SIM_PROJECTION, null,null, null);
-            if (contactCursor != null) {
-                size = contactCursor.getCount() +1;  //always has the 0.vcf
-            }
-        } finally {
-            if (contactCursor != null) {
-                contactCursor.close();
-            }
+        BluetoothPbapSimPhonebook.Table table = getSimTable();
+        return (table == null) ? 0 : table.size() + 1; //always has the 0.vcf
+    }
+
+    private BluetoothPbapSimPhonebook.Table getSimTable() {
+        if (mSimPhonebook == null) {
+            mSimPhonebook = BluetoothPbapSimPhonebook.acquire(mContext);
         }
-        return size;
+        return mSimPhonebook.getTable();
     }
 
     public final int getCallHistorySize(final int type) {
@@ -232,8 +292,28 @@ public class BluetoothPbapVcardManager {
         return size;
     }
 
-    public final ArrayList<String> loadCallHistoryList(final int type) {
-        final Uri myUri = CallLog.Calls.CONTENT_URI;
+    /**
+     * Get the uri of the call log entries from offset, at most count, in the order of
+     * CALLLOG_SORT_ORDER, so only the entries requested are read.
+     */
+    static Uri getCallLogWindowUri(final int offset, final int count) {
+        return CallLog.Calls.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Calls.LIMIT_PARAM_KEY, Integer.toString(count))
+                .appendQueryParameter(Calls.OFFSET_PARAM_KEY, Integer.toString(offset))
+                .build();
+    }
+
+    /**
+     * Load the names of the call log entries of type from startPoint (0 based), at most
+     * count
+     */
+    public final ArrayList<String> loadCallHistoryList(final int type, final int startPoint,
+            final int count) {
+        ArrayList<String> list = new ArrayList<String>();
+        if (startPoint < 0 || count <= 0) {
+            return list;
+        }
+        final Uri myUri = getCallLogWindowUri(startPoint, count);
         String selection = BluetoothPbapObexServer.createSelectionPara(type);
         String[] projection = new String[] {
                 Calls.NUMBER, Calls.CACHED_NAME, Calls.NUMBER_PRESENTATION
@@ -243,7 +323,6 @@ public class BluetoothPbapVcardManager {
         final int CALLS_NUMBER_PRESENTATION_COLUMN_INDEX = 2;
 
         Cursor callCursor = null;
-        ArrayList<String> list = new ArrayList<String>();
         try {
             callCursor = mResolver.query(myUri, projection, selection, null,
                     CALLLOG_SORT_ORDER);
@@ -277,47 +356,21 @@ public class BluetoothPbapVcardManager {
     public final ArrayList<String> getSIMPhonebookNameList(final int orderByWhat) {
         ArrayList<String> nameList = new ArrayList<String>();
         nameList.add(BluetoothPbapService.getLocalPhoneName());
-        //Since owner card should always be 0.vcf, maintaing a separate list to avoid sorting
-        ArrayList<String> allnames = new ArrayList<String>();
-        final Uri myUri = Uri.parse(SIM_URI);
-        Cursor contactCursor = null;
-        try {
-            contactCursor = mResolver.query(myUri, SIM_PROJECTION, null,null,null);
-            if (contactCursor != null) {
-                for (contactCursor.moveToFirst(); !contactCursor.isAfterLast(); contactCursor
-                        .moveToNext()) {
-                    String name = contactCursor.getString(SIM_NAME_COLUMN_INDEX);
-                    if (TextUtils.isEmpty(name)) {
-                        name = mContext.getString(android.R.string.unknownName);
-                    }
-                    allnames.add(name);
-                }
-            }
-        } finally {
-            if (contactCursor != null) {
-                contactCursor.close();
-            }
+        //Owner card is always 0.vcf, the SIM entries follow in the requested order
+        BluetoothPbapSimPhonebook.Table table = getSimTable();
+        if (table == null) {
+            return nameList;
         }
-        if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_INDEXED) {
-                if (V) Log.v(TAG, "getPhonebookNameList, order by index");
-        } else if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
-                if (V) Log.v(TAG, "getPhonebookNameList, order by alpha");
-                Collections.sort(allnames, new Comparator <String> ()
-                                 {@Override
-                                  public int compare(String str1, String str2){
-                                      return str1.compareToIgnoreCase(str2);
-                                  }
-                 });
+        if (V) Log.v(TAG, "getSIMPhonebookNameList, order by " + orderByWhat);
+        nameList.ensureCapacity(table.size() + 1);
+        for (int position = 0; position < table.size(); position++) {
+            nameList.add(table.displayNames[table.getIndex(position, orderByWhat)]);
         }
-
-        nameList.addAll(allnames);
         return nameList;
-
     }
 
 
-    public final ArrayList<String> getPhonebookNameList(final int orderByWhat) {
-        ArrayList<String> nameList = new ArrayList<String>();
+    private String getOwnerName() {
         //Owner vCard enhancement. Use "ME" profile if configured
         String ownerName = null;
         if (BluetoothPbapConfig.useProfileForOwnerVcard()) {
@@ -326,43 +379,32 @@ public class BluetoothPbapVcardManager {
         if (ownerName == null || ownerName.length()==0) {
             ownerName = BluetoothPbapService.getLocalPhoneName();
         }
-        nameList.add(ownerName);
         //End enhancement
+        return ownerName;
+    }
 
-        final Uri myUri = Contacts.CONTENT_URI;
-        Cursor contactCursor = null;
-        try {
-            if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_INDEXED) {
-                if (V) Log.v(TAG, "getPhonebookNameList, order by index");
-                contactCursor = mResolver.query(myUri, CONTACTS_PROJECTION, CLAUSE_ONLY_VISIBLE,
-                        null, Contacts._ID);
-            } else if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
-                if (V) Log.v(TAG, "getPhonebookNameList, order by alpha");
-                contactCursor = mResolver.query(myUri, CONTACTS_PROJECTION, CLAUSE_ONLY_VISIBLE,
-                        null, Contacts.DISPLAY_NAME);
-            }
-            if (contactCursor != null) {
-                for (contactCursor.moveToFirst(); !contactCursor.isAfterLast(); contactCursor
-                        .moveToNext()) {
-                    String name = contactCursor.getString(CONTACTS_NAME_COLUMN_INDEX);
-                    long id = contactCursor.getLong(CONTACTS_ID_COLUMN_INDEX);
-                    if (TextUtils.isEmpty(name)) {
-                        name = mContext.getString(android.R.string.unknownName);
-                    }
-                    nameList.add(name + "," + id);
-                }
-            }
-        } catch (CursorWindowAllocationException e) {
-            Log.e(TAG, "CursorWindowAllocationException while getting Phonebook name list");
-        } finally {
-            if (contactCursor != null) {
-                contactCursor.close();
-                contactCursor = null;
-            }
-        }
+    public final ArrayList<String> getPhonebookNameList(final int orderByWhat) {
+        ArrayList<String> nameList = new ArrayList<String>();
+        nameList.add(getOwnerName());
+
+        if (V) Log.v(TAG, "getPhonebookNameList, order by " + orderByWhat);
+        mPhonebookSnapshot.addNameList(nameList, orderByWhat);
         return nameList;
     }
 
+    /**
+     * Get the names of the phonebook listing, the owner first, without building the
+     * "name,id" entries of getPhonebookNameList().
+     */
+    public final String[] getPhonebookNames(final int orderByWhat) {
+        String[] names = mPhonebookSnapshot.getNames(1, orderByWhat);
+        if (names == null) {
+            names = new String[1];
+        }
+        names[0] = getOwnerName();
+        return names;
+    }
+
     public final ArrayList<String> getSIMContactNamesByNumber(final String phoneNumber) {
         ArrayList<String> nameList = new ArrayList<String>();
         ArrayList<String> startNameList = new ArrayList<String>();
@@ -375,52 +417,35 @@ public class BluetoothPbapVcardManager {
         }
         String SearchOnlyNumber = onlyphoneNumber.toString();
 
-        Cursor contactCursor = null;
-        final Uri uri = Uri.parse(SIM_URI);
-
-        try {
-            contactCursor = mResolver.query(uri, SIM_PROJECTION, null, null, null);
-
-            if (contactCursor != null) {
-                for (contactCursor.moveToFirst(); !contactCursor.isAfterLast(); contactCursor
-                        .moveToNext()) {
-                    String number = contactCursor.getString(SIM_NUMBER_COLUMN_INDEX);
-                    if (number == null) {
-                        if (V) Log.v(TAG, "number is null");
-                        continue;
-                    }
-                    StringBuilder onlyNumber = new StringBuilder();
-                    for (int j=0; j<number.length(); j++) {
-                        char c = number.charAt(j);
-                        if (c >= '0' && c <= '9') {
-                            onlyNumber = onlyNumber.append(c);
-                        }
-                    }
-                    String tmpNumber = onlyNumber.toString();
-                    if (V) Log.v(TAG, "number: "+number+" onlyNumber:"+onlyNumber+" tmpNumber:"+tmpNumber);
-                    if (tmpNumber.endsWith(SearchOnlyNumber)) {
-                        String name = contactCursor.getString(SIM_NAME_COLUMN_INDEX);
-                        if (TextUtils.isEmpty(name)) {
-                            name = mContext.getString(android.R.string.unknownName);
-                        }
-                        if (V) Log.v(TAG, "got name " + name + " by number " + phoneNumber);
-                        if (V) Log.v(TAG, "Adding to end name list");
-                        nameList.add(name);
-                    }
-                    if (tmpNumber.startsWith(SearchOnlyNumber)) {
-                        String name = contactCursor.getString(SIM_NAME_COLUMN_INDEX);
-                        if (TextUtils.isEmpty(name)) {
-                            name = mContext.getString(android.R.string.unknownName);
-                        }
-                        if (V) Log.v(TAG, "got name " + name + " by number " + phoneNumber);
-                        if (V) Log.v(TAG, "Adding to start name list");
-                        startNameList.add(name);
-                    }
+        BluetoothPbapSimPhonebook.Table table = getSimTable();
+        if (table == null) {
+            return nameList;
+        }
+        StringBuilder onlyNumber = new StringBuilder();
+        for (int i = 0; i < table.size(); i++) {
+            String number = table.numbers[i];
+            if (number == null) {
+                if (V) Log.v(TAG, "number is null");
+                continue;
+            }
+            onlyNumber.setLength(0);
+            for (int j=0; j<number.length(); j++) {
+                char c = number.charAt(j);
+                if (c >= '0' && c <= '9') {
+                    onlyNumber.append(c);
                 }
             }
-        } finally {
-            if (contactCursor != null) {
-                contactCursor.close();
+            String tmpNumber = onlyNumber.toString();
+            if (V) Log.v(TAG, "number: "+number+" tmpNumber:"+tmpNumber);
+            if (tmpNumber.endsWith(SearchOnlyNumber)) {
+                if (V) Log.v(TAG, "got name " + table.displayNames[i] + " by number "
+                        + phoneNumber + ", adding to end name list");
+                nameList.add(table.displayNames[i]);
+            }
+            if (tmpNumber.startsWith(SearchOnlyNumber)) {
+                if (V) Log.v(TAG, "got name " + table.displayNames[i] + " by number "
+                        + phoneNumber + ", adding to start name list");
+                startNameList.add(table.displayNames[i]);
             }
         }
         int startListSize = startNameList.size();
@@ -437,17 +462,32 @@ public class BluetoothPbapVcardManager {
         ArrayList<String> tempNameList = new ArrayList<String>();
 
         Cursor contactCursor = null;
-        Uri uri = null;
 
-        if (phoneNumber != null && phoneNumber.length() == 0) {
-            uri = Contacts.CONTENT_URI;
-        } else {
-            uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
-                Uri.encode(phoneNumber));
+        if (phoneNumber == null) {
+            return nameList;
+        }
+        if (phoneNumber.length() != 0) {
+            /* Look the number up in the shared index instead of querying PhoneLookup */
+            if (mNumberIndex == null) {
+                mNumberIndex = ContactNumberIndex.acquire(mContext);
+            }
+            ArrayList<ContactNumberIndex.Match> matches = mNumberIndex.lookup(phoneNumber);
+            for (int i = 0; i < matches.size(); i++) {
+                ContactNumberIndex.Match match = matches.get(i);
+                String name = match.name;
+                if (TextUtils.isEmpty(name)) {
+                    name = mContext.getString(android.R.string.unknownName);
+                }
+                if (V) Log.v(TAG, "got name " + name + " by number " + phoneNumber + " @"
+                        + match.contactId);
+                nameList.add(name + "," + match.contactId);
+            }
+            return nameList;
         }
 
         try {
-            contactCursor = mResolver.query(uri, CONTACTS_PROJECTION, CLAUSE_ONLY_VISIBLE,
+            contactCursor = mResolver.query(Contacts.CONTENT_URI, CONTACTS_PROJECTION,
+                        CLAUSE_ONLY_VISIBLE,
                         null, Contacts._ID);
 
             if (contactCursor != null) {
@@ -488,61 +528,14 @@ public class BluetoothPbapVcardManager {
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
         String typeSelection = BluetoothPbapObexServer.createSelectionPara(type);
+        // Read only the requested window of the call log, instead of all the entries of
+        // the type to find the ids of the window
+        final Uri windowUri = getCallLogWindowUri(startPoint - 1, endPoint - startPoint + 1);
 
-        final Uri myUri = CallLog.Calls.CONTENT_URI;
-        final String[] CALLLOG_PROJECTION = new String[] {
-            CallLog.Calls._ID, // 0
-        };
-        final int ID_COLUMN_INDEX = 0;
-
-        Cursor callsCursor = null;
-        long startPointId = 0;
-        long endPointId = 0;
-        try {
-            // Need test to see if order by _ID is ok here, or by date?
-            callsCursor = mResolver.query(myUri, CALLLOG_PROJECTION, typeSelection, null,
-                    CALLLOG_SORT_ORDER);
-            if (callsCursor != null) {
-                callsCursor.moveToPosition(startPoint - 1);
-                startPointId = callsCursor.getLong(ID_COLUMN_INDEX);
-                if (V) Log.v(TAG, "Call Log query startPointId = " + startPointId);
-                if (startPoint == endPoint) {
-                    endPointId = startPointId;
-                } else {
-                    callsCursor.moveToPosition(endPoint - 1);
-                    endPointId = callsCursor.getLong(ID_COLUMN_INDEX);
-                }
-                if (V) Log.v(TAG, "Call log query endPointId = " + endPointId);
-            }
-        } catch (CursorWindowAllocationException e) {
-            Log.e(TAG, "CursorWindowAllocationException while composing calllog vcards");
-        } finally {
-            if (callsCursor != null) {
-                callsCursor.close();
-                callsCursor = null;
-            }
-        }
+        if (V) Log.v(TAG, "Call log query " + windowUri + " selection is: " + typeSelection);
 
-        String recordSelection;
-        if (startPoint == endPoint) {
-            recordSelection = Calls._ID + "=" + startPointId;
-        } else {
-            // The query to call table is by "_id DESC" order, so change
-            // correspondingly.
-            recordSelection = Calls._ID + ">=" + endPointId + " AND " + Calls._ID + "<="
-                    + startPointId;
-        }
-
-        String selection;
-        if (typeSelection == null) {
-            selection = recordSelection;
-        } else {
-            selection = "(" + typeSelection + ") AND (" + recordSelection + ")";
-        }
-
-        if (V) Log.v(TAG, "Call log query selection is: " + selection);
-
-        return composeAndSendVCards(op, selection, vcardType21, null, false, ignorefilter, filter);
+        return composeAndSendCallLogVcards(op, windowUri, typeSelection, vcardType21, null,
+                ignorefilter, filter);
     }
 
     public final int composeAndSendPhonebookVcards(Operation op, final int startPoint,
@@ -552,34 +545,29 @@ public class BluetoothPbapVcardManager {
             Log.e(TAG, "internal error: startPoint or endPoint is not correct.");
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
-        final Uri myUri = Contacts.CONTENT_URI;
-
-        Cursor contactCursor = null;
-        long startPointId = 0;
-        long endPointId = 0;
-        try {
-            contactCursor = mResolver.query(myUri, CONTACTS_PROJECTION, CLAUSE_ONLY_VISIBLE, null,
-                    Contacts._ID);
-            if (contactCursor != null) {
-                contactCursor.moveToPosition(startPoint - 1);
-                startPointId = contactCursor.getLong(CONTACTS_ID_COLUMN_INDEX);
-                if (V) Log.v(TAG, "Query startPointId = " + startPointId);
-                if (startPoint == endPoint) {
-                    endPointId = startPointId;
-                } else {
-                    contactCursor.moveToPosition(endPoint - 1);
-                    endPointId = contactCursor.getLong(CONTACTS_ID_COLUMN_INDEX);
-                }
-                if (V) Log.v(TAG, "Query endPointId = " + endPointId);
-            }
-        } catch (CursorWindowAllocationException e) {
-            Log.e(TAG, "CursorWindowAllocationException while composing phonebook vcards");
-        } finally {
-            if (contactCursor != null) {
-                contactCursor.close();
-                contactCursor = null;
+        long startPointId = mPhonebookSnapshot.getContactId(startPoint - 1,
+                BluetoothPbapObexServer.ORDER_BY_INDEXED);
+        if (startPointId < 0) {
+            Log.e(TAG, "internal error: no contact at startPoint " + startPoint);
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        }
+        if (V) Log.v(TAG, "Query startPointId = " + startPointId);
+        long endPointId = startPointId;
+        if (startPoint != endPoint) {
+            int lastPoint = Math.min(endPoint, mPhonebookSnapshot.getSize());
+            endPointId = mPhonebookSnapshot.getContactId(lastPoint - 1,
+                    BluetoothPbapObexServer.ORDER_BY_INDEXED);
+            if (endPointId < 0) {
+                endPointId = startPointId;
             }
         }
+        if (V) Log.v(TAG, "Query endPointId = " + endPointId);
+
+        final int count = Math.min(endPoint, mPhonebookSnapshot.getSize()) - startPoint + 1;
+        if (count > COMPOSE_CHUNK_SIZE) {
+            return composeAndSendContactsPipelined(op, startPointId, endPointId, vcardType21,
+                    ownerVCard, ignorefilter, filter);
+        }
 
         final String selection;
         if (startPoint == endPoint) {
@@ -600,36 +588,31 @@ public class BluetoothPbapVcardManager {
             Log.e(TAG, "internal error: startPoint or endPoint is not correct.");
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
-        final Uri myUri = Uri.parse(SIM_URI);
-        BluetoothPbapSIMvCardComposer composer = null;
+        BluetoothPbapSimPhonebook.Table table = getSimTable();
+        if (table == null || table.size() == 0) {
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        }
+        BluetoothPbapSIMvCardComposer composer = new BluetoothPbapSIMvCardComposer(mContext);
         HandlerForStringBuffer buffer = null;
             try {
-                composer = new BluetoothPbapSIMvCardComposer(mContext);
                 buffer = new HandlerForStringBuffer(op, ownerVCard);
-
-                if (!composer.init(myUri, null, null, null)||
-                                   !buffer.onInit(mContext)) {
+                if (!buffer.onInit(mContext)) {
                     return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                 }
-               composer.moveToPosition(startPoint -1, false);
                for (int count =startPoint -1; count < endPoint; count++) {
-                   if (BluetoothPbapObexServer.sIsAborted) {
+                   if (mAborted.compareAndSet(true, false)) {
                        ((ServerOperation)op).isAborted = true;
-                       BluetoothPbapObexServer.sIsAborted = false;
                        break;
                    }
-                   String vcard = composer.createOneEntry(vcardType21);
-                   if (vcard == null) {
-                       Log.e(TAG, "Failed to read a contact. Error reason: "
-                               + composer.getErrorReason());
+                   if (count >= table.size()) {
+                       Log.e(TAG, "Failed to read a contact. No SIM entry at " + count);
                        return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                    }
-                   buffer.onEntryCreated(vcard);
+                   buffer.onEntryCreated(composer.composeVCard(table.names[count],
+                           table.numbers[count], table.types[count], table.labels[count],
+                           vcardType21));
                }
             } finally {
-                if (composer != null) {
-                    composer.terminate();
-                }
                 if (buffer != null) {
                     buffer.onTerminate();
                 }
@@ -645,48 +628,18 @@ public class BluetoothPbapVcardManager {
             Log.e(TAG, "Internal error: offset is not correct.");
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
-        final Uri myUri = Contacts.CONTENT_URI;
-        Cursor contactCursor = null;
         String selection = null;
-        long contactId = 0;
-        if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_INDEXED) {
-            try {
-                contactCursor = mResolver.query(myUri, CONTACTS_PROJECTION, CLAUSE_ONLY_VISIBLE,
-                        null, Contacts._ID);
-                if (contactCursor != null) {
-                    contactCursor.moveToPosition(offset - 1);
-                    contactId = contactCursor.getLong(CONTACTS_ID_COLUMN_INDEX);
-                    if (V) Log.v(TAG, "Query startPointId = " + contactId);
-                }
-            } catch (CursorWindowAllocationException e) {
-                Log.e(TAG, "CursorWindowAllocationException while composing phonebook one vcard order by index");
-            } finally {
-                if (contactCursor != null) {
-                    contactCursor.close();
-                    contactCursor = null;
-                }
-            }
-        } else if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
-            try {
-                contactCursor = mResolver.query(myUri, CONTACTS_PROJECTION, CLAUSE_ONLY_VISIBLE,
-                        null, Contacts.DISPLAY_NAME);
-                if (contactCursor != null) {
-                    contactCursor.moveToPosition(offset - 1);
-                    contactId = contactCursor.getLong(CONTACTS_ID_COLUMN_INDEX);
-                    if (V) Log.v(TAG, "Query startPointId = " + contactId);
-                }
-            } catch (CursorWindowAllocationException e) {
-                Log.e(TAG, "CursorWindowAllocationException while composing phonebook one vcard order by alphabetical");
-            } finally {
-                if (contactCursor != null) {
-                    contactCursor.close();
-                    contactCursor = null;
-                }
-            }
-        } else {
+        if (orderByWhat != BluetoothPbapObexServer.ORDER_BY_INDEXED &&
+                orderByWhat != BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
             Log.e(TAG, "Parameter orderByWhat is not supported!");
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
+        long contactId = mPhonebookSnapshot.getContactId(offset - 1, orderByWhat);
+        if (contactId < 0) {
+            Log.e(TAG, "Internal error: no contact at offset " + offset);
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        }
+        if (V) Log.v(TAG, "Query startPointId = " + contactId);
         selection = Contacts._ID + "=" + contactId;
 
         if (V) Log.v(TAG, "Query selection is: " + selection);
@@ -701,39 +654,29 @@ public class BluetoothPbapVcardManager {
             Log.e(TAG, "Internal error: offset is not correct.");
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
         }
-        final Uri myUri = Uri.parse(SIM_URI);
+        BluetoothPbapSimPhonebook.Table table = getSimTable();
+        final int index = (table == null) ? -1 : table.getIndex(offset - 1, orderByWhat);
+        if (index < 0) {
+            Log.e(TAG, "Internal error: no SIM entry at offset " + offset);
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        }
+        if (V) Log.v(TAG, "composeAndSendSIMPhonebookOneVcard, order by " + orderByWhat
+                + ", index " + index);
 
-        BluetoothPbapSIMvCardComposer composer = null;
+        BluetoothPbapSIMvCardComposer composer = new BluetoothPbapSIMvCardComposer(mContext);
         HandlerForStringBuffer buffer = null;
             try {
-                composer = new BluetoothPbapSIMvCardComposer(mContext);
                 buffer = new HandlerForStringBuffer(op, ownerVCard);
-                if (!composer.init(myUri, null, null,null)||
-                                   !buffer.onInit(mContext)) {
+                if (!buffer.onInit(mContext)) {
                     return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                 }
-                if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_INDEXED) {
-                    if (V) Log.v(TAG, "getPhonebookNameList, order by index");
-                    composer.moveToPosition(offset -1, false);
-                } else if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
-                    if (V) Log.v(TAG, "getPhonebookNameList, order by alpha");
-                    composer.moveToPosition(offset -1, true);
-                }
-                if (BluetoothPbapObexServer.sIsAborted) {
+                if (mAborted.compareAndSet(true, false)) {
                     ((ServerOperation)op).isAborted = true;
-                     BluetoothPbapObexServer.sIsAborted = false;
-                }
-                String vcard = composer.createOneEntry(vcardType21);
-                if (vcard == null) {
-                    Log.e(TAG, "Failed to read a contact. Error reason: "
-                                + composer.getErrorReason());
-                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                 }
-                buffer.onEntryCreated(vcard);
+                buffer.onEntryCreated(composer.composeVCard(table.names[index],
+                        table.numbers[index], table.types[index], table.labels[index],
+                        vcardType21));
             } finally {
-                if (composer != null) {
-                    composer.terminate();
-                }
                 if (buffer != null) {
                     buffer.onTerminate();
                 }
@@ -742,6 +685,255 @@ public class BluetoothPbapVcardManager {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
+    private static int getContactsVcardType(boolean vcardType21, boolean photoEnabled) {
+        // Currently only support Generic Vcard 2.1 and 3.0
+        int vcardType;
+        if (vcardType21) {
+            vcardType = VCardConfig.VCARD_TYPE_V21_GENERIC;
+        } else {
+            vcardType = VCardConfig.VCARD_TYPE_V30_GENERIC;
+        }
+        if (!photoEnabled) {
+            vcardType |= VCardConfig.FLAG_REFRAIN_IMAGE_EXPORT;
+        }
+        return vcardType;
+    }
+
+    private VCardComposer createContactsComposer(int vcardType) {
+        //Enhancement: customize Vcard based on preferences/settings and input from caller
+        VCardComposer composer =
+                BluetoothPbapUtils.createFilteredVCardComposer(mContext, vcardType, null);
+        //End enhancement
+
+        // BT does want PAUSE/WAIT conversion while it doesn't want the other formatting
+        // done by vCard library by default.
+        composer.setPhoneNumberTranslationCallback(
+                new VCardPhoneNumberTranslationCallback() {
+                    public String onValueReceived(
+                            String rawValue, int type, String label, boolean isPrimary) {
+                        // 'p' and 'w' are the standard characters for pause and wait
+                        // (see RFC 3601)
+                        // so use those when exporting phone numbers via vCard.
+                        String numberWithControlSequence = rawValue
+                                .replace(PhoneNumberUtils.PAUSE, 'p')
+                                .replace(PhoneNumberUtils.WAIT, 'w');
+                        return numberWithControlSequence;
+                    }
+                });
+        return composer;
+    }
+
+    private synchronized ExecutorService getComposeExecutor() {
+        if (mComposeExecutor == null) {
+            mComposeExecutor = Executors.newFixedThreadPool(COMPOSE_WORKER_COUNT,
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "PbapVcardComposer");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return mComposeExecutor;
+    }
+
+    /**
+     * Compose and send the contacts with ids from firstId to lastId, in chunks composed
+     * ahead of the writer by the compose workers, or read from the vCard cache.
+     */
+    private int composeAndSendContactsPipelined(Operation op, final long firstId,
+            final long lastId, final boolean vcardType21, String ownerVCard,
+            final boolean ignorefilter, final byte[] filter) {
+        long timestamp = 0;
+        if (V) timestamp = System.currentTimeMillis();
+
+        final String rangeSelection = Contacts._ID + ">=" + firstId + " AND " + Contacts._ID
+                + "<=" + lastId;
+        // The ids and last updated timestamps of the contacts, in id order
+        long[] ids = null;
+        long[] updated = null;
+        int rows = 0;
+        Cursor c = null;
+        try {
+            c = mResolver.query(Contacts.CONTENT_URI, CONTACTS_VERSION_PROJECTION,
+                    rangeSelection, null, Contacts._ID);
+            if (c != null) {
+                ids = new long[c.getCount()];
+                updated = new long[ids.length];
+                while (c.moveToNext() && rows < ids.length) {
+                    ids[rows] = c.getLong(0);
+                    updated[rows] = c.getLong(1);
+                    rows++;
+                }
+            }
+        } catch (CursorWindowAllocationException e) {
+            Log.e(TAG, "CursorWindowAllocationException while getting contact versions");
+            ids = null;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        if (ids == null || rows == 0) {
+            return composeAndSendVCards(op, rangeSelection, vcardType21, ownerVCard, true,
+                    ignorefilter, filter);
+        }
+
+        FilterVcard vcardfilter = new FilterVcard();
+        if (!ignorefilter) {
+            vcardfilter.setFilter(filter);
+        }
+        final int vcardType = getContactsVcardType(vcardType21, vcardfilter.isPhotoEnabled());
+        final BluetoothPbapVcardCache cache = BluetoothPbapVcardCache.get(mContext,
+                (vcardType21 ? "v21_" : "v30_")
+                + Integer.toHexString(ignorefilter ? 0 : vcardfilter.getExcludeMask(vcardType21))
+                + (vcardfilter.isPhotoEnabled() ? "_photo" : ""));
+
+        // Split the contacts in chunks of cached vCards contiguous in the cache file, and
+        // chunks of contacts to compose
+        final int[] chunkStart = new int[rows + 1];
+        final boolean[] chunkCached = new boolean[rows];
+        final long[] chunkOffset = new long[rows];
+        final int[] chunkBytes = new int[rows];
+        int chunks = 0;
+        int hits = 0;
+        final int generation = (cache != null) ? cache.getGeneration() : 0;
+        if (cache != null) {
+            cache.retain(firstId, lastId, ids, rows);
+        }
+        final long[] entry = new long[2];
+        for (int row = 0; row < rows; row++) {
+            final int last = chunks - 1;
+            if (cache != null && cache.lookup(ids[row], updated[row], entry)) {
+                hits++;
+                final long offset = entry[BluetoothPbapVcardCache.ENTRY_OFFSET];
+                final int length = (int) entry[BluetoothPbapVcardCache.ENTRY_LENGTH];
+                if (chunks > 0 && chunkCached[last]
+                        && chunkOffset[last] + chunkBytes[last] == offset
+                        && chunkBytes[last] + length <= MAX_CACHED_CHUNK_BYTES) {
+                    chunkBytes[last] += length;
+                    continue;
+                }
+                chunkCached[chunks] = true;
+                chunkOffset[chunks] = offset;
+                chunkBytes[chunks] = length;
+            } else {
+                if (chunks > 0 && !chunkCached[last]
+                        && row - chunkStart[last] < COMPOSE_CHUNK_SIZE) {
+                    continue;
+                }
+            }
+            chunkStart[chunks++] = row;
+        }
+        chunkStart[chunks] = rows;
+        if (V) Log.v(TAG, "composeAndSendContactsPipelined: " + rows + " contacts, " + hits
+                + " cached, " + chunks + " chunks");
+
+        final long[] chunkIds = ids;
+        final long[] chunkUpdated = updated;
+        final BluetoothPbapVcardPipeline pipeline =
+                new BluetoothPbapVcardPipeline(getComposeExecutor(), COMPOSE_CHUNKS_IN_FLIGHT,
+                        mAborted);
+        HandlerForStringBuffer buffer = null;
+        int result;
+        try {
+            buffer = new HandlerForStringBuffer(op, ownerVCard);
+            if (!buffer.onInit(mContext)) {
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+            }
+            result = pipeline.run(chunks, new BluetoothPbapVcardPipeline.ChunkComposer() {
+                public boolean composeChunk(int chunk, BluetoothPbapVcardPipeline.VcardBuffer out) {
+                    // Compose the cached chunks too if the cache file was compacted meanwhile
+                    if (chunkCached[chunk] && cache.read(generation, chunkOffset[chunk],
+                            chunkBytes[chunk], out)) {
+                        return true;
+                    }
+                    return composeContacts(chunkIds, chunkUpdated, chunkStart[chunk],
+                            chunkStart[chunk + 1], vcardType, vcardType21, ignorefilter, filter,
+                            pipeline, out, cache);
+                }
+            }, buffer.getOutputStream());
+        } finally {
+            if (buffer != null) {
+                buffer.onTerminate();
+            }
+            if (cache != null) {
+                cache.save();
+            }
+        }
+
+        if (result == BluetoothPbapVcardPipeline.RESULT_ABORTED) {
+            ((ServerOperation)op).isAborted = true;
+            mAborted.set(false);
+        } else if (result != BluetoothPbapVcardPipeline.RESULT_OK) {
+            return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+        }
+
+        if (V) Log.v(TAG, "Total vcard composing and sending out of " + rows + " contacts ("
+                    + hits + " cached) takes " + (System.currentTimeMillis() - timestamp) + " ms");
+
+        return ResponseCodes.OBEX_HTTP_OK;
+    }
+
+    /**
+     * Compose the vCards of the contacts ids[start] to ids[end - 1] into out, called on
+     * the compose workers. The vCards are added to the cache if the contacts composed are
+     * the ones expected.
+     */
+    private boolean composeContacts(long[] ids, long[] updated, int start, int end,
+            int vcardType, boolean vcardType21, boolean ignorefilter, byte[] filter,
+            BluetoothPbapVcardPipeline pipeline, BluetoothPbapVcardPipeline.VcardBuffer out,
+            BluetoothPbapVcardCache cache) {
+        final String selection = Contacts._ID + ">=" + ids[start] + " AND " + Contacts._ID
+                + "<=" + ids[end - 1];
+        // The filter reuses its buffers, so each chunk has its own
+        FilterVcard chunkFilter = new FilterVcard();
+        if (!ignorefilter) {
+            chunkFilter.setFilter(filter);
+        }
+        final int[] entryEnds = new int[end - start];
+        final int chunkOffset = out.size();
+        int entries = 0;
+        VCardComposer composer = null;
+        try {
+            composer = createContactsComposer(vcardType);
+            if (!composer.init(Contacts.CONTENT_URI, selection, null, Contacts._ID)) {
+                // The contacts of the chunk may have been deleted meanwhile
+                return VCardComposer.FAILURE_REASON_NO_ENTRY.equals(composer.getErrorReason());
+            }
+            while (!composer.isAfterLast()) {
+                if (pipeline.isCancelled()) {
+                    return true;
+                }
+                String vcard = composer.createOneEntry();
+                if (vcard == null) {
+                    Log.e(TAG, "Failed to read a contact. Error reason: "
+                            + composer.getErrorReason());
+                    return false;
+                }
+                out.appendUtf8(chunkFilter.applyFilterAndStripTelephoneNumber(vcard,
+                        vcardType21, ignorefilter));
+                if (entries < entryEnds.length) {
+                    entryEnds[entries] = out.size();
+                }
+                entries++;
+            }
+        } finally {
+            if (composer != null) {
+                composer.terminate();
+            }
+        }
+        if (cache != null && entries == entryEnds.length) {
+            int entryStart = chunkOffset;
+            for (int i = 0; i < entries; i++) {
+                cache.put(ids[start + i], updated[start + i], out.getBuffer(), entryStart,
+                        entryEnds[i] - entryStart);
+                entryStart = entryEnds[i];
+            }
+        }
+        return true;
+    }
+
     public final int composeAndSendVCards(Operation op, final String selection,
             final boolean vcardType21, String ownerVCard, boolean isContacts,
             boolean ignorefilter, byte[] filter) {
@@ -757,36 +949,9 @@ public class BluetoothPbapVcardManager {
         if (isContacts) {
             VCardComposer composer = null;
             try {
-                // Currently only support Generic Vcard 2.1 and 3.0
-                int vcardType;
-                if (vcardType21) {
-                    vcardType = VCardConfig.VCARD_TYPE_V21_GENERIC;
-                } else {
-                    vcardType = VCardConfig.VCARD_TYPE_V30_GENERIC;
-                }
-                if (!vcardfilter.isPhotoEnabled()) {
-                    vcardType |= VCardConfig.FLAG_REFRAIN_IMAGE_EXPORT;
-                }
-
-                //Enhancement: customize Vcard based on preferences/settings and input from caller
-                composer = BluetoothPbapUtils.createFilteredVCardComposer(mContext, vcardType,null);
-                //End enhancement
-
-                // BT does want PAUSE/WAIT conversion while it doesn't want the other formatting
-                // done by vCard library by default.
-                composer.setPhoneNumberTranslationCallback(
-                        new VCardPhoneNumberTranslationCallback() {
-                            public String onValueReceived(
-                                    String rawValue, int type, String label, boolean isPrimary) {
-                                // 'p' and 'w' are the standard characters for pause and wait
-                                // (see RFC 3601)
-                                // so use those when exporting phone numbers via vCard.
-                                String numberWithControlSequence = rawValue
-                                        .replace(PhoneNumberUtils.PAUSE, 'p')
-                                        .replace(PhoneNumberUtils.WAIT, 'w');
-                                return numberWithControlSequence;
-                            }
-                        });
+                final int vcardType = getContactsVcardType(vcardType21,
+                        vcardfilter.isPhotoEnabled());
+                composer = createContactsComposer(vcardType);
                 buffer = new HandlerForStringBuffer(op, ownerVCard);
                 if (!composer.init(Contacts.CONTENT_URI, selection, null, Contacts._ID) ||
                         !buffer.onInit(mContext)) {
@@ -794,9 +959,8 @@ public class BluetoothPbapVcardManager {
                 }
 
                 while (!composer.isAfterLast()) {
-                    if (BluetoothPbapObexServer.sIsAborted) {
+                    if (mAborted.compareAndSet(true, false)) {
                         ((ServerOperation)op).isAborted = true;
-                        BluetoothPbapObexServer.sIsAborted = false;
                         break;
                     }
                     String vcard = composer.createOneEntry();
@@ -806,11 +970,8 @@ public class BluetoothPbapVcardManager {
                         return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                     }
                     if (V) Log.v (TAG , "vCard from composer: " + vcard);
-                    if (!ignorefilter) {
-                        vcard = vcardfilter.applyFilter(vcard, vcardType21);
-                        if (V) Log.v (TAG , "vCard on applying filter: " + vcard);
-                    }
-                    vcard = StripTelephoneNumber(vcard);
+                    vcard = vcardfilter.applyFilterAndStripTelephoneNumber(vcard, vcardType21,
+                            ignorefilter);
                     if (V) {
                         Log.v(TAG, "Vcard Entry:");
                         Log.v(TAG,vcard);
@@ -830,76 +991,79 @@ public class BluetoothPbapVcardManager {
                 }
             }
         } else { // CallLog
-            BluetoothPbapCallLogComposer composer = null;
-            try {
+            return composeAndSendCallLogVcards(op, CallLog.Calls.CONTENT_URI, selection,
+                    vcardType21, ownerVCard, ignorefilter, filter);
+        }
 
-                composer = new BluetoothPbapCallLogComposer(mContext);
-                buffer = new HandlerForStringBuffer(op, ownerVCard);
-                if (!composer.init(CallLog.Calls.CONTENT_URI, selection, null,
-                                   CALLLOG_SORT_ORDER) ||
-                                   !buffer.onInit(mContext)) {
-                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-                }
+        if (V) Log.v(TAG, "Total vcard composing and sending out takes "
+                    + (System.currentTimeMillis() - timestamp) + " ms");
 
-                while (!composer.isAfterLast()) {
-                    if (BluetoothPbapObexServer.sIsAborted) {
-                        ((ServerOperation)op).isAborted = true;
-                        BluetoothPbapObexServer.sIsAborted = false;
-                        break;
-                    }
-                    String vcard = composer.createOneEntry(vcardType21);
-                    Log.v (TAG , "vCard from composer: " + vcard);
-                    if (!ignorefilter) {
-                        if (vcard != null) {
-                            vcard = vcardfilter.applyFilter(vcard, vcardType21);
-                            Log.v (TAG , "vCard on applying filter: " + vcard);
-                        }
-                    }
-                    if (vcard == null) {
-                        Log.e(TAG, "Failed to read a contact. Error reason: "
-                                + composer.getErrorReason());
-                        return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
-                    }
-                    if (V) {
-                        Log.v(TAG, "Vcard Entry:");
-                        Log.v(TAG,vcard);
-                    }
+        return ResponseCodes.OBEX_HTTP_OK;
+    }
+
+    private int composeAndSendCallLogVcards(Operation op, final Uri uri,
+            final String selection, final boolean vcardType21, String ownerVCard,
+            boolean ignorefilter, byte[] filter) {
+        long timestamp = 0;
+        if (V) timestamp = System.currentTimeMillis();
+
+        FilterVcard vcardfilter= new FilterVcard();
+        if (!ignorefilter) {
+            vcardfilter.setFilter(filter);
+        }
+        HandlerForStringBuffer buffer = null;
+        BluetoothPbapCallLogComposer composer = null;
+        try {
+
+            composer = new BluetoothPbapCallLogComposer(mContext);
+            buffer = new HandlerForStringBuffer(op, ownerVCard);
+            if (!composer.init(uri, selection, null, CALLLOG_SORT_ORDER) ||
+                               !buffer.onInit(mContext)) {
+                return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+            }
 
-                    buffer.onEntryCreated(vcard);
+            while (!composer.isAfterLast()) {
+                if (mAborted.compareAndSet(true, false)) {
+                    ((ServerOperation)op).isAborted = true;
+                    break;
                 }
-            } finally {
-                if (composer != null) {
-                    composer.terminate();
+                String vcard = composer.createOneEntry(vcardType21);
+                if (V) Log.v (TAG , "vCard from composer: " + vcard);
+                if (!ignorefilter) {
+                    if (vcard != null) {
+                        vcard = vcardfilter.applyFilter(vcard, vcardType21);
+                        if (V) Log.v (TAG , "vCard on applying filter: " + vcard);
+                    }
                 }
-                if (buffer != null) {
-                    buffer.onTerminate();
+                if (vcard == null) {
+                    Log.e(TAG, "Failed to read a contact. Error reason: "
+                            + composer.getErrorReason());
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                 }
+                if (V) {
+                    Log.v(TAG, "Vcard Entry:");
+                    Log.v(TAG,vcard);
+                }
+
+                buffer.onEntryCreated(vcard);
+            }
+        } finally {
+            if (composer != null) {
+                composer.terminate();
+            }
+            if (buffer != null) {
+                buffer.onTerminate();
             }
         }
 
-        if (V) Log.v(TAG, "Total vcard composing and sending out takes "
+        if (V) Log.v(TAG, "Total call log vcard composing and sending out takes "
                     + (System.currentTimeMillis() - timestamp) + " ms");
 
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
     public String StripTelephoneNumber (String vCard){
-        String attr [] = vCard.split(System.getProperty("line.separator"));
-        String Vcard = "";
-            for (int i=0; i < attr.length; i++) {
-                if(attr[i].startsWith("TEL")) {
-                    attr[i] = attr[i].replace("(", "");
-                    attr[i] = attr[i].replace(")", "");
-                    attr[i] = attr[i].replace("-", "");
-                    attr[i] = attr[i].replace(" ", "");
-                }
-            }
-
-            for (int i=0; i < attr.length; i++) {
-                if(!attr[i].equals("")){
-                    Vcard = Vcard.concat(attr[i] + "\n");
-                }
-            }
+        String Vcard = new FilterVcard().filter(vCard, 0, true);
         if (V) Log.v(TAG, "Vcard with stripped telephone no.: " + Vcard);
         return Vcard;
     }
@@ -952,6 +1116,10 @@ public class BluetoothPbapVcardManager {
             return write(vcard);
         }
 
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
         public void onTerminate() {
             if (!BluetoothPbapObexServer.closeStream(outputStream, operation)) {
                 if (V) Log.v(TAG, "CloseStream failed!");
@@ -961,6 +1129,13 @@ public class BluetoothPbapVcardManager {
         }
     }
 
+    /**
+     * Removes the properties not requested by the PBAP filter from the vCards, in a
+     * single pass over the lines of each vCard.
+     * A removed property includes the lines following it, up to the next line starting
+     * with one of the properties listed in PROPERTIES as ending a continuation. This
+     * removes folded lines and quoted-printable continuation lines of the property.
+     */
     public class FilterVcard{
 
         public FilterVcard(){
@@ -968,8 +1143,6 @@ public class BluetoothPbapVcardManager {
 
         private final int FN_BIT = 1;
 
-        private boolean fn = true;
-
         private final int PHOTO_BIT = 3;
 
         private boolean photo = true;
@@ -977,53 +1150,70 @@ public class BluetoothPbapVcardManager {
         //BDAY falls under events
         private final int BDAY_BIT = 4;
 
-        private boolean bday = true;
-
         private final int ADR_BIT = 5;
 
-        private boolean adr = true;
-
         private final int EMAIL_BIT = 8;
 
-        private boolean email = true;
-
         private final int TITLE_BIT = 12;
 
-        private boolean title = true;
-
         private final int ORG_BIT = 16;
 
-        private boolean org = true;
-
         private final int NOTES_BIT = 17;
 
-        private boolean notes = true;
-
         private final int URL_BIT = 20;
 
-        private boolean url = true;
-
         private final int NICKNAME_BIT = 23;
 
-        private boolean nickname = true;
-
         private final int DATETIME_BIT = 28;
 
-        private boolean datetime = true;
+        /* Property flags, used in the exclude mask */
+        private static final int PROP_FN = 1 << 0;
+        private static final int PROP_BDAY = 1 << 1;
+        private static final int PROP_ADR = 1 << 2;
+        private static final int PROP_EMAIL = 1 << 3;
+        private static final int PROP_TITLE = 1 << 4;
+        private static final int PROP_ORG = 1 << 5;
+        private static final int PROP_NOTE = 1 << 6;
+        private static final int PROP_NICKNAME = 1 << 7;
+        private static final int PROP_URL = 1 << 8;
+        private static final int PROP_DATETIME = 1 << 9;
+        private static final int PROP_TEL = 1 << 10;
+
+        /* The line prefixes recognized, with their property flag, and whether the
+         * line ends the continuation lines of a removed property */
+        private final String[] PROPERTIES = {
+            "N:", "TEL", "VERSION", "URL", "FN", "BDAY", "ADR", "EMAIL", "TITLE", "ORG",
+            "NOTE", "NICKNAME", "X-IRMC-CALL-DATETIME"
+        };
+        private final int[] PROPERTY_FLAGS = {
+            0, PROP_TEL, 0, PROP_URL, PROP_FN, PROP_BDAY, PROP_ADR, PROP_EMAIL, PROP_TITLE,
+            PROP_ORG, PROP_NOTE, PROP_NICKNAME, PROP_DATETIME
+        };
+        private final boolean[] PROPERTY_ENDS_CONTINUATION = {
+            true, true, true, true, true, true, true, true, true, true,
+            true, true, false
+        };
 
-        public void setFilter(byte[] filter){
+        /* The properties not requested by the filter */
+        private int mExcludeMask = 0;
+
+        /* Reused for each vCard */
+        private final StringBuilder mBuilder = new StringBuilder(1024);
 
-           fn = checkbit(FN_BIT, filter);
-           photo = checkbit(PHOTO_BIT, filter);
-           bday = checkbit(BDAY_BIT, filter);
-           adr = checkbit(ADR_BIT, filter);
-           email = checkbit(EMAIL_BIT, filter);
-           title = checkbit(TITLE_BIT, filter);
-           org = checkbit(ORG_BIT, filter);
-           notes = checkbit(NOTES_BIT, filter);
-           url = checkbit(URL_BIT, filter);
-           nickname = checkbit(NICKNAME_BIT, filter);
-           datetime = checkbit(DATETIME_BIT, filter);
+        public void setFilter(byte[] filter){
+            int mask = 0;
+            if (!checkbit(FN_BIT, filter)) mask |= PROP_FN;
+            photo = checkbit(PHOTO_BIT, filter);
+            if (!checkbit(BDAY_BIT, filter)) mask |= PROP_BDAY;
+            if (!checkbit(ADR_BIT, filter)) mask |= PROP_ADR;
+            if (!checkbit(EMAIL_BIT, filter)) mask |= PROP_EMAIL;
+            if (!checkbit(TITLE_BIT, filter)) mask |= PROP_TITLE;
+            if (!checkbit(ORG_BIT, filter)) mask |= PROP_ORG;
+            if (!checkbit(NOTES_BIT, filter)) mask |= PROP_NOTE;
+            if (!checkbit(URL_BIT, filter)) mask |= PROP_URL;
+            if (!checkbit(NICKNAME_BIT, filter)) mask |= PROP_NICKNAME;
+            if (!checkbit(DATETIME_BIT, filter)) mask |= PROP_DATETIME;
+            mExcludeMask = mask;
         }
 
         private boolean checkbit (int attr_bit, byte[] filter){
@@ -1038,234 +1228,101 @@ public class BluetoothPbapVcardManager {
             return photo;
         }
 
-        private boolean checkValidFilter (String attr) {
-            if((attr.startsWith("N:")) || (attr.startsWith("TEL"))
-                || (attr.startsWith("VERSION")) || (attr.startsWith("URL"))
-                || (attr.startsWith("FN")) || (attr.startsWith("BDAY"))
-                || (attr.startsWith("ADR")) || (attr.startsWith("EMAIL"))
-                || (attr.startsWith("TITLE")) || (attr.startsWith("ORG"))
-                || (attr.startsWith("NOTE")) || (attr.startsWith("NICKNAME"))) {
-                return true;
+        private int getExcludeMask(boolean vCardType21) {
+            int mask = mExcludeMask;
+            if (vCardType21) {
+                /*Nickname is not supported in 2.1 version.
+                 *Android still adds it for 2.1, and therefore we need to remove it.
+                 */
+                mask |= PROP_NICKNAME;
+            } else {
+                //FN is only optional in 2.1 vCard
+                mask &= ~PROP_FN;
             }
-            return false;
+            return mask;
         }
 
         public String applyFilter ( String vCard, boolean vCardType21){
-            String attr [] = vCard.split(System.getProperty("line.separator"));
-            String filteredVcard = "";
-
-            //FN is not the mandatory field in 2.1 vCard
-            if(((!fn) && (vCardType21)) && (vCard.contains("FN"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("FN")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
-                    }
-                }
-            }
-
-          //NOTE: No need to check photo, we already refrained it if it is not set in the filter
-            if((!bday) && (vCard.contains("BDAY"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("BDAY")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
-                    }
-                }
-            }
-
-            if((!adr) && (vCard.contains("ADR"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("ADR")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
-                    }
-                }
-            }
-
-            if((!email) && (vCard.contains("EMAIL"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("EMAIL")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
-                    }
-                }
-            }
+            return filter(vCard, getExcludeMask(vCardType21), false);
+        }
 
-            if((!title) && (vCard.contains("TITLE"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("TITLE")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
-                    }
-                }
-            }
+        /**
+         * Apply the filter, unless ignored, and strip the formatting characters from
+         * the telephone numbers in the same pass.
+         */
+        public String applyFilterAndStripTelephoneNumber(String vCard, boolean vCardType21,
+                boolean ignoreFilter) {
+            return filter(vCard, ignoreFilter ? 0 : getExcludeMask(vCardType21), true);
+        }
 
-            if((!org) && (vCard.contains("ORG"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("ORG")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
-                    }
+        private int getProperty(String vCard, int lineStart) {
+            for (int i = 0; i < PROPERTIES.length; i++) {
+                if (vCard.startsWith(PROPERTIES[i], lineStart)) {
+                    return i;
                 }
             }
+            return -1;
+        }
 
-            if((!notes) && (vCard.contains("NOTE"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("NOTE")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
-                    }
-                }
+        /**
+         * @param vCard the vCard, with lines separated by '\n'
+         * @param excludeMask the properties to remove
+         * @param stripTelephoneNumber true to remove '(', ')', '-' and ' ' from TEL lines
+         * @return the vCard without the removed properties and empty lines, each line
+         *         terminated by '\n'
+         */
+        private String filter(String vCard, int excludeMask, boolean stripTelephoneNumber) {
+            final StringBuilder out = mBuilder;
+            final int length = vCard.length();
+            out.setLength(0);
+            out.ensureCapacity(length);
+
+            /* The last line is never treated as a continuation line */
+            int lastLineStart = length;
+            while (lastLineStart > 0 && vCard.charAt(lastLineStart - 1) == '\n') {
+                lastLineStart--;
             }
-            /*Nickname is not supported in 2.1 version.
-             *Android still ads it for 2.1 with nickname mentioned in lower case, and therefore
-             *we need to check for both cases.
-             */
-            if(((!nickname) || (vCardType21)) && (vCard.contains("NICKNAME"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("NICKNAME")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
-                    }
+            lastLineStart = vCard.lastIndexOf('\n', lastLineStart - 1) + 1;
+
+            boolean removing = false;
+            int lineStart = 0;
+            while (lineStart < length) {
+                int lineEnd = vCard.indexOf('\n', lineStart);
+                if (lineEnd < 0) {
+                    lineEnd = length;
                 }
-            }
-
-            if((!url) && (vCard.contains("URL"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("URL")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
-                            }
-                        }
+                if (lineEnd > lineStart) {
+                    final int property = getProperty(vCard, lineStart);
+                    final int flag = (property >= 0) ? PROPERTY_FLAGS[property] : 0;
+                    boolean keep;
+                    if ((flag & excludeMask) != 0) {
+                        keep = false;
+                        removing = true;
+                    } else if (property >= 0 && PROPERTY_ENDS_CONTINUATION[property]) {
+                        keep = true;
+                        removing = false;
+                    } else {
+                        /* Continuation of a removed property, remove */
+                        keep = !removing || lineStart == lastLineStart;
                     }
-                }
-            }
 
-            if((!datetime) && (vCard.contains("X-IRMC-CALL-DATETIME"))) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].startsWith("X-IRMC-CALL-DATETIME")){
-                        attr[i] = "";
-                        /** Remove multiline Content, if any */
-                        /** End traversal before END:VCARD */
-                        for (int j = i+1; j < attr.length - 1; j++) {
-                            if (checkValidFilter(attr[j])) {
-                                break;
-                            } else {
-                                /** Continuation of above attribute, remove */
-                                attr[j] = "";
+                    if (keep) {
+                        if (stripTelephoneNumber && flag == PROP_TEL) {
+                            for (int i = lineStart; i < lineEnd; i++) {
+                                final char c = vCard.charAt(i);
+                                if (c != '(' && c != ')' && c != '-' && c != ' ') {
+                                    out.append(c);
+                                }
                             }
+                        } else {
+                            out.append(vCard, lineStart, lineEnd);
                         }
+                        out.append('\n');
                     }
                 }
+                lineStart = lineEnd + 1;
             }
-            /*Since PBAP does not have filter bit for IM and SIP,
-             *removing them by default.
-            */
-            if(vCard.toUpperCase().contains("IM")) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].toUpperCase().contains("IM")){
-                        vCard = vCard.replace(attr[i] + "\n", "");
-                    }
-                }
-            }
-
-            if(vCard.toUpperCase().contains("SIP")) {
-                for (int i=0; i < attr.length; i++) {
-                    if(attr[i].toUpperCase().contains("SIP")){
-                        vCard = vCard.replace(attr[i] + "\n", "");
-                    }
-                }
-            }
-
-            Log.v(TAG, "Tokens after applying filter: ");
-
-            for (int i=0; i < attr.length; i++) {
-                if(!attr[i].equals("")){
-                    filteredVcard = filteredVcard.concat(attr[i] + "\n");
-                }
-            }
-
-            return filteredVcard;
+            return out.toString();
         }
     }
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Composes the vCards of a pull request on worker threads, ahead of the OBEX server
+ * thread writing them, so composing and sending overlap.
+ * The vCards are split in chunks of consecutive entries. At most a fixed number of
+ * chunks are composed or waiting to be written at a time, and the chunks are written
+ * in order, so the output is the same as composing the vCards one by one.
+ * The writer checks the abort flag of the session while waiting for a chunk.
+ */
+class BluetoothPbapVcardPipeline {
+    private static final String TAG = "BluetoothPbapVcardPipeline";
+
+    private static final boolean V = Log.isLoggable(BluetoothPbapService.LOG_TAG, Log.VERBOSE) ? true : false;
+
+    static final int RESULT_OK = 0;
+    static final int RESULT_ERROR = 1;
+    static final int RESULT_ABORTED = 2;
+
+    /* The interval to check for abort while waiting for a chunk */
+    private static final long ABORT_POLL_MS = 50;
+
+    /**
+     * Composes the vCards of one chunk, called on a worker thread.
+     */
+    interface ChunkComposer {
+        /**
+         * Append the vCards of the chunk to the buffer.
+         * Implementations should return early when the pipeline is cancelled.
+         * @return false if a vCard could not be composed
+         */
+        boolean composeChunk(int chunk, VcardBuffer buffer);
+    }
+
+    /**
+     * A reusable buffer for the vCards of a chunk, encoding them as UTF-8 without
+     * an intermediate byte array per vCard.
+     */
+    static class VcardBuffer extends ByteArrayOutputStream {
+        VcardBuffer() {
+            super(8 * 1024);
+        }
+
+        private void reserve(int length) {
+            if (count + length > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + length));
+            }
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+
+        void appendFrom(RandomAccessFile file, long offset, int length) throws IOException {
+            reserve(length);
+            file.seek(offset);
+            file.readFully(buf, count, length);
+            count += length;
+        }
+
+        void appendUtf8(String s) {
+            final int length = s.length();
+            reserve(length * 3);
+            final byte[] b = buf;
+            int n = count;
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    b[n++] = (byte)c;
+                } else if (c < 0x800) {
+                    b[n++] = (byte)(0xc0 | (c >> 6));
+                    b[n++] = (byte)(0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    b[n++] = (byte)(0xf0 | (cp >> 18));
+                    b[n++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                    b[n++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                    b[n++] = (byte)(0x80 | (cp & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    b[n++] = '?'; // unpaired surrogate, as String.getBytes()
+                } else {
+                    b[n++] = (byte)(0xe0 | (c >> 12));
+                    b[n++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                    b[n++] = (byte)(0x80 | (c & 0x3f));
+                }
+            }
+            count = n;
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final int mMaxChunksInFlight;
+    private final AtomicBoolean mAborted;
+    private volatile boolean mCancelled = false;
+
+    BluetoothPbapVcardPipeline(ExecutorService executor, int maxChunksInFlight,
+            AtomicBoolean aborted) {
+        mExecutor = executor;
+        mMaxChunksInFlight = maxChunksInFlight;
+        mAborted = aborted;
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Compose the chunks on the executor and write them in order to the stream.
+     * @return RESULT_OK, RESULT_ERROR if a chunk could not be composed or written, or
+     *         RESULT_ABORTED if the abort flag of the session was set. The abort flag
+     *         is left to the caller to clear.
+     */
+    int run(final int chunkCount, final ChunkComposer composer, OutputStream out) {
+        final ArrayDeque<Future<VcardBuffer>> pending = new ArrayDeque<Future<VcardBuffer>>();
+        final ArrayDeque<VcardBuffer> free = new ArrayDeque<VcardBuffer>();
+        int nextChunk = 0;
+        int result = RESULT_OK;
+        try {
+            while (result == RESULT_OK && (nextChunk < chunkCount || !pending.isEmpty())) {
+                while (nextChunk < chunkCount && pending.size() < mMaxChunksInFlight) {
+                    final VcardBuffer buffer = free.isEmpty() ? new VcardBuffer() : free.poll();
+                    final int chunk = nextChunk++;
+                    pending.add(mExecutor.submit(new Callable<VcardBuffer>() {
+                        public VcardBuffer call() {
+                            if (mCancelled || !composer.composeChunk(chunk, buffer)) {
+                                return null;
+                            }
+                            return buffer;
+                        }
+                    }));
+                }
+                VcardBuffer buffer = null;
+                boolean done = false;
+                while (!done) {
+                    if (mAborted.get()) {
+                        result = RESULT_ABORTED;
+                        break;
+                    }
+                    try {
+                        buffer = pending.peek().get(ABORT_POLL_MS, TimeUnit.MILLISECONDS);
+                        done = true;
+                    } catch (TimeoutException e) {
+                        // check for abort and wait again
+                    }
+                }
+                if (result != RESULT_OK) {
+                    break;
+                }
+                pending.poll();
+                if (buffer == null) {
+                    Log.e(TAG, "Failed to compose a chunk of vCards");
+                    result = RESULT_ERROR;
+                    break;
+                }
+                buffer.writeTo(out);
+                buffer.reset();
+                free.add(buffer);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "write outputstream failed" + e.toString());
+            result = RESULT_ERROR;
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while composing vCards");
+            result = RESULT_ERROR;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to compose vCards", e.getCause());
+            result = RESULT_ERROR;
+        } catch (CancellationException e) {
+            result = RESULT_ERROR;
+        } finally {
+            mCancelled = true;
+            for (Future<VcardBuffer> future : pending) {
+                future.cancel(false);
+            }
+        }
+        if (V) Log.v(TAG, "run: " + chunkCount + " chunks, result " + result);
+        return result;
+    }
+}
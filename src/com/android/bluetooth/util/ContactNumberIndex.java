@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.util;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.CursorWindowAllocationException;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An index of the phone numbers of the contacts, shared by the profiles that look up
+ * contacts by number (PBAP number search, HFP phonebook caller names).
+ * Numbers are reduced to their digits, and indexed by the last MIN_MATCH digits, so a
+ * lookup is a binary search instead of a query per number. The index is built on the
+ * first lookup and built again on the first lookup after the contacts changed.
+ * Users acquire the index with {@link #acquire(Context)} and release it when done,
+ * the index is dropped when the last user releases it.
+ */
+public class ContactNumberIndex {
+    private static final String TAG = "ContactNumberIndex";
+    private static final boolean DBG = false;
+
+    /* The number of trailing digits compared, as done by the contacts provider */
+    public static final int MIN_MATCH = 7;
+
+    private static final long MIN_MATCH_RANGE = 10000000L; // 10^MIN_MATCH
+
+    private static final String[] PHONES_PROJECTION = new String[] {
+        Phone.CONTACT_ID, Phone.NUMBER, Phone.DISPLAY_NAME, Phone.TYPE
+    };
+    private static final int CONTACT_ID_COLUMN = 0;
+    private static final int NUMBER_COLUMN = 1;
+    private static final int NAME_COLUMN = 2;
+    private static final int TYPE_COLUMN = 3;
+
+    private static ContactNumberIndex sInstance = null;
+    private static int sRefCount = 0;
+
+    /**
+     * A contact found by number
+     */
+    public static class Match {
+        public final long contactId;
+        public final String name;
+        public final int type;
+
+        Match(long contactId, String name, int type) {
+            this.contactId = contactId;
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private boolean mObserverRegistered = false;
+    /* Cleared by the observer when the contacts change */
+    private volatile boolean mValid = false;
+
+    /* Number key in the upper 32 bits and row in the lower, sorted */
+    private long[] mKeyRows = null;
+    /* Per row, in contact id order */
+    private long[] mContactIds = null;
+    private String[] mNames = null;
+    private int[] mTypes = null;
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (DBG) Log.d(TAG, "contacts changed, invalidating index");
+            mValid = false;
+        }
+    };
+
+    private ContactNumberIndex(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    public static synchronized ContactNumberIndex acquire(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactNumberIndex(context.getApplicationContext());
+        }
+        sRefCount++;
+        return sInstance;
+    }
+
+    public void release() {
+        synchronized (ContactNumberIndex.class) {
+            if (sInstance != this || sRefCount == 0) {
+                return;
+            }
+            if (--sRefCount == 0) {
+                close();
+                sInstance = null;
+            }
+        }
+    }
+
+    /**
+     * Compute the index key of a phone number: the value of the last MIN_MATCH digits,
+     * or of all digits, offset by the length, if there are fewer.
+     * @return the key, or -1 if the number has no digits
+     */
+    public static long getKey(String number) {
+        if (number == null) {
+            return -1;
+        }
+        long value = 0;
+        long scale = 1;
+        int digits = 0;
+        for (int i = number.length() - 1; i >= 0 && digits < MIN_MATCH; i--) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value += (c - '0') * scale;
+                scale *= 10;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return -1;
+        }
+        return (digits == MIN_MATCH) ? value : value + (digits + 1) * MIN_MATCH_RANGE;
+    }
+
+    /**
+     * @return the contacts with a phone number matching the number, in contact id
+     *         order, each contact once
+     */
+    public synchronized ArrayList<Match> lookup(String number) {
+        ArrayList<Match> matches = new ArrayList<Match>();
+        int row = findFirstRow(number);
+        if (row < 0) {
+            return matches;
+        }
+        final long key = mKeyRows[row] >>> 32;
+        long lastContactId = -1;
+        for (; row < mKeyRows.length && (mKeyRows[row] >>> 32) == key; row++) {
+            final int index = (int)mKeyRows[row];
+            // Rows of a key are in contact id order, so duplicates are adjacent
+            if (mContactIds[index] != lastContactId) {
+                lastContactId = mContactIds[index];
+                matches.add(new Match(lastContactId, mNames[index], mTypes[index]));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return the first contact with a phone number matching the number, or null
+     */
+    public synchronized Match lookupFirst(String number) {
+        int row = findFirstRow(number);
+        if (row < 0) {
+            return null;
+        }
+        final int index = (int)mKeyRows[row];
+        return new Match(mContactIds[index], mNames[index], mTypes[index]);
+    }
+
+    private int findFirstRow(String number) {
+        final long key = getKey(number);
+        if (key < 0 || !ensureIndex()) {
+            return -1;
+        }
+        int row = Arrays.binarySearch(mKeyRows, key << 32);
+        if (row < 0) {
+            row = -(row + 1);
+        }
+        if (row >= mKeyRows.length || (mKeyRows[row] >>> 32) != key) {
+            return -1;
+        }
+        return row;
+    }
+
+    private boolean ensureIndex() {
+        if (mValid && mKeyRows != null) {
+            return true;
+        }
+        if (!mObserverRegistered) {
+            mResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                    mContactsObserver);
+            mObserverRegistered = true;
+        }
+        // Set before reading, so a change while reading invalidates the result
+        mValid = true;
+        Cursor c = null;
+        try {
+            c = mResolver.query(Phone.CONTENT_URI, PHONES_PROJECTION, null, null,
+                    Phone.CONTACT_ID);
+            if (c == null) {
+                mValid = false;
+                return false;
+            }
+            final int count = c.getCount();
+            final long[] keyRows = new long[count];
+            final long[] contactIds = new long[count];
+            final String[] names = new String[count];
+            final int[] types = new int[count];
+            int rows = 0;
+            while (c.moveToNext() && rows < count) {
+                final long key = getKey(c.getString(NUMBER_COLUMN));
+                if (key < 0) {
+                    continue;
+                }
+                contactIds[rows] = c.getLong(CONTACT_ID_COLUMN);
+                names[rows] = c.getString(NAME_COLUMN);
+                types[rows] = c.getInt(TYPE_COLUMN);
+                keyRows[rows] = (key << 32) | rows;
+                rows++;
+            }
+            mKeyRows = Arrays.copyOf(keyRows, rows);
+            Arrays.sort(mKeyRows);
+            mContactIds = contactIds;
+            mNames = names;
+            mTypes = types;
+            if (DBG) Log.d(TAG, "indexed " + rows + " numbers");
+            return true;
+        } catch (CursorWindowAllocationException e) {
+            Log.e(TAG, "CursorWindowAllocationException while indexing numbers");
+            mValid = false;
+            return false;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    private synchronized void close() {
+        if (mObserverRegistered) {
+            mResolver.unregisterContentObserver(mContactsObserver);
+            mObserverRegistered = false;
+        }
+        mValid = false;
+        mKeyRows = null;
+        mContactIds = null;
+        mNames = null;
+        mTypes = null;
+    }
+}
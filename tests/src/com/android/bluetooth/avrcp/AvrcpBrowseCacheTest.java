@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class AvrcpBrowseCacheTest extends AndroidTestCase {
+
+    private static final String AUTHORITY = "avrcpbrowsecachetest";
+    private static final Uri MEDIA_URI = Uri.parse("content://" + AUTHORITY + "/audio");
+
+    /* Answers "_id IN (...)" queries with the ids below 100 */
+    private static class MediaProvider extends MockContentProvider {
+        int mQueries;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            mQueries++;
+            MatrixCursor cursor = new MatrixCursor(new String[] {
+                "_id", "title", "artist", "album", "duration"
+            });
+            Matcher m = Pattern.compile("_id IN \\(([0-9,]+)\\)").matcher(selection);
+            assertTrue(selection, m.find());
+            for (String id : m.group(1).split(",")) {
+                long value = Long.parseLong(id);
+                if (value < 100) {
+                    cursor.addRow(new Object[] {
+                        value, "Title " + id, "Artist", "Album", "1000"
+                    });
+                }
+            }
+            return cursor;
+        }
+    }
+
+    public void testItemAttributesBatchedAndCached() {
+        MockContentResolver resolver = new MockContentResolver();
+        MediaProvider provider = new MediaProvider();
+        resolver.addProvider(AUTHORITY, provider);
+        AvrcpBrowseCache cache = new AvrcpBrowseCache(resolver);
+        try {
+            long[] ids = { 7, 3, 150, 9 };
+            String[][] items = cache.getItemAttributes(MEDIA_URI, ids, 1, 3);
+            assertEquals(1, provider.mQueries);
+            assertEquals(3, items.length);
+            assertEquals("Title 3", items[0][AvrcpBrowseCache.ATTR_TITLE]);
+            assertNull(items[1]);
+            assertEquals("Title 9", items[2][AvrcpBrowseCache.ATTR_TITLE]);
+            assertEquals("1000", items[2][AvrcpBrowseCache.ATTR_DURATION]);
+
+            // Cached items are served from memory
+            items = cache.getItemAttributes(MEDIA_URI, new long[] { 9 }, 0, 1);
+            assertEquals(1, provider.mQueries);
+            assertEquals("Title 9", items[0][AvrcpBrowseCache.ATTR_TITLE]);
+
+            // Only the missing ones are fetched
+            items = cache.getItemAttributes(MEDIA_URI, ids, 0, 4);
+            assertEquals(2, provider.mQueries);
+            assertEquals("Title 7", items[0][AvrcpBrowseCache.ATTR_TITLE]);
+
+            // A different media uri drops the cache
+            cache.getItemAttributes(Uri.parse("content://" + AUTHORITY + "/other"),
+                    new long[] { 9 }, 0, 1);
+            assertEquals(3, provider.mQueries);
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testUtf8Length() {
+        assertEquals(0, AvrcpBrowseCache.utf8Length(null));
+        assertEquals(0, AvrcpBrowseCache.utf8Length(""));
+        assertEquals(5, AvrcpBrowseCache.utf8Length("Title"));
+        assertEquals(8, AvrcpBrowseCache.utf8Length("Beyonc\u00e9"));
+        assertEquals(9, AvrcpBrowseCache.utf8Length("\u65e5\u672c\u8a9e"));
+        // Supplementary characters take 6 bytes and NUL 2 bytes in modified UTF-8
+        assertEquals(6, AvrcpBrowseCache.utf8Length("\ud83d\ude00"));
+        assertEquals(2, AvrcpBrowseCache.utf8Length("\u0000"));
+    }
+
+    public void testFolderItemSize() {
+        assertEquals(AvrcpBrowseCache.FOLDER_ITEM_SIZE + 6,
+                AvrcpBrowseCache.getFolderItemSize("Albums"));
+    }
+
+    public void testMediaItemSize() {
+        String[] values = { "skipped", "Title", "Artist", "" };
+        int expected = AvrcpBrowseCache.MEDIA_ITEM_SIZE + 5
+                + 3 * AvrcpBrowseCache.ATTR_ENTRY_SIZE + 5 + 6 + 0;
+        assertEquals(expected, AvrcpBrowseCache.getMediaItemSize("Title", values, 1, 3));
+        assertEquals(AvrcpBrowseCache.MEDIA_ITEM_SIZE + 5,
+                AvrcpBrowseCache.getMediaItemSize("Title", values, 0, 0));
+    }
+
+    public void testKey() {
+        assertEquals(AvrcpBrowseCache.getKey(AvrcpBrowseCache.FOLDER_TITLES, 0),
+                AvrcpBrowseCache.getKey(AvrcpBrowseCache.FOLDER_TITLES, 12));
+        assertFalse(AvrcpBrowseCache.getKey(AvrcpBrowseCache.FOLDER_ALBUM, 1).equals(
+                AvrcpBrowseCache.getKey(AvrcpBrowseCache.FOLDER_ALBUM, 2)));
+        assertFalse(AvrcpBrowseCache.getKey(AvrcpBrowseCache.FOLDER_ALBUM, 1).equals(
+                AvrcpBrowseCache.getKey(AvrcpBrowseCache.FOLDER_ARTIST, 1)));
+    }
+}
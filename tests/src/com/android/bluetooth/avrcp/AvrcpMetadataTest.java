@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.test.AndroidTestCase;
+
+public class AvrcpMetadataTest extends AndroidTestCase {
+
+    private static Avrcp.Metadata track(Avrcp.Metadata from, String title, String genre) {
+        return from.update("Artist", title, "Album", genre, 3L, 12L, 215000L);
+    }
+
+    public void testUnchangedUpdateKeepsSnapshot() {
+        Avrcp.Metadata empty = new Avrcp.Metadata();
+        Avrcp.Metadata first = track(empty, "Title", "Pop");
+        assertNotSame(empty, first);
+        assertEquals(empty.version + 1, first.version);
+        assertSame(first, track(first, "Title", "Pop"));
+    }
+
+    public void testSameTrackIgnoresGenre() {
+        Avrcp.Metadata first = track(new Avrcp.Metadata(), "Title", "Pop");
+        Avrcp.Metadata regenre = track(first, "Title", "Rock");
+        assertNotSame(first, regenre);
+        assertTrue(regenre.isSameTrack(first));
+        assertFalse(track(first, "Other title", "Pop").isSameTrack(first));
+    }
+
+    public void testElementAttrsPrepared() {
+        Avrcp.Metadata metadata = track(new Avrcp.Metadata(), "Title", null);
+        int[] attrIds = { Avrcp.MEDIA_ATTR_TITLE, Avrcp.MEDIA_ATTR_GENRE,
+                Avrcp.MEDIA_ATTR_PLAYING_TIME };
+        Avrcp.ElementAttrs attrs = metadata.getElementAttrs(attrIds);
+        assertEquals("Title", attrs.values[0]);
+        assertEquals("", attrs.values[1]);
+        assertEquals("215000", attrs.values[2]);
+
+        // Same request from a new array is served from the prepared response
+        assertSame(attrs, metadata.getElementAttrs(attrIds.clone()));
+
+        // Same attributes in another order are answered in that order
+        int[] reversed = { Avrcp.MEDIA_ATTR_PLAYING_TIME, Avrcp.MEDIA_ATTR_GENRE,
+                Avrcp.MEDIA_ATTR_TITLE };
+        Avrcp.ElementAttrs other = metadata.getElementAttrs(reversed);
+        assertEquals("215000", other.values[0]);
+        assertEquals("Title", other.values[2]);
+
+        // Unknown attribute ids are answered with an empty value
+        Avrcp.ElementAttrs unknown = metadata.getElementAttrs(new int[] { 0x20 });
+        assertEquals("", unknown.values[0]);
+    }
+}
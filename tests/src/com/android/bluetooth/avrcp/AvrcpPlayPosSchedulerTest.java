@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.test.AndroidTestCase;
+
+public class AvrcpPlayPosSchedulerTest extends AndroidTestCase {
+
+    public void testDelay() {
+        assertEquals(1000, AvrcpPlayPosScheduler.getDelayMs(4000, 5000, 1.0f));
+        assertEquals(500, AvrcpPlayPosScheduler.getDelayMs(4000, 5000, 2.0f));
+        assertEquals(2000, AvrcpPlayPosScheduler.getDelayMs(4000, 5000, 0.5f));
+        assertEquals(0, AvrcpPlayPosScheduler.getDelayMs(5200, 5000, 1.0f));
+        // No timer while the position does not move forward
+        assertEquals(-1, AvrcpPlayPosScheduler.getDelayMs(4000, 5000, 0.0f));
+        assertEquals(-1, AvrcpPlayPosScheduler.getDelayMs(4000, 5000, -1.0f));
+        assertEquals(-1, AvrcpPlayPosScheduler.getDelayMs(4000, 5000, Float.NaN));
+    }
+
+    public void testRescheduleSkipped() {
+        AvrcpPlayPosScheduler scheduler = new AvrcpPlayPosScheduler();
+        assertFalse(scheduler.isArmed());
+        assertTrue(scheduler.schedule(10000, 1000));
+        assertTrue(scheduler.isArmed());
+
+        // Player updates reporting the same progress keep the armed timer
+        assertFalse(scheduler.schedule(10300, 700));
+        assertFalse(scheduler.schedule(10600, 450));
+
+        // A seek moves it
+        assertTrue(scheduler.schedule(10700, 5000));
+        assertEquals(2, scheduler.getWakeupsSaved());
+
+        assertTrue(scheduler.cancel());
+        assertFalse(scheduler.cancel());
+        assertTrue(scheduler.schedule(20000, 1000));
+        scheduler.onTimerFired();
+        assertFalse(scheduler.isArmed());
+        assertTrue(scheduler.schedule(21000, 1000));
+    }
+
+    public void testRedundantReportSuppressed() {
+        AvrcpPlayPosScheduler scheduler = new AvrcpPlayPosScheduler();
+        assertTrue(scheduler.shouldReport(3000));
+        scheduler.onReported(3000);
+        assertFalse(scheduler.shouldReport(3000));
+        assertTrue(scheduler.shouldReport(3001));
+        scheduler.resetReported();
+        assertTrue(scheduler.shouldReport(3000));
+
+        scheduler.onIdle();
+        scheduler.onCoalesced();
+        assertEquals(1, scheduler.getRedundantSuppressed());
+        assertEquals(1, scheduler.getIdleSkipped());
+        assertEquals(1, scheduler.getCoalesced());
+        // none of these avoided a timer wakeup
+        assertEquals(0, scheduler.getWakeupsSaved());
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.hfp;
+
+import android.bluetooth.BluetoothDevice;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+/**
+ * Tests for the lookup of AT command handlers by {@link AtCommandDispatcher}.
+ */
+public class AtCommandDispatcherTest extends AndroidTestCase {
+    private static final String TAG = "AtCommandDispatcherTest";
+
+    /* Unparsed commands as sent by car kits and headsets */
+    private static final String[] HF_TRAFFIC = new String[] {
+        "+CSCS=\"UTF-8\"",
+        "+CPBS=\"ME\"",
+        "+CPBS?",
+        "+CPBR=?",
+        "+CPBR=1,25",
+        "+XEVENT=\"USER-AGENT\",\"Plantronics\",\"0062\",\"0121\",\"1.0\"",
+        "+XEVENT=\"BATTERY\",3,5,1,1",
+        "+ANDROID=1,\"Hello world\"",
+        "+XAPL=ABCD-1234-0100,7",
+        "+IPHONEACCEV=2,1,5,2,0",
+        "+BIEV=2,75",
+        "+BIA=0,1,1,1,0,0,1",
+        "+BIND=1,2",
+    };
+
+    private static class CountingHandler implements AtCommandDispatcher.Handler {
+        int count = 0;
+        int args = 0;
+
+        public boolean handle(AtCommand command, BluetoothDevice device) {
+            count++;
+            for (int i = 0; i < command.getArgCount(); i++) {
+                if (command.isIntArg(i)) {
+                    args += command.getIntArg(i);
+                }
+            }
+            return command.getType() != AtCommand.TYPE_UNKNOWN;
+        }
+    }
+
+    @SmallTest
+    public void testLookup() {
+        AtCommandDispatcher dispatcher = new AtCommandDispatcher();
+        CountingHandler cpbs = new CountingHandler();
+        CountingHandler cpbr = new CountingHandler();
+        CountingHandler xevent = new CountingHandler();
+        dispatcher.register("+CPBS", cpbs);
+        dispatcher.register("+CPBR", cpbr);
+        dispatcher.register("+xevent", xevent);
+
+        assertTrue(dispatcher.dispatch("+cpbr=1,10", null));
+        assertEquals(1, cpbr.count);
+        assertEquals(11, cpbr.args);
+        assertTrue(dispatcher.dispatch("+CPBS?", null));
+        assertEquals(1, cpbs.count);
+        assertTrue(dispatcher.dispatch("+XEvent=\"BATTERY\",3", null));
+        assertEquals(1, xevent.count);
+
+        // prefixes and extensions of a registered name are not matched
+        assertFalse(dispatcher.dispatch("+CPB=1", null));
+        assertFalse(dispatcher.dispatch("+CPBRX=1", null));
+        assertFalse(dispatcher.dispatch("+BIA=1,0", null));
+        assertEquals(1, cpbr.count);
+
+        // the handler can reject the command
+        assertFalse(dispatcher.dispatch("+XEVENT", null));
+        assertEquals(2, xevent.count);
+    }
+
+    @SmallTest
+    public void testReplaceHandler() {
+        AtCommandDispatcher dispatcher = new AtCommandDispatcher();
+        CountingHandler first = new CountingHandler();
+        CountingHandler second = new CountingHandler();
+        dispatcher.register("+ANDROID", first);
+        dispatcher.register("+ANDROID", second);
+        assertTrue(dispatcher.dispatch("+ANDROID=1", null));
+        assertEquals(0, first.count);
+        assertEquals(1, second.count);
+    }
+
+    /***
+     * Benchmark the dispatch of a mix of phonebook, vendor specific and unsupported
+     * commands, and validate that each command reached its handler.
+     */
+    public void testDispatchThroughput() {
+        final int rounds = 20000;
+        AtCommandDispatcher dispatcher = new AtCommandDispatcher();
+        CountingHandler handler = new CountingHandler();
+        dispatcher.register("+CSCS", handler);
+        dispatcher.register("+CPBS", handler);
+        dispatcher.register("+CPBR", handler);
+        dispatcher.register("+XEVENT", handler);
+        dispatcher.register("+ANDROID", handler);
+
+        int dispatched = 0;
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < rounds; i++) {
+            for (String atString : HF_TRAFFIC) {
+                if (dispatcher.dispatch(atString, null)) {
+                    dispatched++;
+                }
+            }
+        }
+        long duration = System.currentTimeMillis() - startTime;
+        Log.i(TAG, "Dispatched " + (rounds * HF_TRAFFIC.length) + " commands in "
+                + duration + " ms");
+        assertEquals(rounds * 8, handler.count);
+        assertEquals(rounds * 8, dispatched);
+        assertEquals(rounds * (1 + 25 + 3 + 5 + 1 + 1 + 1), handler.args);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.hfp;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for the parsing of AT command lines by {@link AtCommand}.
+ */
+public class AtCommandTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testTypes() {
+        AtCommand command = new AtCommand();
+        command.parse("+CPBS?");
+        assertEquals("+CPBS", command.getName());
+        assertEquals(AtCommand.TYPE_READ, command.getType());
+        assertEquals("?", command.getParameters());
+        assertEquals(0, command.getArgCount());
+
+        command.parse("+CPBR=?");
+        assertEquals(AtCommand.TYPE_TEST, command.getType());
+        assertEquals("=?", command.getParameters());
+        assertEquals(0, command.getArgCount());
+
+        command.parse("+CPBR=1,10");
+        assertEquals(AtCommand.TYPE_SET, command.getType());
+        assertEquals("=1,10", command.getParameters());
+
+        command.parse("+XEVENT");
+        assertEquals("+XEVENT", command.getName());
+        assertEquals(AtCommand.TYPE_UNKNOWN, command.getType());
+    }
+
+    @SmallTest
+    public void testNormalize() {
+        AtCommand command = new AtCommand();
+        command.parse("+xevent = \"Battery Level\", 3");
+        assertEquals("+XEVENT=\"Battery Level\",3", command.toString());
+        assertEquals("+XEVENT", command.getName());
+
+        // unmatched quote is closed
+        command.parse("+cscs=\"utf-8");
+        assertEquals("+CSCS=\"utf-8\"", command.toString());
+        assertEquals(1, command.getArgCount());
+        assertEquals("\"utf-8\"", command.getStringArg(0));
+    }
+
+    @SmallTest
+    public void testArgs() {
+        AtCommand command = new AtCommand();
+        command.parse("+XEVENT=\"A,B\",3,-5,+7,,X1");
+        assertEquals(6, command.getArgCount());
+        assertFalse(command.isIntArg(0));
+        assertEquals("\"A,B\"", command.getStringArg(0));
+        assertTrue(command.isIntArg(1));
+        assertEquals(3, command.getIntArg(1));
+        assertEquals(-5, command.getIntArg(2));
+        assertEquals(7, command.getIntArg(3));
+        assertFalse(command.isIntArg(4));
+        assertEquals("", command.getStringArg(4));
+        assertFalse(command.isIntArg(5));
+        assertEquals("X1", command.getStringArg(5));
+
+        Object[] args = command.getArgs();
+        assertEquals("\"A,B\"", args[0]);
+        assertEquals(Integer.valueOf(3), args[1]);
+        assertEquals("", args[4]);
+    }
+
+    @SmallTest
+    public void testEmptyArgs() {
+        AtCommand command = new AtCommand();
+        command.parse("+ANDROID=");
+        assertEquals(1, command.getArgCount());
+        assertEquals("", command.getStringArg(0));
+    }
+
+    @SmallTest
+    public void testIntLimits() {
+        AtCommand command = new AtCommand();
+        command.parse("+ANDROID=2147483647,-2147483648,2147483648,-2147483649,-,+");
+        assertTrue(command.isIntArg(0));
+        assertEquals(Integer.MAX_VALUE, command.getIntArg(0));
+        assertTrue(command.isIntArg(1));
+        assertEquals(Integer.MIN_VALUE, command.getIntArg(1));
+        assertFalse(command.isIntArg(2));
+        assertFalse(command.isIntArg(3));
+        assertFalse(command.isIntArg(4));
+        assertFalse(command.isIntArg(5));
+    }
+
+    @SmallTest
+    public void testManyArgs() {
+        AtCommand command = new AtCommand();
+        command.parse("+BIA=0,1,1,1,0,0,1,1,0,1,1,0,1,0,1,1,0,1");
+        assertEquals(18, command.getArgCount());
+        assertEquals(1, command.getIntArg(17));
+        // the instance is reused
+        command.parse("+BIEV=2,75");
+        assertEquals(2, command.getArgCount());
+        assertEquals(75, command.getIntArg(1));
+    }
+}
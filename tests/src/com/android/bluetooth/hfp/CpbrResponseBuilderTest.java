@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.hfp;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for the grouping of +CPBR records by {@link CpbrResponseBuilder}.
+ */
+public class CpbrResponseBuilderTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testSingleRecord() {
+        CpbrResponseBuilder builder = new CpbrResponseBuilder();
+        assertNull(builder.add(1, "5551234", 129, "Alice/M"));
+        assertEquals("+CPBR: 1,\"5551234\",129,\"Alice/M\"", builder.flush());
+        assertNull(builder.flush());
+        assertEquals(1, builder.getResponseCount());
+    }
+
+    @SmallTest
+    public void testRecordsShareResponse() {
+        CpbrResponseBuilder builder = new CpbrResponseBuilder();
+        assertNull(builder.add(1, "1", 129, "A"));
+        assertNull(builder.add(2, "2", 129, "B"));
+        assertEquals("+CPBR: 1,\"1\",129,\"A\"\r\n\r\n+CPBR: 2,\"2\",129,\"B\"",
+                builder.flush());
+    }
+
+    @SmallTest
+    public void testResponseSize() {
+        // 20 bytes per record, 4 bytes per separator
+        CpbrResponseBuilder builder = new CpbrResponseBuilder(44);
+        assertNull(builder.add(1, "1", 129, "A"));
+        assertNull(builder.add(2, "2", 129, "B"));
+        assertEquals("+CPBR: 1,\"1\",129,\"A\"\r\n\r\n+CPBR: 2,\"2\",129,\"B\"",
+                builder.add(3, "3", 129, "C"));
+        assertNull(builder.add(4, "4", 129, "D"));
+        assertEquals("+CPBR: 3,\"3\",129,\"C\"\r\n\r\n+CPBR: 4,\"4\",129,\"D\"",
+                builder.flush());
+        assertEquals(4, builder.getRecordCount());
+        assertEquals(2, builder.getResponseCount());
+    }
+
+    @SmallTest
+    public void testOversizedRecord() {
+        CpbrResponseBuilder builder = new CpbrResponseBuilder(10);
+        assertNull(builder.add(1, "1", 129, "A"));
+        assertEquals("+CPBR: 1,\"1\",129,\"A\"", builder.add(2, "2", 129, "B"));
+        assertEquals("+CPBR: 2,\"2\",129,\"B\"", builder.flush());
+    }
+
+    @SmallTest
+    public void testEncodedLength() {
+        assertEquals(3, CpbrResponseBuilder.getEncodedLength("abc", 0, 3));
+        assertEquals(2, CpbrResponseBuilder.getEncodedLength("\u00e9", 0, 1));
+        assertEquals(3, CpbrResponseBuilder.getEncodedLength("\u4e2d", 0, 1));
+        assertEquals(2, CpbrResponseBuilder.getEncodedLength("\u0000", 0, 1));
+        assertEquals(1, CpbrResponseBuilder.getEncodedLength("abc", 1, 2));
+    }
+
+    @SmallTest
+    public void testMultibyteNameSplits() {
+        // 18 bytes of framing, 6 bytes for the two chars of the name
+        CpbrResponseBuilder builder = new CpbrResponseBuilder(24 + 4 + 23);
+        assertNull(builder.add(1, "1", 129, "\u4e2d\u6587"));
+        assertEquals("+CPBR: 1,\"1\",129,\"\u4e2d\u6587\"",
+                builder.add(2, "2", 129, "\u4e2d\u6587"));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.hfp;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for the address keys of {@link HeadsetDeviceContext}.
+ */
+public class HeadsetDeviceContextTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testKeysMatch() {
+        byte[] address = new byte[] {
+            (byte) 0x00, (byte) 0x1a, (byte) 0x7d, (byte) 0xda, (byte) 0x71, (byte) 0x13
+        };
+        assertEquals(0x001a7dda7113L, HeadsetDeviceContext.getKey(address));
+        assertEquals(0x001a7dda7113L, HeadsetDeviceContext.getKey("00:1A:7D:DA:71:13"));
+        assertEquals(0x001a7dda7113L, HeadsetDeviceContext.getKey("00:1a:7d:da:71:13"));
+    }
+
+    @SmallTest
+    public void testHighBytes() {
+        byte[] address = new byte[] {
+            (byte) 0xff, (byte) 0xfe, (byte) 0x80, (byte) 0x7f, (byte) 0x01, (byte) 0x00
+        };
+        assertEquals(0xfffe807f0100L, HeadsetDeviceContext.getKey(address));
+        assertEquals(0xfffe807f0100L, HeadsetDeviceContext.getKey("FF:FE:80:7F:01:00"));
+    }
+
+    @SmallTest
+    public void testInvalidAddresses() {
+        assertEquals(-1, HeadsetDeviceContext.getKey((byte[]) null));
+        assertEquals(-1, HeadsetDeviceContext.getKey(new byte[5]));
+        assertEquals(-1, HeadsetDeviceContext.getKey((String) null));
+        assertEquals(-1, HeadsetDeviceContext.getKey("00:1A:7D:DA:71"));
+        assertEquals(-1, HeadsetDeviceContext.getKey("00-1A-7D-DA-71-13"));
+        assertEquals(-1, HeadsetDeviceContext.getKey("00:1A:7D:DA:71:1G"));
+    }
+
+    @SmallTest
+    public void testClearConnectionState() {
+        HeadsetDeviceContext context = new HeadsetDeviceContext(null, new byte[6]);
+        context.mRetryConnect = 1;
+        context.mBrsf = 0x7f;
+        context.mAudioConfigured = true;
+        context.mAudioParameters = "bt_wbs=on;bt_headset_nrec=off;bt_headset_name=x";
+        context.clearConnectionState();
+        assertEquals(HeadsetDeviceContext.BRSF_UNKNOWN, context.mBrsf);
+        assertFalse(context.mAudioConfigured);
+        assertNull(context.mAudioParameters);
+        // retries outlive the connection
+        assertEquals(1, context.mRetryConnect);
+    }
+
+    @SmallTest
+    public void testScoConnectLatency() {
+        HeadsetDeviceContext context = new HeadsetDeviceContext(null, new byte[6]);
+        // connected without a request seen
+        assertEquals(-1, context.onScoConnected(1000));
+        assertEquals(0, context.getScoConnectCount());
+
+        // the request is kept over the CONNECTING event
+        context.onScoConnectStarted(1000);
+        context.onScoConnectStarted(1100);
+        assertEquals(300, context.onScoConnected(1300));
+        assertEquals(-1, context.onScoConnected(1400));
+
+        context.onScoConnectStarted(2000);
+        assertEquals(100, context.onScoConnected(2100));
+
+        assertEquals(2, context.getScoConnectCount());
+        assertEquals(100, context.getScoConnectLastMs());
+        assertEquals(300, context.getScoConnectMaxMs());
+        assertEquals(200, context.getScoConnectAverageMs());
+    }
+
+    @SmallTest
+    public void testScoConnectFailed() {
+        HeadsetDeviceContext context = new HeadsetDeviceContext(null, new byte[6]);
+        context.onScoConnectStarted(1000);
+        context.cancelScoConnect();
+        // a later connection is timed from its own request
+        context.onScoConnectStarted(5000);
+        assertEquals(200, context.onScoConnected(5200));
+
+        context.onScoConnectStarted(6000);
+        context.clearConnectionState();
+        assertEquals(-1, context.onScoConnected(6100));
+        // statistics outlive the connection
+        assertEquals(1, context.getScoConnectCount());
+    }
+}
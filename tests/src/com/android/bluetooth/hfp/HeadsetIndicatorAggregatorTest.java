@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.hfp;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for the diffing and rate limiting of {@link HeadsetIndicatorAggregator}.
+ */
+public class HeadsetIndicatorAggregatorTest extends AndroidTestCase {
+    private static final long[] INTERVALS = new long[] { 0, 0, 2000, 5000 };
+
+    @SmallTest
+    public void testNothingBeforeState() {
+        HeadsetIndicatorAggregator indicators = new HeadsetIndicatorAggregator(INTERVALS);
+        assertEquals(-1, indicators.getSendDelay(new int[4], 0));
+        indicators.setState(1, 0, 3, 5);
+        assertEquals(-1, indicators.getSendDelay(null, 0));
+    }
+
+    @SmallTest
+    public void testUnchangedNotSent() {
+        HeadsetIndicatorAggregator indicators = new HeadsetIndicatorAggregator(INTERVALS);
+        int[] sent = HeadsetIndicatorAggregator.getSent(1, 0, 3, 5);
+        indicators.setState(1, 0, 3, 5);
+        assertEquals(-1, indicators.getSendDelay(sent, 1000));
+    }
+
+    @SmallTest
+    public void testSignalHeldBack() {
+        HeadsetIndicatorAggregator indicators = new HeadsetIndicatorAggregator(INTERVALS);
+        int[] sent = HeadsetIndicatorAggregator.getSent(1, 0, 3, 5);
+        long now = 10000;
+
+        // the first change is sent at once
+        indicators.setState(1, 0, 2, 5);
+        assertEquals(0, indicators.getSendDelay(sent, now));
+        indicators.onSent(sent, now);
+        assertEquals(2, sent[HeadsetIndicatorAggregator.INDICATOR_SIGNAL]);
+
+        // flapping back is held for the interval
+        indicators.setState(1, 0, 3, 5);
+        assertEquals(2000, indicators.getSendDelay(sent, now));
+        assertEquals(500, indicators.getSendDelay(sent, now + 1500));
+        // and dropped if it flaps back before it is sent
+        indicators.setState(1, 0, 2, 5);
+        assertEquals(-1, indicators.getSendDelay(sent, now + 1500));
+
+        indicators.setState(1, 0, 3, 5);
+        assertEquals(0, indicators.getSendDelay(sent, now + 2000));
+    }
+
+    @SmallTest
+    public void testChangesBatched() {
+        HeadsetIndicatorAggregator indicators = new HeadsetIndicatorAggregator(INTERVALS);
+        int[] sent = HeadsetIndicatorAggregator.getSent(1, 0, 3, 5);
+        indicators.setState(1, 0, 2, 5);
+        indicators.onSent(sent, 0);
+
+        // a held back signal change goes with a service change
+        indicators.setState(1, 0, 4, 5);
+        assertEquals(2000, indicators.getSendDelay(sent, 0));
+        indicators.setState(0, 0, 4, 5);
+        assertEquals(0, indicators.getSendDelay(sent, 0));
+        indicators.onSent(sent, 0);
+        assertEquals(0, sent[HeadsetIndicatorAggregator.INDICATOR_SERVICE]);
+        assertEquals(4, sent[HeadsetIndicatorAggregator.INDICATOR_SIGNAL]);
+        assertEquals(-1, indicators.getSendDelay(sent, 0));
+    }
+
+    @SmallTest
+    public void testPerDevice() {
+        HeadsetIndicatorAggregator indicators = new HeadsetIndicatorAggregator(INTERVALS);
+        int[] first = HeadsetIndicatorAggregator.getSent(1, 0, 3, 5);
+        indicators.setState(1, 0, 3, 4);
+        indicators.onSent(first, 0);
+
+        // a device connected later was sent the current state in its CIND
+        int[] second = HeadsetIndicatorAggregator.getSent(1, 0, 3, 4);
+        assertEquals(-1, indicators.getSendDelay(second, 100));
+        indicators.setState(1, 0, 3, 3);
+        assertEquals(4900, indicators.getSendDelay(first, 100));
+        assertEquals(4900, indicators.getSendDelay(second, 100));
+    }
+}
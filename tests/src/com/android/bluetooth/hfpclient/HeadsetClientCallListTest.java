@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.hfpclient;
+
+import android.bluetooth.BluetoothHeadsetClientCall;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the call list kept by the HF, and its merge of +CLCC lists.
+ */
+public class HeadsetClientCallListTest extends AndroidTestCase {
+    private static final String TAG = "HeadsetClientCallListTest";
+
+    private static final int CALL = HeadsetClientHalConstants.CALL_CALLS_IN_PROGRESS;
+    private static final int NO_CALL = HeadsetClientHalConstants.CALL_NO_CALLS_IN_PROGRESS;
+    private static final int SETUP_NONE = HeadsetClientHalConstants.CALLSETUP_NONE;
+    private static final int SETUP_INCOMING = HeadsetClientHalConstants.CALLSETUP_INCOMING;
+    private static final int HELD_NONE = HeadsetClientHalConstants.CALLHELD_NONE;
+    private static final int HELD_AND_ACTIVE = HeadsetClientHalConstants.CALLHELD_HOLD_AND_ACTIVE;
+
+    private final List<BluetoothHeadsetClientCall> mChanged =
+            new ArrayList<BluetoothHeadsetClientCall>();
+    private final List<BluetoothHeadsetClientCall> mRemoved =
+            new ArrayList<BluetoothHeadsetClientCall>();
+
+    @SmallTest
+    public void testAddTakesLowestFreeId() {
+        HeadsetClientCallList calls = new HeadsetClientCallList();
+        assertEquals(1, calls.add(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, "1", true)
+                .getId());
+        assertEquals(2, calls.add(BluetoothHeadsetClientCall.CALL_STATE_WAITING, "2", false)
+                .getId());
+        calls.remove(1);
+        assertEquals(1, calls.add(BluetoothHeadsetClientCall.CALL_STATE_DIALING, "3", true)
+                .getId());
+        assertEquals(2, calls.size());
+        assertEquals(1, calls.countInState(BluetoothHeadsetClientCall.CALL_STATE_WAITING));
+        assertEquals(2, calls.getFirst(BluetoothHeadsetClientCall.CALL_STATE_WAITING).getId());
+    }
+
+    @SmallTest
+    public void testSnapshotNotChangedByLaterCalls() {
+        HeadsetClientCallList calls = new HeadsetClientCallList();
+        calls.add(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, "1", true);
+        List<BluetoothHeadsetClientCall> snapshot = calls.getSnapshot();
+        calls.add(BluetoothHeadsetClientCall.CALL_STATE_WAITING, "2", false);
+        assertEquals(1, snapshot.size());
+        assertEquals(2, calls.getSnapshot().size());
+        calls.clear();
+        assertEquals(0, calls.getSnapshot().size());
+    }
+
+    @SmallTest
+    public void testUnchangedListReportsNothing() {
+        HeadsetClientCallList calls = new HeadsetClientCallList();
+        calls.add(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, "1", true);
+        calls.add(BluetoothHeadsetClientCall.CALL_STATE_HELD, "2", false);
+
+        calls.startUpdate();
+        calls.addUpdate(1, BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, "1", false, true);
+        calls.addUpdate(2, BluetoothHeadsetClientCall.CALL_STATE_HELD, "2", false, false);
+        calls.finishUpdate(mChanged, mRemoved);
+
+        assertEquals(0, mChanged.size());
+        assertEquals(0, mRemoved.size());
+        assertFalse(calls.isUpdating());
+    }
+
+    @SmallTest
+    public void testChangedCallUpdatedInPlace() {
+        HeadsetClientCallList calls = new HeadsetClientCallList();
+        BluetoothHeadsetClientCall first =
+                calls.add(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, "1", true);
+        BluetoothHeadsetClientCall second =
+                calls.add(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, "2", false);
+
+        // merged into a conference, number missing from the list is kept
+        calls.startUpdate();
+        calls.addUpdate(1, BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, "1", true, true);
+        calls.addUpdate(2, BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, "", true, false);
+        calls.finishUpdate(mChanged, mRemoved);
+
+        assertEquals(2, mChanged.size());
+        assertSame(first, calls.get(1));
+        assertSame(second, calls.get(2));
+        assertTrue(second.isMultiParty());
+        assertEquals("2", second.getNumber());
+    }
+
+    @SmallTest
+    public void testAddedAndRemovedCalls() {
+        HeadsetClientCallList calls = new HeadsetClientCallList();
+        BluetoothHeadsetClientCall first =
+                calls.add(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, "1", true);
+        calls.add(BluetoothHeadsetClientCall.CALL_STATE_HELD_BY_RESPONSE_AND_HOLD, "2", false);
+
+        calls.startUpdate();
+        calls.addUpdate(3, BluetoothHeadsetClientCall.CALL_STATE_WAITING, "3", false, false);
+        calls.finishUpdate(mChanged, mRemoved);
+
+        assertEquals(1, mRemoved.size());
+        assertSame(first, mRemoved.get(0));
+        assertEquals(1, mChanged.size());
+        assertEquals(3, mChanged.get(0).getId());
+        // response and hold is not listed by all AGs
+        assertNotNull(calls.get(2));
+        assertNull(calls.get(1));
+        assertEquals(2, calls.getSnapshot().size());
+    }
+
+    @SmallTest
+    public void testCancelUpdateKeepsCalls() {
+        HeadsetClientCallList calls = new HeadsetClientCallList();
+        calls.add(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, "1", true);
+        calls.startUpdate();
+        calls.cancelUpdate();
+        calls.finishUpdate(mChanged, mRemoved);
+        assertEquals(1, calls.size());
+        assertEquals(0, mRemoved.size());
+    }
+
+    @SmallTest
+    public void testNeedsReconcile() {
+        HeadsetClientCallList calls = new HeadsetClientCallList();
+        // indicators not known yet
+        assertFalse(calls.needsReconcile(-1, SETUP_NONE, HELD_NONE));
+        assertFalse(calls.needsReconcile(NO_CALL, SETUP_NONE, HELD_NONE));
+        assertTrue(calls.needsReconcile(CALL, SETUP_NONE, HELD_NONE));
+
+        calls.add(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, "1", true);
+        assertFalse(calls.needsReconcile(CALL, SETUP_NONE, HELD_NONE));
+        assertTrue(calls.needsReconcile(CALL, SETUP_INCOMING, HELD_NONE));
+
+        // the index of a second call is a guess until AG listed it
+        calls.add(BluetoothHeadsetClientCall.CALL_STATE_WAITING, "2", false);
+        assertTrue(calls.needsReconcile(CALL, SETUP_INCOMING, HELD_NONE));
+
+        calls.startUpdate();
+        calls.addUpdate(1, BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, "1", false, true);
+        calls.addUpdate(2, BluetoothHeadsetClientCall.CALL_STATE_WAITING, "2", false, false);
+        calls.finishUpdate(mChanged, mRemoved);
+        assertFalse(calls.needsReconcile(CALL, SETUP_INCOMING, HELD_NONE));
+
+        // the waiting call accepted, the indicators ahead of the calls
+        calls.get(1).setState(BluetoothHeadsetClientCall.CALL_STATE_HELD);
+        assertTrue(calls.needsReconcile(CALL, SETUP_INCOMING, HELD_AND_ACTIVE));
+        calls.get(2).setState(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE);
+        assertFalse(calls.needsReconcile(CALL, SETUP_NONE, HELD_AND_ACTIVE));
+    }
+
+    @SmallTest
+    public void testConferenceNotPolled() {
+        HeadsetClientCallList calls = new HeadsetClientCallList();
+        calls.startUpdate();
+        for (int i = 1; i <= 5; i++) {
+            calls.addUpdate(i, BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, "" + i, true, true);
+        }
+        calls.finishUpdate(mChanged, mRemoved);
+        assertEquals(5, mChanged.size());
+        assertFalse(calls.needsReconcile(CALL, SETUP_NONE, HELD_NONE));
+    }
+
+    @SmallTest
+    public void testMergeThroughput() {
+        final int calls = 7;
+        final int rounds = 20000;
+        HeadsetClientCallList list = new HeadsetClientCallList();
+        for (int i = 1; i <= calls; i++) {
+            list.add(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, "" + i, true);
+        }
+
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            list.startUpdate();
+            for (int i = 1; i <= calls; i++) {
+                list.addUpdate(i, BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, "" + i,
+                        false, true);
+            }
+            mChanged.clear();
+            list.finishUpdate(mChanged, mRemoved);
+            assertEquals(0, mChanged.size());
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Log.d(TAG, "merged " + rounds + " lists of " + calls + " calls in "
+                + (elapsed / 1000000) + " ms");
+        assertEquals(calls, list.size());
+    }
+}
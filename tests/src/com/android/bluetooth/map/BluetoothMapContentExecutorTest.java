@@ -0,0 +1,139 @@
+package com.android.bluetooth.map;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+public class BluetoothMapContentExecutorTest extends AndroidTestCase {
+    private static final String TAG = "BluetoothMapContentExecutorTest";
+
+    private static final boolean D = true;
+
+    private static final int SMS_MMS_MAS_ID = 0;
+    private static final int EMAIL_MAS_ID = 1;
+
+    /* A slow operation on one MAS instance must not hold up the other instance,
+     * and must be released when cancelled. */
+    public void testSlowInstanceDoesNotBlockOtherInstance() throws Exception {
+        final BluetoothMapContentExecutor executor = new BluetoothMapContentExecutor(2);
+        final CountDownLatch started = new CountDownLatch(1);
+        final IOException[] slowResult = new IOException[1];
+        Thread slowThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute(EMAIL_MAS_ID, new Callable<Integer>() {
+                        public Integer call() throws InterruptedException {
+                            started.countDown();
+                            Thread.sleep(10000);
+                            return 0;
+                        }
+                    });
+                } catch (IOException e) {
+                    slowResult[0] = e;
+                }
+            }
+        };
+        try {
+            slowThread.start();
+            started.await();
+
+            long startTime = System.currentTimeMillis();
+            for (int i = 0; i < 10; i++) {
+                final int value = i;
+                int result = executor.execute(SMS_MMS_MAS_ID, new Callable<Integer>() {
+                    public Integer call() {
+                        return value;
+                    }
+                });
+                assertEquals(value, result);
+            }
+            long elapsed = System.currentTimeMillis() - startTime;
+            if (D) Log.d(TAG, "SMS/MMS operations completed in " + elapsed + " ms");
+            assertTrue(elapsed < 5000);
+            assertEquals(10, executor.getCompletedCount(SMS_MMS_MAS_ID));
+
+            executor.cancel(EMAIL_MAS_ID);
+            slowThread.join(5000);
+            assertFalse(slowThread.isAlive());
+            assertNotNull(slowResult[0]);
+            assertEquals(0, executor.getCompletedCount(EMAIL_MAS_ID));
+            executor.logMetrics(SMS_MMS_MAS_ID);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /* The result of an operation cancelled while running is handed to the disposer,
+     * as it is never returned to the caller. */
+    public void testCancelledResultIsDisposed() throws Exception {
+        final BluetoothMapContentExecutor executor = new BluetoothMapContentExecutor(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch disposed = new CountDownLatch(1);
+        final Object[] disposedResult = new Object[1];
+        final IOException[] callerResult = new IOException[1];
+        final String result = "opened parts";
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute(EMAIL_MAS_ID, new Callable<String>() {
+                        public String call() {
+                            started.countDown();
+                            // Not interruptible, like a content provider query
+                            while (true) {
+                                try {
+                                    release.await();
+                                    return result;
+                                } catch (InterruptedException e) {
+                                    // continue
+                                }
+                            }
+                        }
+                    }, new BluetoothMapContentExecutor.ResultDisposer<String>() {
+                        public void dispose(String r) {
+                            disposedResult[0] = r;
+                            disposed.countDown();
+                        }
+                    });
+                } catch (IOException e) {
+                    callerResult[0] = e;
+                }
+            }
+        };
+        try {
+            caller.start();
+            started.await();
+            executor.cancel(EMAIL_MAS_ID);
+            caller.join(5000);
+            assertFalse(caller.isAlive());
+            assertNotNull(callerResult[0]);
+
+            release.countDown();
+            disposed.await();
+            assertSame(result, disposedResult[0]);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testRuntimeExceptionIsRethrown() throws Exception {
+        BluetoothMapContentExecutor executor = new BluetoothMapContentExecutor(1);
+        try {
+            executor.execute(SMS_MMS_MAS_ID, new Callable<Integer>() {
+                public Integer call() {
+                    throw new IllegalArgumentException("Invalid handle");
+                }
+            });
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.android.bluetooth.map;
+
+import android.test.AndroidTestCase;
+
+public class BluetoothMapEmailMirrorTest extends AndroidTestCase {
+
+    public void testPutKeepsIdsOrderedAndChecksum() {
+        BluetoothMapEmailMirror mirror = new BluetoothMapEmailMirror(2);
+        long inbox = BluetoothMapEmailMirror.pack(7, 0);
+        long sent = BluetoothMapEmailMirror.pack(9, 5);
+
+        assertEquals(BluetoothMapEmailMirror.NO_STATE, mirror.put(10, inbox));
+        assertEquals(BluetoothMapEmailMirror.NO_STATE, mirror.put(30, inbox));
+        assertEquals(BluetoothMapEmailMirror.NO_STATE, mirror.put(20, sent));
+        assertEquals(3, mirror.size());
+        assertEquals(30, mirror.getMaxId());
+        assertEquals(10, mirror.getIdAt(0));
+        assertEquals(20, mirror.getIdAt(1));
+        assertEquals(30, mirror.getIdAt(2));
+        assertEquals(10 * 7 + 20 * 9 + 30 * 7, mirror.getChecksum());
+
+        /* Move a message to another mailbox */
+        assertEquals(inbox, mirror.put(30, sent));
+        assertEquals(sent, mirror.getState(30));
+        assertEquals(10 * 7 + 20 * 9 + 30 * 9, mirror.getChecksum());
+        assertEquals(3, mirror.size());
+        assertEquals(BluetoothMapEmailMirror.NO_STATE, mirror.getState(25));
+    }
+
+    public void testPackState() {
+        long state = BluetoothMapEmailMirror.pack(123456789L,
+                BluetoothMapEmailMirror.TYPE_UNKNOWN);
+        assertEquals(123456789L, BluetoothMapEmailMirror.getMailboxKey(state));
+        assertEquals(BluetoothMapEmailMirror.TYPE_UNKNOWN, BluetoothMapEmailMirror.getType(state));
+        state = BluetoothMapEmailMirror.pack(-1, 6);
+        assertEquals(-1, BluetoothMapEmailMirror.getMailboxKey(state));
+        assertEquals(6, BluetoothMapEmailMirror.getType(state));
+    }
+}
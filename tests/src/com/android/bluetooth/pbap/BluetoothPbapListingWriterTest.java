@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BluetoothPbapListingWriterTest extends AndroidTestCase {
+
+    private static final String LISTING_BEGIN = "<?xml version=\"1.0\"?>"
+            + "<!DOCTYPE vcard-listing SYSTEM \"vcard-listing.dtd\">"
+            + "<vCard-listing version=\"1.0\">";
+
+    public void testEntriesEscapedAndEncoded() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BluetoothPbapListingWriter writer = new BluetoothPbapListingWriter(null,
+                new AtomicBoolean(false), out, 0);
+        writer.begin();
+        writer.writeEntry(0, "Owner");
+        writer.writeEntry(12, "Tom & \"Jerry\" <tj>'s");
+        writer.writeEntry(345, "Jürgen 漢字 😀");
+        writer.writeEntry(6, null);
+        writer.end();
+
+        assertEquals(LISTING_BEGIN
+                + "<card handle=\"0.vcf\" name=\"Owner\"/>"
+                + "<card handle=\"12.vcf\" name=\"Tom &amp; &quot;Jerry&quot; &lt;tj&gt;&#039;s\"/>"
+                + "<card handle=\"345.vcf\" name=\"Jürgen 漢字 😀\"/>"
+                + "<card handle=\"6.vcf\" name=\"\"/>"
+                + "</vCard-listing>", out.toString("UTF-8"));
+        assertEquals(4, writer.getEntryCount());
+    }
+
+    public void testLargeListingWrittenInPackets() throws Exception {
+        final int packetSize = 1000;
+        final int[] writes = new int[1];
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                assertTrue(len <= packetSize);
+                writes[0]++;
+                super.write(b, off, len);
+            }
+        };
+        BluetoothPbapListingWriter writer = new BluetoothPbapListingWriter(null,
+                new AtomicBoolean(false), out, packetSize);
+        StringBuilder expected = new StringBuilder(LISTING_BEGIN);
+        writer.begin();
+        for (int i = 0; i < 10000; i++) {
+            writer.writeEntry(i, "Contact " + i);
+            expected.append("<card handle=\"" + i + ".vcf\" name=\"Contact " + i + "\"/>");
+        }
+        writer.end();
+        expected.append("</vCard-listing>");
+
+        assertEquals(expected.toString(), out.toString("UTF-8"));
+        assertEquals((out.size() + packetSize - 1) / packetSize, writes[0]);
+    }
+}
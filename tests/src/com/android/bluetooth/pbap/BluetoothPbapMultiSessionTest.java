@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.btobex.ClientSession;
+import javax.btobex.HeaderSet;
+import javax.btobex.ObexTransport;
+import javax.btobex.Operation;
+import javax.btobex.ResponseCodes;
+import javax.btobex.ServerSession;
+
+/**
+ * Several PCE, emulated by obex clients over local sockets, using the phonebook at
+ * the same time, each with its own server session.
+ */
+public class BluetoothPbapMultiSessionTest extends AndroidTestCase {
+
+    private static final int CLIENT_COUNT = 4;
+    private static final int ITERATIONS = 20;
+    private static final long TIMEOUT_SECONDS = 120;
+
+    private static final byte[] PBAP_TARGET = new byte[] {
+            0x79, 0x61, 0x35, (byte)0xf0, (byte)0xf0, (byte)0xc5, 0x11, (byte)0xd8, 0x09, 0x66,
+            0x08, 0x00, 0x20, 0x0c, (byte)0x9a, 0x66
+    };
+
+    /* MaxListCount of 10 */
+    private static final byte[] MAX_LIST_COUNT_10 = new byte[] {0x04, 0x02, 0x00, 0x0a};
+
+    private static class LocalSocketTransport implements ObexTransport {
+        private final LocalSocket mSocket;
+
+        LocalSocketTransport(LocalSocket socket) {
+            mSocket = socket;
+        }
+
+        public void close() throws IOException {
+            mSocket.close();
+        }
+
+        public DataInputStream openDataInputStream() throws IOException {
+            return new DataInputStream(openInputStream());
+        }
+
+        public DataOutputStream openDataOutputStream() throws IOException {
+            return new DataOutputStream(openOutputStream());
+        }
+
+        public InputStream openInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        public OutputStream openOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        public void connect() throws IOException {
+        }
+
+        public void create() throws IOException {
+        }
+
+        public void disconnect() throws IOException {
+        }
+
+        public void listen() throws IOException {
+        }
+
+        public boolean isConnected() throws IOException {
+            return true;
+        }
+    }
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private final AtomicInteger mClosedSessions = new AtomicInteger(0);
+    private final ArrayList<LocalServerSocket> mServerSockets = new ArrayList<LocalServerSocket>();
+    private final ArrayList<ServerSession> mServerSessions = new ArrayList<ServerSession>();
+    private ExecutorService mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread("BluetoothPbapMultiSessionTest");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == BluetoothPbapService.MSG_SERVERSESSION_CLOSE) {
+                    mClosedSessions.incrementAndGet();
+                }
+            }
+        };
+        mExecutor = Executors.newFixedThreadPool(CLIENT_COUNT);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        for (ServerSession session : mServerSessions) {
+            session.close();
+        }
+        for (LocalServerSocket serverSocket : mServerSockets) {
+            serverSocket.close();
+        }
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    /**
+     * Start a server session for a new client, as the service does for each connection.
+     * @return the client end of the connection
+     */
+    private LocalSocket connectClient(int client) throws IOException {
+        String name = "com.android.bluetooth.tests.pbap." + client;
+        LocalServerSocket serverSocket = new LocalServerSocket(name);
+        mServerSockets.add(serverSocket);
+        LocalSocket clientSocket = new LocalSocket();
+        clientSocket.connect(new LocalSocketAddress(name));
+        LocalSocket serverEnd = serverSocket.accept();
+        BluetoothPbapObexServer server = new BluetoothPbapObexServer(mHandler, getContext());
+        mServerSessions.add(new ServerSession(new LocalSocketTransport(serverEnd), server,
+                null));
+        return clientSocket;
+    }
+
+    private static byte[] get(ClientSession session, String type, String name,
+            byte[] appParam) throws IOException {
+        HeaderSet request = new HeaderSet();
+        request.setHeader(HeaderSet.TYPE, type);
+        request.setHeader(HeaderSet.NAME, name);
+        if (appParam != null) {
+            request.setHeader(HeaderSet.APPLICATION_PARAMETER, appParam);
+        }
+        Operation op = session.get(request);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = op.openInputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        int responseCode = op.getResponseCode();
+        op.close();
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, responseCode);
+        return out.toByteArray();
+    }
+
+    public void testConcurrentClients() throws Exception {
+        ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < CLIENT_COUNT; i++) {
+            final LocalSocket socket = connectClient(i);
+            results.add(mExecutor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    ClientSession session = new ClientSession(new LocalSocketTransport(socket));
+                    HeaderSet connect = new HeaderSet();
+                    connect.setHeader(HeaderSet.TARGET, PBAP_TARGET);
+                    assertEquals(ResponseCodes.OBEX_HTTP_OK,
+                            session.connect(connect).getResponseCode());
+
+                    String listing = null;
+                    for (int n = 0; n < ITERATIONS; n++) {
+                        String current = new String(get(session, "x-bt/vcard-listing",
+                                "telecom/pb", null), "UTF-8");
+                        if (listing != null) {
+                            assertEquals(listing, current);
+                        }
+                        listing = current;
+                        String vcards = new String(get(session, "x-bt/phonebook",
+                                "telecom/pb.vcf", MAX_LIST_COUNT_10), "UTF-8");
+                        assertTrue(vcards.startsWith("BEGIN:VCARD"));
+                    }
+
+                    session.disconnect(null);
+                    session.close();
+                    return listing;
+                }
+            }));
+        }
+
+        String listing = null;
+        for (Future<String> result : results) {
+            String current = result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertTrue(current.contains("<vCard-listing"));
+            if (listing != null) {
+                assertEquals(listing, current);
+            }
+            listing = current;
+        }
+
+        // The server sessions close when their client disconnects
+        long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+        while (mClosedSessions.get() < CLIENT_COUNT && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(CLIENT_COUNT, mClosedSessions.get());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+
+public class BluetoothPbapOwnerVcardCacheTest extends AndroidTestCase {
+
+    private static final String VCARD = "BEGIN:VCARD\r\nVERSION:2.1\r\nN:Owéner\r\n"
+            + "TEL;CELL:5551234\r\nEND:VCARD\r\n";
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "owner_vcard_test.vcf");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testKeyDependsOnVersionAndFilter() {
+        byte[] filter = new byte[] {0, 0, 0, 0, 0, 0, 0, (byte) 0x88};
+
+        assertEquals("v21_all", BluetoothPbapOwnerVcardCache.getKey(true, null));
+        assertEquals("v30_all", BluetoothPbapOwnerVcardCache.getKey(false, new byte[0]));
+        assertEquals("v21_0000000000000088", BluetoothPbapOwnerVcardCache.getKey(true, filter));
+        assertFalse(BluetoothPbapOwnerVcardCache.getKey(true, filter).equals(
+                BluetoothPbapOwnerVcardCache.getKey(false, filter)));
+    }
+
+    public void testFileIsReadBackWithSameStamp() {
+        assertTrue(BluetoothPbapUtils.createProfileVCardFile(mFile, "1|stamp", VCARD));
+
+        assertEquals(VCARD, BluetoothPbapUtils.readProfileVCardFile(mFile, "1|stamp"));
+    }
+
+    public void testFileIsIgnoredWithOtherStamp() {
+        assertTrue(BluetoothPbapUtils.createProfileVCardFile(mFile, "1|stamp", VCARD));
+
+        assertNull(BluetoothPbapUtils.readProfileVCardFile(mFile, "2|stamp"));
+    }
+
+    public void testMissingFile() {
+        assertNull(BluetoothPbapUtils.readProfileVCardFile(mFile, "1|stamp"));
+    }
+
+    public void testFileIsReplaced() {
+        assertTrue(BluetoothPbapUtils.createProfileVCardFile(mFile, "1|stamp", "old"));
+        assertTrue(BluetoothPbapUtils.createProfileVCardFile(mFile, "2|stamp", VCARD));
+
+        assertEquals(VCARD, BluetoothPbapUtils.readProfileVCardFile(mFile, "2|stamp"));
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    }
+}
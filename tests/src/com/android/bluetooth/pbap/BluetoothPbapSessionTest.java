@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+
+import javax.btobex.ResponseCodes;
+
+/**
+ * The sessions the service keeps for several connected PCE, and the state they have
+ * of their own or share.
+ */
+public class BluetoothPbapSessionTest extends AndroidTestCase {
+
+    private static final String[] ADDRESSES = new String[] {
+            "00:11:22:33:44:01", "00:11:22:33:44:02", "00:11:22:33:44:03",
+            "00:11:22:33:44:04", "00:11:22:33:44:05"
+    };
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread("BluetoothPbapSessionTest");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    private static BluetoothDevice getDevice(int i) {
+        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDRESSES[i]);
+    }
+
+    public void testSessionsByDevice() {
+        BluetoothPbapSessionMap<String> sessions =
+                new BluetoothPbapSessionMap<String>(BluetoothPbapService.MAX_SESSIONS);
+        assertTrue(sessions.isEmpty());
+        assertNull(sessions.get(null));
+
+        assertTrue(sessions.put(getDevice(0), "first"));
+        assertTrue(sessions.put(getDevice(1), "second"));
+        assertEquals("first", sessions.get(getDevice(0)));
+        assertEquals("second", sessions.get(getDevice(1)));
+        assertNull(sessions.get(getDevice(2)));
+        ArrayList<String> all = sessions.getAll();
+        assertEquals(2, all.size());
+
+        // The copy is not changed by the sessions closing
+        assertTrue(sessions.remove(getDevice(0), "first"));
+        assertEquals(1, sessions.size());
+        assertEquals(2, all.size());
+        assertTrue(sessions.remove(getDevice(1), "second"));
+        assertTrue(sessions.isEmpty());
+        assertFalse(sessions.remove(getDevice(1), "second"));
+    }
+
+    public void testConnectionRejectedOverMaxSessions() {
+        BluetoothPbapSessionMap<String> sessions =
+                new BluetoothPbapSessionMap<String>(BluetoothPbapService.MAX_SESSIONS);
+        for (int i = 0; i < BluetoothPbapService.MAX_SESSIONS; i++) {
+            assertTrue(sessions.put(getDevice(i), "session " + i));
+        }
+        assertFalse(sessions.put(getDevice(BluetoothPbapService.MAX_SESSIONS), "rejected"));
+        assertNull(sessions.get(getDevice(BluetoothPbapService.MAX_SESSIONS)));
+        assertEquals(BluetoothPbapService.MAX_SESSIONS, sessions.size());
+
+        // A closed session makes room for another device
+        assertTrue(sessions.remove(getDevice(0), "session 0"));
+        assertTrue(sessions.put(getDevice(BluetoothPbapService.MAX_SESSIONS), "accepted"));
+        assertEquals("accepted", sessions.get(getDevice(BluetoothPbapService.MAX_SESSIONS)));
+    }
+
+    public void testReconnectionReplacesSessionOfDevice() {
+        BluetoothPbapSessionMap<String> sessions =
+                new BluetoothPbapSessionMap<String>(BluetoothPbapService.MAX_SESSIONS);
+        for (int i = 0; i < BluetoothPbapService.MAX_SESSIONS; i++) {
+            assertTrue(sessions.put(getDevice(i), "session " + i));
+        }
+
+        // A connected device reconnecting does not need a free session
+        assertTrue(sessions.put(getDevice(0), "reconnected"));
+        assertEquals("reconnected", sessions.get(getDevice(0)));
+        assertEquals(BluetoothPbapService.MAX_SESSIONS, sessions.size());
+
+        // The previous session closing late does not remove the new one
+        assertFalse(sessions.remove(getDevice(0), "session 0"));
+        assertEquals("reconnected", sessions.get(getDevice(0)));
+        assertTrue(sessions.remove(getDevice(0), "reconnected"));
+        assertNull(sessions.get(getDevice(0)));
+    }
+
+    public void testAbortStopsOnlyItsSession() {
+        BluetoothPbapObexServer first = new BluetoothPbapObexServer(mHandler, getContext());
+        BluetoothPbapObexServer second = new BluetoothPbapObexServer(mHandler, getContext());
+        assertFalse(first.isAborted());
+        assertFalse(second.isAborted());
+
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, first.onAbort(null, null));
+        assertTrue(first.isAborted());
+        assertFalse(second.isAborted());
+
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, second.onAbort(null, null));
+        assertTrue(second.isAborted());
+    }
+
+    public void testSnapshotSharedUntilLastRelease() {
+        BluetoothPbapPhonebookSnapshot first = BluetoothPbapPhonebookSnapshot.acquire(getContext());
+        BluetoothPbapPhonebookSnapshot second =
+                BluetoothPbapPhonebookSnapshot.acquire(getContext());
+        assertSame(first, second);
+
+        // Still used by the second session
+        first.release();
+        BluetoothPbapPhonebookSnapshot third = BluetoothPbapPhonebookSnapshot.acquire(getContext());
+        assertSame(second, third);
+        third.release();
+        second.release();
+
+        // Released by all sessions, a new one is made for the next session
+        BluetoothPbapPhonebookSnapshot next = BluetoothPbapPhonebookSnapshot.acquire(getContext());
+        assertNotSame(first, next);
+
+        // Releasing a closed snapshot again does not release the new one
+        first.release();
+        BluetoothPbapPhonebookSnapshot last = BluetoothPbapPhonebookSnapshot.acquire(getContext());
+        assertSame(next, last);
+        last.release();
+        next.release();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.test.AndroidTestCase;
+
+public class BluetoothPbapSimPhonebookTest extends AndroidTestCase {
+
+    private static BluetoothPbapSimPhonebook.Table createTable(String... names) {
+        String[] numbers = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            numbers[i] = "555000" + i;
+        }
+        return new BluetoothPbapSimPhonebook.Table(names, numbers, new int[names.length],
+                new String[names.length], names.clone());
+    }
+
+    public void testIndexedOrder() {
+        BluetoothPbapSimPhonebook.Table table = createTable("Zoe", "adam", "Bob");
+
+        assertEquals(3, table.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, table.getIndex(i, BluetoothPbapObexServer.ORDER_BY_INDEXED));
+        }
+        assertEquals(-1, table.getIndex(3, BluetoothPbapObexServer.ORDER_BY_INDEXED));
+        assertEquals(-1, table.getIndex(-1, BluetoothPbapObexServer.ORDER_BY_INDEXED));
+    }
+
+    public void testAlphabeticalOrderIgnoresCaseAndIsStable() {
+        BluetoothPbapSimPhonebook.Table table = createTable("Zoe", "bob", "adam", "Bob");
+        final int alpha = BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL;
+
+        assertEquals(2, table.getIndex(0, alpha)); // adam
+        assertEquals(1, table.getIndex(1, alpha)); // bob
+        assertEquals(3, table.getIndex(2, alpha)); // Bob
+        assertEquals(0, table.getIndex(3, alpha)); // Zoe
+        assertEquals(-1, table.getIndex(4, alpha));
+    }
+}
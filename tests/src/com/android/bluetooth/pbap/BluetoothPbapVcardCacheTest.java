@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.test.AndroidTestCase;
+
+public class BluetoothPbapVcardCacheTest extends AndroidTestCase {
+
+    private static String read(BluetoothPbapVcardCache cache, long id, long updated) {
+        long[] entry = new long[2];
+        int generation = cache.getGeneration();
+        if (!cache.lookup(id, updated, entry)) {
+            return null;
+        }
+        BluetoothPbapVcardPipeline.VcardBuffer buffer =
+                new BluetoothPbapVcardPipeline.VcardBuffer();
+        assertTrue(cache.read(generation, entry[BluetoothPbapVcardCache.ENTRY_OFFSET],
+                (int) entry[BluetoothPbapVcardCache.ENTRY_LENGTH], buffer));
+        return new String(buffer.toByteArray());
+    }
+
+    private static void put(BluetoothPbapVcardCache cache, long id, long updated,
+            String vcard) {
+        byte[] bytes = vcard.getBytes();
+        cache.put(id, updated, bytes, 0, bytes.length);
+    }
+
+    public void testEntriesValidForTimestamp() {
+        BluetoothPbapVcardCache cache = BluetoothPbapVcardCache.get(getContext(),
+                "test_timestamp");
+        assertNotNull(cache);
+        put(cache, 1, 100, "BEGIN:VCARD\r\nN:One\r\nEND:VCARD\r\n");
+        put(cache, 2, 100, "BEGIN:VCARD\r\nN:Two\r\nEND:VCARD\r\n");
+
+        assertEquals("BEGIN:VCARD\r\nN:Two\r\nEND:VCARD\r\n", read(cache, 2, 100));
+        assertNull(read(cache, 2, 101));
+
+        put(cache, 2, 101, "BEGIN:VCARD\r\nN:Two updated\r\nEND:VCARD\r\n");
+        assertEquals("BEGIN:VCARD\r\nN:Two updated\r\nEND:VCARD\r\n", read(cache, 2, 101));
+        assertEquals("BEGIN:VCARD\r\nN:One\r\nEND:VCARD\r\n", read(cache, 1, 100));
+        cache.save();
+    }
+
+    public void testDeletedContactsEvicted() {
+        BluetoothPbapVcardCache cache = BluetoothPbapVcardCache.get(getContext(),
+                "test_evict");
+        assertNotNull(cache);
+        for (long id = 1; id <= 10; id++) {
+            put(cache, id, 1, "vCard " + id);
+        }
+
+        cache.retain(3, 8, new long[] {3, 5, 8}, 3);
+
+        assertEquals("vCard 1", read(cache, 1, 1));
+        assertNull(read(cache, 4, 1));
+        assertNull(read(cache, 7, 1));
+        assertEquals("vCard 5", read(cache, 5, 1));
+        assertEquals("vCard 8", read(cache, 8, 1));
+        assertEquals("vCard 10", read(cache, 10, 1));
+        cache.save();
+    }
+
+    public void testLookupWhileOtherSessionsChangeEntries() throws Exception {
+        final BluetoothPbapVcardCache cache = BluetoothPbapVcardCache.get(getContext(),
+                "test_concurrent");
+        assertNotNull(cache);
+        // odd ids are looked up, even ids are inserted between them and evicted again
+        for (long id = 1; id < 400; id += 2) {
+            put(cache, id, 1, "vCard " + id);
+        }
+
+        final Throwable[] failure = new Throwable[1];
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                long[] odd = new long[200];
+                for (int i = 0; i < odd.length; i++) {
+                    odd[i] = 2 * i + 1;
+                }
+                try {
+                    for (int round = 0; round < 20; round++) {
+                        for (long id = 398; id > 0; id -= 2) {
+                            put(cache, id, 1, "vCard " + id);
+                        }
+                        cache.retain(1, 399, odd, odd.length);
+                    }
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        };
+        writer.start();
+        while (writer.isAlive()) {
+            for (long id = 1; id < 400; id += 2) {
+                assertEquals("vCard " + id, read(cache, id, 1));
+            }
+        }
+        writer.join();
+        assertNull(failure[0]);
+        cache.save();
+    }
+}
@@ -0,0 +1,83 @@
+package com.android.bluetooth.pbap;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+public class BluetoothPbapVcardFilterTest extends AndroidTestCase {
+    private static final String TAG = "BluetoothPbapVcardFilterTest";
+
+    private static final boolean D = true;
+
+    /* Filter with only VERSION, FN, N and TEL set */
+    private static final byte[] FILTER_BASIC = new byte[] {
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, (byte)0x87
+    };
+
+    private static String buildVcard(int i) {
+        return "BEGIN:VCARD\r\n"
+            + "VERSION:2.1\r\n"
+            + "N:Contact" + i + ";Test;;;\r\n"
+            + "FN:Test Contact" + i + "\r\n"
+            + "NICKNAME:tc" + i + "\r\n"
+            + "TEL;CELL:(555) 010-" + (1000 + i % 9000) + "\r\n"
+            + "TEL;WORK:+1 800 555-0199\r\n"
+            + "EMAIL;HOME:contact" + i + "@example.com\r\n"
+            + "ADR;HOME:;;" + i + " Main Street;Springfield;;12345;\r\n"
+            + "ORG:Example Corporation\r\n"
+            + "TITLE:Engineer\r\n"
+            + "NOTE;ENCODING=QUOTED-PRINTABLE:A long note that is wrapped over several =\r\n"
+            + "lines by the quoted-printable encoding of the =\r\n"
+            + "vCard composer\r\n"
+            + "URL:http://www.example.com/" + i + "\r\n"
+            + "BDAY:1980-01-01\r\n"
+            + "END:VCARD\r\n";
+    }
+
+    public void testFilterRemovesPropertiesAndContinuationLines() {
+        BluetoothPbapVcardManager manager = new BluetoothPbapVcardManager(getContext());
+        BluetoothPbapVcardManager.FilterVcard filter = manager.new FilterVcard();
+        filter.setFilter(FILTER_BASIC);
+
+        String vcard = filter.applyFilterAndStripTelephoneNumber(buildVcard(1), true, false);
+        assertEquals("BEGIN:VCARD\r\n"
+                + "VERSION:2.1\r\n"
+                + "N:Contact1;Test;;;\r\n"
+                + "FN:Test Contact1\r\n"
+                + "TEL;CELL:5550101001\r\n"
+                + "TEL;WORK:+18005550199\r\n"
+                + "END:VCARD\r\n", vcard);
+    }
+
+    public void testIgnoredFilterOnlyStripsTelephoneNumbers() {
+        BluetoothPbapVcardManager manager = new BluetoothPbapVcardManager(getContext());
+        BluetoothPbapVcardManager.FilterVcard filter = manager.new FilterVcard();
+        String source = buildVcard(2);
+
+        assertEquals(manager.StripTelephoneNumber(source),
+                filter.applyFilterAndStripTelephoneNumber(source, true, true));
+        assertTrue(filter.applyFilterAndStripTelephoneNumber(source, true, true)
+                .contains("NOTE;ENCODING=QUOTED-PRINTABLE"));
+    }
+
+    /* Measure filtering a phonebook of 5000 contacts */
+    public void testFilterThroughput() {
+        BluetoothPbapVcardManager manager = new BluetoothPbapVcardManager(getContext());
+        BluetoothPbapVcardManager.FilterVcard filter = manager.new FilterVcard();
+        filter.setFilter(FILTER_BASIC);
+        final int count = 5000;
+        String[] vcards = new String[count];
+        for (int i = 0; i < count; i++) {
+            vcards[i] = buildVcard(i);
+        }
+
+        long length = 0;
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            length += filter.applyFilterAndStripTelephoneNumber(vcards[i], false, false).length();
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (D) Log.d(TAG, "Filtered " + count + " vCards (" + length + " chars) in "
+                + elapsed + " ms");
+        assertTrue(length > 0);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BluetoothPbapVcardPipelineTest extends AndroidTestCase {
+
+    private ExecutorService mExecutor;
+    private final AtomicBoolean mAborted = new AtomicBoolean(false);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = Executors.newFixedThreadPool(2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testChunksWrittenInOrder() throws Exception {
+        final Random random = new Random(1);
+        BluetoothPbapVcardPipeline pipeline = new BluetoothPbapVcardPipeline(mExecutor, 4,
+                mAborted);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        int result = pipeline.run(50, new BluetoothPbapVcardPipeline.ChunkComposer() {
+            public boolean composeChunk(int chunk, BluetoothPbapVcardPipeline.VcardBuffer b) {
+                int delay;
+                synchronized (random) {
+                    delay = random.nextInt(5);
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                for (int i = 0; i < 3; i++) {
+                    b.appendUtf8("BEGIN:VCARD\r\nN:" + chunk + "-" + i + "\r\nEND:VCARD\r\n");
+                }
+                return true;
+            }
+        }, out);
+
+        StringBuilder expected = new StringBuilder();
+        for (int chunk = 0; chunk < 50; chunk++) {
+            for (int i = 0; i < 3; i++) {
+                expected.append("BEGIN:VCARD\r\nN:" + chunk + "-" + i + "\r\nEND:VCARD\r\n");
+            }
+        }
+        assertEquals(BluetoothPbapVcardPipeline.RESULT_OK, result);
+        assertEquals(expected.toString(), out.toString("UTF-8"));
+    }
+
+    public void testAbortWhileComposing() {
+        BluetoothPbapVcardPipeline pipeline = new BluetoothPbapVcardPipeline(mExecutor, 4,
+                mAborted);
+        long start = System.currentTimeMillis();
+
+        int result = pipeline.run(1000, new BluetoothPbapVcardPipeline.ChunkComposer() {
+            public boolean composeChunk(int chunk, BluetoothPbapVcardPipeline.VcardBuffer b) {
+                if (chunk == 10) {
+                    mAborted.set(true);
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                return true;
+            }
+        }, new ByteArrayOutputStream());
+
+        assertEquals(BluetoothPbapVcardPipeline.RESULT_ABORTED, result);
+        assertTrue(pipeline.isCancelled());
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    public void testAbortOfOtherSessionIgnored() {
+        BluetoothPbapVcardPipeline pipeline = new BluetoothPbapVcardPipeline(mExecutor, 4,
+                mAborted);
+        final AtomicBoolean otherAborted = new AtomicBoolean(false);
+
+        int result = pipeline.run(20, new BluetoothPbapVcardPipeline.ChunkComposer() {
+            public boolean composeChunk(int chunk, BluetoothPbapVcardPipeline.VcardBuffer b) {
+                if (chunk == 5) {
+                    otherAborted.set(true);
+                }
+                return true;
+            }
+        }, new ByteArrayOutputStream());
+
+        assertEquals(BluetoothPbapVcardPipeline.RESULT_OK, result);
+        assertFalse(pipeline.isCancelled());
+    }
+
+    public void testChunkFailure() {
+        BluetoothPbapVcardPipeline pipeline = new BluetoothPbapVcardPipeline(mExecutor, 4,
+                mAborted);
+
+        int result = pipeline.run(20, new BluetoothPbapVcardPipeline.ChunkComposer() {
+            public boolean composeChunk(int chunk, BluetoothPbapVcardPipeline.VcardBuffer b) {
+                return chunk != 7;
+            }
+        }, new ByteArrayOutputStream());
+
+        assertEquals(BluetoothPbapVcardPipeline.RESULT_ERROR, result);
+    }
+
+    public void testUtf8Encoding() throws Exception {
+        String[] values = {
+            "N:Smith;John", "N:Müller", "NOTE:€ 漢字", "FN:😀",
+        };
+        for (String value : values) {
+            BluetoothPbapVcardPipeline.VcardBuffer buffer =
+                    new BluetoothPbapVcardPipeline.VcardBuffer();
+            buffer.appendUtf8(value);
+            assertEquals(value, buffer.toString("UTF-8"));
+        }
+    }
+}
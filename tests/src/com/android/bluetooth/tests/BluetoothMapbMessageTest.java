@@ -495,6 +495,64 @@ public class BluetoothMapbMessageTest extends AndroidTestCase {
         }
     }
 
+    /***
+     * Benchmark decoding of a large e-mail bMessage, to validate the throughput of the
+     * bMessage reader. The decoded body is validated to ensure no lines are lost.
+     */
+    public void testLargeEmailDecodeThroughput() {
+        final int lineCount = 50000;
+        StringBuilder body = new StringBuilder(lineCount * 64);
+        for(int i = 0; i < lineCount; i++) {
+            body.append("This is line ").append(i).append(" of a very long e-mail body text.\r\n");
+        }
+        String encoded =
+                 "BEGIN:BMSG\r\n" +
+                    "VERSION:1.0\r\n" +
+                    "STATUS:UNREAD\r\n" +
+                    "TYPE:EMAIL\r\n" +
+                    "FOLDER:telecom/msg/outbox\r\n" +
+                    "BEGIN:VCARD\r\n" +
+                        "VERSION:3.0\r\n" +
+                        "FN:Casper Bonde\r\n" +
+                        "N:Bonde,Casper\r\n" +
+                        "EMAIL:casper@email.add\r\n" +
+                    "END:VCARD\r\n" +
+                    "BEGIN:BENV\r\n" +
+                        "BEGIN:VCARD\r\n" +
+                            "VERSION:3.0\r\n" +
+                            "FN:Jens Hansen\r\n" +
+                            "N:\r\n" +
+                            "EMAIL:bonde@email.add\r\n" +
+                        "END:VCARD\r\n" +
+                        "BEGIN:BBODY\r\n" +
+                            "CHARSET:UTF-8\r\n" +
+                            "LENGTH:" + (body.length() + 22) + "\r\n" +
+                            "BEGIN:MSG\r\n" +
+                                "Date: Mon, 1 Sep 2014 12:00:00 +0000\r\n" +
+                                "Subject: Large message\r\n" +
+                                "\r\n" +
+                                body.toString() +
+                            "END:MSG\r\n" +
+                        "END:BBODY\r\n" +
+                    "END:BENV\r\n" +
+                 "END:BMSG\r\n";
+        try {
+            byte[] data = encoded.getBytes("UTF-8");
+            InputStream is = new ByteArrayInputStream(data);
+            long startTime = System.currentTimeMillis();
+            BluetoothMapbMessage newMsg = BluetoothMapbMessage.parse(is, BluetoothMapAppParams.CHARSET_UTF8);
+            long duration = System.currentTimeMillis() - startTime;
+            Log.i(TAG, "Decoded " + data.length + " bytes in " + duration + " ms");
+            String decoded = ((BluetoothMapbMessageMmsEmail) newMsg).getEmailBody();
+            assertNotNull("No e-mail body decoded", decoded);
+            assertTrue("The decoded body is missing the last line",
+                    decoded.contains("This is line " + (lineCount - 1) + " of"));
+        } catch (UnsupportedEncodingException e) {
+            Log.d(TAG, "Decoding failed.",e);
+            assertTrue("Decoding failed.", false);
+        }
+    }
+
     public void testHeaderEncode() {
         BasicHeaderElement header = new BasicHeaderElement("To","Jørgen <joergen@hest.com>");
         String headerStr = BasicHeaderValueFormatter.formatHeaderElement(header, true, BasicHeaderValueFormatter.DEFAULT);
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2014, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of The Linux Foundation nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.bluetooth.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for the keys of {@link ContactNumberIndex}.
+ */
+public class ContactNumberIndexTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testKeyIgnoresSeparators() {
+        assertEquals(ContactNumberIndex.getKey("5551234"),
+                ContactNumberIndex.getKey("555-1234"));
+        assertEquals(ContactNumberIndex.getKey("+1 (650) 555-1234"),
+                ContactNumberIndex.getKey("6505551234"));
+    }
+
+    @SmallTest
+    public void testKeyMatchesLastDigits() {
+        assertEquals(ContactNumberIndex.getKey("+44 20 7555 1234"),
+                ContactNumberIndex.getKey("07555 1234"));
+        assertFalse(ContactNumberIndex.getKey("5551234")
+                == ContactNumberIndex.getKey("5551235"));
+    }
+
+    @SmallTest
+    public void testShortNumbersMatchExactly() {
+        assertEquals(ContactNumberIndex.getKey("112"), ContactNumberIndex.getKey("1-1-2"));
+        assertFalse(ContactNumberIndex.getKey("112") == ContactNumberIndex.getKey("0112"));
+        assertFalse(ContactNumberIndex.getKey("1234") == ContactNumberIndex.getKey("0001234"));
+    }
+
+    @SmallTest
+    public void testNoDigits() {
+        assertEquals(-1, ContactNumberIndex.getKey(null));
+        assertEquals(-1, ContactNumberIndex.getKey(""));
+        assertEquals(-1, ContactNumberIndex.getKey("+-()"));
+    }
+}